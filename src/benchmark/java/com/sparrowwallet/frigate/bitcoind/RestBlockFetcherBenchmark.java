@@ -0,0 +1,49 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.github.arteam.simplejsonrpc.client.JsonRpcClient;
+import com.sparrowwallet.drongo.protocol.Block;
+import com.sparrowwallet.frigate.io.Server;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.HexFormat;
+import java.util.Map;
+
+public class RestBlockFetcherBenchmark {
+    private static final String BLOCK_HASH = "000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f";
+    private static final int BLOCK_TRANSACTIONS = 8000;
+    private static final int ITERATIONS = 20;
+
+    @Test
+    public void benchmarkRestBlock() throws IOException {
+        byte[] blockBytes = RestBlockFetcherTest.createBlock(BLOCK_TRANSACTIONS);
+        try(RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(Map.of(BLOCK_HASH, blockBytes))) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+            RestBlockFetcher restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+            BitcoindClientService bitcoindService = new JsonRpcClient(bitcoindTransport).onDemand(BitcoindClientService.class);
+
+            //Warm up both paths before timing
+            for(int i = 0; i < 3; i++) {
+                Assertions.assertArrayEquals(blockBytes, HexFormat.of().parseHex((String)bitcoindService.getBlock(BLOCK_HASH, 0)));
+                Assertions.assertArrayEquals(blockBytes, restBlockFetcher.getBlock(BLOCK_HASH));
+            }
+
+            long start = System.nanoTime();
+            for(int i = 0; i < ITERATIONS; i++) {
+                Block block = new Block(HexFormat.of().parseHex((String)bitcoindService.getBlock(BLOCK_HASH, 0)));
+                Assertions.assertEquals(BLOCK_TRANSACTIONS, block.getTransactions().size());
+            }
+            long jsonNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(int i = 0; i < ITERATIONS; i++) {
+                Block block = new Block(restBlockFetcher.getBlock(BLOCK_HASH));
+                Assertions.assertEquals(BLOCK_TRANSACTIONS, block.getTransactions().size());
+            }
+            long restNanos = System.nanoTime() - start;
+
+            System.out.printf("Fetched and parsed %d blocks of %d bytes: JSON hex %dms, REST binary %dms%n", ITERATIONS, blockBytes.length, jsonNanos / 1_000_000, restNanos / 1_000_000);
+        }
+    }
+}
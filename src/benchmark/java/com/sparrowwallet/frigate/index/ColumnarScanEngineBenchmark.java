@@ -0,0 +1,70 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Scans a table of the size of the README's 4 week benchmark, in the same tx/sec, so that the FFM engine can be compared with the DuckDB figures there
+//Without libsecp256k1 only the rate of reading and matching rows is measured, which bounds the rate either kernel can reach
+public class ColumnarScanEngineBenchmark {
+    private static final int ROWS = 5_002_030;
+    private static final String SELECT_TWEAKS = "SELECT txid, height, tweak_key, outputs, output_values, spent_mask FROM tweak";
+
+    @Test
+    public void benchmarkScan() throws SQLException {
+        //The generator point, used as a valid tweak key and spend key
+        byte[] point = Utils.hexToBytes("0279be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798");
+        byte[] scanPrivateKey = new byte[32];
+        scanPrivateKey[0] = 1;
+        scanPrivateKey[31] = 3;
+
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:")) {
+            try(Statement statement = connection.createStatement()) {
+                Index.createTables(statement);
+            }
+
+            Random random = new Random(0);
+            for(int from = 0; from < ROWS; from += 100_000) {
+                List<TweakRow> rows = new ArrayList<>();
+                for(int i = from; i < Math.min(from + 100_000, ROWS); i++) {
+                    byte[] txid = new byte[32];
+                    random.nextBytes(txid);
+                    rows.add(new TweakRow(txid, 907402 + i / 1241, point, new long[] { random.nextLong(), random.nextLong() }, new long[] { 10000L, 20000L }, 0L));
+                }
+                Index.appendRows(connection, rows);
+            }
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            scan(connection, "the pipeline without EC", new ColumnarScanEngine(ColumnarScanEngineTest.XorScanKernel::new, threads), scanPrivateKey, point);
+
+            Secp256k1Library library;
+            try {
+                library = Secp256k1Library.get();
+            } catch(IllegalStateException e) {
+                System.out.println("libsecp256k1 is not available, skipping the FFM engine");
+                return;
+            }
+            scan(connection, "libsecp256k1", new ColumnarScanEngine((key, spendKey) -> new NativeScanKernel(library, key, spendKey), threads), scanPrivateKey, point);
+        }
+    }
+
+    private static void scan(Connection connection, String kernel, ColumnarScanEngine engine, byte[] scanPrivateKey, byte[] spendPublicKey) throws SQLException {
+        AtomicLong matches = new AtomicLong();
+        try(PreparedStatement statement = connection.prepareStatement(SELECT_TWEAKS); ResultSet resultSet = statement.executeQuery()) {
+            long start = System.nanoTime();
+            engine.scan(resultSet, List.of(new ColumnarScanEngine.ScanKey(scanPrivateKey, spendPublicKey, 0, Integer.MAX_VALUE, ScanFilter.NONE, entry -> matches.incrementAndGet())));
+            long millis = Math.max(1, (System.nanoTime() - start) / 1_000_000);
+            System.out.printf("Scanned %d transactions with %s on %d threads in %dms at %d tx/sec%n", ROWS, kernel, Runtime.getRuntime().availableProcessors(), millis, ROWS * 1000L / millis);
+        } finally {
+            engine.close();
+        }
+
+        Assertions.assertEquals(0, matches.get());
+    }
+}
@@ -0,0 +1,59 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+import java.util.*;
+
+public class IndexAppenderBenchmark {
+    private static final int BLOCKS = 20;
+    private static final int TRANSACTIONS_PER_BLOCK = 2500;
+
+    @Test
+    public void benchmarkAppendRows() throws SQLException {
+        List<List<TweakRow>> blocks = IndexAppenderTest.createBlocks(BLOCKS, TRANSACTIONS_PER_BLOCK);
+
+        try(Connection batchConnection = IndexAppenderTest.createConnection(); Connection appenderConnection = IndexAppenderTest.createConnection()) {
+            //Warm up both paths before timing
+            insertBatch(batchConnection, blocks.getFirst());
+            Index.appendRows(appenderConnection, blocks.getFirst());
+
+            long start = System.nanoTime();
+            for(List<TweakRow> block : blocks.subList(1, blocks.size())) {
+                insertBatch(batchConnection, block);
+            }
+            long batchNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for(List<TweakRow> block : blocks.subList(1, blocks.size())) {
+                Index.appendRows(appenderConnection, block);
+            }
+            long appenderNanos = System.nanoTime() - start;
+
+            Assertions.assertEquals(getRowCount(batchConnection), getRowCount(appenderConnection));
+            System.out.printf("Indexed %d blocks of %d transactions: prepared statement batch %dms, appender %dms%n", BLOCKS - 1, TRANSACTIONS_PER_BLOCK, batchNanos / 1_000_000, appenderNanos / 1_000_000);
+        }
+    }
+
+    //The previous insert path, using a prepared statement batch with a boxed array per row
+    private static void insertBatch(Connection connection, List<TweakRow> rows) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("INSERT INTO tweak (txid, height, tweak_key, outputs) VALUES (?, ?, ?, ?)")) {
+            for(TweakRow row : rows) {
+                statement.setBytes(1, row.txid());
+                statement.setInt(2, row.height());
+                statement.setObject(3, row.tweakKey());
+                statement.setArray(4, connection.createArrayOf("BIGINT", Arrays.stream(row.outputs()).boxed().toArray()));
+                statement.addBatch();
+            }
+            statement.executeBatch();
+        }
+    }
+
+    private static long getRowCount(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM tweak")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
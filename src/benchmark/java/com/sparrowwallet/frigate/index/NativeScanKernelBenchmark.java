@@ -0,0 +1,49 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.Arrays;
+
+public class NativeScanKernelBenchmark {
+    @Test
+    public void benchmarkNativeKernel() {
+        Secp256k1Library library;
+        try {
+            library = Secp256k1Library.get();
+        } catch(IllegalStateException e) {
+            Assumptions.abort("libsecp256k1 is not available");
+            return;
+        }
+
+        byte[] scanPrivateKey = new byte[32];
+        scanPrivateKey[31] = 3;
+        //The generator point, used as a valid spend key and tweak key
+        byte[] point = Utils.hexToBytes("0279be667ef9dcbbac55a06295ce870b07029bfcdb2dce28d959f2815b16f81798");
+        MemorySegment tweakKeys = MemorySegment.ofArray(new byte[ColumnarScanEngine.BATCH_SIZE * 33]);
+        for(int i = 0; i < ColumnarScanEngine.BATCH_SIZE; i++) {
+            MemorySegment.copy(point, 0, tweakKeys, ValueLayout.JAVA_BYTE, i * 33L, 33);
+        }
+        int[] rows = new int[ColumnarScanEngine.BATCH_SIZE];
+        Arrays.setAll(rows, i -> i);
+        long[] prefixes = new long[ColumnarScanEngine.BATCH_SIZE];
+
+        try(NativeScanKernel kernel = new NativeScanKernel(library, scanPrivateKey, point)) {
+            Arena arena = Arena.ofAuto();
+            MemorySegment nativeTweakKeys = arena.allocate(tweakKeys.byteSize());
+            nativeTweakKeys.copyFrom(tweakKeys);
+
+            long start = System.nanoTime();
+            kernel.computeOutputPrefixes(nativeTweakKeys, rows, 0, rows.length, prefixes);
+            long nanos = System.nanoTime() - start;
+
+            Assertions.assertTrue(Arrays.stream(prefixes).allMatch(prefix -> prefix == prefixes[0] && prefix != 0L));
+            System.out.printf("Native kernel computed %d output keys on one thread at %d tx/sec%n", rows.length, rows.length * 1_000_000_000L / Math.max(nanos, 1));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SharedDbManagerBenchmark {
+    private static final String READ_INIT_SQL = "SET enable_progress_bar = 'true'; SET enable_progress_bar_print = 'false';";
+    private static final int INITIAL_ROWS = 1_000_000;
+    private static final int BLOCK_ROWS = 2500;
+    private static final long BLOCK_INTERVAL_MILLIS = 100;
+    private static final long DURATION_MILLIS = 3000;
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void benchmarkScanWhileIndexing() throws Exception {
+        DbManager switchingManager = new SingleDbManager(DbManager.DB_PREFIX + new File(tempDir, "switching.duckdb").getAbsolutePath()) {
+            @Override
+            protected String buildReadConnectionInitSql() {
+                return READ_INIT_SQL;
+            }
+        };
+        DbManager sharedManager = new SharedDbManager(DbManager.DB_PREFIX + new File(tempDir, "shared.duckdb").getAbsolutePath()) {
+            @Override
+            protected String buildReadConnectionInitSql() {
+                return READ_INIT_SQL;
+            }
+        };
+
+        try {
+            ScanResult switchingResult = scanWhileIndexing(switchingManager);
+            ScanResult sharedResult = scanWhileIndexing(sharedManager);
+
+            Assertions.assertTrue(sharedResult.scans() > 0);
+            Assertions.assertTrue(sharedResult.blocks() > 0);
+            Assertions.assertEquals(INITIAL_ROWS + sharedResult.blocks() * BLOCK_ROWS, countRows(sharedManager));
+
+            System.out.printf("Scans in %dms with a block written every %dms: switching %d scans and %d blocks, shared %d scans and %d blocks%n",
+                    DURATION_MILLIS, BLOCK_INTERVAL_MILLIS, switchingResult.scans(), switchingResult.blocks(), sharedResult.scans(), sharedResult.blocks());
+        } finally {
+            switchingManager.close();
+            sharedManager.close();
+        }
+    }
+
+    private static ScanResult scanWhileIndexing(DbManager dbManager) throws Exception {
+        dbManager.executeWrite(connection -> {
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE tweak (txid BLOB NOT NULL, height INTEGER NOT NULL, tweak_key BLOB NOT NULL, outputs BIGINT[])");
+                statement.execute("INSERT INTO tweak SELECT sha256(range::VARCHAR)::BLOB, range // 2500, sha256(range::VARCHAR)::BLOB, [(hash(range) >> 1)::BIGINT] FROM range(" + INITIAL_ROWS + ")");
+                return true;
+            }
+        });
+
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicInteger blocks = new AtomicInteger();
+        Thread writer = new Thread(() -> {
+            while(running.get()) {
+                try {
+                    int height = INITIAL_ROWS / BLOCK_ROWS + blocks.get();
+                    dbManager.executeWrite(connection -> {
+                        try(Statement statement = connection.createStatement()) {
+                            return statement.execute("INSERT INTO tweak SELECT sha256(range::VARCHAR)::BLOB, " + height + ", sha256(range::VARCHAR)::BLOB, [(hash(range) >> 1)::BIGINT] FROM range(" + BLOCK_ROWS + ")");
+                        }
+                    });
+                    blocks.incrementAndGet();
+                    Thread.sleep(BLOCK_INTERVAL_MILLIS);
+                } catch(Exception e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }, "BlockWriter");
+        writer.start();
+
+        int scans = 0;
+        long end = System.currentTimeMillis() + DURATION_MILLIS;
+        while(System.currentTimeMillis() < end) {
+            long hashPrefix = scans;
+            dbManager.executeRead(connection -> {
+                try(PreparedStatement statement = connection.prepareStatement("SELECT txid, height FROM tweak WHERE list_contains(outputs, ?)")) {
+                    statement.setLong(1, hashPrefix);
+                    try(ResultSet resultSet = statement.executeQuery()) {
+                        while(resultSet.next()) {
+                            resultSet.getBytes(1);
+                        }
+                    }
+                    return true;
+                }
+            });
+            scans++;
+        }
+
+        running.set(false);
+        writer.join();
+
+        return new ScanResult(scans, blocks.get());
+    }
+
+    private static long countRows(DbManager dbManager) throws Exception {
+        return dbManager.executeRead(connection -> {
+            try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM tweak")) {
+                resultSet.next();
+                return resultSet.getLong(1);
+            }
+        });
+    }
+
+    private record ScanResult(int scans, int blocks) {}
+}
@@ -17,6 +17,9 @@ public class Args {
     @Parameter(names = { "--level", "-l" }, description = "Set log level")
     public Level level;
 
+    @Parameter(names = { "--index-block-files" }, description = "Build the index from Bitcoin Core block files while Bitcoin Core is stopped", arity = 0)
+    public boolean indexBlockFiles;
+
     @Parameter(names = { "--version", "-v" }, description = "Show version", arity = 0)
     public boolean version;
 
@@ -38,6 +41,9 @@ public class Args {
             params.add("-l");
             params.add(level.toString());
         }
+        if(indexBlockFiles) {
+            params.add("--index-block-files");
+        }
 
         return params;
     }
@@ -8,6 +8,7 @@ import com.sparrowwallet.frigate.electrum.ElectrumServerRunnable;
 import com.sparrowwallet.frigate.bitcoind.BitcoindClient;
 import com.sparrowwallet.frigate.index.Index;
 import com.sparrowwallet.frigate.index.IndexQuerier;
+import com.sparrowwallet.frigate.index.MempoolIndex;
 import com.sparrowwallet.frigate.io.Config;
 import com.sparrowwallet.frigate.io.Storage;
 import org.slf4j.Logger;
@@ -21,18 +22,25 @@ public class Frigate {
     public static final String SERVER_VERSION = "1.0.0";
     public static final String APP_HOME_PROPERTY = "frigate.home";
     public static final String NETWORK_ENV_PROPERTY = "FRIGATE_NETWORK";
+    private static final String KEEP_ALIVE_TIMEOUT_PROPERTY = "jdk.httpclient.keepalive.timeout";
+    private static final String DEFAULT_KEEP_ALIVE_TIMEOUT_SECS = "20";
     private static final int MAINNET_TAPROOT_ACTIVATION_HEIGHT = 709632;
     private static final int TESTNET_TAPROOT_ACTIVATION_HEIGHT = 0;
 
     private static final EventBus EVENT_BUS = new EventBus();
 
     private Index blocksIndex;
-    private Index mempoolIndex;
+    private MempoolIndex mempoolIndex;
     private BitcoindClient bitcoindClient;
     private ElectrumServerRunnable electrumServer;
 
+    private final boolean indexBlockFiles;
     private boolean running;
 
+    public Frigate(boolean indexBlockFiles) {
+        this.indexBlockFiles = indexBlockFiles;
+    }
+
     public void start() {
         Runtime.getRuntime().addShutdownHook(new Thread(this::stop));
 
@@ -42,8 +50,8 @@ public class Frigate {
             Config.get().setIndexStartHeight(startHeight);
         }
 
-        blocksIndex = new Index(startHeight, false);
-        mempoolIndex = new Index(0, true);
+        blocksIndex = new Index(startHeight);
+        mempoolIndex = new MempoolIndex();
 
         Boolean startIndexing = Config.get().isStartIndexing();
         if(startIndexing == null) {
@@ -53,6 +61,9 @@ public class Frigate {
 
         if(startIndexing) {
             bitcoindClient = new BitcoindClient(blocksIndex, mempoolIndex);
+            if(indexBlockFiles) {
+                bitcoindClient.indexBlockFiles();
+            }
             bitcoindClient.initialize();
         }
 
@@ -94,6 +105,12 @@ public class Frigate {
     }
 
     public static void main(String[] argv) {
+        //Close idle Bitcoin Core RPC connections before Bitcoin Core does (rpcservertimeout defaults to 30 seconds)
+        //The HttpClient implementation reads this once when first loaded, so it must be set before any client is created
+        if(System.getProperty(KEEP_ALIVE_TIMEOUT_PROPERTY) == null) {
+            System.setProperty(KEEP_ALIVE_TIMEOUT_PROPERTY, DEFAULT_KEEP_ALIVE_TIMEOUT_SECS);
+        }
+
         Args args = new Args();
         JCommander jCommander = JCommander.newBuilder().addObject(args).programName(SERVER_NAME.toLowerCase(Locale.ROOT)).acceptUnknownOptions(true).build();
         jCommander.parse(argv);
@@ -148,7 +165,7 @@ public class Frigate {
             getLogger().info("Using " + Network.get() + " configuration");
         }
 
-        Frigate frigate = new Frigate();
+        Frigate frigate = new Frigate(args.indexBlockFiles);
         frigate.start();
     }
 }
\ No newline at end of file
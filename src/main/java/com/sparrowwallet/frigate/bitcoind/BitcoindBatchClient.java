@@ -0,0 +1,92 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+public class BitcoindBatchClient {
+    private static final Logger log = LoggerFactory.getLogger(BitcoindBatchClient.class);
+
+    private final BitcoindTransport bitcoindTransport;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final int batchSize;
+
+    public BitcoindBatchClient(BitcoindTransport bitcoindTransport, int batchSize) {
+        this.bitcoindTransport = bitcoindTransport;
+        this.batchSize = Math.max(1, batchSize);
+    }
+
+    //Results are returned in the same order as the params, with null for any call that returned an error
+    public List<JsonNode> execute(String method, List<List<Object>> paramsList) {
+        List<JsonNode> results = new ArrayList<>(Collections.nCopies(paramsList.size(), null));
+
+        for(int from = 0; from < paramsList.size(); from += batchSize) {
+            int to = Math.min(from + batchSize, paramsList.size());
+
+            ArrayNode request = objectMapper.createArrayNode();
+            for(int i = from; i < to; i++) {
+                ObjectNode call = request.addObject();
+                call.put("jsonrpc", "2.0");
+                call.put("id", i);
+                call.put("method", method);
+                call.set("params", objectMapper.valueToTree(paramsList.get(i)));
+            }
+
+            JsonNode response;
+            try(InputStream inputStream = bitcoindTransport.passStream(objectMapper.writeValueAsBytes(request))) {
+                response = objectMapper.readTree(inputStream);
+            } catch(IOException e) {
+                throw new IllegalStateException("I/O error during a batch request for " + method, e);
+            }
+
+            if(response == null || !response.isArray()) {
+                JsonNode error = response == null ? null : response.get("error");
+                throw new IllegalStateException("Invalid batch response for " + method + (error == null ? "" : ": " + error));
+            }
+
+            for(JsonNode reply : response) {
+                JsonNode id = reply.get("id");
+                if(id == null || !id.canConvertToInt() || id.asInt() < from || id.asInt() >= to) {
+                    log.warn("Ignoring batch reply with unexpected id " + id);
+                    continue;
+                }
+
+                JsonNode error = reply.get("error");
+                JsonNode result = reply.get("result");
+                if((error == null || error.isNull()) && result != null && !result.isNull()) {
+                    results.set(id.asInt(), result);
+                } else if(log.isDebugEnabled()) {
+                    log.debug("Error calling " + method + " with " + paramsList.get(id.asInt()) + ": " + error);
+                }
+            }
+        }
+
+        return results;
+    }
+
+    public Map<Sha256Hash, String> getRawTransactions(Collection<Sha256Hash> txids) {
+        List<Sha256Hash> txidList = new ArrayList<>(txids);
+        List<List<Object>> paramsList = new ArrayList<>(txidList.size());
+        for(Sha256Hash txid : txidList) {
+            paramsList.add(List.of(txid.toString(), false));
+        }
+
+        List<JsonNode> results = execute("getrawtransaction", paramsList);
+        Map<Sha256Hash, String> txHexes = new LinkedHashMap<>();
+        for(int i = 0; i < txidList.size(); i++) {
+            if(results.get(i) != null) {
+                txHexes.put(txidList.get(i), results.get(i).asText());
+            }
+        }
+
+        return txHexes;
+    }
+}
@@ -1,7 +1,7 @@
 package com.sparrowwallet.frigate.bitcoind;
 
 import com.github.arteam.simplejsonrpc.client.JsonRpcClient;
-import com.github.arteam.simplejsonrpc.client.exception.JsonRpcException;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.sparrowwallet.drongo.Network;
 import com.sparrowwallet.drongo.OsType;
 import com.sparrowwallet.drongo.protocol.*;
@@ -10,6 +10,9 @@ import com.sparrowwallet.drongo.wallet.BlockTransaction;
 import com.sparrowwallet.frigate.Frigate;
 import com.sparrowwallet.frigate.electrum.ElectrumBlockHeader;
 import com.sparrowwallet.frigate.index.Index;
+import com.sparrowwallet.frigate.index.IndexedBlock;
+import com.sparrowwallet.frigate.index.MempoolIndex;
+import com.sparrowwallet.frigate.io.BlockFetchMode;
 import com.sparrowwallet.frigate.io.Config;
 import com.sparrowwallet.frigate.io.CoreAuthType;
 import com.sparrowwallet.frigate.io.RecentBlocksMap;
@@ -18,7 +21,12 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntFunction;
 import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -26,13 +34,36 @@ import java.util.concurrent.locks.ReentrantLock;
 public class BitcoindClient {
     private static final Logger log = LoggerFactory.getLogger(BitcoindClient.class);
 
-    public static final int DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE = 10000000;
+    public static final long DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE = 1024L * 1024 * 1024;
+    private static final long LEGACY_SCRIPT_PUB_KEY_CACHE_SIZE = 10000000L;
+    private static final long STOP_TIMEOUT_SECS = 10;
     private static final int MAX_REORG_DEPTH = 10;
-
+    public static final int DEFAULT_BLOCK_FETCH_THREADS = 4;
+    public static final int DEFAULT_BLOCK_QUEUE_DEPTH = 16;
+    public static final int DEFAULT_RPC_BATCH_SIZE = 250;
+    public static final int DEFAULT_INDEX_COMMIT_ROWS = 50000;
+    public static final int DEFAULT_INDEX_COMMIT_MILLIS = 2000;
+    private static final long ZMQ_MEMPOOL_DELAY_MILLIS = 100;
+    private static final int ZMQ_MEMPOOL_RECONCILE_POLLS = 12;
+    private static final int MAX_ZMQ_TRANSACTIONS = 10000;
+    private static final int MEMPOOL_SEQUENCE_MIN_CORE_VERSION = 210000;
+
+    private final BitcoindTransport bitcoindTransport;
     private final JsonRpcClient jsonRpcClient;
+    private final BitcoindBatchClient bitcoindBatchClient;
+    private final PrevoutBlockFetcher prevoutBlockFetcher;
+    private final RestBlockFetcher restBlockFetcher;
     private final Timer timer = new Timer(true);
     private final Index blocksIndex;
-    private final Index mempoolIndex;
+    private final MempoolIndex mempoolIndex;
+    private final ExecutorService blockFetchExecutor;
+    private final ExecutorService blockProcessExecutor;
+    private final int blockQueueDepth;
+    private final int indexCommitRows;
+    private final int indexCommitMillis;
+    private final File blocksDir;
+    private BlockFetchMode blockFetchMode;
+    private boolean indexPrevouts;
 
     private NetworkInfo networkInfo;
     private String lastBlock;
@@ -46,13 +77,31 @@ public class BitcoindClient {
 
     private boolean stopped;
 
-    private final Map<HashIndex, byte[]> scriptPubKeyCache;
-    private final Set<Sha256Hash> mempoolTxIds = new HashSet<>();
+    private final ScriptPubKeyCache scriptPubKeyCache;
+    private final TxidSet mempoolTxIds = new TxidSet();
+    private long mempoolSequence = -1;
     private final RecentBlocksMap recentBlocksMap = new RecentBlocksMap(MAX_REORG_DEPTH);
 
-    public BitcoindClient(Index blocksIndex, Index mempoolIndex) {
-        BitcoindTransport bitcoindTransport;
-
+    private final ZmqSubscriber zmqSubscriber;
+    private final Map<Sha256Hash, byte[]> zmqTransactions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Sha256Hash, byte[]> eldest) {
+            return size() > MAX_ZMQ_TRANSACTIONS;
+        }
+    };
+    private byte[] zmqLastRawTx;
+    private final Set<Sha256Hash> zmqAddedTxids = new LinkedHashSet<>();
+    private final Set<Sha256Hash> zmqRemovedTxids = new HashSet<>();
+    private boolean zmqMempoolScheduled;
+    private long zmqFirstSequence;
+    private long zmqLastSequence;
+    private int zmqSequenceCount;
+    //Counts the gaps in notifications, with those up to zmqReconciledGaps covered by a full comparison of the mempool
+    private final AtomicLong zmqGaps = new AtomicLong(1);
+    private volatile long zmqReconciledGaps;
+    private int polls;
+
+    public BitcoindClient(Index blocksIndex, MempoolIndex mempoolIndex) {
         Config config = Config.get();
         Server coreServer = config.getCoreServer();
         if(coreServer == null) {
@@ -72,6 +121,9 @@ public class BitcoindClient {
             Config.get().setCoreDataDir(coreDataDir);
         }
 
+        File coreBlocksDir = config.getCoreBlocksDir();
+        this.blocksDir = coreBlocksDir == null ? BlockFileReader.getBlocksDir(coreDataDir) : coreBlocksDir;
+
         String coreAuth = config.getCoreAuth();
         if(coreAuth == null) {
             coreAuth = "user:password";
@@ -79,25 +131,118 @@ public class BitcoindClient {
         }
 
         if(coreAuthType == CoreAuthType.COOKIE || coreAuth.length() < 2) {
-            bitcoindTransport = new BitcoindTransport(coreServer, coreDataDir);
+            this.bitcoindTransport = new BitcoindTransport(coreServer, coreDataDir);
         } else {
-            bitcoindTransport = new BitcoindTransport(coreServer, coreAuth);
+            this.bitcoindTransport = new BitcoindTransport(coreServer, coreAuth);
         }
 
         this.jsonRpcClient = new JsonRpcClient(bitcoindTransport);
+
+        Integer rpcBatchSize = config.getRpcBatchSize();
+        if(rpcBatchSize == null) {
+            rpcBatchSize = DEFAULT_RPC_BATCH_SIZE;
+            Config.get().setRpcBatchSize(rpcBatchSize);
+        }
+        this.bitcoindBatchClient = new BitcoindBatchClient(bitcoindTransport, rpcBatchSize);
+        this.prevoutBlockFetcher = new PrevoutBlockFetcher(bitcoindTransport);
+        this.restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+
+        BlockFetchMode fetchMode = config.getBlockFetchMode();
+        if(fetchMode == null) {
+            fetchMode = BlockFetchMode.PREVOUTS;
+            Config.get().setBlockFetchMode(fetchMode);
+        }
+        this.blockFetchMode = fetchMode;
+
         this.blocksIndex = blocksIndex;
         this.mempoolIndex = mempoolIndex;
 
-        Integer cacheSize = Config.get().getScriptPubKeyCacheSize();
-        if(cacheSize == null) {
-            cacheSize = DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE;
-            Config.get().setScriptPubKeyCacheSize(cacheSize);
+        Long cacheBytes = Config.get().getScriptPubKeyCacheBytes();
+        if(cacheBytes == null) {
+            cacheBytes = getScriptPubKeyCacheBytes(Config.get().getScriptPubKeyCacheSize());
+            Config.get().setScriptPubKeyCacheBytes(cacheBytes);
+        }
+        this.scriptPubKeyCache = new ScriptPubKeyCache(cacheBytes);
+
+        Integer fetchThreads = Config.get().getBlockFetchThreads();
+        if(fetchThreads == null) {
+            fetchThreads = DEFAULT_BLOCK_FETCH_THREADS;
+            Config.get().setBlockFetchThreads(fetchThreads);
+        }
+
+        Integer processThreads = Config.get().getBlockProcessThreads();
+        if(processThreads == null) {
+            processThreads = Runtime.getRuntime().availableProcessors();
+            Config.get().setBlockProcessThreads(processThreads);
+        }
+
+        Integer queueDepth = Config.get().getBlockQueueDepth();
+        if(queueDepth == null) {
+            queueDepth = DEFAULT_BLOCK_QUEUE_DEPTH;
+            Config.get().setBlockQueueDepth(queueDepth);
         }
-        this.scriptPubKeyCache = lruCache(cacheSize);
+        this.blockQueueDepth = Math.max(1, queueDepth);
+
+        Integer commitRows = Config.get().getIndexCommitRows();
+        if(commitRows == null) {
+            commitRows = DEFAULT_INDEX_COMMIT_ROWS;
+            Config.get().setIndexCommitRows(commitRows);
+        }
+        this.indexCommitRows = commitRows;
+
+        Integer commitMillis = Config.get().getIndexCommitMillis();
+        if(commitMillis == null) {
+            commitMillis = DEFAULT_INDEX_COMMIT_MILLIS;
+            Config.get().setIndexCommitMillis(commitMillis);
+        }
+        this.indexCommitMillis = commitMillis;
+
+        //Each block in flight has at most one fetch task and two process tasks queued, so the queues never overflow
+        this.blockFetchExecutor = createExecutor("BlockFetch-%d", Math.max(1, fetchThreads), blockQueueDepth);
+        this.blockProcessExecutor = createExecutor("BlockProcess-%d", Math.max(1, processThreads), blockQueueDepth * 2);
+
+        //Notifications are optional, with polling kept to catch anything missed
+        String zmqEndpoint = Config.get().getZmqEndpoint();
+        this.zmqSubscriber = zmqEndpoint == null || zmqEndpoint.isEmpty() ? null : new ZmqSubscriber(zmqEndpoint, List.of("rawtx", "sequence"), new ZmqListener());
+    }
+
+    //The cache size was previously configured as a number of entries, which is converted to a byte budget with the old default replaced by the new one
+    static long getScriptPubKeyCacheBytes(Long legacyCacheSize) {
+        if(legacyCacheSize == null || legacyCacheSize == LEGACY_SCRIPT_PUB_KEY_CACHE_SIZE) {
+            return DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE;
+        }
+
+        log.info("Converting scriptPubKeyCacheSize of " + legacyCacheSize + " entries to scriptPubKeyCacheBytes");
+        return legacyCacheSize * ScriptPubKeyCache.ENTRY_SIZE;
+    }
+
+    private static ExecutorService createExecutor(String nameFormat, int threads, int queueDepth) {
+        return new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueDepth), r -> {
+            ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat(nameFormat).build();
+            Thread t = namedThreadFactory.newThread(r);
+            t.setDaemon(true);
+            return t;
+        });
     }
 
     public void initialize() {
         networkInfo = getBitcoindService().getNetworkInfo();
+        if(blockFetchMode == BlockFetchMode.PREVOUTS && networkInfo.version() < PrevoutBlockFetcher.MIN_CORE_VERSION) {
+            log.warn("Bitcoin Core " + networkInfo.subversion() + " does not support fetching blocks with prevouts, falling back to fetching raw blocks");
+            blockFetchMode = BlockFetchMode.RAW;
+        }
+        if(blockFetchMode == BlockFetchMode.REST && !restBlockFetcher.isAvailable()) {
+            log.warn("Bitcoin Core REST interface is not available (configure rest=1), falling back to fetching raw blocks");
+            blockFetchMode = BlockFetchMode.RAW;
+        }
+
+        //Blocks fetched without prevouts rely on the persisted unspent outputs to avoid looking up spent scriptPubKeys over RPC
+        indexPrevouts = blockFetchMode != BlockFetchMode.PREVOUTS;
+        if(!indexPrevouts) {
+            blocksIndex.clearPrevouts();
+        } else {
+            log.info("Fetching blocks in " + blockFetchMode + " mode, spends of outputs created before the prevout table was filled will not be excluded by unspent_only");
+        }
 
         BlockchainInfo blockchainInfo = getBitcoindService().getBlockchainInfo();
         VerboseBlockHeader blockHeader = getBitcoindService().getBlockHeader(blockchainInfo.bestblockhash());
@@ -128,87 +273,263 @@ public class BitcoindClient {
         }
 
         lastBlock = blockchainInfo.bestblockhash();
+        if(zmqSubscriber != null) {
+            zmqSubscriber.start();
+        }
         log.info("Initializing indexes...");
         updateBlocksIndex();
         updateMempoolIndex();
     }
 
-    private synchronized void updateBlocksIndex() {
-        BitcoindClientService bitcoindService = getBitcoindService();
-        HexFormat hexFormat = HexFormat.of();
+    //Builds the index from the block and undo files of a stopped Bitcoin Core node, then waits for its RPC to become available
+    public void indexBlockFiles() {
+        try(BlockFileReader blockFileReader = new BlockFileReader(blocksDir)) {
+            log.info("Reading block files from " + blocksDir.getAbsolutePath() + "...");
+            //Outputs spent by the imported blocks are not removed from the prevout table
+            blocksIndex.clearPrevouts();
+            int chainHeight = blockFileReader.open();
+
+            //The most recent blocks are left to be indexed over RPC, where reorgs can be detected
+            int endHeight = chainHeight - MAX_REORG_DEPTH;
+            updateBlocksIndex(endHeight, height -> CompletableFuture.supplyAsync(() -> blockFileReader.getBlock(height), blockFetchExecutor), false);
+            log.info("Indexed block files to height " + blocksIndex.getLastBlockIndexed());
+        }
 
-        for(int i = blocksIndex.getLastBlockIndexed() + 1; i <= tip.height(); i++) {
-            String blockHash = getBitcoindService().getBlockHash(i);
-            if(i > tip.height() - MAX_REORG_DEPTH) {
-                recentBlocksMap.put(i, blockHash);
+        boolean waiting = false;
+        while(!stopped) {
+            try {
+                getBitcoindService().getNetworkInfo();
+                return;
+            } catch(IllegalStateException e) {
+                if(!waiting) {
+                    log.info("Waiting for Bitcoin Core RPC to continue indexing...");
+                    waiting = true;
+                }
+                try {
+                    Thread.sleep(5000);
+                } catch(InterruptedException ex) {
+                    throw new RuntimeException("Interrupted while waiting for Bitcoin Core RPC");
+                }
             }
-            String blockHex = (String)bitcoindService.getBlock(blockHash, 0);
-            Block block = new Block(hexFormat.parseHex(blockHex));
+        }
+    }
 
-            Map<BlockTransaction, byte[]> eligibleTransactions = new LinkedHashMap<>();
-            Map<HashIndex, Script> spentScriptPubKeys = new HashMap<>();
-            for(Transaction tx : block.getTransactions()) {
-                for(int outputIndex = 0; outputIndex < tx.getOutputs().size(); outputIndex++) {
-                    byte[] scriptPubKeyBytes = tx.getOutputs().get(outputIndex).getScriptBytes();
-                    addtoScriptPubKeyCache(tx.getTxId(), outputIndex, scriptPubKeyBytes);
+    private void updateBlocksIndex() {
+        updateBlocksIndex(tip.height(), this::fetchBlockAsync, true);
+        //Spends recorded while catching up are applied once the tip is reached, rather than with every commit
+        blocksIndex.applySpentOutputs();
+    }
+
+    synchronized void updateBlocksIndex(int endHeight, IntFunction<CompletableFuture<FetchedBlock>> blockFetcher, boolean cacheOutputs) {
+        int startHeight = blocksIndex.getLastBlockIndexed() + 1;
+
+        Deque<CompletableFuture<FetchedBlock>> pendingFetches = new ArrayDeque<>();
+        Deque<CompletableFuture<IndexedBlock>> pendingBlocks = new ArrayDeque<>();
+        CompletableFuture<FetchedBlock> lastBlockCached = CompletableFuture.completedFuture(null);
+        int nextHeight = startHeight;
+
+        List<IndexedBlock> groupBlocks = new ArrayList<>();
+        int groupRows = 0;
+        long groupStart = 0;
+
+        try {
+            for(int height = startHeight; height <= endHeight && !stopped; height++) {
+                while(nextHeight <= endHeight && pendingBlocks.size() < blockQueueDepth) {
+                    int fetchHeight = nextHeight++;
+                    CompletableFuture<FetchedBlock> blockFetched = blockFetcher.apply(fetchHeight);
+                    pendingFetches.addLast(blockFetched);
+                    CompletableFuture<FetchedBlock> blockCached = blockFetched
+                            .thenCombine(lastBlockCached, (fetchedBlock, previous) -> cacheOutputs ? cacheOutputs(fetchedBlock) : fetchedBlock);
+                    pendingBlocks.addLast(blockCached.thenApplyAsync(this::getEligibleTransactions, blockProcessExecutor));
+                    lastBlockCached = blockCached;
                 }
 
-                if(!tx.isCoinBase() && containsTaprootOutput(tx)) {
-                    for(TransactionInput txInput : tx.getInputs()) {
-                        HashIndex hashIndex = new HashIndex(txInput.getOutpoint().getHash(), txInput.getOutpoint().getIndex());
-                        spentScriptPubKeys.put(hashIndex, getScriptPubKey(bitcoindService, hexFormat, hashIndex));
-                    }
+                pendingFetches.removeFirst();
+                IndexedBlock indexedBlock = pendingBlocks.removeFirst().join();
+                if(indexedBlock.height() > endHeight - MAX_REORG_DEPTH) {
+                    recentBlocksMap.put(indexedBlock.height(), indexedBlock.blockHash());
+                }
 
-                    byte[] tweak = SilentPaymentUtils.getTweak(tx, spentScriptPubKeys);
-                    if(tweak != null) {
-                        BlockTransaction blkTx = new BlockTransaction(tx.getTxId(), i, block.getBlockHeader().getTimeAsDate(), 0L, tx, block.getHash());
-                        eligibleTransactions.put(blkTx, tweak);
-                    }
+                if(groupBlocks.isEmpty()) {
+                    groupStart = System.currentTimeMillis();
+                }
+                groupBlocks.add(indexedBlock);
+                groupRows += indexedBlock.getRowCount();
+
+                //Blocks are committed in groups during catch up, and individually once within reorg depth of the tip
+                if(height > endHeight - MAX_REORG_DEPTH || groupRows >= indexCommitRows || System.currentTimeMillis() - groupStart >= indexCommitMillis) {
+                    blocksIndex.addToIndex(groupBlocks, indexPrevouts);
+                    groupBlocks.clear();
+                    groupRows = 0;
                 }
             }
 
-            if(!eligibleTransactions.isEmpty()) {
-                blocksIndex.addToIndex(eligibleTransactions);
+            blocksIndex.addToIndex(groupBlocks, indexPrevouts);
+        } catch(CompletionException e) {
+            if(e.getCause() instanceof RuntimeException runtimeException) {
+                throw runtimeException;
+            }
+            throw e;
+        } finally {
+            //Fetches still queued are cancelled along with the blocks waiting on them, so that they are skipped rather than run
+            for(CompletableFuture<FetchedBlock> pendingFetch : pendingFetches) {
+                pendingFetch.cancel(false);
+            }
+            for(CompletableFuture<IndexedBlock> pendingBlock : pendingBlocks) {
+                pendingBlock.cancel(false);
             }
         }
+
+        if(endHeight - startHeight > MAX_REORG_DEPTH) {
+            log.info("Bitcoin Core RPC: " + bitcoindTransport.getMetrics());
+            log.info("ScriptPubKey cache: " + scriptPubKeyCache.getStats());
+        }
     }
 
-    private synchronized void updateMempoolIndex() {
+    private CompletableFuture<FetchedBlock> fetchBlockAsync(int height) {
+        if(blockFetchMode == BlockFetchMode.PREVOUTS) {
+            return CompletableFuture.supplyAsync(() -> prevoutBlockFetcher.getBlock(height, getBitcoindService().getBlockHash(height)), blockFetchExecutor);
+        }
+
+        return CompletableFuture.supplyAsync(() -> fetchBlock(height), blockFetchExecutor).thenApplyAsync(this::parseBlock, blockProcessExecutor);
+    }
+
+    private RawBlock fetchBlock(int height) {
         BitcoindClientService bitcoindService = getBitcoindService();
-        HexFormat hexFormat = HexFormat.of();
+        String blockHash = bitcoindService.getBlockHash(height);
+        if(blockFetchMode == BlockFetchMode.REST) {
+            return new RawBlock(height, blockHash, restBlockFetcher.getBlock(blockHash));
+        }
 
-        Set<Sha256Hash> currentMempoolTxids = bitcoindService.getRawMempool();
-        Set<Sha256Hash> removedTxids = new HashSet<>(mempoolTxIds);
-        removedTxids.removeAll(currentMempoolTxids);
-        Set<Sha256Hash> addedTxids = new HashSet<>(currentMempoolTxids);
-        addedTxids.removeAll(mempoolTxIds);
+        String blockHex = (String)bitcoindService.getBlock(blockHash, 0);
+        return new RawBlock(height, blockHash, HexFormat.of().parseHex(blockHex));
+    }
+
+    private FetchedBlock parseBlock(RawBlock rawBlock) {
+        Block block = new Block(rawBlock.blockBytes());
+        return new FetchedBlock(rawBlock.height(), rawBlock.blockHash(), block);
+    }
+
+    private FetchedBlock cacheOutputs(FetchedBlock fetchedBlock) {
+        //Outputs are cached in height order so that later blocks find them regardless of processing order
+        for(Transaction tx : fetchedBlock.transactions()) {
+            cacheOutputs(tx);
+        }
+
+        return fetchedBlock;
+    }
+
+    private void cacheOutputs(Transaction tx) {
+        for(int outputIndex = 0; outputIndex < tx.getOutputs().size(); outputIndex++) {
+            byte[] scriptPubKeyBytes = tx.getOutputs().get(outputIndex).getScriptBytes();
+            addtoScriptPubKeyCache(tx.getTxId(), outputIndex, scriptPubKeyBytes);
+        }
+    }
+
+    private IndexedBlock getEligibleTransactions(FetchedBlock fetchedBlock) {
+        List<Transaction> candidateTransactions = fetchedBlock.transactions().stream().filter(tx -> !tx.isCoinBase() && containsTaprootOutput(tx)).toList();
+        Map<HashIndex, Script> spentScriptPubKeys = fetchedBlock.hasSpentScriptPubKeys() ? fetchedBlock.spentScriptPubKeys() : getSpentScriptPubKeys(candidateTransactions);
 
         Map<BlockTransaction, byte[]> eligibleTransactions = new LinkedHashMap<>();
-        Map<HashIndex, Script> spentScriptPubKeys = new HashMap<>();
+        for(Transaction tx : candidateTransactions) {
+            if(!containsSpentOutputs(tx, spentScriptPubKeys)) {
+                throw new IllegalStateException("Could not find spent outputs for transaction " + tx.getTxId() + " in block " + fetchedBlock.blockHash());
+            }
 
-        for(Sha256Hash addedTxid : addedTxids) {
-            try {
-                String txHex = (String)getBitcoindService().getRawTransaction(addedTxid.toString(), false);
-                Transaction tx = new Transaction(hexFormat.parseHex(txHex));
-                for(int outputIndex = 0; outputIndex < tx.getOutputs().size(); outputIndex++) {
-                    byte[] scriptPubKeyBytes = tx.getOutputs().get(outputIndex).getScriptBytes();
-                    addtoScriptPubKeyCache(tx.getTxId(), outputIndex, scriptPubKeyBytes);
-                }
+            byte[] tweak = SilentPaymentUtils.getTweak(tx, spentScriptPubKeys);
+            if(tweak != null) {
+                BlockTransaction blkTx = new BlockTransaction(tx.getTxId(), fetchedBlock.height(), fetchedBlock.blockTime(), 0L, tx, Sha256Hash.wrap(fetchedBlock.blockHash()));
+                eligibleTransactions.put(blkTx, tweak);
+            }
+        }
 
-                if(!tx.isCoinBase() && containsTaprootOutput(tx)) {
-                    for(TransactionInput txInput : tx.getInputs()) {
-                        HashIndex hashIndex = new HashIndex(txInput.getOutpoint().getHash(), txInput.getOutpoint().getIndex());
-                        spentScriptPubKeys.put(hashIndex, getScriptPubKey(bitcoindService, hexFormat, hashIndex));
-                    }
+        Map<HashIndex, Integer> spentOutputHeights = fetchedBlock.spentOutputHeights() == null ? Collections.emptyMap() : fetchedBlock.spentOutputHeights();
+        if(indexPrevouts) {
+            List<Transaction> spendingTransactions = fetchedBlock.transactions().stream().filter(tx -> !tx.isCoinBase()).toList();
+            return new IndexedBlock(fetchedBlock.height(), fetchedBlock.blockHash(), eligibleTransactions, getCreatedOutputs(fetchedBlock.transactions()), getSpentOutputs(spendingTransactions), spentOutputHeights);
+        }
 
-                    byte[] tweak = SilentPaymentUtils.getTweak(tx, spentScriptPubKeys);
-                    if(tweak != null) {
-                        BlockTransaction blkTx = new BlockTransaction(tx.getTxId(), 0, null, 0L, tx, null);
-                        eligibleTransactions.put(blkTx, tweak);
-                    }
+        return new IndexedBlock(fetchedBlock.height(), fetchedBlock.blockHash(), eligibleTransactions, Collections.emptyMap(), Collections.emptySet(), spentOutputHeights);
+    }
+
+    //Compares the full mempool with the indexed transactions, allocating hash objects only for the transactions added or removed
+    //An unchanged mempool sequence means no transaction has been added or removed since the last comparison or notification, and nothing is compared
+    private synchronized void updateMempoolIndex() {
+        BitcoindClientService bitcoindService = getBitcoindService();
+
+        TxidSet currentMempoolTxids;
+        Set<Sha256Hash> addedTxids = new HashSet<>();
+        long currentSequence = -1;
+        if(getNetworkInfo().version() >= MEMPOOL_SEQUENCE_MIN_CORE_VERSION) {
+            RawMempool rawMempool = bitcoindService.getRawMempool(false, true);
+            if(rawMempool.mempool_sequence() == mempoolSequence) {
+                return;
+            }
+
+            currentSequence = rawMempool.mempool_sequence();
+            currentMempoolTxids = new TxidSet(rawMempool.txids().size());
+            for(String txid : rawMempool.txids()) {
+                if(currentMempoolTxids.add(txid) && !mempoolTxIds.contains(txid)) {
+                    addedTxids.add(Sha256Hash.wrap(txid));
                 }
-            } catch(JsonRpcException e) {
-                //ignore, transaction removed from mempool
+            }
+        } else {
+            Set<Sha256Hash> txids = bitcoindService.getRawMempool();
+            currentMempoolTxids = new TxidSet(txids.size());
+            for(Sha256Hash txid : txids) {
+                if(currentMempoolTxids.add(txid) && !mempoolTxIds.contains(txid)) {
+                    addedTxids.add(txid);
+                }
+            }
+        }
+
+        Set<Sha256Hash> removedTxids = new HashSet<>(mempoolTxIds.getMissing(currentMempoolTxids));
+        updateMempoolIndex(addedTxids, removedTxids, Collections.emptyMap());
+        mempoolSequence = currentSequence;
+    }
+
+    //Applies a change to the mempool, fetching the added transactions that have not already been received
+    private synchronized void updateMempoolIndex(Set<Sha256Hash> addedTxids, Set<Sha256Hash> removedTxids, Map<Sha256Hash, Transaction> receivedTransactions) {
+        HexFormat hexFormat = HexFormat.of();
+        List<Transaction> addedTransactions = new ArrayList<>();
+        Set<Sha256Hash> missingTxids = new HashSet<>();
+        for(Sha256Hash txid : addedTxids) {
+            Transaction tx = receivedTransactions.get(txid);
+            if(tx != null) {
+                addedTransactions.add(tx);
+            } else {
+                missingTxids.add(txid);
+            }
+        }
+
+        //Transactions missing from the batch results have been removed from the mempool since the call to getrawmempool
+        if(!missingTxids.isEmpty()) {
+            for(String txHex : getRawTransactions(missingTxids).values()) {
+                addedTransactions.add(new Transaction(hexFormat.parseHex(txHex)));
+            }
+        }
+
+        List<Transaction> candidateTransactions = new ArrayList<>();
+        for(Transaction tx : addedTransactions) {
+            cacheOutputs(tx);
+
+            if(!tx.isCoinBase() && containsTaprootOutput(tx)) {
+                candidateTransactions.add(tx);
+            }
+        }
+
+        Map<BlockTransaction, byte[]> eligibleTransactions = new LinkedHashMap<>();
+        Map<HashIndex, Script> spentScriptPubKeys = getSpentScriptPubKeys(candidateTransactions);
+        for(Transaction tx : candidateTransactions) {
+            if(!containsSpentOutputs(tx, spentScriptPubKeys)) {
+                //ignore, parent transaction removed from mempool
+                continue;
+            }
+
+            byte[] tweak = SilentPaymentUtils.getTweak(tx, spentScriptPubKeys);
+            if(tweak != null) {
+                BlockTransaction blkTx = new BlockTransaction(tx.getTxId(), 0, null, 0L, tx, null);
+                eligibleTransactions.put(blkTx, tweak);
             }
         }
 
@@ -219,19 +540,215 @@ public class BitcoindClient {
             mempoolIndex.addToIndex(eligibleTransactions);
         }
 
-        mempoolTxIds.removeAll(removedTxids);
-        mempoolTxIds.addAll(addedTxids);
+        for(Sha256Hash txid : removedTxids) {
+            mempoolTxIds.remove(txid);
+        }
+        for(Sha256Hash txid : addedTxids) {
+            mempoolTxIds.add(txid);
+        }
+    }
+
+    //Applies the mempool changes received since the last application, unless a gap means they must be found by comparing the full mempool instead
+    //Changes received during a gap are left queued, to be cleared or applied by the comparison
+    void updateMempoolIndexFromZmq() {
+        Set<Sha256Hash> addedTxids;
+        Set<Sha256Hash> removedTxids;
+        Map<Sha256Hash, byte[]> receivedRawTxs = new HashMap<>();
+        long firstSequence;
+        long lastSequence;
+        int sequenceCount;
+        synchronized(zmqAddedTxids) {
+            zmqMempoolScheduled = false;
+            if(isZmqGap()) {
+                return;
+            }
+
+            firstSequence = zmqFirstSequence;
+            lastSequence = zmqLastSequence;
+            sequenceCount = zmqSequenceCount;
+            zmqSequenceCount = 0;
+            addedTxids = new LinkedHashSet<>(zmqAddedTxids);
+            removedTxids = new HashSet<>(zmqRemovedTxids);
+            for(Sha256Hash txid : addedTxids) {
+                byte[] rawTx = zmqTransactions.remove(txid);
+                if(rawTx != null) {
+                    receivedRawTxs.put(txid, rawTx);
+                }
+            }
+            zmqAddedTxids.clear();
+            zmqRemovedTxids.clear();
+        }
+
+        //Transactions are parsed here rather than on the notification thread, with any that do not match the notified txid fetched instead
+        Map<Sha256Hash, Transaction> receivedTransactions = new HashMap<>();
+        for(Map.Entry<Sha256Hash, byte[]> entry : receivedRawTxs.entrySet()) {
+            Transaction tx = new Transaction(entry.getValue());
+            if(tx.getTxId().equals(entry.getKey())) {
+                receivedTransactions.put(entry.getKey(), tx);
+            }
+        }
+
+        synchronized(this) {
+            addedTxids.removeIf(mempoolTxIds::contains);
+            removedTxids.removeIf(txid -> !mempoolTxIds.contains(txid));
+            if(!addedTxids.isEmpty() || !removedTxids.isEmpty()) {
+                updateMempoolIndex(addedTxids, removedTxids, receivedTransactions);
+            }
+
+            //The index is known to match the mempool at the last notified sequence only if the notifications continue on from the last known sequence,
+            //as transactions removed by a connected block increment the sequence without a notification of their own
+            if(sequenceCount > 0 && mempoolSequence >= 0 && firstSequence == mempoolSequence + 1 && lastSequence == firstSequence + sequenceCount - 1) {
+                mempoolSequence = lastSequence;
+            }
+        }
+    }
+
+    //Compares the full mempool when notifications are not available or after a gap, and periodically in case a gap went undetected
+    //A gap is only cleared once the comparison has succeeded, and any gap reported during the comparison is kept for the next poll
+    void pollMempool() {
+        polls++;
+        long gaps = zmqGaps.get();
+        if(!isZmqConnected() || gaps != zmqReconciledGaps || polls % ZMQ_MEMPOOL_RECONCILE_POLLS == 0) {
+            //Changes received before the mempool is fetched are covered by the comparison, while those received after are applied once it has succeeded
+            synchronized(zmqAddedTxids) {
+                zmqAddedTxids.clear();
+                zmqRemovedTxids.clear();
+                zmqTransactions.clear();
+                zmqSequenceCount = 0;
+            }
+
+            updateMempoolIndex();
+            zmqReconciledGaps = gaps;
+            synchronized(zmqAddedTxids) {
+                if(!zmqMempoolScheduled && (!zmqAddedTxids.isEmpty() || !zmqRemovedTxids.isEmpty())) {
+                    zmqMempoolScheduled = schedule(new ZmqMempoolTask(), 0);
+                }
+            }
+        }
+    }
+
+    private boolean isZmqGap() {
+        return zmqGaps.get() != zmqReconciledGaps;
+    }
+
+    private void zmqGap() {
+        zmqGaps.incrementAndGet();
+        schedule(new PollTask(), 0);
+    }
+
+    boolean isZmqConnected() {
+        return zmqSubscriber != null && zmqSubscriber.isConnected();
+    }
+
+    //Receives transactions and mempool sequence notifications, which are collected briefly so that changes are applied to the mempool index in batches
+    //Bitcoin Core publishes the rawtx notification for a transaction accepted to the mempool immediately before its sequence notification,
+    //so a transaction is only kept when the next notification adds it, and the transactions of connected blocks are dropped without being parsed
+    //Block connections and disconnections are handled by polling immediately
+    class ZmqListener implements ZmqSubscriber.Listener {
+        @Override
+        public void message(String topic, byte[] body) {
+            if(topic.equals("rawtx")) {
+                synchronized(zmqAddedTxids) {
+                    zmqLastRawTx = body;
+                }
+            } else if(topic.equals("sequence") && body.length >= 33) {
+                Sha256Hash hash = Sha256Hash.wrap(Arrays.copyOfRange(body, 0, 32));
+                char label = (char)body[32];
+                byte[] rawTx;
+                synchronized(zmqAddedTxids) {
+                    rawTx = zmqLastRawTx;
+                    zmqLastRawTx = null;
+                }
+
+                if((label == 'A' || label == 'R') && body.length >= 41) {
+                    long sequence = ByteBuffer.wrap(body, 33, 8).order(ByteOrder.LITTLE_ENDIAN).getLong();
+                    synchronized(zmqAddedTxids) {
+                        if(zmqSequenceCount++ == 0) {
+                            zmqFirstSequence = sequence;
+                        }
+                        zmqLastSequence = sequence;
+                        if(label == 'A') {
+                            zmqRemovedTxids.remove(hash);
+                            zmqAddedTxids.add(hash);
+                            if(rawTx != null) {
+                                zmqTransactions.put(hash, rawTx);
+                            }
+                        } else {
+                            zmqAddedTxids.remove(hash);
+                            zmqRemovedTxids.add(hash);
+                            zmqTransactions.remove(hash);
+                        }
+                        if(!zmqMempoolScheduled) {
+                            zmqMempoolScheduled = schedule(new ZmqMempoolTask(), ZMQ_MEMPOOL_DELAY_MILLIS);
+                        }
+                    }
+                } else if(label == 'C' || label == 'D') {
+                    //Transactions removed from the mempool by a connected block are not notified individually, so the mempool is compared on the next poll
+                    zmqGap();
+                }
+            }
+        }
+
+        @Override
+        public void gap() {
+            zmqGap();
+        }
+    }
+
+    boolean schedule(TimerTask task, long delay) {
+        if(stopped) {
+            return false;
+        }
+
+        try {
+            timer.schedule(task, delay);
+            return true;
+        } catch(IllegalStateException e) {
+            //The timer has been cancelled on stopping
+            return false;
+        }
+    }
+
+    private class ZmqMempoolTask extends TimerTask {
+        @Override
+        public void run() {
+            try {
+                updateMempoolIndexFromZmq();
+            } catch(Exception e) {
+                log.warn("Error applying ZMQ mempool notifications", e);
+                zmqGap();
+            }
+        }
     }
 
     public void stop() {
         timer.cancel();
         stopped = true;
+        if(zmqSubscriber != null) {
+            zmqSubscriber.close();
+        }
+        blockFetchExecutor.shutdownNow();
+        blockProcessExecutor.shutdownNow();
+
+        //Fetch tasks read the off heap cache, so it is only freed once they have finished
+        try {
+            if(!blockFetchExecutor.awaitTermination(STOP_TIMEOUT_SECS, TimeUnit.SECONDS) || !blockProcessExecutor.awaitTermination(STOP_TIMEOUT_SECS, TimeUnit.SECONDS)) {
+                log.warn("Timed out waiting for block fetching to stop");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        scriptPubKeyCache.close();
     }
 
     public BitcoindClientService getBitcoindService() {
         return jsonRpcClient.onDemand(BitcoindClientService.class);
     }
 
+    Map<Sha256Hash, String> getRawTransactions(Collection<Sha256Hash> txids) {
+        return bitcoindBatchClient.getRawTransactions(txids);
+    }
+
     public NetworkInfo getNetworkInfo() {
         return networkInfo;
     }
@@ -240,17 +757,115 @@ public class BitcoindClient {
         return tip;
     }
 
-    private Script getScriptPubKey(BitcoindClientService bitcoindClientService, HexFormat hexFormat, HashIndex hashIndex) {
-        Script scriptPubKey = getFromScriptPubKeyCache(hashIndex);
-        if(scriptPubKey == null) {
-            String txHex = (String)bitcoindClientService.getRawTransaction(hashIndex.getHash().toString(), false);
-            Transaction tx = new Transaction(hexFormat.parseHex(txHex));
-            TransactionOutput txOutput = tx.getOutputs().get((int)hashIndex.getIndex());
-            addtoScriptPubKeyCache(hashIndex.getHash(), (int)hashIndex.getIndex(), txOutput.getScriptBytes());
-            scriptPubKey = getFromScriptPubKeyCache(hashIndex);
+    public BitcoindTransport.RpcMetrics getRpcMetrics() {
+        return bitcoindTransport.getMetrics();
+    }
+
+    public ScriptPubKeyCache.CacheStats getScriptPubKeyCacheStats() {
+        return scriptPubKeyCache.getStats();
+    }
+
+    //Inputs that cannot be spending an eligible output are given an empty script without a lookup
+    //Only eligible outputs are kept in the prevout table, so a lookup for any other output would miss and fall back to RPC
+    private Map<HashIndex, Script> getSpentScriptPubKeys(Collection<Transaction> transactions) {
+        Set<HashIndex> spentOutputs = new LinkedHashSet<>();
+        Map<HashIndex, Script> ineligibleScriptPubKeys = new HashMap<>();
+        for(Transaction tx : transactions) {
+            for(TransactionInput txInput : tx.getInputs()) {
+                HashIndex hashIndex = new HashIndex(txInput.getOutpoint().getHash(), txInput.getOutpoint().getIndex());
+                if(canSpendEligibleOutput(txInput)) {
+                    spentOutputs.add(hashIndex);
+                } else {
+                    ineligibleScriptPubKeys.put(hashIndex, new Script(new byte[0]));
+                }
+            }
+        }
+
+        Map<HashIndex, Script> scriptPubKeys = getScriptPubKeys(spentOutputs);
+        scriptPubKeys.putAll(ineligibleScriptPubKeys);
+        return scriptPubKeys;
+    }
+
+    private Map<HashIndex, Script> getScriptPubKeys(Collection<HashIndex> spentOutputs) {
+        Map<HashIndex, Script> scriptPubKeys = new HashMap<>();
+        Set<Sha256Hash> missingTxids = new LinkedHashSet<>();
+        for(HashIndex hashIndex : spentOutputs) {
+            Script scriptPubKey = getFromScriptPubKeyCache(hashIndex);
+            if(scriptPubKey != null) {
+                scriptPubKeys.put(hashIndex, scriptPubKey);
+            } else {
+                missingTxids.add(hashIndex.getHash());
+            }
+        }
+
+        if(!missingTxids.isEmpty() && indexPrevouts) {
+            List<HashIndex> missingOutputs = spentOutputs.stream().filter(hashIndex -> !scriptPubKeys.containsKey(hashIndex)).toList();
+            for(Map.Entry<HashIndex, byte[]> entry : blocksIndex.getPrevouts(missingOutputs).entrySet()) {
+                HashIndex hashIndex = entry.getKey();
+                scriptPubKeys.put(hashIndex, new Script(addtoScriptPubKeyCache(hashIndex.getHash(), (int)hashIndex.getIndex(), entry.getValue())));
+            }
+
+            missingTxids.clear();
+            for(HashIndex hashIndex : missingOutputs) {
+                if(!scriptPubKeys.containsKey(hashIndex)) {
+                    missingTxids.add(hashIndex.getHash());
+                }
+            }
+        }
+
+        if(!missingTxids.isEmpty()) {
+            HexFormat hexFormat = HexFormat.of();
+            Map<Sha256Hash, Transaction> missingTransactions = new HashMap<>();
+            for(Map.Entry<Sha256Hash, String> entry : getRawTransactions(missingTxids).entrySet()) {
+                missingTransactions.put(entry.getKey(), new Transaction(hexFormat.parseHex(entry.getValue())));
+            }
+
+            for(HashIndex hashIndex : spentOutputs) {
+                Transaction tx = missingTransactions.get(hashIndex.getHash());
+                if(!scriptPubKeys.containsKey(hashIndex) && tx != null && hashIndex.getIndex() < tx.getOutputs().size()) {
+                    TransactionOutput txOutput = tx.getOutputs().get((int)hashIndex.getIndex());
+                    scriptPubKeys.put(hashIndex, new Script(addtoScriptPubKeyCache(hashIndex.getHash(), (int)hashIndex.getIndex(), txOutput.getScriptBytes())));
+                }
+            }
+        }
+
+        return scriptPubKeys;
+    }
+
+    //Only eligible outputs are kept, as spends of other outputs are recognised from the spending input or found in the cache
+    private static Map<HashIndex, byte[]> getCreatedOutputs(Collection<Transaction> transactions) {
+        Map<HashIndex, byte[]> createdOutputs = new HashMap<>();
+        for(Transaction tx : transactions) {
+            for(int outputIndex = 0; outputIndex < tx.getOutputs().size(); outputIndex++) {
+                byte[] scriptPubKeyBytes = tx.getOutputs().get(outputIndex).getScriptBytes();
+                if(getValidScriptType(scriptPubKeyBytes) != null) {
+                    createdOutputs.put(new HashIndex(tx.getTxId(), outputIndex), scriptPubKeyBytes);
+                }
+            }
+        }
+
+        return createdOutputs;
+    }
+
+    private static Set<HashIndex> getSpentOutputs(Collection<Transaction> transactions) {
+        Set<HashIndex> spentOutputs = new LinkedHashSet<>();
+        for(Transaction tx : transactions) {
+            for(TransactionInput txInput : tx.getInputs()) {
+                spentOutputs.add(new HashIndex(txInput.getOutpoint().getHash(), txInput.getOutpoint().getIndex()));
+            }
         }
 
-        return scriptPubKey;
+        return spentOutputs;
+    }
+
+    private static boolean containsSpentOutputs(Transaction tx, Map<HashIndex, Script> spentScriptPubKeys) {
+        for(TransactionInput txInput : tx.getInputs()) {
+            if(!spentScriptPubKeys.containsKey(new HashIndex(txInput.getOutpoint().getHash(), txInput.getOutpoint().getIndex()))) {
+                return false;
+            }
+        }
+
+        return true;
     }
 
     private class PollTask extends TimerTask {
@@ -314,7 +929,7 @@ public class BitcoindClient {
                     updateBlocksIndex();
                 }
 
-                updateMempoolIndex();
+                pollMempool();
 
                 lastBlock = blockchainInfo.bestblockhash();
             } catch(Exception e) {
@@ -369,7 +984,7 @@ public class BitcoindClient {
     }
 
     private Script getFromScriptPubKeyCache(HashIndex hashIndex) {
-        byte[] scriptPubKeyBytes = scriptPubKeyCache.get(hashIndex);
+        byte[] scriptPubKeyBytes = scriptPubKeyCache.get(hashIndex.getHash(), hashIndex.getIndex());
         if(scriptPubKeyBytes != null) {
             return new Script(scriptPubKeyBytes);
         }
@@ -377,14 +992,9 @@ public class BitcoindClient {
         return null;
     }
 
-    private void addtoScriptPubKeyCache(Sha256Hash txid, int outputIndex, byte[] scriptPubKeyBytes) {
-        HashIndex hashIndex = new HashIndex(txid, outputIndex);
-        //Only cache if the length of the field matches one of the valid
-        if(getValidScriptType(scriptPubKeyBytes) != null) {
-            scriptPubKeyCache.put(hashIndex, scriptPubKeyBytes);
-        } else {
-            scriptPubKeyCache.put(hashIndex, new byte[0]);
-        }
+    private byte[] addtoScriptPubKeyCache(Sha256Hash txid, int outputIndex, byte[] scriptPubKeyBytes) {
+        //Only cache the script if it matches one of the valid types
+        return scriptPubKeyCache.put(txid, outputIndex, scriptPubKeyBytes);
     }
 
     private static boolean containsTaprootOutput(Transaction tx) {
@@ -398,7 +1008,7 @@ public class BitcoindClient {
         return false;
     }
 
-    private static ScriptType getValidScriptType(byte[] scriptPubKey) {
+    static ScriptType getValidScriptType(byte[] scriptPubKey) {
         if(scriptPubKey == null) {
             return null;
         }
@@ -440,6 +1050,63 @@ public class BitcoindClient {
         return null;
     }
 
+    //Returns false only for inputs whose witness or scriptSig could not be valid for a P2TR, P2WPKH, P2SH-P2WPKH or compressed key P2PKH output
+    //Anything that cannot be ruled out, including scriptSigs that are not push only, is looked up
+    static boolean canSpendEligibleOutput(TransactionInput txInput) {
+        if(txInput.hasWitness()) {
+            List<byte[]> pushes = txInput.getWitness().getPushes();
+            int count = pushes.size();
+            if(count >= 2 && pushes.get(count - 1).length > 0 && pushes.get(count - 1)[0] == 0x50) {
+                //Taproot annex
+                count--;
+            }
+
+            byte[] last = pushes.get(count - 1);
+            if(count == 1) {
+                //Taproot key path signature
+                return last.length == 64 || last.length == 65;
+            }
+
+            //Taproot script path control block, or a P2WPKH or P2SH-P2WPKH signature and compressed public key
+            boolean controlBlock = last.length >= 33 && (last.length - 33) % 32 == 0 && (last[0] & 0xfe) == 0xc0;
+            return controlBlock || (count == 2 && isCompressedPubKey(last));
+        }
+
+        //A P2PKH output checks the hash of the last item pushed by a push only scriptSig
+        byte[] scriptSig = txInput.getScriptBytes();
+        byte[] lastPush = null;
+        int offset = 0;
+        while(offset < scriptSig.length) {
+            int opcode = scriptSig[offset++] & 0xff;
+            int length;
+            if(opcode == 0 || (opcode >= 0x4f && opcode <= 0x60 && opcode != 0x50)) {
+                length = 0;
+            } else if(opcode < 0x4c) {
+                length = opcode;
+            } else if(opcode == 0x4c && offset + 1 <= scriptSig.length) {
+                length = scriptSig[offset] & 0xff;
+                offset += 1;
+            } else if(opcode == 0x4d && offset + 2 <= scriptSig.length) {
+                length = (scriptSig[offset] & 0xff) | (scriptSig[offset + 1] & 0xff) << 8;
+                offset += 2;
+            } else {
+                return true;
+            }
+
+            if(offset + length > scriptSig.length) {
+                return true;
+            }
+            lastPush = Arrays.copyOfRange(scriptSig, offset, offset + length);
+            offset += length;
+        }
+
+        return lastPush != null && isCompressedPubKey(lastPush);
+    }
+
+    private static boolean isCompressedPubKey(byte[] bytes) {
+        return bytes.length == 33 && (bytes[0] == 0x02 || bytes[0] == 0x03);
+    }
+
     private static File getDefaultCoreDataDir() {
         OsType osType = OsType.getCurrent();
         if(osType == OsType.MACOS) {
@@ -460,4 +1127,6 @@ public class BitcoindClient {
             }
         };
     }
+
+    private record RawBlock(int height, String blockHash, byte[] blockBytes) {}
 }
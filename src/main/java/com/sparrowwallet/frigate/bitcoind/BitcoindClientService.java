@@ -29,6 +29,9 @@ public interface BitcoindClientService {
     @JsonRpcMethod("getrawmempool")
     Map<Sha256Hash, MempoolEntry> getRawMempool(@JsonRpcParam("verbose") boolean verbose);
 
+    @JsonRpcMethod("getrawmempool")
+    RawMempool getRawMempool(@JsonRpcParam("verbose") boolean verbose, @JsonRpcParam("mempool_sequence") boolean mempoolSequence);
+
     @JsonRpcMethod("getmempoolinfo")
     MempoolInfo getMempoolInfo();
 
@@ -9,22 +9,36 @@ import org.slf4j.LoggerFactory;
 import javax.net.ssl.*;
 import java.io.*;
 import java.net.*;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.Base64;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class BitcoindTransport implements Transport {
     private static final Logger log = LoggerFactory.getLogger(BitcoindTransport.class);
     public static final String COOKIE_FILENAME = ".cookie";
 
     private final Server bitcoindServer;
-    private URL bitcoindUrl;
+    private URI bitcoindUri;
     private File cookieFile;
     private Long cookieFileTimestamp;
     private String bitcoindAuthEncoded;
+    private final HttpClient httpClient;
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
 
     public BitcoindTransport(Server bitcoindServer, String bitcoindAuth) {
         this(bitcoindServer);
@@ -43,65 +57,155 @@ public class BitcoindTransport implements Transport {
             if(!bitcoindServer.getHostAndPort().hasPort()) {
                 serverUrl += ":" + Network.get().getDefaultPort();
             }
-            this.bitcoindUrl = new URI(serverUrl).toURL();
-        } catch(MalformedURLException | URISyntaxException e) {
+            this.bitcoindUri = new URI(serverUrl);
+        } catch(URISyntaxException e) {
             log.error("Malformed Bitcoin Core RPC URL", e);
         }
+
+        HttpClient.Builder httpClientBuilder = HttpClient.newBuilder().version(HttpClient.Version.HTTP_1_1).connectTimeout(Duration.ofSeconds(30));
+        SSLContext sslContext = getTrustAllSslContext();
+        if(sslContext != null) {
+            httpClientBuilder.sslContext(sslContext);
+        }
+        this.httpClient = httpClientBuilder.build();
     }
 
     @Override
     public String pass(String request) throws IOException {
-        HttpURLConnection connection = (HttpURLConnection)bitcoindUrl.openConnection();
+        log.debug("> " + request);
 
-        if(connection instanceof HttpsURLConnection httpsURLConnection) {
-            SSLSocketFactory sslSocketFactory = getTrustAllSocketFactory();
-            if(sslSocketFactory != null) {
-                httpsURLConnection.setSSLSocketFactory(sslSocketFactory);
+        long start = System.nanoTime();
+        requestStarted();
+        try {
+            HttpResponse<String> response = send(post(request.getBytes(StandardCharsets.UTF_8)), HttpResponse.BodyHandlers.ofString(StandardCharsets.UTF_8));
+            String body = response.body().trim();
+            if(response.statusCode() == 500) {
+                body = body.replace("\"result\":null,", "");
             }
+
+            log.debug("< " + body);
+            requestCompleted(start, true);
+            return body;
+        } catch(IOException | RuntimeException e) {
+            requestCompleted(start, false);
+            throw e;
         }
+    }
 
-        connection.setRequestMethod("POST");
-        connection.setRequestProperty("Content-Type", "application/json");
+    //Returns the response body without reading it into memory, so that it can be streamed straight into a JSON parser
+    public InputStream passStream(byte[] request) throws IOException {
+        if(log.isDebugEnabled()) {
+            log.debug("> " + new String(request, StandardCharsets.UTF_8));
+        }
 
-        String auth = getBitcoindAuthEncoded();
-        if(auth != null) {
-            connection.setRequestProperty("Authorization", "Basic " + auth);
+        long start = System.nanoTime();
+        requestStarted();
+        try {
+            HttpResponse<InputStream> response = send(post(request), HttpResponse.BodyHandlers.ofInputStream());
+            return completeOnClose(response.body(), start);
+        } catch(IOException | RuntimeException e) {
+            requestCompleted(start, false);
+            throw e;
         }
+    }
 
-        connection.setDoOutput(true);
+    //Fetches a resource from the REST interface, which Bitcoin Core only serves when configured with rest=1
+    public RestResponse getRest(String path) throws IOException {
+        log.debug("> GET " + path);
 
-        log.debug("> " + request);
+        long start = System.nanoTime();
+        requestStarted();
+        try {
+            HttpResponse<InputStream> response = send(HttpRequest.newBuilder(bitcoindUri.resolve(path)).GET(), HttpResponse.BodyHandlers.ofInputStream());
+            long contentLength = response.headers().firstValueAsLong("Content-Length").orElse(-1L);
+            return new RestResponse(response.statusCode(), contentLength, completeOnClose(response.body(), start));
+        } catch(IOException | RuntimeException e) {
+            requestCompleted(start, false);
+            throw e;
+        }
+    }
+
+    private HttpRequest.Builder post(byte[] request) {
+        return HttpRequest.newBuilder(bitcoindUri)
+                .POST(HttpRequest.BodyPublishers.ofByteArray(request))
+                .header("Content-Type", "application/json");
+    }
+
+    private InputStream completeOnClose(InputStream inputStream, long start) {
+        return new FilterInputStream(inputStream) {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException {
+                super.close();
+                if(!closed) {
+                    closed = true;
+                    requestCompleted(start, true);
+                }
+            }
+        };
+    }
 
-        try(OutputStream os = connection.getOutputStream()) {
-            byte[] jsonBytes = request.getBytes(StandardCharsets.UTF_8);
-            os.write(jsonBytes);
+    private <T> HttpResponse<T> send(HttpRequest.Builder requestBuilder, HttpResponse.BodyHandler<T> bodyHandler) throws IOException {
+        String auth = getBitcoindAuthEncoded();
+        if(auth != null) {
+            requestBuilder.header("Authorization", "Basic " + auth);
         }
 
-        int statusCode = connection.getResponseCode();
-        if(statusCode == 401) {
-            throw new IOException((cookieFile == null ? "User/pass" : "Cookie file") + " authentication failed");
+        HttpResponse<T> response;
+        try {
+            response = httpClient.send(requestBuilder.build(), bodyHandler);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for Bitcoin Core RPC response");
         }
-        InputStream inputStream = connection.getErrorStream() == null ? connection.getInputStream() : connection.getErrorStream();
-
-        StringBuilder res = new StringBuilder();
-        try(BufferedReader br = new BufferedReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
-            String responseLine;
-            while((responseLine = br.readLine()) != null) {
-                if(statusCode == 500) {
-                    responseLine = responseLine.replace("\"result\":null,", "");
-                }
 
-                res.append(responseLine.trim());
+        if(response.statusCode() == 401) {
+            if(response.body() instanceof InputStream inputStream) {
+                inputStream.close();
             }
+            throw new IOException((cookieFile == null ? "User/pass" : "Cookie file") + " authentication failed");
         }
 
-        String response = res.toString();
-        log.debug("< " + response);
-
         return response;
     }
 
-    private String getBitcoindAuthEncoded() throws IOException {
+    private void requestStarted() {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+    }
+
+    private void requestCompleted(long start, boolean success) {
+        long latency = System.nanoTime() - start;
+        inFlight.decrementAndGet();
+        requests.incrementAndGet();
+        if(!success) {
+            failures.incrementAndGet();
+        }
+        totalLatencyNanos.addAndGet(latency);
+        maxLatencyNanos.accumulateAndGet(latency, Math::max);
+    }
+
+    public RpcMetrics getMetrics() {
+        long count = requests.get();
+        return new RpcMetrics(count, failures.get(), count == 0 ? 0d : totalLatencyNanos.get() / (double)count / 1_000_000d,
+                maxLatencyNanos.get() / 1_000_000d, inFlight.get(), maxInFlight.get());
+    }
+
+    public record RpcMetrics(long requests, long failures, double averageLatencyMillis, double maxLatencyMillis, int inFlight, int maxInFlight) {
+        @Override
+        public String toString() {
+            return String.format("%d requests (%d failed), average latency %.2fms, max latency %.2fms, %d in flight (max %d)", requests, failures, averageLatencyMillis, maxLatencyMillis, inFlight, maxInFlight);
+        }
+    }
+
+    public record RestResponse(int statusCode, long contentLength, InputStream body) implements Closeable {
+        @Override
+        public void close() throws IOException {
+            body.close();
+        }
+    }
+
+    private synchronized String getBitcoindAuthEncoded() throws IOException {
         if(cookieFile != null) {
             if(!cookieFile.exists()) {
                 throw new IOException("Cannot find Bitcoin Core cookie file at " + cookieFile.getAbsolutePath());
@@ -135,7 +239,7 @@ public class BitcoindTransport implements Transport {
         return bitcoindDir;
     }
 
-    private SSLSocketFactory getTrustAllSocketFactory() {
+    private static SSLContext getTrustAllSslContext() {
         TrustManager[] trustAllCerts = new TrustManager[] {
                 new X509TrustManager() {
                     public X509Certificate[] getAcceptedIssuers() {
@@ -153,9 +257,9 @@ public class BitcoindTransport implements Transport {
         try {
             SSLContext sslContext = SSLContext.getInstance("TLS");
             sslContext.init(null, trustAllCerts, null);
-            return sslContext.getSocketFactory();
+            return sslContext;
         } catch (Exception e) {
-            log.error("Error creating SSL socket factory", e);
+            log.error("Error creating SSL context", e);
         }
 
         return null;
@@ -0,0 +1,519 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.Network;
+import com.sparrowwallet.drongo.protocol.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+//Reads blocks and their undo data directly from the blk*.dat and rev*.dat files of a stopped Bitcoin Core node
+//Files are mapped into memory in their own arenas, so that each mapping is released as soon as it leaves the cache and is no longer being read
+public class BlockFileReader implements AutoCloseable {
+    private static final Logger log = LoggerFactory.getLogger(BlockFileReader.class);
+
+    private static final int HEADER_SIZE = 80;
+    private static final int MAX_MAPPED_FILES = 16;
+    private static final int MAX_UNDO_FILES = 8;
+
+    private final File blocksDir;
+    private final int magic;
+    private final byte[] xorKey;
+
+    private final LinkedHashMap<String, MappedFile> mappedFiles = new LinkedHashMap<>(MAX_MAPPED_FILES * 4 / 3, 0.75f, true);
+    private final Map<Integer, Map<Long, List<UndoLocation>>> undoFiles = BitcoindClient.lruCache(MAX_UNDO_FILES);
+    private BlockLocation[] chain;
+
+    public BlockFileReader(File blocksDir) {
+        this.blocksDir = blocksDir;
+        this.magic = getMagic(Network.get());
+        this.xorKey = readXorKey(blocksDir);
+    }
+
+    //Scans the headers of all block files and returns the height of the chain with the most work found
+    public int open() {
+        Map<ByteBuffer, BlockLocation> blocks = new HashMap<>();
+        for(int fileNumber = 0; getBlockFile("blk", fileNumber).exists(); fileNumber++) {
+            MappedFile mappedFile = acquire("blk", fileNumber);
+            try {
+                MemorySegment segment = mappedFile.segment();
+                byte[] header = new byte[HEADER_SIZE];
+                long offset = 0;
+                while(offset + 8 + HEADER_SIZE <= segment.byteSize() && readInt(segment, offset) == magic) {
+                    int size = readInt(segment, offset + 4);
+                    read(segment, offset + 8, header);
+                    BlockLocation location = new BlockLocation(fileNumber, offset + 8, size, Arrays.copyOfRange(header, 4, 36), getWork(header));
+                    blocks.put(ByteBuffer.wrap(sha256Twice(header)), location);
+                    offset += 8 + size;
+                }
+            } finally {
+                release(mappedFile);
+            }
+
+            if(fileNumber % 100 == 0) {
+                log.info("Read headers from block file " + fileNumber + ", " + blocks.size() + " blocks found");
+            }
+        }
+
+        //Heights and cumulative work are assigned by following the prevHash links back to the genesis block
+        //As in Bitcoin Core, the tip is the block with the most cumulative work, so that a stale fork at an equal or greater height is not followed
+        Map<ByteBuffer, Integer> heights = new HashMap<>(blocks.size() * 4 / 3);
+        Map<ByteBuffer, BigInteger> chainWork = new HashMap<>(blocks.size() * 4 / 3);
+        Set<ByteBuffer> disconnected = new HashSet<>();
+        ByteBuffer tipHash = null;
+        int tipHeight = -1;
+        BigInteger tipWork = BigInteger.ZERO;
+        for(ByteBuffer blockHash : blocks.keySet()) {
+            Deque<ByteBuffer> unresolved = new ArrayDeque<>();
+            ByteBuffer hash = blockHash;
+            int height = -1;
+            BigInteger work = BigInteger.ZERO;
+            while(hash != null && !heights.containsKey(hash)) {
+                BlockLocation location = blocks.get(hash);
+                if(location == null || disconnected.contains(hash)) {
+                    break;
+                }
+                unresolved.push(hash);
+                hash = isZero(location.prevHash()) ? null : ByteBuffer.wrap(location.prevHash());
+            }
+
+            if(hash != null && heights.containsKey(hash)) {
+                height = heights.get(hash);
+                work = chainWork.get(hash);
+            } else if(hash != null) {
+                //Parent block not found, this block and its descendants are not connected to the genesis block
+                disconnected.addAll(unresolved);
+                unresolved.clear();
+            }
+
+            while(!unresolved.isEmpty()) {
+                ByteBuffer resolved = unresolved.pop();
+                heights.put(resolved, ++height);
+                work = work.add(blocks.get(resolved).work());
+                chainWork.put(resolved, work);
+                if(work.compareTo(tipWork) > 0) {
+                    tipWork = work;
+                    tipHeight = height;
+                    tipHash = resolved;
+                }
+            }
+        }
+
+        if(tipHash == null) {
+            throw new IllegalStateException("No blocks connected to the genesis block found in " + blocksDir.getAbsolutePath() + ", pruned nodes are not supported");
+        }
+
+        chain = new BlockLocation[tipHeight + 1];
+        for(ByteBuffer hash = tipHash; hash != null; ) {
+            BlockLocation location = blocks.get(hash);
+            chain[heights.get(hash)] = location;
+            hash = isZero(location.prevHash()) ? null : ByteBuffer.wrap(location.prevHash());
+        }
+
+        log.info("Found " + blocks.size() + " blocks in block files, chain height is " + tipHeight);
+        return tipHeight;
+    }
+
+    public FetchedBlock getBlock(int height) {
+        BlockLocation location = chain[height];
+        byte[] blockBytes = new byte[location.size()];
+        MappedFile mappedFile = acquire("blk", location.fileNumber());
+        try {
+            read(mappedFile.segment(), location.offset(), blockBytes);
+        } finally {
+            release(mappedFile);
+        }
+
+        String blockHash = HexFormat.of().formatHex(reverse(sha256Twice(Arrays.copyOfRange(blockBytes, 0, HEADER_SIZE))));
+        long blockTime = ByteBuffer.wrap(blockBytes, 68, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+        Block block = new Block(blockBytes);
+        List<Transaction> transactions = block.getTransactions();
+
+        int totalInputs = 0;
+        for(int i = 1; i < transactions.size(); i++) {
+            totalInputs += transactions.get(i).getInputs().size();
+        }
+
+        //Blocks with only a coinbase transaction spend nothing, and the genesis block has no undo data
+        Map<HashIndex, Script> spentScriptPubKeys = new HashMap<>(totalInputs * 4 / 3 + 1);
+        Map<HashIndex, Integer> spentOutputHeights = new HashMap<>();
+        if(transactions.size() == 1) {
+            return new FetchedBlock(height, blockHash, new Date(blockTime * 1000), transactions, spentScriptPubKeys, spentOutputHeights);
+        }
+
+        ByteBuffer undo = getUndoData(location, transactions.size() - 1, totalInputs);
+        if(undo == null) {
+            throw new IllegalStateException("Could not find undo data for block " + blockHash + " at height " + height);
+        }
+
+        readCompactSize(undo);
+        for(int i = 1; i < transactions.size(); i++) {
+            List<TransactionInput> inputs = transactions.get(i).getInputs();
+            if(readCompactSize(undo) != inputs.size()) {
+                throw new IllegalStateException("Undo data does not match transaction " + transactions.get(i).getTxId() + " in block " + blockHash);
+            }
+
+            for(TransactionInput input : inputs) {
+                //The coin starts with its height and coinbase flag, read ahead here before the coin is decoded
+                int coinHeight = (int)(readVarInt(undo.duplicate()) >>> 1);
+                byte[] scriptPubKeyBytes = readCoinScriptPubKey(undo);
+                TransactionOutPoint outpoint = input.getOutpoint();
+                HashIndex hashIndex = new HashIndex(outpoint.getHash(), outpoint.getIndex());
+                spentScriptPubKeys.put(hashIndex, new Script(BitcoindClient.getValidScriptType(scriptPubKeyBytes) != null ? scriptPubKeyBytes : new byte[0]));
+                if(BitcoindClient.getValidScriptType(scriptPubKeyBytes) == ScriptType.P2TR) {
+                    spentOutputHeights.put(hashIndex, coinHeight);
+                }
+            }
+        }
+
+        return new FetchedBlock(height, blockHash, new Date(blockTime * 1000), transactions, spentScriptPubKeys, spentOutputHeights);
+    }
+
+    private ByteBuffer getUndoData(BlockLocation location, long txUndoCount, long coinCount) {
+        Map<Long, List<UndoLocation>> undoLocations = getUndoLocations(location.fileNumber());
+        List<UndoLocation> candidates = undoLocations.getOrDefault(getUndoSignature(txUndoCount, coinCount), Collections.emptyList());
+        if(candidates.isEmpty()) {
+            return null;
+        }
+
+        MappedFile mappedFile = acquire("rev", location.fileNumber());
+        try {
+            for(UndoLocation undoLocation : candidates) {
+                byte[] undoBytes = new byte[32 + undoLocation.size()];
+                System.arraycopy(location.prevHash(), 0, undoBytes, 0, 32);
+                read(mappedFile.segment(), undoLocation.offset(), undoBytes, 32, undoLocation.size());
+
+                //The checksum commits to the previous block hash, so it identifies which block the undo data belongs to
+                if(Arrays.equals(sha256Twice(undoBytes), undoLocation.checksum())) {
+                    return ByteBuffer.wrap(undoBytes, 32, undoLocation.size()).slice().order(ByteOrder.LITTLE_ENDIAN);
+                }
+            }
+        } finally {
+            release(mappedFile);
+        }
+
+        return null;
+    }
+
+    //Undo records are written in the order blocks are connected, so they are indexed by their shape to match them to blocks
+    private Map<Long, List<UndoLocation>> getUndoLocations(int fileNumber) {
+        synchronized(undoFiles) {
+            Map<Long, List<UndoLocation>> undoLocations = undoFiles.get(fileNumber);
+            if(undoLocations != null) {
+                return undoLocations;
+            }
+        }
+
+        Map<Long, List<UndoLocation>> undoLocations = new HashMap<>();
+        if(getBlockFile("rev", fileNumber).exists()) {
+            MappedFile mappedFile = acquire("rev", fileNumber);
+            try {
+                readUndoLocations(mappedFile.segment(), undoLocations);
+            } finally {
+                release(mappedFile);
+            }
+        }
+
+        synchronized(undoFiles) {
+            undoFiles.put(fileNumber, undoLocations);
+        }
+
+        return undoLocations;
+    }
+
+    private void readUndoLocations(MemorySegment segment, Map<Long, List<UndoLocation>> undoLocations) {
+        long offset = 0;
+        while(offset + 8 <= segment.byteSize() && readInt(segment, offset) == magic) {
+            int size = readInt(segment, offset + 4);
+            byte[] undoBytes = new byte[size];
+            byte[] checksum = new byte[32];
+            read(segment, offset + 8, undoBytes);
+            read(segment, offset + 8 + size, checksum);
+
+            ByteBuffer undo = ByteBuffer.wrap(undoBytes).order(ByteOrder.LITTLE_ENDIAN);
+            long txUndoCount = readCompactSize(undo);
+            long coinCount = 0;
+            for(long i = 0; i < txUndoCount; i++) {
+                long coins = readCompactSize(undo);
+                coinCount += coins;
+                for(long j = 0; j < coins; j++) {
+                    skipCoin(undo);
+                }
+            }
+
+            undoLocations.computeIfAbsent(getUndoSignature(txUndoCount, coinCount), k -> new ArrayList<>()).add(new UndoLocation(offset + 8, size, checksum));
+            offset += 8 + size + 32;
+        }
+    }
+
+    private static long getUndoSignature(long txUndoCount, long coinCount) {
+        return (txUndoCount << 32) ^ coinCount;
+    }
+
+    private static void skipCoin(ByteBuffer undo) {
+        long code = readVarInt(undo);
+        if(code >>> 1 > 0) {
+            readVarInt(undo);
+        }
+        readVarInt(undo);
+        long scriptSize = readVarInt(undo);
+        undo.position(undo.position() + (int)getCompressedScriptLength(scriptSize));
+    }
+
+    //Coins are stored as height and coinbase flag, a legacy version field, the compressed amount and the compressed script
+    private static byte[] readCoinScriptPubKey(ByteBuffer undo) {
+        long code = readVarInt(undo);
+        if(code >>> 1 > 0) {
+            readVarInt(undo);
+        }
+        readVarInt(undo);
+
+        long scriptSize = readVarInt(undo);
+        byte[] data = new byte[(int)getCompressedScriptLength(scriptSize)];
+        undo.get(data);
+
+        if(scriptSize == 0) {
+            byte[] script = new byte[25];
+            script[0] = (byte)0x76;
+            script[1] = (byte)0xa9;
+            script[2] = (byte)0x14;
+            System.arraycopy(data, 0, script, 3, 20);
+            script[23] = (byte)0x88;
+            script[24] = (byte)0xac;
+            return script;
+        } else if(scriptSize == 1) {
+            byte[] script = new byte[23];
+            script[0] = (byte)0xa9;
+            script[1] = (byte)0x14;
+            System.arraycopy(data, 0, script, 2, 20);
+            script[22] = (byte)0x87;
+            return script;
+        } else if(scriptSize < 6) {
+            //Compressed P2PK outputs cannot be spent by eligible inputs
+            return new byte[0];
+        }
+
+        return data;
+    }
+
+    private static long getCompressedScriptLength(long scriptSize) {
+        if(scriptSize == 0 || scriptSize == 1) {
+            return 20;
+        } else if(scriptSize < 6) {
+            return 32;
+        }
+
+        return scriptSize - 6;
+    }
+
+    private static long readVarInt(ByteBuffer buffer) {
+        long n = 0;
+        while(true) {
+            int b = buffer.get() & 0xff;
+            n = (n << 7) | (b & 0x7f);
+            if((b & 0x80) == 0) {
+                return n;
+            }
+            n++;
+        }
+    }
+
+    private static long readCompactSize(ByteBuffer buffer) {
+        int first = buffer.get() & 0xff;
+        return switch(first) {
+            case 0xfd -> buffer.getShort() & 0xffff;
+            case 0xfe -> buffer.getInt() & 0xffffffffL;
+            case 0xff -> buffer.getLong();
+            default -> first;
+        };
+    }
+
+    //Releases the mappings not in use, with those still being read released as their reads complete
+    @Override
+    public void close() {
+        synchronized(mappedFiles) {
+            for(MappedFile mappedFile : mappedFiles.values()) {
+                evict(mappedFile);
+            }
+            mappedFiles.clear();
+        }
+    }
+
+    int getMappedFileCount() {
+        synchronized(mappedFiles) {
+            return mappedFiles.size();
+        }
+    }
+
+    //Returns the mapping of a file, which must be released once read so that it can be unmapped when evicted
+    private MappedFile acquire(String prefix, int fileNumber) {
+        String key = prefix + fileNumber;
+        synchronized(mappedFiles) {
+            MappedFile mappedFile = mappedFiles.get(key);
+            if(mappedFile == null) {
+                Arena arena = Arena.ofShared();
+                try(FileChannel channel = FileChannel.open(getBlockFile(prefix, fileNumber).toPath(), StandardOpenOption.READ)) {
+                    mappedFile = new MappedFile(arena, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+                } catch(IOException e) {
+                    arena.close();
+                    throw new IllegalStateException("Error reading " + getBlockFile(prefix, fileNumber).getAbsolutePath(), e);
+                }
+                mappedFiles.put(key, mappedFile);
+
+                if(mappedFiles.size() > MAX_MAPPED_FILES) {
+                    Iterator<MappedFile> iter = mappedFiles.values().iterator();
+                    evict(iter.next());
+                    iter.remove();
+                }
+            }
+
+            mappedFile.users++;
+            return mappedFile;
+        }
+    }
+
+    private void release(MappedFile mappedFile) {
+        synchronized(mappedFiles) {
+            mappedFile.users--;
+            if(mappedFile.evicted && mappedFile.users == 0) {
+                mappedFile.arena.close();
+            }
+        }
+    }
+
+    private void evict(MappedFile mappedFile) {
+        mappedFile.evicted = true;
+        if(mappedFile.users == 0) {
+            mappedFile.arena.close();
+        }
+    }
+
+    private File getBlockFile(String prefix, int fileNumber) {
+        return new File(blocksDir, String.format("%s%05d.dat", prefix, fileNumber));
+    }
+
+    private int readInt(MemorySegment segment, long offset) {
+        byte[] bytes = new byte[4];
+        read(segment, offset, bytes);
+        return ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    private void read(MemorySegment segment, long offset, byte[] dst) {
+        read(segment, offset, dst, 0, dst.length);
+    }
+
+    //Block files are obfuscated with a repeating key applied by file position, which is all zeros for nodes that predate it
+    private void read(MemorySegment segment, long offset, byte[] dst, int dstOffset, int length) {
+        MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset, dst, dstOffset, length);
+        for(int i = 0; i < length; i++) {
+            dst[dstOffset + i] ^= xorKey[(int)((offset + i) % xorKey.length)];
+        }
+    }
+
+    //The work of a block is 2^256 / (target + 1), with the target decoded from the compact bits field of the header
+    static BigInteger getWork(byte[] header) {
+        long bits = ByteBuffer.wrap(header, 72, 4).order(ByteOrder.LITTLE_ENDIAN).getInt() & 0xffffffffL;
+        int exponent = (int)(bits >>> 24);
+        BigInteger mantissa = BigInteger.valueOf(bits & 0x7fffffL);
+        BigInteger target = exponent <= 3 ? mantissa.shiftRight(8 * (3 - exponent)) : mantissa.shiftLeft(8 * (exponent - 3));
+        if(target.signum() == 0 || (bits & 0x800000L) != 0) {
+            return BigInteger.ZERO;
+        }
+
+        return BigInteger.ONE.shiftLeft(256).divide(target.add(BigInteger.ONE));
+    }
+
+    private static byte[] readXorKey(File blocksDir) {
+        File xorFile = new File(blocksDir, "xor.dat");
+        if(xorFile.exists()) {
+            try {
+                return Files.readAllBytes(xorFile.toPath());
+            } catch(IOException e) {
+                throw new IllegalStateException("Error reading " + xorFile.getAbsolutePath(), e);
+            }
+        }
+
+        return new byte[8];
+    }
+
+    private static int getMagic(Network network) {
+        return switch(network) {
+            case MAINNET -> 0xd9b4bef9;
+            case TESTNET -> 0x0709110b;
+            case TESTNET4 -> 0x283f161c;
+            case SIGNET -> 0x40cf030a;
+            case REGTEST -> 0xdab5bffa;
+        };
+    }
+
+    public static File getBlocksDir(File coreDataDir) {
+        String networkDir = switch(Network.get()) {
+            case MAINNET -> null;
+            case TESTNET -> "testnet3";
+            case TESTNET4 -> "testnet4";
+            case SIGNET -> "signet";
+            case REGTEST -> "regtest";
+        };
+
+        return new File(networkDir == null ? coreDataDir : new File(coreDataDir, networkDir), "blocks");
+    }
+
+    private static byte[] sha256Twice(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(digest.digest(data));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] reverse(byte[] bytes) {
+        byte[] reversed = new byte[bytes.length];
+        for(int i = 0; i < bytes.length; i++) {
+            reversed[i] = bytes[bytes.length - 1 - i];
+        }
+        return reversed;
+    }
+
+    private static boolean isZero(byte[] bytes) {
+        for(byte b : bytes) {
+            if(b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private record BlockLocation(int fileNumber, long offset, int size, byte[] prevHash, BigInteger work) {}
+
+    private record UndoLocation(long offset, int size, byte[] checksum) {}
+
+    private static class MappedFile {
+        private final Arena arena;
+        private final MemorySegment segment;
+        private int users;
+        private boolean evicted;
+
+        public MappedFile(Arena arena, MemorySegment segment) {
+            this.arena = arena;
+            this.segment = segment;
+        }
+
+        public MemorySegment segment() {
+            return segment;
+        }
+    }
+}
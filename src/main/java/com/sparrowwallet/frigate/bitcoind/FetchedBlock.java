@@ -0,0 +1,21 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.Block;
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Script;
+import com.sparrowwallet.drongo.protocol.Transaction;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+//The spent output heights hold the heights at which the spent taproot outputs were created, when they are known from the block source
+public record FetchedBlock(int height, String blockHash, Date blockTime, List<Transaction> transactions, Map<HashIndex, Script> spentScriptPubKeys, Map<HashIndex, Integer> spentOutputHeights) {
+    public FetchedBlock(int height, String blockHash, Block block) {
+        this(height, blockHash, block.getBlockHeader().getTimeAsDate(), block.getTransactions(), null, null);
+    }
+
+    public boolean hasSpentScriptPubKeys() {
+        return spentScriptPubKeys != null;
+    }
+}
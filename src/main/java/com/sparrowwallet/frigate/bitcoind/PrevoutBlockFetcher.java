@@ -0,0 +1,185 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Script;
+import com.sparrowwallet.drongo.protocol.ScriptType;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.drongo.protocol.Transaction;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class PrevoutBlockFetcher {
+    public static final int MIN_CORE_VERSION = 230000;
+    private static final int VERBOSITY_PREVOUTS = 3;
+
+    private final BitcoindTransport bitcoindTransport;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final AtomicLong requestId = new AtomicLong();
+
+    public PrevoutBlockFetcher(BitcoindTransport bitcoindTransport) {
+        this.bitcoindTransport = bitcoindTransport;
+    }
+
+    public FetchedBlock getBlock(int height, String blockHash) {
+        String request = "{\"jsonrpc\":\"2.0\",\"id\":" + requestId.incrementAndGet() + ",\"method\":\"getblock\",\"params\":[\"" + blockHash + "\"," + VERBOSITY_PREVOUTS + "]}";
+
+        //The verbose block is streamed rather than read into a tree, only the transaction hex and prevout scripts are kept
+        try(InputStream inputStream = bitcoindTransport.passStream(request.getBytes(StandardCharsets.UTF_8)); JsonParser parser = jsonFactory.createParser(inputStream)) {
+            if(parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IllegalStateException("Invalid getblock response for block " + blockHash);
+            }
+
+            FetchedBlock fetchedBlock = null;
+            String error = null;
+            while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.currentName();
+                JsonToken token = parser.nextToken();
+                if(fieldName.equals("result") && token == JsonToken.START_OBJECT) {
+                    fetchedBlock = readBlock(parser, height, blockHash);
+                } else if(fieldName.equals("error") && token == JsonToken.START_OBJECT) {
+                    error = readErrorMessage(parser);
+                } else {
+                    parser.skipChildren();
+                }
+            }
+
+            if(fetchedBlock == null) {
+                throw new IllegalStateException("Error fetching block " + blockHash + (error == null ? "" : ": " + error));
+            }
+
+            return fetchedBlock;
+        } catch(IOException e) {
+            throw new IllegalStateException("I/O error fetching block " + blockHash, e);
+        }
+    }
+
+    private FetchedBlock readBlock(JsonParser parser, int height, String blockHash) throws IOException {
+        Date blockTime = null;
+        List<Transaction> transactions = new ArrayList<>();
+        Map<HashIndex, Script> spentScriptPubKeys = new HashMap<>();
+        Map<HashIndex, Integer> spentOutputHeights = new HashMap<>();
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if(fieldName.equals("time")) {
+                blockTime = new Date(parser.getLongValue() * 1000);
+            } else if(fieldName.equals("tx") && token == JsonToken.START_ARRAY) {
+                while(parser.nextToken() == JsonToken.START_OBJECT) {
+                    transactions.add(readTransaction(parser, spentScriptPubKeys, spentOutputHeights));
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return new FetchedBlock(height, blockHash, blockTime, transactions, spentScriptPubKeys, spentOutputHeights);
+    }
+
+    private Transaction readTransaction(JsonParser parser, Map<HashIndex, Script> spentScriptPubKeys, Map<HashIndex, Integer> spentOutputHeights) throws IOException {
+        HexFormat hexFormat = HexFormat.of();
+        String txHex = null;
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if(fieldName.equals("hex")) {
+                txHex = parser.getText();
+            } else if(fieldName.equals("vin") && token == JsonToken.START_ARRAY) {
+                while(parser.nextToken() == JsonToken.START_OBJECT) {
+                    readInput(parser, hexFormat, spentScriptPubKeys, spentOutputHeights);
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        if(txHex == null) {
+            throw new IllegalStateException("No transaction hex in getblock response");
+        }
+
+        return new Transaction(hexFormat.parseHex(txHex));
+    }
+
+    private void readInput(JsonParser parser, HexFormat hexFormat, Map<HashIndex, Script> spentScriptPubKeys, Map<HashIndex, Integer> spentOutputHeights) throws IOException {
+        String txid = null;
+        long vout = -1;
+        Prevout prevout = null;
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if(fieldName.equals("txid")) {
+                txid = parser.getText();
+            } else if(fieldName.equals("vout")) {
+                vout = parser.getLongValue();
+            } else if(fieldName.equals("prevout") && token == JsonToken.START_OBJECT) {
+                prevout = readPrevout(parser);
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        //Coinbase inputs have no txid or prevout
+        if(txid != null && vout >= 0 && prevout != null && prevout.scriptPubKeyHex() != null) {
+            byte[] scriptPubKeyBytes = hexFormat.parseHex(prevout.scriptPubKeyHex());
+            HashIndex outpoint = new HashIndex(Sha256Hash.wrap(txid), vout);
+            spentScriptPubKeys.put(outpoint, new Script(BitcoindClient.getValidScriptType(scriptPubKeyBytes) != null ? scriptPubKeyBytes : new byte[0]));
+            if(prevout.height() >= 0 && BitcoindClient.getValidScriptType(scriptPubKeyBytes) == ScriptType.P2TR) {
+                spentOutputHeights.put(outpoint, prevout.height());
+            }
+        }
+    }
+
+    private Prevout readPrevout(JsonParser parser) throws IOException {
+        String scriptPubKeyHex = null;
+        int height = -1;
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            JsonToken token = parser.nextToken();
+            if(fieldName.equals("height")) {
+                height = parser.getIntValue();
+            } else if(fieldName.equals("scriptPubKey") && token == JsonToken.START_OBJECT) {
+                while(parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String scriptFieldName = parser.currentName();
+                    parser.nextToken();
+                    if(scriptFieldName.equals("hex")) {
+                        scriptPubKeyHex = parser.getText();
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return new Prevout(scriptPubKeyHex, height);
+    }
+
+    private record Prevout(String scriptPubKeyHex, int height) {}
+
+    private String readErrorMessage(JsonParser parser) throws IOException {
+        String message = null;
+
+        while(parser.nextToken() == JsonToken.FIELD_NAME) {
+            String fieldName = parser.currentName();
+            parser.nextToken();
+            if(fieldName.equals("message")) {
+                message = parser.getText();
+            } else {
+                parser.skipChildren();
+            }
+        }
+
+        return message;
+    }
+}
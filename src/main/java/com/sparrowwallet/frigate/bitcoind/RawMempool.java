@@ -0,0 +1,10 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.util.List;
+
+//The mempool sequence is incremented for every transaction added to or removed from the mempool
+@JsonIgnoreProperties(ignoreUnknown = true)
+public record RawMempool(List<String> txids, long mempool_sequence) {
+}
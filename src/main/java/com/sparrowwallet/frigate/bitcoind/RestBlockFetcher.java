@@ -0,0 +1,77 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+public class RestBlockFetcher {
+    private static final Logger log = LoggerFactory.getLogger(RestBlockFetcher.class);
+
+    private static final int INITIAL_BUFFER_SIZE = 2 * 1024 * 1024;
+
+    private final BitcoindTransport bitcoindTransport;
+    private final ThreadLocal<byte[]> buffers = ThreadLocal.withInitial(() -> new byte[INITIAL_BUFFER_SIZE]);
+
+    public RestBlockFetcher(BitcoindTransport bitcoindTransport) {
+        this.bitcoindTransport = bitcoindTransport;
+    }
+
+    public boolean isAvailable() {
+        try(BitcoindTransport.RestResponse response = bitcoindTransport.getRest("/rest/chaininfo.json")) {
+            return response.statusCode() == 200;
+        } catch(IOException e) {
+            log.debug("Error checking Bitcoin Core REST interface", e);
+            return false;
+        }
+    }
+
+    public byte[] getBlock(String blockHash) {
+        try(BitcoindTransport.RestResponse response = bitcoindTransport.getRest("/rest/block/" + blockHash + ".bin")) {
+            if(response.statusCode() != 200) {
+                throw new IllegalStateException("Error fetching block " + blockHash + " from Bitcoin Core REST interface, status " + response.statusCode());
+            }
+
+            //Bitcoin Core sends the content length, so the reusable buffer can be sized once before reading the block into it
+            if(response.contentLength() >= 0) {
+                int length = readFully(response.body(), (int)response.contentLength());
+                if(length != response.contentLength()) {
+                    throw new IllegalStateException("Truncated response fetching block " + blockHash + ", read " + length + " of " + response.contentLength() + " bytes");
+                }
+                return Arrays.copyOf(buffers.get(), length);
+            }
+
+            return readBuffered(response.body());
+        } catch(IOException e) {
+            throw new IllegalStateException("I/O error fetching block " + blockHash, e);
+        }
+    }
+
+    //The block is copied out of the buffer as it is parsed on another thread, while this thread goes on to fetch the next block
+    private int readFully(InputStream inputStream, int contentLength) throws IOException {
+        byte[] buffer = buffers.get();
+        if(buffer.length < contentLength) {
+            buffer = new byte[Math.max(contentLength, buffer.length * 2)];
+            buffers.set(buffer);
+        }
+
+        return inputStream.readNBytes(buffer, 0, contentLength);
+    }
+
+    private byte[] readBuffered(InputStream inputStream) throws IOException {
+        byte[] buffer = buffers.get();
+        int length = 0;
+        int read;
+        while((read = inputStream.read(buffer, length, buffer.length - length)) >= 0) {
+            length += read;
+            if(length == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                buffers.set(buffer);
+            }
+        }
+
+        return Arrays.copyOf(buffer, length);
+    }
+}
@@ -0,0 +1,230 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.ScriptType;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.util.concurrent.atomic.LongAdder;
+
+//A fixed size, set associative cache of spent output scriptPubKeys held off heap, using clock eviction within each set
+//Once closed the cache holds nothing, so that a lookup still running on another thread cannot touch the freed memory
+public class ScriptPubKeyCache implements AutoCloseable {
+    //Each entry holds an 8 byte txid prefix, the output index, the script type, a reference bit and the 20 or 32 byte script payload
+    public static final int ENTRY_SIZE = 48;
+    private static final int WAYS = 8;
+    private static final int SET_SIZE = ENTRY_SIZE * WAYS;
+    private static final int LOCK_STRIPES = 256;
+
+    private static final int TXID_OFFSET = 0;
+    private static final int VOUT_OFFSET = 8;
+    private static final int TYPE_OFFSET = 12;
+    private static final int REFERENCED_OFFSET = 13;
+    private static final int HAND_OFFSET = 14;
+    private static final int PAYLOAD_OFFSET = 16;
+
+    private static final byte EMPTY = 0;
+    private static final byte INVALID = 1;
+    private static final byte P2PKH = 2;
+    private static final byte P2SH = 3;
+    private static final byte P2WPKH = 4;
+    private static final byte P2TR = 5;
+
+    private final Arena arena;
+    private final MemorySegment segment;
+    private final long sets;
+    private final Object[] locks = new Object[LOCK_STRIPES];
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder inserts = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private volatile boolean closed;
+
+    public ScriptPubKeyCache(long sizeBytes) {
+        this.sets = Math.max(1, sizeBytes / SET_SIZE);
+        this.arena = Arena.ofShared();
+        this.segment = arena.allocate(sets * SET_SIZE, ValueLayout.JAVA_LONG.byteAlignment());
+        for(int i = 0; i < locks.length; i++) {
+            locks[i] = new Object();
+        }
+    }
+
+    //Returns the cached scriptPubKey, an empty array if the output cannot be spent by an eligible input, or null if not cached
+    public byte[] get(Sha256Hash txid, long vout) {
+        long txidPrefix = getTxidPrefix(txid);
+        long set = getSet(txidPrefix, vout);
+        long setOffset = set * SET_SIZE;
+
+        synchronized(locks[(int)(set % LOCK_STRIPES)]) {
+            if(closed) {
+                return null;
+            }
+
+            for(int way = 0; way < WAYS; way++) {
+                long offset = setOffset + (long)way * ENTRY_SIZE;
+                byte type = segment.get(ValueLayout.JAVA_BYTE, offset + TYPE_OFFSET);
+                if(type != EMPTY && segment.get(ValueLayout.JAVA_LONG, offset + TXID_OFFSET) == txidPrefix && segment.get(ValueLayout.JAVA_INT, offset + VOUT_OFFSET) == (int)vout) {
+                    segment.set(ValueLayout.JAVA_BYTE, offset + REFERENCED_OFFSET, (byte)1);
+                    hits.increment();
+                    return getScriptPubKey(offset, type);
+                }
+            }
+        }
+
+        misses.increment();
+        return null;
+    }
+
+    //Caches the scriptPubKey and returns the bytes that will be returned for it, which are empty for ineligible script types
+    public byte[] put(Sha256Hash txid, long vout, byte[] scriptPubKey) {
+        ScriptType scriptType = BitcoindClient.getValidScriptType(scriptPubKey);
+        byte type = getType(scriptType);
+        long txidPrefix = getTxidPrefix(txid);
+        long set = getSet(txidPrefix, vout);
+        long setOffset = set * SET_SIZE;
+
+        synchronized(locks[(int)(set % LOCK_STRIPES)]) {
+            if(closed) {
+                return type == INVALID ? new byte[0] : scriptPubKey;
+            }
+
+            long offset = -1;
+            for(int way = 0; way < WAYS && offset < 0; way++) {
+                long wayOffset = setOffset + (long)way * ENTRY_SIZE;
+                byte wayType = segment.get(ValueLayout.JAVA_BYTE, wayOffset + TYPE_OFFSET);
+                if(wayType == EMPTY || (segment.get(ValueLayout.JAVA_LONG, wayOffset + TXID_OFFSET) == txidPrefix && segment.get(ValueLayout.JAVA_INT, wayOffset + VOUT_OFFSET) == (int)vout)) {
+                    offset = wayOffset;
+                }
+            }
+
+            if(offset < 0) {
+                offset = setOffset + (long)evict(setOffset) * ENTRY_SIZE;
+                evictions.increment();
+            }
+
+            segment.set(ValueLayout.JAVA_LONG, offset + TXID_OFFSET, txidPrefix);
+            segment.set(ValueLayout.JAVA_INT, offset + VOUT_OFFSET, (int)vout);
+            segment.set(ValueLayout.JAVA_BYTE, offset + TYPE_OFFSET, type);
+            segment.set(ValueLayout.JAVA_BYTE, offset + REFERENCED_OFFSET, (byte)0);
+            int payloadStart = getPayloadStart(type);
+            int payloadLength = getPayloadLength(type);
+            if(payloadLength > 0) {
+                MemorySegment.copy(scriptPubKey, payloadStart, segment, ValueLayout.JAVA_BYTE, offset + PAYLOAD_OFFSET, payloadLength);
+            }
+        }
+
+        inserts.increment();
+        return type == INVALID ? new byte[0] : scriptPubKey;
+    }
+
+    //Advances the clock hand of the set past recently referenced entries, clearing their reference bits
+    private int evict(long setOffset) {
+        int hand = segment.get(ValueLayout.JAVA_BYTE, setOffset + HAND_OFFSET);
+        while(true) {
+            long offset = setOffset + (long)hand * ENTRY_SIZE;
+            int victim = hand;
+            hand = (hand + 1) % WAYS;
+            if(segment.get(ValueLayout.JAVA_BYTE, offset + REFERENCED_OFFSET) == 0) {
+                segment.set(ValueLayout.JAVA_BYTE, setOffset + HAND_OFFSET, (byte)hand);
+                return victim;
+            }
+            segment.set(ValueLayout.JAVA_BYTE, offset + REFERENCED_OFFSET, (byte)0);
+        }
+    }
+
+    private byte[] getScriptPubKey(long offset, byte type) {
+        byte[] scriptPubKey = switch(type) {
+            case P2PKH -> new byte[] { (byte)0x76, (byte)0xa9, (byte)0x14, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)0x88, (byte)0xac };
+            case P2SH -> new byte[] { (byte)0xa9, (byte)0x14, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, (byte)0x87 };
+            case P2WPKH -> new byte[] { 0x00, 0x14, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 };
+            case P2TR -> new byte[34];
+            default -> new byte[0];
+        };
+
+        if(type == P2TR) {
+            scriptPubKey[0] = 0x51;
+            scriptPubKey[1] = 0x20;
+        }
+
+        int payloadLength = getPayloadLength(type);
+        if(payloadLength > 0) {
+            MemorySegment.copy(segment, ValueLayout.JAVA_BYTE, offset + PAYLOAD_OFFSET, scriptPubKey, getPayloadStart(type), payloadLength);
+        }
+
+        return scriptPubKey;
+    }
+
+    private static byte getType(ScriptType scriptType) {
+        if(scriptType == ScriptType.P2PKH) {
+            return P2PKH;
+        } else if(scriptType == ScriptType.P2SH_P2WPKH) {
+            return P2SH;
+        } else if(scriptType == ScriptType.P2WPKH) {
+            return P2WPKH;
+        } else if(scriptType == ScriptType.P2TR) {
+            return P2TR;
+        }
+
+        return INVALID;
+    }
+
+    private static int getPayloadStart(byte type) {
+        return type == P2PKH ? 3 : 2;
+    }
+
+    private static int getPayloadLength(byte type) {
+        return switch(type) {
+            case P2PKH, P2SH, P2WPKH -> 20;
+            case P2TR -> 32;
+            default -> 0;
+        };
+    }
+
+    private static long getTxidPrefix(Sha256Hash txid) {
+        byte[] bytes = txid.getBytes();
+        long prefix = 0;
+        for(int i = 0; i < 8; i++) {
+            prefix = (prefix << 8) | (bytes[i] & 0xff);
+        }
+        return prefix;
+    }
+
+    private long getSet(long txidPrefix, long vout) {
+        long hash = txidPrefix ^ (vout * 0x9e3779b97f4a7c15L);
+        hash ^= hash >>> 29;
+        return Math.floorMod(hash, sets);
+    }
+
+    public long getCapacity() {
+        return sets * WAYS;
+    }
+
+    public CacheStats getStats() {
+        return new CacheStats(getCapacity(), hits.sum(), misses.sum(), inserts.sum(), evictions.sum());
+    }
+
+    //Waits for the lookups in progress on each stripe to finish before freeing the memory, with any later lookups seeing the cache closed
+    @Override
+    public void close() {
+        closed = true;
+        for(Object lock : locks) {
+            synchronized(lock) {
+                //wait for the current holder
+            }
+        }
+        arena.close();
+    }
+
+    public record CacheStats(long capacity, long hits, long misses, long inserts, long evictions) {
+        public double hitRate() {
+            return hits + misses == 0 ? 0d : hits / (double)(hits + misses);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("capacity %d outputs, %d hits, %d misses (%.1f%% hit rate), %d inserts, %d evictions", capacity, hits, misses, hitRate() * 100, inserts, evictions);
+        }
+    }
+}
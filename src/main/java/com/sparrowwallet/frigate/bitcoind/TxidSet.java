@@ -0,0 +1,190 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+
+import java.util.ArrayList;
+import java.util.List;
+
+//An open addressing hash set of txids held as four longs each, so that a large mempool needs no object per entry
+//Uses linear probing, with entries shifted back on removal so that no tombstones are left behind
+class TxidSet {
+    private static final int WORDS = 4;
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] words;
+    private boolean[] used;
+    private int mask;
+    private int size;
+
+    public TxidSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public TxidSet(int expectedSize) {
+        allocate(getCapacity(expectedSize));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean add(Sha256Hash txid) {
+        byte[] bytes = txid.getBytes();
+        return add(getWord(bytes, 0), getWord(bytes, 1), getWord(bytes, 2), getWord(bytes, 3));
+    }
+
+    //Adds a txid given in hex, without creating a hash object
+    public boolean add(String txid) {
+        return add(getWord(txid, 0), getWord(txid, 1), getWord(txid, 2), getWord(txid, 3));
+    }
+
+    public boolean contains(Sha256Hash txid) {
+        byte[] bytes = txid.getBytes();
+        return find(getWord(bytes, 0), getWord(bytes, 1), getWord(bytes, 2), getWord(bytes, 3)) >= 0;
+    }
+
+    public boolean contains(String txid) {
+        return find(getWord(txid, 0), getWord(txid, 1), getWord(txid, 2), getWord(txid, 3)) >= 0;
+    }
+
+    public boolean remove(Sha256Hash txid) {
+        byte[] bytes = txid.getBytes();
+        int slot = find(getWord(bytes, 0), getWord(bytes, 1), getWord(bytes, 2), getWord(bytes, 3));
+        if(slot < 0) {
+            return false;
+        }
+
+        used[slot] = false;
+        size--;
+        //Moves each following entry in the probe sequence back into the gap, unless its home slot lies after the gap
+        int gap = slot;
+        for(int next = (gap + 1) & mask; used[next]; next = (next + 1) & mask) {
+            int home = getSlot(words[next * WORDS]);
+            if(((next - home) & mask) >= ((next - gap) & mask)) {
+                System.arraycopy(words, next * WORDS, words, gap * WORDS, WORDS);
+                used[gap] = true;
+                used[next] = false;
+                gap = next;
+            }
+        }
+
+        return true;
+    }
+
+    //Returns the txids in this set that are not in the other set
+    public List<Sha256Hash> getMissing(TxidSet other) {
+        List<Sha256Hash> missing = new ArrayList<>();
+        for(int slot = 0; slot < used.length; slot++) {
+            int offset = slot * WORDS;
+            if(used[slot] && other.find(words[offset], words[offset + 1], words[offset + 2], words[offset + 3]) < 0) {
+                byte[] bytes = new byte[WORDS * Long.BYTES];
+                for(int i = 0; i < WORDS; i++) {
+                    for(int j = 0; j < Long.BYTES; j++) {
+                        bytes[i * Long.BYTES + j] = (byte)(words[offset + i] >>> (56 - j * 8));
+                    }
+                }
+                missing.add(Sha256Hash.wrap(bytes));
+            }
+        }
+
+        return missing;
+    }
+
+    private boolean add(long w0, long w1, long w2, long w3) {
+        if(find(w0, w1, w2, w3) >= 0) {
+            return false;
+        }
+
+        if((size + 1) * 2L > used.length) {
+            resize(used.length * 2);
+        }
+
+        insert(w0, w1, w2, w3);
+        size++;
+        return true;
+    }
+
+    private void insert(long w0, long w1, long w2, long w3) {
+        int slot = getSlot(w0);
+        while(used[slot]) {
+            slot = (slot + 1) & mask;
+        }
+
+        int offset = slot * WORDS;
+        words[offset] = w0;
+        words[offset + 1] = w1;
+        words[offset + 2] = w2;
+        words[offset + 3] = w3;
+        used[slot] = true;
+    }
+
+    private int find(long w0, long w1, long w2, long w3) {
+        for(int slot = getSlot(w0); used[slot]; slot = (slot + 1) & mask) {
+            int offset = slot * WORDS;
+            if(words[offset] == w0 && words[offset + 1] == w1 && words[offset + 2] == w2 && words[offset + 3] == w3) {
+                return slot;
+            }
+        }
+
+        return -1;
+    }
+
+    private void resize(int capacity) {
+        long[] oldWords = words;
+        boolean[] oldUsed = used;
+        allocate(capacity);
+        for(int slot = 0; slot < oldUsed.length; slot++) {
+            if(oldUsed[slot]) {
+                int offset = slot * WORDS;
+                insert(oldWords[offset], oldWords[offset + 1], oldWords[offset + 2], oldWords[offset + 3]);
+            }
+        }
+    }
+
+    private void allocate(int capacity) {
+        words = new long[capacity * WORDS];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    //Mixes the first word so that all of its bits contribute to the slot
+    private int getSlot(long word) {
+        long hash = word * 0x9E3779B97F4A7C15L;
+        return (int)(hash ^ (hash >>> 32)) & mask;
+    }
+
+    private static int getCapacity(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < expectedSize * 2L) {
+            capacity <<= 1;
+        }
+
+        return capacity;
+    }
+
+    private static long getWord(byte[] bytes, int index) {
+        long word = 0;
+        for(int i = index * Long.BYTES; i < (index + 1) * Long.BYTES; i++) {
+            word = (word << 8) | (bytes[i] & 0xFF);
+        }
+
+        return word;
+    }
+
+    private static long getWord(String hex, int index) {
+        if(hex.length() != WORDS * Long.BYTES * 2) {
+            throw new IllegalArgumentException("Invalid txid " + hex);
+        }
+
+        long word = 0;
+        for(int i = index * 16; i < (index + 1) * 16; i++) {
+            int digit = Character.digit(hex.charAt(i), 16);
+            if(digit < 0) {
+                throw new IllegalArgumentException("Invalid txid " + hex);
+            }
+            word = (word << 4) | digit;
+        }
+
+        return word;
+    }
+}
@@ -0,0 +1,253 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+//A minimal ZMTP 3.0 SUB socket for the notifications published by Bitcoin Core, using the NULL mechanism over TCP
+//Each Bitcoin Core message has three frames, the topic, the body and a little endian sequence number counted separately for each topic
+//A gap is reported whenever messages may have been missed, on connecting and disconnecting as well as on a skipped sequence number
+class ZmqSubscriber {
+    private static final Logger log = LoggerFactory.getLogger(ZmqSubscriber.class);
+
+    static final int FLAG_MORE = 0x01;
+    static final int FLAG_LONG = 0x02;
+    static final int FLAG_COMMAND = 0x04;
+    private static final int GREETING_SIZE = 64;
+    private static final int MAX_FRAME_SIZE = 64 * 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+    private static final long RECONNECT_MILLIS = 5000;
+
+    private final String host;
+    private final int port;
+    private final List<String> topics;
+    private final Listener listener;
+    private final Map<String, Long> lastSequences = new HashMap<>();
+    private volatile Socket socket;
+    private volatile boolean connected;
+    private volatile boolean closed;
+
+    public ZmqSubscriber(String endpoint, List<String> topics, Listener listener) {
+        URI uri = URI.create(endpoint);
+        if(!"tcp".equals(uri.getScheme()) || uri.getHost() == null || uri.getPort() < 0) {
+            throw new IllegalArgumentException("Invalid ZMQ endpoint " + endpoint + ", expected tcp://host:port");
+        }
+
+        this.host = uri.getHost();
+        this.port = uri.getPort();
+        this.topics = topics;
+        this.listener = listener;
+    }
+
+    public void start() {
+        Thread thread = new Thread(this::run, "ZmqSubscriber");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    public void close() {
+        closed = true;
+        Socket current = socket;
+        if(current != null) {
+            try {
+                current.close();
+            } catch(IOException e) {
+                //ignore
+            }
+        }
+    }
+
+    private void run() {
+        boolean warned = false;
+        while(!closed) {
+            try(Socket current = new Socket()) {
+                socket = current;
+                current.setKeepAlive(true);
+                current.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(current.getInputStream()));
+                OutputStream out = new BufferedOutputStream(current.getOutputStream());
+
+                handshake(in, out, "SUB");
+                for(String topic : topics) {
+                    byte[] topicBytes = topic.getBytes(StandardCharsets.UTF_8);
+                    byte[] subscription = new byte[topicBytes.length + 1];
+                    subscription[0] = 1;
+                    System.arraycopy(topicBytes, 0, subscription, 1, topicBytes.length);
+                    writeFrame(out, 0, subscription);
+                }
+                out.flush();
+
+                connected = true;
+                warned = false;
+                lastSequences.clear();
+                log.info("Subscribed to ZMQ notifications at " + host + ":" + port);
+                notifyGap();
+
+                while(!closed) {
+                    List<byte[]> frames = readMessage(in);
+                    if(frames.size() >= 2) {
+                        String topic = new String(frames.get(0), StandardCharsets.UTF_8);
+                        if(frames.size() >= 3 && frames.get(2).length == 4) {
+                            long sequence = getSequence(frames.get(2));
+                            Long lastSequence = lastSequences.put(topic, sequence);
+                            if(lastSequence != null && sequence != ((lastSequence + 1) & 0xFFFFFFFFL)) {
+                                notifyGap();
+                            }
+                        }
+
+                        //A notification that cannot be handled is treated as missed, without dropping the connection
+                        try {
+                            listener.message(topic, frames.get(1));
+                        } catch(RuntimeException e) {
+                            log.error("Error handling ZMQ " + topic + " notification", e);
+                            notifyGap();
+                        }
+                    }
+                }
+            } catch(IOException e) {
+                if(!closed && !warned) {
+                    log.warn("ZMQ notifications at " + host + ":" + port + " are not available, polling instead (" + e.getMessage() + ")");
+                    warned = true;
+                }
+            } finally {
+                if(connected) {
+                    connected = false;
+                    notifyGap();
+                }
+            }
+
+            if(!closed) {
+                try {
+                    Thread.sleep(RECONNECT_MILLIS);
+                } catch(InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private void notifyGap() {
+        try {
+            listener.gap();
+        } catch(RuntimeException e) {
+            log.error("Error handling ZMQ notification gap", e);
+        }
+    }
+
+    //Exchanges greetings for the NULL mechanism followed by READY commands declaring the socket types
+    static void handshake(DataInputStream in, OutputStream out, String socketType) throws IOException {
+        byte[] greeting = new byte[GREETING_SIZE];
+        greeting[0] = (byte)0xFF;
+        greeting[9] = 0x7F;
+        greeting[10] = 3;
+        byte[] mechanism = "NULL".getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(mechanism, 0, greeting, 12, mechanism.length);
+        out.write(greeting);
+        out.flush();
+
+        byte[] peerGreeting = new byte[GREETING_SIZE];
+        in.readFully(peerGreeting);
+        if((peerGreeting[0] & 0xFF) != 0xFF || (peerGreeting[9] & 0x01) != 0x01 || peerGreeting[10] < 3) {
+            throw new IOException("Peer does not support ZMTP 3");
+        }
+        if(!new String(peerGreeting, 12, 20, StandardCharsets.US_ASCII).trim().equals("NULL")) {
+            throw new IOException("Peer requires an unsupported security mechanism");
+        }
+
+        ByteArrayOutputStream ready = new ByteArrayOutputStream();
+        writeShortString(ready, "READY");
+        writeShortString(ready, "Socket-Type");
+        byte[] socketTypeBytes = socketType.getBytes(StandardCharsets.US_ASCII);
+        new DataOutputStream(ready).writeInt(socketTypeBytes.length);
+        ready.write(socketTypeBytes);
+        writeFrame(out, FLAG_COMMAND, ready.toByteArray());
+        out.flush();
+
+        Frame frame = readFrame(in);
+        if(!frame.isCommand() || !getCommandName(frame.body()).equals("READY")) {
+            throw new IOException("Expected READY command from peer");
+        }
+    }
+
+    //Reads the frames of the next message, skipping any commands between messages
+    static List<byte[]> readMessage(DataInputStream in) throws IOException {
+        List<byte[]> frames = new ArrayList<>();
+        while(true) {
+            Frame frame = readFrame(in);
+            if(frame.isCommand()) {
+                if(getCommandName(frame.body()).equals("ERROR")) {
+                    throw new IOException("Peer sent ERROR command");
+                }
+                continue;
+            }
+
+            frames.add(frame.body());
+            if(!frame.hasMore()) {
+                return frames;
+            }
+        }
+    }
+
+    static Frame readFrame(DataInputStream in) throws IOException {
+        int flags = in.readUnsignedByte();
+        long size = (flags & FLAG_LONG) != 0 ? in.readLong() : in.readUnsignedByte();
+        if(size < 0 || size > MAX_FRAME_SIZE) {
+            throw new IOException("Invalid frame size " + size);
+        }
+
+        byte[] body = new byte[(int)size];
+        in.readFully(body);
+        return new Frame(flags, body);
+    }
+
+    static void writeFrame(OutputStream out, int flags, byte[] body) throws IOException {
+        if(body.length > 255) {
+            out.write(flags | FLAG_LONG);
+            new DataOutputStream(out).writeLong(body.length);
+        } else {
+            out.write(flags);
+            out.write(body.length);
+        }
+        out.write(body);
+    }
+
+    private static void writeShortString(OutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.US_ASCII);
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String getCommandName(byte[] body) {
+        return body.length == 0 ? "" : new String(body, 1, Math.min(body[0] & 0xFF, body.length - 1), StandardCharsets.US_ASCII);
+    }
+
+    private static long getSequence(byte[] bytes) {
+        return (bytes[0] & 0xFFL) | (bytes[1] & 0xFFL) << 8 | (bytes[2] & 0xFFL) << 16 | (bytes[3] & 0xFFL) << 24;
+    }
+
+    record Frame(int flags, byte[] body) {
+        public boolean isCommand() {
+            return (flags & FLAG_COMMAND) != 0;
+        }
+
+        public boolean hasMore() {
+            return (flags & FLAG_MORE) != 0;
+        }
+    }
+
+    interface Listener {
+        void message(String topic, byte[] body);
+
+        void gap();
+    }
+}
@@ -16,6 +16,7 @@ import com.sparrowwallet.frigate.bitcoind.BlockStats;
 import com.sparrowwallet.frigate.bitcoind.FeeInfo;
 import com.sparrowwallet.frigate.bitcoind.MempoolInfo;
 import com.sparrowwallet.frigate.index.IndexQuerier;
+import com.sparrowwallet.frigate.index.ScanFilter;
 import com.sparrowwallet.frigate.index.TxEntry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -198,12 +199,14 @@ public class ElectrumServerService {
     }
 
     @JsonRpcMethod("blockchain.silentpayments.subscribe")
-    public String subscribeSilentPayments(@JsonRpcParam("scan_private_key") String scanPrivateKey, @JsonRpcParam("spend_public_key") String spendPublicKey, @JsonRpcParam("start") @JsonRpcOptional Long start) {
+    public String subscribeSilentPayments(@JsonRpcParam("scan_private_key") String scanPrivateKey, @JsonRpcParam("spend_public_key") String spendPublicKey, @JsonRpcParam("start") @JsonRpcOptional Long start,
+                                          @JsonRpcParam("dust_limit") @JsonRpcOptional Long dustLimit, @JsonRpcParam("unspent_only") @JsonRpcOptional Boolean unspentOnly) {
         SilentPaymentScanAddress silentPaymentScanAddress = getSilentPaymentScanAddress(scanPrivateKey, spendPublicKey);
-        requestHandler.subscribeSilentPaymentsAddress(silentPaymentScanAddress);
+        ScanFilter filter = ScanFilter.from(dustLimit, unspentOnly);
+        requestHandler.subscribeSilentPaymentsAddress(silentPaymentScanAddress, filter);
 
         int startHeight = getStartHeight(start);
-        indexQuerier.startHistoryScan(silentPaymentScanAddress, startHeight, null, new WeakReference<>(requestHandler));
+        indexQuerier.startHistoryScan(silentPaymentScanAddress, startHeight, null, filter, new WeakReference<>(requestHandler));
 
         return silentPaymentScanAddress.getAddress();
     }
@@ -94,8 +94,8 @@ public class RequestHandler implements Runnable, SubscriptionStatus {
         return scriptHashesSubscribed.contains(scriptHash);
     }
 
-    public void subscribeSilentPaymentsAddress(SilentPaymentScanAddress silentPaymentsScanAddress) {
-        silentPaymentsAddressesSubscribed.put(silentPaymentsScanAddress.toString(), new SilentPaymentAddressSubscription(silentPaymentsScanAddress));
+    public void subscribeSilentPaymentsAddress(SilentPaymentScanAddress silentPaymentsScanAddress, ScanFilter filter) {
+        silentPaymentsAddressesSubscribed.put(silentPaymentsScanAddress.toString(), new SilentPaymentAddressSubscription(silentPaymentsScanAddress, filter));
     }
 
     public void unsubscribeSilentPaymentsAddress(SilentPaymentScanAddress silentPaymentsScanAddress) {
@@ -148,7 +148,7 @@ public class RequestHandler implements Runnable, SubscriptionStatus {
     public void silentPaymentsBlocksIndexUpdate(SilentPaymentsBlocksIndexUpdate update) {
         for(SilentPaymentAddressSubscription subscription : silentPaymentsAddressesSubscribed.values()) {
             if(update.fromBlockHeight() > subscription.getHighestBlockHeight()) {
-                electrumServerService.getIndexQuerier().startHistoryScan(subscription.getAddress(), update.fromBlockHeight(), null, new WeakReference<>(this), false);
+                electrumServerService.getIndexQuerier().startBlockScan(subscription.getAddress(), update.fromBlockHeight(), subscription.getFilter(), new WeakReference<>(this));
             }
         }
     }
@@ -156,7 +156,7 @@ public class RequestHandler implements Runnable, SubscriptionStatus {
     @Subscribe
     public void silentPaymentsMempoolIndexAdded(SilentPaymentsMempoolIndexAdded added) {
         for(SilentPaymentAddressSubscription subscription : silentPaymentsAddressesSubscribed.values()) {
-            electrumServerService.getIndexQuerier().startMempoolScan(subscription.getAddress(), null, null, new WeakReference<>(this));
+            electrumServerService.getIndexQuerier().startMempoolScan(subscription.getAddress(), subscription.getFilter(), new WeakReference<>(this), added.getTxids());
         }
     }
 
@@ -2,23 +2,30 @@ package com.sparrowwallet.frigate.electrum;
 
 import com.sparrowwallet.drongo.protocol.Sha256Hash;
 import com.sparrowwallet.drongo.silentpayments.SilentPaymentScanAddress;
+import com.sparrowwallet.frigate.index.ScanFilter;
 
 import java.util.HashSet;
 import java.util.Set;
 
 public class SilentPaymentAddressSubscription {
     private final SilentPaymentScanAddress address;
+    private final ScanFilter filter;
     private int highestBlockHeight;
     private final Set<Sha256Hash> mempoolTxids = new HashSet<>();
 
-    public SilentPaymentAddressSubscription(SilentPaymentScanAddress address) {
+    public SilentPaymentAddressSubscription(SilentPaymentScanAddress address, ScanFilter filter) {
         this.address = address;
+        this.filter = filter;
     }
 
     public SilentPaymentScanAddress getAddress() {
         return address;
     }
 
+    public ScanFilter getFilter() {
+        return filter;
+    }
+
     public int getHighestBlockHeight() {
         return highestBlockHeight;
     }
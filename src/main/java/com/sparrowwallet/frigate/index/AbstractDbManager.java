@@ -7,6 +7,7 @@ import com.zaxxer.hikari.HikariDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.sql.DataSource;
 import java.io.File;
 import java.sql.Connection;
 import java.sql.DriverManager;
@@ -22,13 +23,30 @@ public abstract class AbstractDbManager implements DbManager {
     }
 
     protected HikariDataSource createReadDataSource(String connectionUrl, int maxPoolSize) {
-        HikariConfig config = new HikariConfig();
+        HikariConfig config = createReadConfig(maxPoolSize);
         config.setJdbcUrl(connectionUrl);
         config.setDriverClassName("org.duckdb.DuckDBDriver");
         config.addDataSourceProperty("access_mode", "READ_ONLY");
         config.addDataSourceProperty("allow_unsigned_extensions", "true");
         config.addDataSourceProperty("jdbc_stream_results", "true");
         config.addDataSourceProperty("scheduler_process_partial", "true");
+        config.setPoolName("DuckDB-ReadOnly-Pool");
+
+        log.debug("Creating read connection pool with max size: " + config.getMaximumPoolSize());
+        return new HikariDataSource(config);
+    }
+
+    protected HikariDataSource createReadDataSource(DataSource dataSource, int maxPoolSize) {
+        HikariConfig config = createReadConfig(maxPoolSize);
+        config.setDataSource(dataSource);
+        config.setPoolName("DuckDB-Shared-Pool");
+
+        log.debug("Creating shared read connection pool with max size: " + config.getMaximumPoolSize());
+        return new HikariDataSource(config);
+    }
+
+    private HikariConfig createReadConfig(int maxPoolSize) {
+        HikariConfig config = new HikariConfig();
         config.setConnectionInitSql(buildReadConnectionInitSql());
 
         config.setMaximumPoolSize(maxPoolSize);
@@ -40,24 +58,24 @@ public abstract class AbstractDbManager implements DbManager {
 
         config.setConnectionTestQuery("SELECT 1");
         config.setValidationTimeout(5000);
-        config.setPoolName("DuckDB-ReadOnly-Pool");
 
-        log.debug("Creating read connection pool with max size: " + config.getMaximumPoolSize());
-        return new HikariDataSource(config);
+        return config;
     }
 
-    private String buildReadConnectionInitSql() {
+    protected String buildReadConnectionInitSql() {
         Properties duckDbProperties = new Properties();
         duckDbProperties.setProperty("enable_progress_bar", "true");
         duckDbProperties.setProperty("enable_progress_bar_print", "false");
         if(Config.get().getDbThreads() != null) {
             duckDbProperties.setProperty("threads", Config.get().getDbThreads().toString());
         }
+        //Sealed segment files are listed by name and found in the segments directory
+        duckDbProperties.setProperty("file_search_path", Storage.getSegmentsDir().getAbsolutePath());
 
         StringBuilder sql = new StringBuilder();
         for(String propertyName : duckDbProperties.stringPropertyNames()) {
             String value = duckDbProperties.getProperty(propertyName);
-            sql.append("SET ").append(propertyName).append(" = '").append(value).append("'; ");
+            sql.append("SET ").append(propertyName).append(" = '").append(value.replace("'", "''")).append("'; ");
         }
 
         File secp256k1ExtensionFile = Storage.getSecp256k1ExtensionFile();
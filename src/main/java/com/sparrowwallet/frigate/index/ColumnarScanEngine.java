@@ -0,0 +1,280 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import com.sparrowwallet.frigate.io.ScanEngine;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.sql.Array;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.function.Consumer;
+
+//Scans tweak rows streamed out of DuckDB in the JVM, reading them in batches and computing output keys for each batch in parallel
+//The next batch is read while the previous one is computed, so the database and the kernel are kept busy at the same time
+class ColumnarScanEngine {
+    private static final Logger log = LoggerFactory.getLogger(ColumnarScanEngine.class);
+
+    static final int BATCH_SIZE = 4096;
+    private static final int TASK_SIZE = 128;
+    private static final int KEY_GROUP_SIZE = 256;
+
+    private final ScanKernel.Factory kernelFactory;
+    private final ForkJoinPool pool;
+
+    public ColumnarScanEngine(ScanKernel.Factory kernelFactory, int parallelism) {
+        this.kernelFactory = kernelFactory;
+        this.pool = new ForkJoinPool(parallelism, pool -> {
+            ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("IndexScanKernel-" + thread.getPoolIndex());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    //Returns the engine for the configured scan engine, or null to scan with the DuckDB extension functions
+    public static ColumnarScanEngine create(ScanEngine scanEngine, Integer threads) {
+        int parallelism = threads == null ? Runtime.getRuntime().availableProcessors() : threads;
+        if(scanEngine == ScanEngine.FFM) {
+            try {
+                Secp256k1Library library = Secp256k1Library.get();
+                return new ColumnarScanEngine((scanPrivateKey, spendPublicKey) -> new NativeScanKernel(library, scanPrivateKey, spendPublicKey), parallelism);
+            } catch(IllegalStateException e) {
+                log.warn("Could not load libsecp256k1, scanning with DuckDB instead", e);
+            }
+        }
+
+        return null;
+    }
+
+    //Returns the engine for scans of rows held in memory, which always uses libsecp256k1, or null if it cannot be loaded
+    public static ColumnarScanEngine createInMemory(Integer threads) {
+        return create(ScanEngine.FFM, threads);
+    }
+
+    public void close() {
+        pool.shutdownNow();
+    }
+
+    //Reads rows of txid, height, tweak_key, outputs, output_values and spent_mask from the result set, passing the entries matched by each key to its consumer in row order
+    public void scan(ResultSet resultSet, List<ScanKey> keys) throws SQLException {
+        List<ScanKernel> kernels = new ArrayList<>();
+        try(Arena arena = Arena.ofShared()) {
+            for(ScanKey key : keys) {
+                kernels.add(kernelFactory.create(key.scanPrivateKey(), key.spendPublicKey()));
+            }
+
+            Batch[] batches = new Batch[] { new Batch(arena, keys.size()), new Batch(arena, keys.size()) };
+            Batch pendingBatch = null;
+            ForkJoinTask<?> pendingTask = null;
+            try {
+                for(int i = 0; ; i++) {
+                    Batch batch = batches[i % 2];
+                    boolean more = batch.read(resultSet, keys);
+                    if(pendingTask != null) {
+                        pendingTask.join();
+                        pendingBatch.match(keys);
+                    }
+
+                    pendingBatch = batch;
+                    pendingTask = batch.size > 0 ? pool.submit(() -> compute(batch, kernels)) : null;
+                    if(!more) {
+                        break;
+                    }
+                }
+
+                if(pendingTask != null) {
+                    pendingTask.join();
+                    pendingBatch.match(keys);
+                }
+            } finally {
+                //The kernels and the batch memory must not be released while a batch is still being computed
+                if(pendingTask != null) {
+                    pendingTask.quietlyJoin();
+                }
+            }
+        } finally {
+            kernels.forEach(ScanKernel::close);
+        }
+    }
+
+    //Scans rows held in memory, such as those of newly indexed blocks, with the spent flags of each row given by position
+    //Keys are taken in groups so that the per key buffers stay small as the number of keys grows, and the rows of every key in a group are computed in parallel
+    public void scan(List<TweakRow> rows, long[] spentMasks, List<ScanKey> keys) {
+        try(Arena arena = Arena.ofShared()) {
+            Batch batch = new Batch(arena, Math.min(keys.size(), KEY_GROUP_SIZE));
+            for(int start = 0; start < keys.size(); start += KEY_GROUP_SIZE) {
+                List<ScanKey> group = keys.subList(start, Math.min(start + KEY_GROUP_SIZE, keys.size()));
+                List<ScanKernel> kernels = new ArrayList<>();
+                try {
+                    for(ScanKey key : group) {
+                        kernels.add(kernelFactory.create(key.scanPrivateKey(), key.spendPublicKey()));
+                    }
+
+                    for(int next = 0; next < rows.size(); ) {
+                        next = batch.read(rows, spentMasks, next, group);
+                        if(batch.size > 0) {
+                            pool.submit(() -> compute(batch, kernels)).join();
+                            batch.match(group);
+                        }
+                    }
+                } finally {
+                    kernels.forEach(ScanKernel::close);
+                }
+            }
+        }
+    }
+
+    private static void compute(Batch batch, List<ScanKernel> kernels) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for(int k = 0; k < kernels.size(); k++) {
+            ScanKernel kernel = kernels.get(k);
+            int[] rows = batch.keyRows[k];
+            long[] prefixes = batch.prefixes[k];
+            for(int from = 0; from < batch.keyRowCounts[k]; from += TASK_SIZE) {
+                int taskFrom = from;
+                int taskTo = Math.min(from + TASK_SIZE, batch.keyRowCounts[k]);
+                tasks.add(ForkJoinTask.adapt(() -> kernel.computeOutputPrefixes(batch.tweakKeys, rows, taskFrom, taskTo, prefixes)));
+            }
+        }
+
+        ForkJoinTask.invokeAll(tasks);
+    }
+
+    public record ScanKey(byte[] scanPrivateKey, byte[] spendPublicKey, int fromHeight, int toHeight, ScanFilter filter, Consumer<TxEntry> matches) {}
+
+    //Holds a batch of rows, with the tweak keys off heap where the kernel reads them and the output lists flattened into a single array
+    private static final class Batch {
+        private final MemorySegment tweakKeys;
+        private final byte[][] txids = new byte[BATCH_SIZE][];
+        private final int[] heights = new int[BATCH_SIZE];
+        private final int[] outputOffsets = new int[BATCH_SIZE + 1];
+        private long[] outputs = new long[BATCH_SIZE * 4];
+        private long[] outputValues = new long[BATCH_SIZE * 4];
+        private final int[][] keyRows;
+        private final int[] keyRowCounts;
+        private final long[][] prefixes;
+        private int size;
+
+        public Batch(Arena arena, int keyCount) {
+            this.tweakKeys = arena.allocate(BATCH_SIZE * ScanKernel.TWEAK_KEY_SIZE);
+            this.keyRows = new int[keyCount][BATCH_SIZE];
+            this.keyRowCounts = new int[keyCount];
+            this.prefixes = new long[keyCount][BATCH_SIZE];
+        }
+
+        //Fills the batch from the result set, returning false once the result set is exhausted
+        public boolean read(ResultSet resultSet, List<ScanKey> keys) throws SQLException {
+            clear();
+            while(size < BATCH_SIZE) {
+                if(!resultSet.next()) {
+                    return false;
+                }
+
+                byte[] tweakKey = resultSet.getBytes(3);
+                if(tweakKey.length != ScanKernel.TWEAK_KEY_SIZE) {
+                    continue;
+                }
+
+                txids[size] = resultSet.getBytes(1);
+                heights[size] = resultSet.getInt(2);
+                MemorySegment.copy(tweakKey, 0, tweakKeys, ValueLayout.JAVA_BYTE, size * ScanKernel.TWEAK_KEY_SIZE, tweakKey.length);
+
+                int offset = outputOffsets[size];
+                Array array = resultSet.getArray(4);
+                if(array != null) {
+                    Object[] values = (Object[])array.getArray();
+                    ensureCapacity(offset + values.length);
+                    for(Object value : values) {
+                        outputs[offset++] = ((Number)value).longValue();
+                    }
+                }
+                outputOffsets[size + 1] = offset;
+
+                //Rows indexed before output values were stored are given values that pass any dust limit, and are treated as unspent as in the SQL filter
+                int outputCount = offset - outputOffsets[size];
+                Array valuesArray = resultSet.getArray(5);
+                Object[] values = valuesArray == null ? null : (Object[])valuesArray.getArray();
+                boolean valued = values != null && values.length == outputCount;
+                for(int j = 0; j < outputCount; j++) {
+                    outputValues[outputOffsets[size] + j] = valued ? ((Number)values[j]).longValue() : Long.MAX_VALUE;
+                }
+                addRow(keys, valued ? resultSet.getLong(6) : 0L);
+            }
+
+            return true;
+        }
+
+        //Fills the batch from the rows starting at the given index, returning the index of the first row not read
+        public int read(List<TweakRow> rows, long[] spentMasks, int index, List<ScanKey> keys) {
+            clear();
+            for(; index < rows.size() && size < BATCH_SIZE; index++) {
+                TweakRow row = rows.get(index);
+                if(row.tweakKey().length != ScanKernel.TWEAK_KEY_SIZE) {
+                    continue;
+                }
+
+                txids[size] = row.txid();
+                heights[size] = row.height();
+                MemorySegment.copy(row.tweakKey(), 0, tweakKeys, ValueLayout.JAVA_BYTE, size * ScanKernel.TWEAK_KEY_SIZE, row.tweakKey().length);
+
+                int offset = outputOffsets[size];
+                ensureCapacity(offset + row.outputs().length);
+                System.arraycopy(row.outputs(), 0, outputs, offset, row.outputs().length);
+                System.arraycopy(row.outputValues(), 0, outputValues, offset, row.outputs().length);
+                outputOffsets[size + 1] = offset + row.outputs().length;
+                addRow(keys, spentMasks[index]);
+            }
+
+            return index;
+        }
+
+        private void clear() {
+            size = 0;
+            Arrays.fill(keyRowCounts, 0);
+        }
+
+        private void ensureCapacity(int length) {
+            if(length > outputs.length) {
+                outputs = Arrays.copyOf(outputs, Math.max(outputs.length * 2, length));
+                outputValues = Arrays.copyOf(outputValues, outputs.length);
+            }
+        }
+
+        //Lists the row just read for each key whose height range and filter it falls within
+        private void addRow(List<ScanKey> keys, long spentMask) {
+            for(int k = 0; k < keys.size(); k++) {
+                ScanKey key = keys.get(k);
+                if(heights[size] >= key.fromHeight() && heights[size] <= key.toHeight() &&
+                        (key.filter().isEmpty() || key.filter().matches(outputValues, outputOffsets[size], outputOffsets[size + 1], spentMask))) {
+                    keyRows[k][keyRowCounts[k]++] = size;
+                }
+            }
+            size++;
+        }
+
+        public void match(List<ScanKey> keys) {
+            for(int k = 0; k < keys.size(); k++) {
+                for(int i = 0; i < keyRowCounts[k]; i++) {
+                    int row = keyRows[k][i];
+                    long prefix = prefixes[k][row];
+                    for(int j = outputOffsets[row]; j < outputOffsets[row + 1]; j++) {
+                        if(outputs[j] == prefix && prefix != 0L) {
+                            keys.get(k).matches().accept(new TxEntry(heights[row], 0, Utils.bytesToHex(txids[row])));
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+    }
+}
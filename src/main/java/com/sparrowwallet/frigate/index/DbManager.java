@@ -11,6 +11,14 @@ public interface DbManager {
     void close();
     boolean isShutdown();
 
+    default int getReadReplicas() {
+        return 1;
+    }
+
+    default <T> T executeRead(int replica, ReadOperation<T> operation) throws SQLException, InterruptedException {
+        return executeRead(operation);
+    }
+
     @FunctionalInterface
     public interface ReadOperation<T> {
         T execute(Connection connection) throws SQLException;
@@ -0,0 +1,169 @@
+package com.sparrowwallet.frigate.index;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.SubscriptionStatus;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.duckdb.DuckDBPreparedStatement;
+import org.duckdb.QueryProgress;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+//Tracks a running history scan, pushing a page of results as soon as it fills or once the first pending result reaches the flush deadline
+//All scans share a single scheduler thread, so the cost of monitoring does not grow with the number of concurrent scans
+//Pages are posted while holding the lock, so that those posted from the scan and scheduler threads arrive in order and never after the scan finishes
+class HistoryScan {
+    private static final Logger log = LoggerFactory.getLogger(HistoryScan.class);
+
+    private static final long FLUSH_DEADLINE_MILLIS = 100;
+    private static final long CHECK_INTERVAL_MILLIS = 1000;
+    private static final int PROGRESS_INTERVAL_CHECKS = 5;
+
+    private static final ScheduledThreadPoolExecutor scheduler = createScheduler();
+
+    private final DuckDBPreparedStatement statement;
+    private final SilentPaymentsSubscription subscription;
+    private final WeakReference<SubscriptionStatus> subscriptionStatusRef;
+    private final BooleanSupplier cancelled;
+    private final int pageSize;
+
+    private final List<TxEntry> pending = new ArrayList<>();
+    private long rowsProcessedStart;
+    private int checks;
+    private boolean finished;
+    private ScheduledFuture<?> checkFuture;
+    private ScheduledFuture<?> flushFuture;
+
+    public HistoryScan(DuckDBPreparedStatement statement, SilentPaymentsSubscription subscription, WeakReference<SubscriptionStatus> subscriptionStatusRef, BooleanSupplier cancelled, int pageSize) {
+        this.statement = statement;
+        this.subscription = subscription;
+        this.subscriptionStatusRef = subscriptionStatusRef;
+        this.cancelled = cancelled;
+        this.pageSize = pageSize;
+    }
+
+    private static ScheduledThreadPoolExecutor createScheduler() {
+        ScheduledThreadPoolExecutor executor = new ScheduledThreadPoolExecutor(1, r -> {
+            ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("IndexQueryProgress-%d").build();
+            Thread t = namedThreadFactory.newThread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        executor.setRemoveOnCancelPolicy(true);
+        return executor;
+    }
+
+    //Cancels a query on the shared scheduler once it is no longer wanted, for scans that collect their results without a HistoryScan
+    static ScheduledFuture<?> scheduleCancellation(DuckDBPreparedStatement statement, BooleanSupplier cancelled) {
+        return scheduler.scheduleWithFixedDelay(() -> {
+            if(cancelled.getAsBoolean()) {
+                try {
+                    statement.cancel();
+                } catch(SQLException e) {
+                    log.debug("Error cancelling query", e);
+                }
+            }
+        }, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void start() {
+        checkFuture = scheduler.scheduleWithFixedDelay(this::check, CHECK_INTERVAL_MILLIS, CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void add(TxEntry entry) {
+        pending.add(entry);
+        if(pending.size() >= pageSize) {
+            post(drain());
+        } else if(pending.size() == 1) {
+            flushFuture = scheduler.schedule(this::flush, FLUSH_DEADLINE_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    //Stops monitoring the scan and returns the results not yet pushed
+    public synchronized List<TxEntry> finish() {
+        finished = true;
+        if(checkFuture != null) {
+            checkFuture.cancel(false);
+        }
+
+        return drain();
+    }
+
+    private synchronized void flush() {
+        if(finished || pending.isEmpty()) {
+            return;
+        }
+
+        post(drain());
+    }
+
+    private void check() {
+        if(cancelled.getAsBoolean()) {
+            try {
+                statement.cancel();
+            } catch(SQLException e) {
+                log.debug("Error cancelling query", e);
+            }
+            checkFuture.cancel(false);
+            return;
+        }
+
+        //Posts progress periodically while no results are found
+        synchronized(this) {
+            if(finished || ++checks % PROGRESS_INTERVAL_CHECKS != 0 || !pending.isEmpty()) {
+                return;
+            }
+
+            try {
+                QueryProgress queryProgress = statement.getQueryProgress();
+                if(queryProgress.getRowsProcessed() != queryProgress.getTotalRowsToProcess()) {
+                    post(new ArrayList<>());
+                }
+            } catch(SQLException e) {
+                log.error("Error getting query progress", e);
+            }
+        }
+    }
+
+    private List<TxEntry> drain() {
+        if(flushFuture != null) {
+            flushFuture.cancel(false);
+            flushFuture = null;
+        }
+
+        List<TxEntry> page = new ArrayList<>(pending);
+        pending.clear();
+        return page;
+    }
+
+    private void post(List<TxEntry> page) {
+        Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, getProgress(), page, subscriptionStatusRef.get()));
+    }
+
+    private synchronized double getProgress() {
+        try {
+            QueryProgress queryProgress = statement.getQueryProgress();
+            if(rowsProcessedStart == 0L && queryProgress.getRowsProcessed() > 0) {
+                rowsProcessedStart = queryProgress.getRowsProcessed();
+            }
+            if(rowsProcessedStart > 0L && queryProgress.getTotalRowsToProcess() > rowsProcessedStart) {
+                return (queryProgress.getRowsProcessed() - rowsProcessedStart) / (double)(queryProgress.getTotalRowsToProcess() - rowsProcessedStart);
+            }
+        } catch(SQLException e) {
+            log.error("Error getting query progress", e);
+        }
+
+        return 0.0d;
+    }
+}
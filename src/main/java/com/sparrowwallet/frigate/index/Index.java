@@ -8,12 +8,14 @@ import com.sparrowwallet.drongo.wallet.BlockTransaction;
 import com.sparrowwallet.frigate.ConfigurationException;
 import com.sparrowwallet.frigate.Frigate;
 import com.sparrowwallet.frigate.SubscriptionStatus;
-import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
 import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
 import com.sparrowwallet.frigate.io.Config;
+import com.sparrowwallet.frigate.io.DbAccessMode;
+import com.sparrowwallet.frigate.io.ScanEngine;
 import com.sparrowwallet.frigate.io.Storage;
+import org.duckdb.DuckDBAppender;
+import org.duckdb.DuckDBConnection;
 import org.duckdb.DuckDBPreparedStatement;
-import org.duckdb.QueryProgress;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -22,55 +24,146 @@ import java.lang.ref.WeakReference;
 import java.sql.*;
 import java.util.*;
 import java.util.concurrent.*;
-import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
 
 public class Index {
     private static final Logger log = LoggerFactory.getLogger(Index.class);
     public static final String DEFAULT_DB_FILENAME = "frigate.duckdb";
-    private static final String TWEAK_TABLE = "tweak";
+    static final String TWEAK_TABLE = "tweak";
+    private static final String TWEAK_STAGING_TABLE = "tweak_staging";
+    private static final String TWEAK_OUTPUT_STAGING_TABLE = "tweak_output_staging";
+    private static final String PREVOUT_TABLE = "prevout";
+    private static final String PREVOUT_STAGING_TABLE = "prevout_staging";
+    private static final byte PREVOUT_INELIGIBLE = 0;
+    private static final byte PREVOUT_P2PKH = 1;
+    private static final byte PREVOUT_P2SH = 2;
+    private static final byte PREVOUT_P2WPKH = 3;
+    private static final byte PREVOUT_P2TR = 4;
+    static final String SPENT_OUTPUT_TABLE = "spent_output";
+    private static final int SPENT_OUTPUT_APPLY_ROWS = 1000000;
+    private static final String TWEAK_COMPACTION_TABLE = "tweak_compaction";
+    private static final long COMPACTION_INTERVAL_MINUTES = 30;
+    private static final int PREVOUT_QUERY_SIZE = 2000;
     public static final int HISTORY_PAGE_SIZE = 100;
+    private static final int SCAN_CHUNKS_PER_REPLICA = 4;
+    private static final int MAX_RECENT_ROWS = 100000;
 
     private final DbManager dbManager;
+    private final ExecutorService scanChunkExecutor;
+    private final ColumnarScanEngine columnarScanEngine;
+    private final ColumnarScanEngine recentScanEngine;
+    private final Deque<RecentBlocks> recentBlocks = new ArrayDeque<>();
+    private final ScheduledExecutorService compactionExecutor;
+    private final TweakSegments tweakSegments;
+    private final int segmentBlocks;
     private int lastBlockIndexed = -1;
+    private final AtomicInteger pendingSpentOutputs = new AtomicInteger();
 
-    public Index(int startHeight, boolean inMemory) {
+    public Index(int startHeight) {
         lastBlockIndexed = Math.max(lastBlockIndexed, startHeight - 1);
 
-        if(inMemory) {
-            dbManager = new MemoryDbManager();
+        String dbUrl = Config.get().getDbUrl();
+        List<String> readDbUrls = Config.get().getReadDbUrls();
+        if(dbUrl != null && readDbUrls != null && !readDbUrls.isEmpty()) {
+            dbManager = new ScalingDbManager(dbUrl, readDbUrls);
         } else {
-            String dbUrl = Config.get().getDbUrl();
-            List<String> readDbUrls = Config.get().getReadDbUrls();
-            if(dbUrl != null && readDbUrls != null && !readDbUrls.isEmpty()) {
-                dbManager = new ScalingDbManager(dbUrl, readDbUrls);
-            } else if(dbUrl == null) {
+            if(dbUrl == null) {
                 File dbFile = new File(Storage.getFrigateDbDir(), DEFAULT_DB_FILENAME);
-                dbManager = new SingleDbManager(DbManager.DB_PREFIX + dbFile.getAbsolutePath());
-            } else {
-                dbManager = new SingleDbManager(dbUrl);
+                dbUrl = DbManager.DB_PREFIX + dbFile.getAbsolutePath();
+            }
+
+            DbAccessMode dbAccessMode = Config.get().getDbAccessMode();
+            if(dbAccessMode == null) {
+                dbAccessMode = DbAccessMode.SHARED;
+                Config.get().setDbAccessMode(dbAccessMode);
             }
+
+            dbManager = dbAccessMode == DbAccessMode.SHARED ? new SharedDbManager(dbUrl) : new SingleDbManager(dbUrl);
+        }
+
+        //Scans are split into height ranges and run concurrently when there is more than one replica to read from
+        if(dbManager.getReadReplicas() > 1) {
+            scanChunkExecutor = Executors.newFixedThreadPool(dbManager.getReadReplicas(), r -> {
+                ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("IndexScanChunk-%d").build();
+                Thread t = namedThreadFactory.newThread(r);
+                t.setDaemon(true);
+                return t;
+            });
+        } else {
+            scanChunkExecutor = null;
+        }
+
+        ScanEngine scanEngine = Config.get().getScanEngine();
+        if(scanEngine == null) {
+            scanEngine = ScanEngine.DUCKDB;
+            Config.get().setScanEngine(scanEngine);
         }
+        columnarScanEngine = ColumnarScanEngine.create(scanEngine, Config.get().getDbThreads());
+        //Newly indexed blocks are scanned in the JVM as their rows are already held in memory, with libsecp256k1 when the tables are scanned with DuckDB
+        //Without it they are scanned from the tables like any other blocks
+        recentScanEngine = columnarScanEngine != null ? columnarScanEngine : ColumnarScanEngine.createInMemory(Config.get().getDbThreads());
+
+        //Sealed segments are always read when listed, while new ones are only sealed when a segment size is configured
+        tweakSegments = new TweakSegments(Storage.getSegmentsDir());
+        segmentBlocks = Config.get().getSegmentBlocks() == null ? 0 : Config.get().getSegmentBlocks();
 
         try {
             dbManager.executeWrite(connection -> {
                 try(Statement stmt = connection.createStatement()) {
-                    return stmt.execute("CREATE TABLE IF NOT EXISTS " + TWEAK_TABLE + " (txid BLOB NOT NULL, height INTEGER NOT NULL, tweak_key BLOB NOT NULL, outputs BIGINT[])");
+                    createTables(stmt);
+                    try(ResultSet resultSet = stmt.executeQuery("SELECT COUNT(*) FROM " + SPENT_OUTPUT_TABLE)) {
+                        pendingSpentOutputs.set(resultSet.next() ? resultSet.getInt(1) : 0);
+                    }
+                    createPrevoutTable(stmt);
+                    return true;
                 }
             });
         } catch(Exception e) {
             throw new ConfigurationException("Error initialising index", e);
         }
+
+        compactionExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("IndexCompaction-%d").build();
+            Thread t = namedThreadFactory.newThread(r);
+            t.setDaemon(true);
+            return t;
+        });
+        compactionExecutor.scheduleWithFixedDelay(this::compact, COMPACTION_INTERVAL_MINUTES, COMPACTION_INTERVAL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    static void createTables(Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE IF NOT EXISTS " + TWEAK_TABLE + " (txid BLOB NOT NULL, height INTEGER NOT NULL, tweak_key BLOB NOT NULL, outputs BIGINT[])");
+        //Columns added after the initial schema, which are empty for rows indexed before they were added
+        statement.execute("ALTER TABLE " + TWEAK_TABLE + " ADD COLUMN IF NOT EXISTS output_values BIGINT[]");
+        statement.execute("ALTER TABLE " + TWEAK_TABLE + " ADD COLUMN IF NOT EXISTS output_vout_mask BIGINT");
+        statement.execute("ALTER TABLE " + TWEAK_TABLE + " ADD COLUMN IF NOT EXISTS spent_mask BIGINT DEFAULT 0");
+        statement.execute("ALTER TABLE " + TWEAK_TABLE + " ADD COLUMN IF NOT EXISTS spent_height INTEGER");
+        statement.execute("CREATE TABLE IF NOT EXISTS " + SPENT_OUTPUT_TABLE + " (height INTEGER NOT NULL, txid BLOB NOT NULL, vout INTEGER NOT NULL, spent_height INTEGER NOT NULL)");
+        TweakSegments.createTables(statement);
     }
 
     public void close() {
+        compactionExecutor.shutdownNow();
+        if(scanChunkExecutor != null) {
+            scanChunkExecutor.shutdownNow();
+        }
+        if(columnarScanEngine != null) {
+            columnarScanEngine.close();
+        }
+        if(recentScanEngine != null && recentScanEngine != columnarScanEngine) {
+            recentScanEngine.close();
+        }
         dbManager.close();
     }
 
     public int getLastBlockIndexed() {
         try {
             return dbManager.executeRead(connection -> {
-                try(PreparedStatement statement = connection.prepareStatement("SELECT MAX(height) from " + TWEAK_TABLE)) {
+                try(PreparedStatement statement = connection.prepareStatement("SELECT GREATEST(MAX(height), (SELECT MAX(end_height) FROM " + TweakSegments.SEGMENT_TABLE + ")) from " + TWEAK_TABLE)) {
                     ResultSet resultSet = statement.executeQuery();
                     return resultSet.next() ? Math.max(lastBlockIndexed, resultSet.getInt(1)) : lastBlockIndexed;
                 }
@@ -81,54 +174,286 @@ public class Index {
         }
     }
 
-    public void addToIndex(Map<BlockTransaction, byte[]> transactions) {
-        if(dbManager.isShutdown()) {
+    //Commits a group of consecutive blocks in a single transaction, applying prevout changes in height order
+    //A failed commit is rolled back and thrown, so that indexing stops and is retried from the last committed block
+    public void addToIndex(List<IndexedBlock> blocks, boolean updatePrevouts) {
+        if(dbManager.isShutdown() || blocks.isEmpty()) {
             return;
         }
 
-        int fromBlockHeight = lastBlockIndexed;
+        int fromBlockHeight = blocks.getFirst().height();
+        int toBlockHeight = blocks.getLast().height();
+        List<TweakRow> rows = new ArrayList<>();
+        for(IndexedBlock block : blocks) {
+            for(Map.Entry<BlockTransaction, byte[]> entry : block.eligibleTransactions().entrySet()) {
+                rows.add(TweakRow.fromTransaction(entry.getKey(), entry.getValue()));
+            }
+        }
+
+        List<SpentOutput> spentOutputs = new ArrayList<>();
         try {
-            lastBlockIndexed = dbManager.executeWrite(connection -> {
-                try(PreparedStatement statement = connection.prepareStatement("INSERT INTO " + TWEAK_TABLE + " VALUES (?, ?, ?, ?)")) {
-                    int blockHeight = -1;
-
-                    for(BlockTransaction blkTx : transactions.keySet()) {
-                        statement.setBytes(1, blkTx.getTransaction().getTxId().getBytes());
-                        statement.setInt(2, blkTx.getHeight());
-                        statement.setObject(3, transactions.get(blkTx));
-
-                        List<TransactionOutput> outputs = blkTx.getTransaction().getOutputs();
-                        List<Long> hashPrefixes = new ArrayList<>();
-                        for(TransactionOutput output : outputs) {
-                            if(ScriptType.P2TR.isScriptType(output.getScript())) {
-                                long hashPrefix = getHashPrefix(ScriptType.P2TR.getPublicKeyFromScript(output.getScript()).getPubKey(), 1);
-                                hashPrefixes.add(hashPrefix);
-                            }
+            dbManager.executeWrite(connection -> {
+                connection.setAutoCommit(false);
+                try {
+                    for(IndexedBlock block : blocks) {
+                        //Spent flags need the height each spent output was created at, given with the block or otherwise only known for outputs in the prevout table
+                        for(Map.Entry<HashIndex, Integer> entry : block.spentOutputHeights().entrySet()) {
+                            spentOutputs.add(new SpentOutput(entry.getKey(), entry.getValue(), block.height()));
                         }
-                        statement.setArray(4, connection.createArrayOf("BIGINT", hashPrefixes.toArray()));
-                        statement.addBatch();
+                        if(updatePrevouts) {
+                            updatePrevouts(connection, block.height(), block.createdOutputs(), block.spentOutputs(), spentOutputs);
+                        }
+                    }
+                    appendRows(connection, rows);
+                    addSpentOutputs(connection, spentOutputs);
+                    boolean applySpentOutputs = pendingSpentOutputs.get() + spentOutputs.size() >= SPENT_OUTPUT_APPLY_ROWS;
+                    if(applySpentOutputs) {
+                        applySpentOutputs(connection);
+                    }
+                    connection.commit();
+                    if(applySpentOutputs) {
+                        pendingSpentOutputs.set(0);
+                    } else {
+                        pendingSpentOutputs.addAndGet(spentOutputs.size());
+                    }
+                } catch(SQLException e) {
+                    connection.rollback();
+                    throw e;
+                } finally {
+                    connection.setAutoCommit(true);
+                }
+
+                if(!rows.isEmpty()) {
+                    log.info("Indexed " + rows.size() + " transactions to block height " + toBlockHeight);
+                }
+
+                return rows.size();
+            });
+
+            addRecentBlocks(fromBlockHeight, toBlockHeight, rows, getSpentMasks(rows, spentOutputs));
+            lastBlockIndexed = toBlockHeight;
+            if(!rows.isEmpty()) {
+                Frigate.getEventBus().post(new SilentPaymentsBlocksIndexUpdate(fromBlockHeight, toBlockHeight, rows.size()));
+            }
+        } catch(Exception e) {
+            throw new IllegalStateException("Error adding blocks " + fromBlockHeight + " to " + toBlockHeight + " to index", e);
+        }
+    }
 
-                        blockHeight = Math.max(blockHeight, blkTx.getHeight());
+    //Keeps the rows of the latest blocks for scanning new blocks without reading them back, as long as they follow on from the blocks already kept
+    private void addRecentBlocks(int fromBlockHeight, int toBlockHeight, List<TweakRow> rows, long[] spentMasks) {
+        if(recentScanEngine == null) {
+            return;
+        }
+
+        synchronized(recentBlocks) {
+            if(!recentBlocks.isEmpty() && recentBlocks.getLast().toHeight() != fromBlockHeight - 1) {
+                recentBlocks.clear();
+            }
+            recentBlocks.add(new RecentBlocks(fromBlockHeight, toBlockHeight, rows, spentMasks));
+
+            int recentRows = recentBlocks.stream().mapToInt(blocks -> blocks.rows().size()).sum();
+            while(recentBlocks.size() > 1 && recentRows > MAX_RECENT_ROWS) {
+                recentRows -= recentBlocks.removeFirst().rows().size();
+            }
+        }
+    }
+
+    //Returns the spent flags by output position of rows spent in the same group of blocks they were created in
+    private static long[] getSpentMasks(List<TweakRow> rows, List<SpentOutput> spentOutputs) {
+        long[] spentMasks = new long[rows.size()];
+        if(spentOutputs.isEmpty()) {
+            return spentMasks;
+        }
+
+        Map<Sha256Hash, Integer> rowIndexes = new HashMap<>();
+        for(int i = 0; i < rows.size(); i++) {
+            rowIndexes.put(Sha256Hash.wrap(rows.get(i).txid()), i);
+        }
+        for(SpentOutput spentOutput : spentOutputs) {
+            Integer index = rowIndexes.get(spentOutput.outpoint().getHash());
+            long vout = spentOutput.outpoint().getIndex();
+            if(index != null && rows.get(index).height() == spentOutput.height() && vout < ScanFilter.MAX_SPENT_POSITIONS && (rows.get(index).outputVoutMask() >>> vout & 1L) == 1L) {
+                spentMasks[index] |= 1L << Long.bitCount(rows.get(index).outputVoutMask() & ((1L << vout) - 1));
+            }
+        }
+
+        return spentMasks;
+    }
+
+    //Appends rows through staging tables, as the appender cannot write list columns, and builds the output lists in a single insert
+    static int appendRows(Connection connection, List<TweakRow> rows) throws SQLException {
+        int blockHeight = -1;
+        if(rows.isEmpty()) {
+            return blockHeight;
+        }
+
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + TWEAK_STAGING_TABLE + " (row_id INTEGER NOT NULL, txid BLOB NOT NULL, height INTEGER NOT NULL, tweak_key BLOB NOT NULL, output_vout_mask BIGINT NOT NULL)");
+            statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + TWEAK_OUTPUT_STAGING_TABLE + " (row_id INTEGER NOT NULL, output BIGINT NOT NULL, output_value BIGINT NOT NULL)");
+
+            DuckDBConnection duckDBConnection = connection.unwrap(DuckDBConnection.class);
+            try(DuckDBAppender rowAppender = duckDBConnection.createAppender("temp", "main", TWEAK_STAGING_TABLE);
+                DuckDBAppender outputAppender = duckDBConnection.createAppender("temp", "main", TWEAK_OUTPUT_STAGING_TABLE)) {
+                for(int rowId = 0; rowId < rows.size(); rowId++) {
+                    TweakRow row = rows.get(rowId);
+                    rowAppender.beginRow().append(rowId).append(row.txid()).append(row.height()).append(row.tweakKey()).append(row.outputVoutMask()).endRow();
+                    for(int i = 0; i < row.outputs().length; i++) {
+                        outputAppender.beginRow().append(rowId).append(row.outputs()[i]).append(row.outputValues()[i]).endRow();
                     }
+                    blockHeight = Math.max(blockHeight, row.height());
+                }
+            }
 
-                    statement.executeBatch();
-                    if(fromBlockHeight < 0) {
-                        log.info("Indexed " + transactions.size() + " mempool transactions");
-                    } else if(blockHeight > 0) {
-                        log.info("Indexed " + transactions.size() + " transactions to block height " + blockHeight);
+            //Both lists are aggregated over the same rows of each group, so the values stay aligned with the outputs
+            //Rows are inserted in height order, keeping the row groups clustered by height for zone map pruning
+            statement.execute("INSERT INTO " + TWEAK_TABLE + " (txid, height, tweak_key, outputs, output_values, output_vout_mask, spent_mask) SELECT t.txid, t.height, t.tweak_key, " +
+                    "COALESCE(list(o.output) FILTER (WHERE o.output IS NOT NULL), []), COALESCE(list(o.output_value) FILTER (WHERE o.output IS NOT NULL), []), t.output_vout_mask, 0 FROM " + TWEAK_STAGING_TABLE + " t LEFT JOIN " +
+                    TWEAK_OUTPUT_STAGING_TABLE + " o ON t.row_id = o.row_id GROUP BY t.row_id, t.txid, t.height, t.tweak_key, t.output_vout_mask ORDER BY t.height, t.row_id");
+            statement.execute("DELETE FROM " + TWEAK_STAGING_TABLE);
+            statement.execute("DELETE FROM " + TWEAK_OUTPUT_STAGING_TABLE);
+        }
+
+        return blockHeight;
+    }
+
+    //Spends are recorded as they are indexed and applied to the tweak table in bulk, as each application is a join against the whole table
+    private void addSpentOutputs(Connection connection, List<SpentOutput> spentOutputs) throws SQLException {
+        if(spentOutputs.isEmpty()) {
+            return;
+        }
+
+        try(DuckDBAppender appender = connection.unwrap(DuckDBConnection.class).createAppender(DuckDBConnection.DEFAULT_SCHEMA, SPENT_OUTPUT_TABLE)) {
+            for(SpentOutput spentOutput : spentOutputs) {
+                appender.beginRow().append(spentOutput.height()).append(spentOutput.outpoint().getHash().getBytes()).append((int)spentOutput.outpoint().getIndex()).append(spentOutput.spentHeight()).endRow();
+            }
+        }
+    }
+
+    //Sets the spent flags of the recorded spends in the tweak table, called once the index has caught up with the chain tip
+    public void applySpentOutputs() {
+        if(dbManager.isShutdown() || pendingSpentOutputs.get() == 0) {
+            return;
+        }
+
+        try {
+            dbManager.executeWrite(connection -> {
+                applySpentOutputs(connection);
+                pendingSpentOutputs.set(0);
+                return true;
+            });
+        } catch(Exception e) {
+            log.error("Error applying spent outputs", e);
+        }
+    }
+
+    //Each row is looked up by the height it was created at as well as its txid, the position of an output in the list is the number of listed outputs with a lower vout,
+    //and the flags of all spends of a row are combined before updating it
+    static void applySpentOutputs(Connection connection) throws SQLException {
+        TweakSegments.moveSealedSpentOutputs(connection);
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("UPDATE " + TWEAK_TABLE + " SET spent_mask = " + TWEAK_TABLE + ".spent_mask | s.spent_mask, spent_height = greatest(" + TWEAK_TABLE + ".spent_height, s.spent_height) FROM " +
+                    "(SELECT t.height, t.txid, bit_or(1::BIGINT << bit_count(t.output_vout_mask & ((1::BIGINT << s.vout) - 1))) AS spent_mask, max(s.spent_height) AS spent_height FROM " + SPENT_OUTPUT_TABLE + " s JOIN " +
+                    TWEAK_TABLE + " t ON t.height = s.height AND t.txid = s.txid WHERE s.vout < " + ScanFilter.MAX_SPENT_POSITIONS + " AND (t.output_vout_mask >> s.vout) & 1 = 1 GROUP BY t.height, t.txid) s " +
+                    "WHERE " + TWEAK_TABLE + ".height = s.height AND " + TWEAK_TABLE + ".txid = s.txid");
+            statement.execute("DELETE FROM " + SPENT_OUTPUT_TABLE);
+        }
+    }
+
+    //Keeps the row groups clustered by height so that height predicates prune them with zone maps, and reclaims the space of deleted rows
+    public void compact() {
+        if(dbManager.isShutdown()) {
+            return;
+        }
+
+        try {
+            if(segmentBlocks > 0) {
+                //Each segment is sealed in its own write, so that indexing and scans are not held up while a backlog of segments is sealed
+                List<TweakSegments.Segment> sealed = new ArrayList<>();
+                TweakSegments.Segment segment;
+                //Sealing applies the recorded spends, so the count is reset in the same write
+                while(!dbManager.isShutdown() && (segment = dbManager.executeWrite(connection -> {
+                    TweakSegments.Segment next = tweakSegments.sealNext(connection, segmentBlocks);
+                    if(next != null) {
+                        pendingSpentOutputs.set(0);
                     }
+                    return next;
+                })) != null) {
+                    sealed.add(segment);
+                }
+                if(!sealed.isEmpty()) {
+                    log.info("Sealed " + sealed.stream().mapToLong(TweakSegments.Segment::rows).sum() + " rows to height " + sealed.getLast().endHeight() + " in " + sealed.size() + " segments");
+                }
+            }
+
+            dbManager.executeWrite(connection -> {
+                if(segmentBlocks > 0) {
+                    tweakSegments.deleteUnlistedFiles(connection);
+                }
 
-                    return blockHeight;
+                RowGroupStats stats = getRowGroupStats(connection);
+                boolean rewritten = compact(connection, stats);
+                RowGroupStats compactedStats = rewritten ? getRowGroupStats(connection) : stats;
+                if(rewritten) {
+                    log.info("Compacted index from " + stats + " to " + compactedStats);
+                } else {
+                    log.debug("Index has " + compactedStats);
                 }
+                return compactedStats;
             });
+        } catch(Exception e) {
+            log.error("Error compacting index", e);
+        }
+    }
 
-            if(lastBlockIndexed <= 0) {
-                Frigate.getEventBus().post(new SilentPaymentsMempoolIndexAdded(transactions.keySet().stream().map(blkTx -> blkTx.getTransaction().getTxId()).collect(Collectors.toSet())));
-            } else {
-                Frigate.getEventBus().post(new SilentPaymentsBlocksIndexUpdate(fromBlockHeight + 1, lastBlockIndexed, transactions.size()));
+    //Rewrites out of order row groups in height order, then checkpoints to drop the emptied row groups and merge those with many deleted rows
+    static boolean compact(Connection connection, RowGroupStats stats) throws SQLException {
+        Integer rewriteHeight = stats.getRewriteHeight();
+        if(rewriteHeight != null) {
+            connection.setAutoCommit(false);
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TEMP TABLE " + TWEAK_COMPACTION_TABLE + " AS SELECT * FROM " + TWEAK_TABLE + " WHERE height >= " + rewriteHeight + " ORDER BY height");
+                statement.execute("DELETE FROM " + TWEAK_TABLE + " WHERE height >= " + rewriteHeight);
+                statement.execute("INSERT INTO " + TWEAK_TABLE + " SELECT * FROM " + TWEAK_COMPACTION_TABLE + " ORDER BY height");
+                statement.execute("DROP TABLE " + TWEAK_COMPACTION_TABLE);
+                connection.commit();
+            } catch(SQLException e) {
+                connection.rollback();
+                throw e;
+            } finally {
+                connection.setAutoCommit(true);
             }
-        } catch(Exception e) {
-            log.error("Error adding to index", e);
+        }
+
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("CHECKPOINT");
+        }
+
+        return rewriteHeight != null;
+    }
+
+    static RowGroupStats getRowGroupStats(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement()) {
+            long rows;
+            try(ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + TWEAK_TABLE)) {
+                rows = resultSet.next() ? resultSet.getLong(1) : 0;
+            }
+
+            long storedRows = 0;
+            List<RowGroupStats.HeightRange> heightRanges = new ArrayList<>();
+            try(ResultSet resultSet = statement.executeQuery("SELECT row_group_id, SUM(count), MIN(TRY_CAST(regexp_extract(stats, 'Min: (-?[0-9]+)', 1) AS INTEGER)), " +
+                    "MAX(TRY_CAST(regexp_extract(stats, 'Max: (-?[0-9]+)', 1) AS INTEGER)) FROM pragma_storage_info('" + TWEAK_TABLE + "') " +
+                    "WHERE column_name = 'height' AND segment_type <> 'VALIDITY' GROUP BY row_group_id ORDER BY row_group_id")) {
+                while(resultSet.next()) {
+                    storedRows += resultSet.getLong(2);
+                    int min = resultSet.getInt(3);
+                    if(!resultSet.wasNull()) {
+                        heightRanges.add(new RowGroupStats.HeightRange(min, resultSet.getInt(4)));
+                    }
+                }
+            }
+
+            return new RowGroupStats(rows, storedRows, heightRanges);
         }
     }
 
@@ -138,7 +463,30 @@ public class Index {
         }
 
         try {
+            lastBlockIndexed = Math.min(lastBlockIndexed, startHeight - 1);
+            synchronized(recentBlocks) {
+                recentBlocks.removeIf(blocks -> blocks.toHeight() >= startHeight);
+            }
             dbManager.executeWrite(connection -> {
+                removePrevouts(connection, startHeight);
+
+                //Sealed segments are only reached by reorgs deeper than the seal depth, and are returned to the hot segment first
+                int unsealed = tweakSegments.unseal(connection, startHeight);
+                if(unsealed > 0) {
+                    log.warn("Unsealed " + unsealed + " segments to remove blocks from height " + startHeight);
+                }
+                TweakSegments.removeSpentOutputs(connection, startHeight);
+
+                //Only the height of the latest spend is kept, so rows spent in a removed block are treated as entirely unspent
+                try(PreparedStatement statement = connection.prepareStatement("UPDATE " + TWEAK_TABLE + " SET spent_mask = 0, spent_height = NULL WHERE spent_height >= ?")) {
+                    statement.setInt(1, startHeight);
+                    statement.execute();
+                }
+                try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + SPENT_OUTPUT_TABLE + " WHERE spent_height >= ?")) {
+                    statement.setInt(1, startHeight);
+                    pendingSpentOutputs.addAndGet(-statement.executeUpdate());
+                }
+
                 try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + TWEAK_TABLE + " WHERE height >= ?")) {
                     statement.setInt(1, startHeight);
                     return statement.execute();
@@ -173,87 +521,291 @@ public class Index {
         }
     }
 
-    public List<TxEntry> getHistoryAsync(SilentPaymentScanAddress scanAddress, SilentPaymentsSubscription subscription, Integer startHeight, Integer endHeight, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
-        ConcurrentLinkedQueue<TxEntry> queue = new ConcurrentLinkedQueue<>();
-        AtomicLong rowsProcessedStart = new AtomicLong(0L);
+    //Looks up the scriptPubKeys of unspent outputs created by indexed blocks, returning only those found
+    public Map<HashIndex, byte[]> getPrevouts(Collection<HashIndex> outpoints) {
+        if(dbManager.isShutdown() || outpoints.isEmpty()) {
+            return Collections.emptyMap();
+        }
 
         try {
-            dbManager.executeRead(connection -> {
-                String sql = "SELECT txid, height FROM " + TWEAK_TABLE +
-                        " WHERE list_contains(outputs, hash_prefix_to_int(secp256k1_ec_pubkey_combine([?, secp256k1_ec_pubkey_create(secp256k1_tagged_sha256('BIP0352/SharedSecret', secp256k1_ec_pubkey_tweak_mul(tweak_key, ?) || int_to_big_endian(0)))]), 1))";
+            //Uses the write connection, as switching to read mode between block writes would reopen the database
+            return dbManager.executeWrite(connection -> getPrevouts(connection, outpoints));
+        } catch(Exception e) {
+            log.error("Error looking up prevouts", e);
+            return Collections.emptyMap();
+        }
+    }
+
+    static Map<HashIndex, byte[]> getPrevouts(Connection connection, Collection<HashIndex> outpoints) throws SQLException {
+        Map<Long, HashIndex> outpointKeys = new HashMap<>();
+        for(HashIndex outpoint : outpoints) {
+            outpointKeys.put(getOutpointKey(outpoint), outpoint);
+        }
 
-                if(startHeight != null) {
-                    sql += " AND height >= ?";
+        Map<HashIndex, byte[]> prevouts = new HashMap<>();
+        List<Long> keys = new ArrayList<>(outpointKeys.keySet());
+        for(int from = 0; from < keys.size(); from += PREVOUT_QUERY_SIZE) {
+            List<Long> chunk = keys.subList(from, Math.min(from + PREVOUT_QUERY_SIZE, keys.size()));
+            String sql = "SELECT outpoint, txid_check, script_type, script_key FROM " + PREVOUT_TABLE + " WHERE outpoint IN (" + chunk.stream().map(String::valueOf).collect(Collectors.joining(",")) + ")";
+            try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery(sql)) {
+                while(resultSet.next()) {
+                    HashIndex outpoint = outpointKeys.get(resultSet.getLong(1));
+                    if(outpoint != null && getTxidCheck(outpoint) == resultSet.getInt(2)) {
+                        prevouts.put(outpoint, getScriptPubKey(resultSet.getInt(3), resultSet.getBytes(4)));
+                    }
                 }
-                if(endHeight != null) {
-                    sql += " AND height <= ?";
+            }
+        }
+
+        return prevouts;
+    }
+
+    //Empties the prevout table when blocks are indexed without maintaining it, as outputs they spend would otherwise never be removed
+    public void clearPrevouts() {
+        if(dbManager.isShutdown()) {
+            return;
+        }
+
+        try {
+            int removed = dbManager.executeWrite(connection -> {
+                try(Statement statement = connection.createStatement()) {
+                    return statement.executeUpdate("DELETE FROM " + PREVOUT_TABLE);
                 }
+            });
+            if(removed > 0) {
+                log.info("Cleared " + removed + " unspent outputs from the prevout table, which is only maintained in the RAW and REST block fetch modes");
+            }
+        } catch(Exception e) {
+            log.error("Error clearing prevouts", e);
+        }
+    }
 
-                try(DuckDBPreparedStatement statement = connection.prepareStatement(sql).unwrap(DuckDBPreparedStatement.class)) {
-                    if(isUnsubscribed(scanAddress, subscriptionStatusRef)) {
-                        return false;
+    //Only eligible outputs are kept, as their script type and the 20 byte hash or 32 byte key the script is rebuilt from
+    //Tables that held every unspent output with its full script are dropped, and refilled as blocks are indexed
+    static void createPrevoutTable(Statement statement) throws SQLException {
+        try(ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM information_schema.columns WHERE table_name = '" + PREVOUT_TABLE + "' AND column_name = 'script_pub_key'")) {
+            if(resultSet.next() && resultSet.getInt(1) > 0) {
+                log.info("Dropping the prevout table to store only eligible outputs, spends of outputs it held will be looked up over RPC");
+                statement.execute("DROP TABLE " + PREVOUT_TABLE);
+            }
+        }
+
+        statement.execute("CREATE TABLE IF NOT EXISTS " + PREVOUT_TABLE + " (outpoint BIGINT PRIMARY KEY, txid_check INTEGER NOT NULL, height INTEGER NOT NULL, script_type TINYINT NOT NULL, script_key BLOB NOT NULL)");
+    }
+
+    //Outputs spent by the removed blocks are not restored, and are looked up over RPC if spent again
+    static void removePrevouts(Connection connection, int startHeight) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + PREVOUT_TABLE + " WHERE height >= ?")) {
+            statement.setInt(1, startHeight);
+            statement.execute();
+        }
+    }
+
+    //Adds the eligible outputs created by a block and removes the outputs it spends, so the table holds only unspent outputs
+    //Spent taproot outputs are added to the given list with the height they were created at, so their spent flags can be set in the tweak table
+    static int updatePrevouts(Connection connection, int height, Map<HashIndex, byte[]> createdOutputs, Collection<HashIndex> spentOutputs, List<SpentOutput> spentTaprootOutputs) throws SQLException {
+        Map<OutpointKey, HashIndex> spentKeys = new HashMap<>();
+        for(HashIndex spentOutput : spentOutputs) {
+            byte[] createdScriptPubKey = createdOutputs.get(spentOutput);
+            if(createdScriptPubKey != null) {
+                if(isTaprootScript(createdScriptPubKey)) {
+                    spentTaprootOutputs.add(new SpentOutput(spentOutput, height, height));
+                }
+            } else {
+                spentKeys.put(new OutpointKey(getOutpointKey(spentOutput), getTxidCheck(spentOutput)), spentOutput);
+            }
+        }
+
+        try(Statement statement = connection.createStatement()) {
+            //Rows are matched on the txid check as well as the key, so that a spend never removes another output sharing the key
+            List<OutpointKey> keys = new ArrayList<>(spentKeys.keySet());
+            for(int from = 0; from < keys.size(); from += PREVOUT_QUERY_SIZE) {
+                List<OutpointKey> chunk = keys.subList(from, Math.min(from + PREVOUT_QUERY_SIZE, keys.size()));
+                String values = chunk.stream().map(key -> "(" + key.outpoint() + "," + key.txidCheck() + ")").collect(Collectors.joining(","));
+                try(ResultSet resultSet = statement.executeQuery("DELETE FROM " + PREVOUT_TABLE + " USING (VALUES " + values + ") AS spent(outpoint, txid_check) WHERE " + PREVOUT_TABLE + ".outpoint = spent.outpoint AND " +
+                        PREVOUT_TABLE + ".txid_check = spent.txid_check RETURNING " + PREVOUT_TABLE + ".outpoint, " + PREVOUT_TABLE + ".txid_check, " + PREVOUT_TABLE + ".height, " + PREVOUT_TABLE + ".script_type")) {
+                    while(resultSet.next()) {
+                        HashIndex outpoint = spentKeys.get(new OutpointKey(resultSet.getLong(1), resultSet.getInt(2)));
+                        if(outpoint != null && resultSet.getInt(4) == PREVOUT_P2TR) {
+                            spentTaprootOutputs.add(new SpentOutput(outpoint, resultSet.getInt(3), height));
+                        }
                     }
+                }
+            }
 
-                    statement.setBytes(1, scanAddress.getSpendKey().getPubKey());
-                    statement.setBytes(2, scanAddress.getScanKey().getPrivKeyBytes());
-                    if(startHeight != null) {
-                        statement.setInt(3, startHeight);
+            if(createdOutputs.isEmpty()) {
+                return 0;
+            }
+
+            //Rows are appended to a staging table first, as the appender cannot skip rows that conflict with the primary key
+            statement.execute("CREATE TEMP TABLE IF NOT EXISTS " + PREVOUT_STAGING_TABLE + " AS SELECT * FROM " + PREVOUT_TABLE + " LIMIT 0");
+            int added = 0;
+            try(DuckDBAppender appender = connection.unwrap(DuckDBConnection.class).createAppender("temp", "main", PREVOUT_STAGING_TABLE)) {
+                for(Map.Entry<HashIndex, byte[]> entry : createdOutputs.entrySet()) {
+                    byte scriptType = getPrevoutType(entry.getValue());
+                    if(scriptType != PREVOUT_INELIGIBLE && !spentOutputs.contains(entry.getKey())) {
+                        byte[] scriptKey = Arrays.copyOfRange(entry.getValue(), getScriptKeyStart(scriptType), getScriptKeyStart(scriptType) + getScriptKeyLength(scriptType));
+                        appender.beginRow().append(getOutpointKey(entry.getKey())).append(getTxidCheck(entry.getKey())).append(height).append(scriptType).append(scriptKey).endRow();
+                        added++;
                     }
-                    if(endHeight != null) {
-                        statement.setInt(startHeight == null ? 3 : 4, endHeight);
+                }
+            }
+            statement.execute("INSERT OR IGNORE INTO " + PREVOUT_TABLE + " SELECT * FROM " + PREVOUT_STAGING_TABLE);
+            statement.execute("DELETE FROM " + PREVOUT_STAGING_TABLE);
+            return added;
+        }
+    }
+
+    private static boolean isTaprootScript(byte[] scriptBytes) {
+        return scriptBytes.length == 34 && scriptBytes[0] == 0x51 && scriptBytes[1] == 0x20;
+    }
+
+    private static byte getPrevoutType(byte[] scriptBytes) {
+        if(isTaprootScript(scriptBytes)) {
+            return PREVOUT_P2TR;
+        } else if(scriptBytes.length == 22 && scriptBytes[0] == 0x00 && scriptBytes[1] == 0x14) {
+            return PREVOUT_P2WPKH;
+        } else if(scriptBytes.length == 23 && scriptBytes[0] == (byte)0xa9 && scriptBytes[1] == 0x14 && scriptBytes[22] == (byte)0x87) {
+            return PREVOUT_P2SH;
+        } else if(scriptBytes.length == 25 && scriptBytes[0] == 0x76 && scriptBytes[1] == (byte)0xa9 && scriptBytes[2] == 0x14 && scriptBytes[23] == (byte)0x88 && scriptBytes[24] == (byte)0xac) {
+            return PREVOUT_P2PKH;
+        }
+
+        return PREVOUT_INELIGIBLE;
+    }
+
+    private static byte[] getScriptPubKey(int scriptType, byte[] scriptKey) {
+        byte[] scriptBytes = switch(scriptType) {
+            case PREVOUT_P2TR -> new byte[] { 0x51, 0x20 };
+            case PREVOUT_P2WPKH -> new byte[] { 0x00, 0x14 };
+            case PREVOUT_P2SH -> new byte[] { (byte)0xa9, 0x14, (byte)0x87 };
+            case PREVOUT_P2PKH -> new byte[] { 0x76, (byte)0xa9, 0x14, (byte)0x88, (byte)0xac };
+            default -> throw new IllegalStateException("Unknown prevout script type " + scriptType);
+        };
+
+        int keyStart = getScriptKeyStart(scriptType);
+        byte[] scriptPubKey = new byte[scriptBytes.length + scriptKey.length];
+        System.arraycopy(scriptBytes, 0, scriptPubKey, 0, keyStart);
+        System.arraycopy(scriptKey, 0, scriptPubKey, keyStart, scriptKey.length);
+        System.arraycopy(scriptBytes, keyStart, scriptPubKey, keyStart + scriptKey.length, scriptBytes.length - keyStart);
+        return scriptPubKey;
+    }
+
+    private static int getScriptKeyStart(int scriptType) {
+        return scriptType == PREVOUT_P2PKH ? 3 : 2;
+    }
+
+    private static int getScriptKeyLength(int scriptType) {
+        return scriptType == PREVOUT_P2TR ? 32 : 20;
+    }
+
+    record SpentOutput(HashIndex outpoint, int height, int spentHeight) {}
+
+    private record OutpointKey(long outpoint, int txidCheck) {}
+
+    private record RecentBlocks(int fromHeight, int toHeight, List<TweakRow> rows, long[] spentMasks) {}
+
+    private static long getOutpointKey(HashIndex outpoint) {
+        return getHashPrefix(outpoint.getHash().getBytes(), 0) ^ (outpoint.getIndex() * 0x9e3779b97f4a7c15L);
+    }
+
+    private static int getTxidCheck(HashIndex outpoint) {
+        byte[] txid = outpoint.getHash().getBytes();
+        return ((txid[8] & 0xff) << 24) | ((txid[9] & 0xff) << 16) | ((txid[10] & 0xff) << 8) | (txid[11] & 0xff);
+    }
+
+    public List<TxEntry> getHistoryAsync(SilentPaymentScanAddress scanAddress, SilentPaymentsSubscription subscription, Integer startHeight, Integer endHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        if(scanChunkExecutor != null) {
+            return getHistoryScattered(scanAddress, subscription, startHeight, endHeight, filter, subscriptionStatusRef);
+        }
+
+        List<TxEntry> history;
+
+        try {
+            history = executeScan(connection -> {
+                try(DuckDBPreparedStatement statement = columnarScanEngine == null ? prepareHistoryStatement(connection, scanAddress, startHeight, endHeight, filter) : prepareTweakStatement(connection, startHeight, endHeight, filter, filter.unspentOnly())) {
+                    if(isUnsubscribed(scanAddress, subscriptionStatusRef)) {
+                        return Collections.emptyList();
                     }
+
                     statement.setFetchSize(1);
 
-                    try(ScheduledThreadPoolExecutor queryProgressExecutor = new ScheduledThreadPoolExecutor(1, r -> {
-                        ThreadFactory namedThreadFactory = new ThreadFactoryBuilder().setNameFormat("IndexQueryProgress-%d").build();
-                        Thread t = namedThreadFactory.newThread(r);
-                        t.setDaemon(true);
-                        return t;
-                    })) {
-                        queryProgressExecutor.scheduleAtFixedRate(() -> {
-                            try {
-                                if(dbManager.isShutdown() || isUnsubscribed(scanAddress, subscriptionStatusRef)) {
-                                    statement.cancel();
-                                    queryProgressExecutor.shutdownNow();
-                                    return;
-                                }
-
-                                QueryProgress queryProgress = statement.getQueryProgress();
-                                if(queryProgress.getRowsProcessed() == queryProgress.getTotalRowsToProcess()) {
-                                    return;
-                                }
-
-                                double progress = 0.0d;
-                                if(rowsProcessedStart.get() == 0L && queryProgress.getRowsProcessed() > 0) {
-                                    rowsProcessedStart.set(queryProgress.getRowsProcessed());
-                                }
-                                if(rowsProcessedStart.get() > 0L) {
-                                    progress = (queryProgress.getRowsProcessed() - rowsProcessedStart.get()) / (double)(queryProgress.getTotalRowsToProcess() - rowsProcessedStart.get());
-                                }
-
-                                List<TxEntry> history = new ArrayList<>();
-                                TxEntry entry;
-                                while((entry = queue.poll()) != null) {
-                                    history.add(entry);
-                                    if(history.size() >= HISTORY_PAGE_SIZE) {
-                                        Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, progress, new ArrayList<>(history), subscriptionStatusRef.get()));
-                                        history.clear();
-                                    }
-                                }
-                                if(!history.isEmpty() || queryProgressExecutor.getTaskCount() % 5 == 0) {
-                                    Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, progress, new ArrayList<>(history), subscriptionStatusRef.get()));
-                                    history.clear();
-                                }
-                            } catch(SQLException e) {
-                                log.error("Error getting query progress", e);
+                    HistoryScan historyScan = new HistoryScan(statement, subscription, subscriptionStatusRef, () -> dbManager.isShutdown() || isUnsubscribed(scanAddress, subscriptionStatusRef), HISTORY_PAGE_SIZE);
+                    historyScan.start();
+                    List<TxEntry> remaining;
+                    try(ResultSet resultSet = statement.executeQuery()) {
+                        if(columnarScanEngine != null) {
+                            columnarScanEngine.scan(resultSet, List.of(getScanKey(scanAddress, startHeight, endHeight, filter, historyScan::add)));
+                        } else {
+                            while(resultSet.next()) {
+                                byte[] txid = resultSet.getBytes(1);
+                                int height = resultSet.getInt(2);
+                                historyScan.add(new TxEntry(height, 0, Utils.bytesToHex(txid)));
                             }
-                        }, 1, 1, TimeUnit.SECONDS);
+                        }
+                    } finally {
+                        remaining = historyScan.finish();
+                    }
+
+                    return remaining;
+                }
+            });
+        } catch(SQLTimeoutException e) {
+            if(e.getMessage().startsWith("INTERRUPT Error")) {
+                log.debug("Query cancelled", e);
+            } else {
+                log.error("Query timeout", e);
+            }
+            return Collections.emptyList();
+        } catch(Exception e) {
+            log.error("Error scanning index", e);
+            return Collections.emptyList();
+        }
 
-                        ResultSet resultSet = statement.executeQuery();
+        if(isUnsubscribed(scanAddress, subscriptionStatusRef)) {
+            return Collections.emptyList();
+        }
+
+        return new ArrayList<>(history);
+    }
+
+    //Scans for several addresses in a single pass over the table, so the cost of reading and decoding each row is shared between them
+    //Each address is only evaluated against rows in its own height range, and matches are pushed to its subscriber as they are found
+    public List<List<TxEntry>> getHistoryAsync(List<ScanRequest> requests) {
+        List<HistoryScan> historyScans = new ArrayList<>();
+        List<List<TxEntry>> histories = new ArrayList<>();
+        for(int i = 0; i < requests.size(); i++) {
+            histories.add(Collections.emptyList());
+        }
+
+        try {
+            executeScan(connection -> {
+                if(columnarScanEngine != null) {
+                    return scanShared(connection, requests, historyScans, histories);
+                }
+
+                String source = getTweakSource(connection, requests.stream().mapToInt(ScanRequest::getFromHeight).min().orElse(0), requests.stream().mapToInt(ScanRequest::getToHeight).max().orElse(Integer.MAX_VALUE),
+                        requests.stream().anyMatch(request -> request.filter().unspentOnly()));
+                try(DuckDBPreparedStatement statement = prepareSharedHistoryStatement(connection, source, requests)) {
+                    for(ScanRequest request : requests) {
+                        historyScans.add(new HistoryScan(statement, request.subscription(), request.subscriptionStatusRef(), () -> false, HISTORY_PAGE_SIZE));
+                    }
+
+                    //The shared query is only cancelled once no subscriber remains
+                    ScheduledFuture<?> cancellation = HistoryScan.scheduleCancellation(statement, () -> dbManager.isShutdown() ||
+                            requests.stream().allMatch(request -> isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef())));
+                    historyScans.forEach(HistoryScan::start);
+                    try(ResultSet resultSet = statement.executeQuery()) {
                         while(resultSet.next()) {
-                            byte[] txid = resultSet.getBytes(1);
-                            int height = resultSet.getInt(2);
-                            queue.offer(new TxEntry(height, 0, Utils.bytesToHex(txid)));
+                            ScanRequest request = requests.get(resultSet.getInt(1));
+                            if(!isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef())) {
+                                historyScans.get(resultSet.getInt(1)).add(new TxEntry(resultSet.getInt(3), 0, Utils.bytesToHex(resultSet.getBytes(2))));
+                            }
+                        }
+                    } finally {
+                        cancellation.cancel(false);
+                        for(int i = 0; i < historyScans.size(); i++) {
+                            histories.set(i, historyScans.get(i).finish());
                         }
                     }
                 }
@@ -266,26 +818,293 @@ public class Index {
             } else {
                 log.error("Query timeout", e);
             }
+            return requests.stream().<List<TxEntry>>map(request -> new ArrayList<>()).toList();
+        } catch(Exception e) {
+            log.error("Error scanning index", e);
+            return requests.stream().<List<TxEntry>>map(request -> new ArrayList<>()).toList();
+        }
+
+        List<List<TxEntry>> results = new ArrayList<>();
+        for(int i = 0; i < requests.size(); i++) {
+            ScanRequest request = requests.get(i);
+            results.add(isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef()) ? new ArrayList<>() : new ArrayList<>(histories.get(i)));
+        }
+
+        return results;
+    }
+
+    //Scans for many addresses in a single pass, joining each row against the keys of every address and returning the index of each matching address
+    static DuckDBPreparedStatement prepareSharedHistoryStatement(Connection connection, String source, List<ScanRequest> requests) throws SQLException {
+        StringBuilder keys = new StringBuilder();
+        for(int i = 0; i < requests.size(); i++) {
+            keys.append(i == 0 ? "" : ", ").append("(?, ?::BLOB, ?::BLOB, ?, ?, ?::BIGINT, ?::BOOLEAN)");
+        }
+
+        //The output filter is only evaluated when at least one address has one, and always before the EC computation
+        boolean filtered = requests.stream().anyMatch(request -> !request.filter().isEmpty());
+        String sql = "SELECT k.id, t.txid, t.height FROM " + source + " t, (VALUES " + keys + ") k(id, spend_key, scan_key, start_height, end_height, dust_limit, unspent_only)" +
+                " WHERE t.height >= ? AND t.height <= ? AND CASE WHEN t.height >= k.start_height AND t.height <= k.end_height" +
+                (filtered ? " AND " + ScanFilter.getCondition("t", "k.dust_limit", "k.unspent_only") : "") +
+                " THEN list_contains(t.outputs, hash_prefix_to_int(secp256k1_ec_pubkey_combine([k.spend_key, secp256k1_ec_pubkey_create(secp256k1_tagged_sha256('BIP0352/SharedSecret', secp256k1_ec_pubkey_tweak_mul(t.tweak_key, k.scan_key) || int_to_big_endian(0)))]), 1)) ELSE false END";
+
+        DuckDBPreparedStatement statement = connection.prepareStatement(sql).unwrap(DuckDBPreparedStatement.class);
+        try {
+            int parameter = 1;
+            int fromHeight = Integer.MAX_VALUE;
+            int toHeight = 0;
+            for(int i = 0; i < requests.size(); i++) {
+                ScanRequest request = requests.get(i);
+                statement.setInt(parameter++, i);
+                statement.setBytes(parameter++, request.scanAddress().getSpendKey().getPubKey());
+                statement.setBytes(parameter++, request.scanAddress().getScanKey().getPrivKeyBytes());
+                statement.setInt(parameter++, request.getFromHeight());
+                statement.setInt(parameter++, request.getToHeight());
+                statement.setLong(parameter++, request.filter().dustLimit());
+                statement.setBoolean(parameter++, request.filter().unspentOnly());
+                fromHeight = Math.min(fromHeight, request.getFromHeight());
+                toHeight = Math.max(toHeight, request.getToHeight());
+            }
+            statement.setInt(parameter++, fromHeight);
+            statement.setInt(parameter, toHeight);
+            statement.setFetchSize(1);
+        } catch(SQLException e) {
+            statement.close();
+            throw e;
+        }
+
+        return statement;
+    }
+
+    //Scans for many addresses at once against the rows of the latest blocks held in memory, without a query against the database
+    //Returns null for each request starting before the blocks held, or for every request if they could not be scanned, which must be scanned from the tables instead
+    public List<List<TxEntry>> getRecentHistory(List<ScanRequest> requests) {
+        List<RecentBlocks> blocks;
+        synchronized(recentBlocks) {
+            blocks = new ArrayList<>(recentBlocks);
+        }
+
+        List<List<TxEntry>> histories = new ArrayList<>();
+        List<ColumnarScanEngine.ScanKey> keys = new ArrayList<>();
+        for(ScanRequest request : requests) {
+            if(blocks.isEmpty() || request.getFromHeight() < blocks.getFirst().fromHeight() || blocks.getLast().toHeight() < lastBlockIndexed) {
+                histories.add(null);
+            } else {
+                List<TxEntry> history = new ArrayList<>();
+                histories.add(history);
+                if(!isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef())) {
+                    keys.add(getScanKey(request.scanAddress(), request.startHeight(), request.endHeight(), request.filter(), history::add));
+                }
+            }
+        }
+
+        if(!keys.isEmpty()) {
+            try {
+                for(RecentBlocks recent : blocks) {
+                    recentScanEngine.scan(recent.rows(), recent.spentMasks(), keys);
+                }
+            } catch(Exception e) {
+                log.error("Error scanning recent blocks, scanning them from the index instead", e);
+                return requests.stream().<List<TxEntry>>map(request -> null).toList();
+            }
+        }
+
+        return histories;
+    }
+
+    //Splits the height range into chunks scanned concurrently across the read replicas, with one worker per replica taking the next unscanned chunk
+    private List<TxEntry> getHistoryScattered(SilentPaymentScanAddress scanAddress, SilentPaymentsSubscription subscription, Integer startHeight, Integer endHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        try {
+            int[] heightRange = dbManager.executeRead(connection -> {
+                try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT LEAST(MIN(height), (SELECT MIN(start_height) FROM " + TweakSegments.SEGMENT_TABLE + ")), " +
+                        "GREATEST(MAX(height), (SELECT MAX(end_height) FROM " + TweakSegments.SEGMENT_TABLE + ")) FROM " + TWEAK_TABLE)) {
+                    if(!resultSet.next() || resultSet.getObject(1) == null) {
+                        return null;
+                    }
+                    return new int[] { startHeight == null ? resultSet.getInt(1) : startHeight, endHeight == null ? resultSet.getInt(2) : endHeight };
+                }
+            });
+
+            if(heightRange == null || heightRange[0] > heightRange[1]) {
+                return Collections.emptyList();
+            }
+
+            int replicas = dbManager.getReadReplicas();
+            int chunkCount = Math.min(replicas * SCAN_CHUNKS_PER_REPLICA, heightRange[1] - heightRange[0] + 1);
+            long chunkSize = ((long)heightRange[1] - heightRange[0] + chunkCount) / chunkCount;
+            ScatteredHistoryScan scatteredScan = new ScatteredHistoryScan(subscription, subscriptionStatusRef, chunkCount, HISTORY_PAGE_SIZE);
+            AtomicInteger nextChunk = new AtomicInteger();
+            AtomicBoolean failed = new AtomicBoolean();
+            BooleanSupplier cancelled = () -> failed.get() || dbManager.isShutdown() || isUnsubscribed(scanAddress, subscriptionStatusRef);
+
+            List<Future<?>> workers = new ArrayList<>();
+            for(int replica = 0; replica < replicas; replica++) {
+                int workerReplica = replica;
+                workers.add(scanChunkExecutor.submit(() -> {
+                    int chunk;
+                    while((chunk = nextChunk.getAndIncrement()) < chunkCount && !cancelled.getAsBoolean()) {
+                        int chunkStart = (int)(heightRange[0] + chunk * chunkSize);
+                        int chunkEnd = (int)Math.min(heightRange[1], chunkStart + chunkSize - 1);
+                        try {
+                            scatteredScan.complete(chunk, executeScan(workerReplica, connection -> scanChunk(connection, scanAddress, chunkStart, chunkEnd, filter, cancelled)));
+                        } catch(Exception e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                    return null;
+                }));
+            }
+
+            for(Future<?> worker : workers) {
+                worker.get();
+            }
+
+            if(isUnsubscribed(scanAddress, subscriptionStatusRef)) {
+                return Collections.emptyList();
+            }
+
+            return scatteredScan.getRemaining();
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof SQLTimeoutException && e.getCause().getMessage().startsWith("INTERRUPT Error")) {
+                log.debug("Query cancelled", e.getCause());
+            } else {
+                log.error("Error scanning index", e.getCause());
+            }
             return Collections.emptyList();
         } catch(Exception e) {
             log.error("Error scanning index", e);
             return Collections.emptyList();
         }
+    }
 
-        if(isUnsubscribed(scanAddress, subscriptionStatusRef)) {
-            return Collections.emptyList();
+    private List<TxEntry> scanChunk(Connection connection, SilentPaymentScanAddress scanAddress, int startHeight, int endHeight, ScanFilter filter, BooleanSupplier cancelled) throws SQLException {
+        try(DuckDBPreparedStatement statement = columnarScanEngine == null ? prepareHistoryStatement(connection, scanAddress, startHeight, endHeight, filter) : prepareTweakStatement(connection, startHeight, endHeight, filter, filter.unspentOnly())) {
+            ScheduledFuture<?> cancellation = HistoryScan.scheduleCancellation(statement, cancelled);
+            List<TxEntry> entries = new ArrayList<>();
+            try(ResultSet resultSet = statement.executeQuery()) {
+                if(columnarScanEngine != null) {
+                    columnarScanEngine.scan(resultSet, List.of(getScanKey(scanAddress, startHeight, endHeight, filter, entries::add)));
+                } else {
+                    while(resultSet.next()) {
+                        entries.add(new TxEntry(resultSet.getInt(2), 0, Utils.bytesToHex(resultSet.getBytes(1))));
+                    }
+                }
+            } finally {
+                cancellation.cancel(false);
+            }
+
+            return entries;
+        }
+    }
+
+    private DuckDBPreparedStatement prepareHistoryStatement(Connection connection, SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, ScanFilter filter) throws SQLException {
+        String outputMatch = "list_contains(outputs, hash_prefix_to_int(secp256k1_ec_pubkey_combine([?, secp256k1_ec_pubkey_create(secp256k1_tagged_sha256('BIP0352/SharedSecret', secp256k1_ec_pubkey_tweak_mul(tweak_key, ?) || int_to_big_endian(0)))]), 1))";
+        //The output filter is evaluated in a CASE so that rows it excludes are skipped before the EC computation
+        String sql = "SELECT txid, height FROM " + getTweakSource(connection, startHeight, endHeight, filter.unspentOnly()) + " WHERE " + (filter.isEmpty() ? outputMatch : "CASE WHEN " + filter.getCondition(null) + " THEN " + outputMatch + " ELSE false END");
+
+        if(startHeight != null) {
+            sql += " AND height >= ?";
+        }
+        if(endHeight != null) {
+            sql += " AND height <= ?";
         }
 
-        List<TxEntry> history = new ArrayList<>();
-        TxEntry entry;
-        while((entry = queue.poll()) != null) {
-            history.add(entry);
+        DuckDBPreparedStatement statement = connection.prepareStatement(sql).unwrap(DuckDBPreparedStatement.class);
+        statement.setBytes(1, scanAddress.getSpendKey().getPubKey());
+        statement.setBytes(2, scanAddress.getScanKey().getPrivKeyBytes());
+        if(startHeight != null) {
+            statement.setInt(3, startHeight);
+        }
+        if(endHeight != null) {
+            statement.setInt(startHeight == null ? 3 : 4, endHeight);
         }
 
-        return history;
+        return statement;
+    }
+
+    //Scans the rows in the combined height range once with the in-JVM engine, evaluating each address only against rows in its own range
+    private boolean scanShared(Connection connection, List<ScanRequest> requests, List<HistoryScan> historyScans, List<List<TxEntry>> histories) throws SQLException {
+        int fromHeight = requests.stream().mapToInt(ScanRequest::getFromHeight).min().orElse(0);
+        int toHeight = requests.stream().mapToInt(ScanRequest::getToHeight).max().orElse(Integer.MAX_VALUE);
+        ScanFilter filter = ScanFilter.union(requests.stream().map(ScanRequest::filter).toList());
+        boolean spent = requests.stream().anyMatch(request -> request.filter().unspentOnly());
+        try(DuckDBPreparedStatement statement = prepareTweakStatement(connection, fromHeight, toHeight, filter, spent)) {
+            List<ColumnarScanEngine.ScanKey> keys = new ArrayList<>();
+            for(ScanRequest request : requests) {
+                HistoryScan historyScan = new HistoryScan(statement, request.subscription(), request.subscriptionStatusRef(), () -> false, HISTORY_PAGE_SIZE);
+                historyScans.add(historyScan);
+                keys.add(getScanKey(request.scanAddress(), request.getFromHeight(), request.getToHeight(), request.filter(), entry -> {
+                    if(!isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef())) {
+                        historyScan.add(entry);
+                    }
+                }));
+            }
+
+            ScheduledFuture<?> cancellation = HistoryScan.scheduleCancellation(statement, () -> dbManager.isShutdown() ||
+                    requests.stream().allMatch(request -> isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef())));
+            historyScans.forEach(HistoryScan::start);
+            try(ResultSet resultSet = statement.executeQuery()) {
+                columnarScanEngine.scan(resultSet, keys);
+            } finally {
+                cancellation.cancel(false);
+                for(int i = 0; i < historyScans.size(); i++) {
+                    histories.set(i, historyScans.get(i).finish());
+                }
+            }
+        }
+
+        return true;
+    }
+
+    //Selects the raw rows in a height range for the in-JVM scan engine, leaving out rows without outputs that pass the filter
+    //The spent flags of sealed rows are only read when a key scans for unspent outputs
+    private DuckDBPreparedStatement prepareTweakStatement(Connection connection, Integer startHeight, Integer endHeight, ScanFilter filter, boolean spent) throws SQLException {
+        DuckDBPreparedStatement statement = connection.prepareStatement("SELECT txid, height, tweak_key, outputs, output_values, spent_mask FROM " + getTweakSource(connection, startHeight, endHeight, spent) + " WHERE height >= ? AND height <= ?" +
+                (filter.isEmpty() ? "" : " AND " + filter.getCondition(null))).unwrap(DuckDBPreparedStatement.class);
+        statement.setInt(1, startHeight == null ? 0 : startHeight);
+        statement.setInt(2, endHeight == null ? Integer.MAX_VALUE : endHeight);
+        return statement;
+    }
+
+    //Returns the hot segment together with the sealed segments overlapping the height range, or the tweak table alone when none are listed
+    private String getTweakSource(Connection connection, Integer startHeight, Integer endHeight, boolean spent) throws SQLException {
+        int fromHeight = startHeight == null ? 0 : startHeight;
+        int toHeight = endHeight == null ? Integer.MAX_VALUE : endHeight;
+        List<TweakSegments.Segment> segments = TweakSegments.getSegments(connection, fromHeight, toHeight);
+        return segments.isEmpty() ? TWEAK_TABLE : tweakSegments.getSource(segments, fromHeight, toHeight, spent);
+    }
+
+    private <T> T executeScan(DbManager.ReadOperation<T> operation) throws SQLException, InterruptedException {
+        return dbManager.executeRead(connection -> executeSnapshot(connection, operation));
+    }
+
+    private <T> T executeScan(int replica, DbManager.ReadOperation<T> operation) throws SQLException, InterruptedException {
+        return dbManager.executeRead(replica, connection -> executeSnapshot(connection, operation));
+    }
+
+    //Lists the segments and reads their rows in a single transaction, so that a segment sealed in between is neither missed nor read twice
+    //The snapshot is registered so that the files of segments unsealed while it is open are not deleted under it
+    private <T> T executeSnapshot(Connection connection, DbManager.ReadOperation<T> operation) throws SQLException {
+        long snapshot = tweakSegments.openSnapshot();
+        try {
+            connection.setAutoCommit(false);
+            try {
+                return operation.execute(connection);
+            } finally {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+        } finally {
+            tweakSegments.closeSnapshot(snapshot);
+        }
+    }
+
+    static ColumnarScanEngine.ScanKey getScanKey(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, ScanFilter filter, Consumer<TxEntry> matches) {
+        return new ColumnarScanEngine.ScanKey(scanAddress.getScanKey().getPrivKeyBytes(), scanAddress.getSpendKey().getPubKey(),
+                startHeight == null ? 0 : startHeight, endHeight == null ? Integer.MAX_VALUE : endHeight, filter, matches);
     }
 
-    private static boolean isUnsubscribed(SilentPaymentScanAddress scanAddress, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+    static boolean isUnsubscribed(SilentPaymentScanAddress scanAddress, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
         SubscriptionStatus status = subscriptionStatusRef.get();
         return status == null || !status.isConnected() || !status.isSilentPaymentsAddressSubscribed(scanAddress.toString());
     }
@@ -7,21 +7,28 @@ import com.sparrowwallet.frigate.Frigate;
 import com.sparrowwallet.frigate.SubscriptionStatus;
 import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
 import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.lang.ref.WeakReference;
-import java.util.ArrayList;
-import java.util.List;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadFactory;
 
 public class IndexQuerier {
+    private static final Logger log = LoggerFactory.getLogger(IndexQuerier.class);
     public static final double PROGRESS_COMPLETE = 1.0d;
+    private static final int MAX_SHARED_SCAN_ADDRESSES = 64;
 
     private final Index blocksIndex;
-    private final Index mempoolIndex;
+    private final MempoolIndex mempoolIndex;
+    private final Deque<ScanRequest> pendingScans = new ArrayDeque<>();
+    private final Deque<ScanRequest> pendingBlockScans = new ArrayDeque<>();
+    private final Deque<MempoolScanRequest> pendingMempoolScans = new ArrayDeque<>();
+    private final Object mempoolScanLock = new Object();
 
-    public IndexQuerier(Index blocksIndex, Index mempoolIndex) {
+    public IndexQuerier(Index blocksIndex, MempoolIndex mempoolIndex) {
         this.blocksIndex = blocksIndex;
         this.mempoolIndex = mempoolIndex;
     }
@@ -33,36 +40,185 @@ public class IndexQuerier {
         return t;
     });
 
-    public void startHistoryScan(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
-        startHistoryScan(scanAddress, startHeight, endHeight, subscriptionStatusRef, true);
+    public void startHistoryScan(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        startHistoryScan(scanAddress, startHeight, endHeight, filter, subscriptionStatusRef, true);
     }
 
-    public void startHistoryScan(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, WeakReference<SubscriptionStatus> subscriptionStatusRef, boolean postIfEmpty) {
-        queryPool.submit(() -> {
-            SilentPaymentsSubscription subscription = new SilentPaymentsSubscription(scanAddress.toString(), startHeight == null ? 0 : startHeight);
-            List<TxEntry> history = blocksIndex.getHistoryAsync(scanAddress, subscription, startHeight, endHeight, subscriptionStatusRef);
-            List<TxEntry> mempoolHistory = getMempoolHistory(scanAddress, subscriptionStatusRef, subscription);
-            history.addAll(mempoolHistory);
+    public void startHistoryScan(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef, boolean postIfEmpty) {
+        SilentPaymentsSubscription subscription = new SilentPaymentsSubscription(scanAddress.toString(), startHeight == null ? 0 : startHeight);
+        synchronized(pendingScans) {
+            pendingScans.add(new ScanRequest(scanAddress, subscription, startHeight, endHeight, filter, subscriptionStatusRef, postIfEmpty));
+        }
+
+        queryPool.submit(this::runPendingHistoryScans);
+    }
+
+    //Scans queued while the query pool is busy that overlap in height range share a single pass over the index
+    //Each task takes one group, leaving scans that do not overlap to the tasks queued with them, so that they run in parallel
+    private void runPendingHistoryScans() {
+        List<ScanRequest> group;
+        synchronized(pendingScans) {
+            group = takeOverlappingScans(pendingScans, MAX_SHARED_SCAN_ADDRESSES);
+        }
+
+        if(!group.isEmpty()) {
+            runHistoryScans(group);
+        }
+    }
+
+    //Takes the oldest queued scan together with the queued scans overlapping it, widening the height range as each is added
+    static List<ScanRequest> takeOverlappingScans(Deque<ScanRequest> pending, int maxScans) {
+        List<ScanRequest> group = new ArrayList<>();
+        if(pending.isEmpty()) {
+            return group;
+        }
+
+        ScanRequest first = pending.poll();
+        group.add(first);
+        int fromHeight = first.getFromHeight();
+        int toHeight = first.getToHeight();
 
-            if(postIfEmpty || !history.isEmpty()) {
-                Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, PROGRESS_COMPLETE, new ArrayList<>(history), subscriptionStatusRef.get()));
+        boolean added = true;
+        while(added && group.size() < maxScans) {
+            added = false;
+            for(Iterator<ScanRequest> iter = pending.iterator(); iter.hasNext() && group.size() < maxScans; ) {
+                ScanRequest request = iter.next();
+                if(request.overlaps(fromHeight, toHeight)) {
+                    iter.remove();
+                    group.add(request);
+                    fromHeight = Math.min(fromHeight, request.getFromHeight());
+                    toHeight = Math.max(toHeight, request.getToHeight());
+                    added = true;
+                }
             }
-        });
+        }
+
+        return group;
     }
 
-    public void startMempoolScan(SilentPaymentScanAddress scanAddress, Integer startHeight, Integer endHeight, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
-        queryPool.submit(() -> {
-            SilentPaymentsSubscription subscription = new SilentPaymentsSubscription(scanAddress.toString(), startHeight == null ? 0 : startHeight);
-            List<TxEntry> mempoolHistory = getMempoolHistory(scanAddress, subscriptionStatusRef, subscription);
+    private void runHistoryScans(List<ScanRequest> requests) {
+        List<List<TxEntry>> histories;
+        if(requests.size() == 1) {
+            ScanRequest request = requests.getFirst();
+            histories = List.of(blocksIndex.getHistoryAsync(request.scanAddress(), request.subscription(), request.startHeight(), request.endHeight(), request.filter(), request.subscriptionStatusRef()));
+        } else {
+            histories = blocksIndex.getHistoryAsync(requests);
+        }
+
+        for(int i = 0; i < requests.size(); i++) {
+            ScanRequest request = requests.get(i);
+            List<TxEntry> history = new ArrayList<>(histories.get(i));
+            try {
+                history.addAll(getMempoolHistory(request.scanAddress(), request.filter(), request.subscriptionStatusRef()));
+            } catch(IllegalStateException e) {
+                log.error("Error scanning mempool, sending confirmed transactions only", e);
+            }
 
-            if(!mempoolHistory.isEmpty()) {
-                Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, PROGRESS_COMPLETE, new ArrayList<>(mempoolHistory), subscriptionStatusRef.get()));
+            if(request.postIfEmpty() || !history.isEmpty()) {
+                Frigate.getEventBus().post(new SilentPaymentsNotification(request.subscription(), PROGRESS_COMPLETE, new ArrayList<>(history), request.subscriptionStatusRef().get()));
             }
-        });
+        }
+    }
+
+    //Scans for newly indexed blocks are queued from every connection and taken together, so all subscriptions are scanned in a single pass over the rows held in memory
+    public void startBlockScan(SilentPaymentScanAddress scanAddress, int startHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        SilentPaymentsSubscription subscription = new SilentPaymentsSubscription(scanAddress.toString(), startHeight);
+        synchronized(pendingBlockScans) {
+            pendingBlockScans.add(new ScanRequest(scanAddress, subscription, startHeight, null, filter, subscriptionStatusRef, false));
+        }
+
+        queryPool.submit(this::runPendingBlockScans);
     }
 
-    private List<TxEntry> getMempoolHistory(SilentPaymentScanAddress scanAddress, WeakReference<SubscriptionStatus> subscriptionStatusRef, SilentPaymentsSubscription subscription) {
-        List<TxEntry> mempoolHistory = mempoolIndex.getHistoryAsync(scanAddress, subscription, null, null, subscriptionStatusRef);
+    private void runPendingBlockScans() {
+        List<ScanRequest> requests;
+        synchronized(pendingBlockScans) {
+            requests = new ArrayList<>(pendingBlockScans);
+            pendingBlockScans.clear();
+        }
+
+        if(requests.isEmpty()) {
+            return;
+        }
+
+        List<List<TxEntry>> histories = blocksIndex.getRecentHistory(requests);
+        for(int i = 0; i < requests.size(); i++) {
+            ScanRequest request = requests.get(i);
+            List<TxEntry> history = histories.get(i);
+            if(history == null) {
+                //Subscriptions behind the blocks held in memory are scanned from the index instead
+                synchronized(pendingScans) {
+                    pendingScans.add(request);
+                }
+                queryPool.submit(this::runPendingHistoryScans);
+            } else if(!history.isEmpty()) {
+                Frigate.getEventBus().post(new SilentPaymentsNotification(request.subscription(), PROGRESS_COMPLETE, new ArrayList<>(history), request.subscriptionStatusRef().get()));
+            }
+        }
+    }
+
+    //Scans for transactions added to the mempool evaluate only the added transactions, with the scans queued from every connection for the same addition taken together
+    //The whole mempool is only scanned when an address is first subscribed
+    public void startMempoolScan(SilentPaymentScanAddress scanAddress, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef, Set<Sha256Hash> addedTxids) {
+        SilentPaymentsSubscription subscription = new SilentPaymentsSubscription(scanAddress.toString(), 0);
+        synchronized(pendingMempoolScans) {
+            pendingMempoolScans.add(new MempoolScanRequest(new ScanRequest(scanAddress, subscription, null, null, filter, subscriptionStatusRef, false), addedTxids));
+        }
+
+        queryPool.submit(this::runPendingMempoolScans);
+    }
+
+    private void runPendingMempoolScans() {
+        //Additions are scanned one pool thread at a time, so that notifications follow the order of the queue
+        synchronized(mempoolScanLock) {
+            List<List<MempoolScanRequest>> groups;
+            synchronized(pendingMempoolScans) {
+                groups = groupConsecutiveScans(pendingMempoolScans);
+                pendingMempoolScans.clear();
+            }
+
+            for(List<MempoolScanRequest> group : groups) {
+                Set<Sha256Hash> addedTxids = group.getFirst().addedTxids();
+                List<ScanRequest> requests = group.stream().map(MempoolScanRequest::request).toList();
+                List<List<TxEntry>> histories;
+                try {
+                    histories = mempoolIndex.getHistory(requests, addedTxids);
+                } catch(IllegalStateException e) {
+                    log.error("Error scanning " + addedTxids.size() + " added mempool transactions", e);
+                    continue;
+                }
+                for(int i = 0; i < requests.size(); i++) {
+                    ScanRequest request = requests.get(i);
+                    List<TxEntry> mempoolHistory = removeNotified(request.scanAddress(), request.subscriptionStatusRef(), histories.get(i));
+                    if(!mempoolHistory.isEmpty()) {
+                        Frigate.getEventBus().post(new SilentPaymentsNotification(request.subscription(), PROGRESS_COMPLETE, new ArrayList<>(mempoolHistory), request.subscriptionStatusRef().get()));
+                    }
+                }
+            }
+        }
+    }
+
+    //Groups consecutive scans queued for the same addition, keeping the additions in the order they were queued
+    static List<List<MempoolScanRequest>> groupConsecutiveScans(Collection<MempoolScanRequest> pending) {
+        List<List<MempoolScanRequest>> groups = new ArrayList<>();
+        List<MempoolScanRequest> group = null;
+        for(MempoolScanRequest mempoolScanRequest : pending) {
+            if(group == null || group.getFirst().addedTxids() != mempoolScanRequest.addedTxids()) {
+                group = new ArrayList<>();
+                groups.add(group);
+            }
+            group.add(mempoolScanRequest);
+        }
+
+        return groups;
+    }
+
+    private List<TxEntry> getMempoolHistory(SilentPaymentScanAddress scanAddress, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        return removeNotified(scanAddress, subscriptionStatusRef, mempoolIndex.getHistory(scanAddress, filter, subscriptionStatusRef));
+    }
+
+    //Removes transactions already sent to the subscriber, such as those added again after being removed from the mempool
+    private static List<TxEntry> removeNotified(SilentPaymentScanAddress scanAddress, WeakReference<SubscriptionStatus> subscriptionStatusRef, List<TxEntry> mempoolHistory) {
         SubscriptionStatus subscriptionStatus = subscriptionStatusRef.get();
         if(subscriptionStatus != null && subscriptionStatus.getSilentPaymentsMempoolTxids(scanAddress.toString()) != null) {
             mempoolHistory.removeIf(txEntry -> subscriptionStatus.getSilentPaymentsMempoolTxids(scanAddress.toString()).contains(Sha256Hash.wrap(txEntry.tx_hash)));
@@ -70,4 +226,6 @@ public class IndexQuerier {
 
         return mempoolHistory;
     }
+
+    record MempoolScanRequest(ScanRequest request, Set<Sha256Hash> addedTxids) {}
 }
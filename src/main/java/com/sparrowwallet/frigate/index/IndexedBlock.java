@@ -0,0 +1,15 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.wallet.BlockTransaction;
+
+import java.util.Map;
+import java.util.Set;
+
+//The spent output heights map spent taproot outputs to the heights they were created at, and are empty when only the prevout table can provide them
+public record IndexedBlock(int height, String blockHash, Map<BlockTransaction, byte[]> eligibleTransactions, Map<HashIndex, byte[]> createdOutputs, Set<HashIndex> spentOutputs, Map<HashIndex, Integer> spentOutputHeights) {
+    //The number of rows this block adds to or removes from the index tables
+    public int getRowCount() {
+        return eligibleTransactions.size() + createdOutputs.size() + spentOutputs.size() + spentOutputHeights.size();
+    }
+}
@@ -0,0 +1,166 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.drongo.silentpayments.SilentPaymentScanAddress;
+import com.sparrowwallet.drongo.wallet.BlockTransaction;
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.SubscriptionStatus;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import com.sparrowwallet.frigate.io.Config;
+import com.sparrowwallet.frigate.io.Storage;
+import org.duckdb.DuckDBPreparedStatement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.WeakReference;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+//Holds the tweak rows of mempool transactions in memory keyed by txid, so that adding and removing transactions needs no SQL and scans read no database
+//Rows are added and removed concurrently with scans, which read a snapshot of the rows present when they start
+//Snapshots are scanned in the JVM with libsecp256k1, or if libsecp256k1 cannot be loaded, with the DuckDB extension in a temporary in-memory database
+public class MempoolIndex {
+    private static final Logger log = LoggerFactory.getLogger(MempoolIndex.class);
+
+    private final Map<Sha256Hash, TweakRow> rows = new ConcurrentHashMap<>();
+    private final ColumnarScanEngine scanEngine;
+    private volatile boolean indexed;
+    private volatile boolean closed;
+
+    public MempoolIndex() {
+        this(ColumnarScanEngine.createInMemory(Config.get().getDbThreads()));
+    }
+
+    MempoolIndex(ColumnarScanEngine scanEngine) {
+        this.scanEngine = scanEngine;
+    }
+
+    public void close() {
+        closed = true;
+        if(scanEngine != null) {
+            scanEngine.close();
+        }
+        rows.clear();
+    }
+
+    public int size() {
+        return rows.size();
+    }
+
+    public void addToIndex(Map<BlockTransaction, byte[]> transactions) {
+        if(closed) {
+            return;
+        }
+
+        for(Map.Entry<BlockTransaction, byte[]> entry : transactions.entrySet()) {
+            rows.put(entry.getKey().getTransaction().getTxId(), TweakRow.fromTransaction(entry.getKey(), entry.getValue()));
+        }
+
+        if(!indexed) {
+            indexed = true;
+            log.info("Indexed " + transactions.size() + " mempool transactions");
+        }
+
+        Frigate.getEventBus().post(new SilentPaymentsMempoolIndexAdded(transactions.keySet().stream().map(blkTx -> blkTx.getTransaction().getTxId()).collect(Collectors.toSet())));
+    }
+
+    public void removeFromIndex(Set<Sha256Hash> txIds) {
+        if(closed) {
+            return;
+        }
+
+        for(Sha256Hash txId : txIds) {
+            rows.remove(txId);
+        }
+
+        Frigate.getEventBus().post(new SilentPaymentsMempoolIndexRemoved(txIds));
+    }
+
+    //Scans the whole mempool for a single address, as done when it is first subscribed
+    //Throws an IllegalStateException if the scan fails, rather than reporting no transactions
+    public List<TxEntry> getHistory(SilentPaymentScanAddress scanAddress, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef) {
+        if(closed || Index.isUnsubscribed(scanAddress, subscriptionStatusRef)) {
+            return new ArrayList<>();
+        }
+
+        ScanRequest request = new ScanRequest(scanAddress, new SilentPaymentsSubscription(scanAddress.toString(), 0), null, null, filter, subscriptionStatusRef, false);
+        return scan(new ArrayList<>(rows.values()), List.of(request)).getFirst();
+    }
+
+    //Scans for many addresses in a single pass over only the given transactions, skipping those already removed from the mempool
+    //Throws an IllegalStateException if the scan fails, rather than reporting no transactions
+    public List<List<TxEntry>> getHistory(List<ScanRequest> requests, Set<Sha256Hash> txIds) {
+        List<ScanRequest> subscribed = new ArrayList<>();
+        int[] subscribedIndexes = new int[requests.size()];
+        for(int i = 0; i < requests.size(); i++) {
+            ScanRequest request = requests.get(i);
+            subscribedIndexes[i] = closed || Index.isUnsubscribed(request.scanAddress(), request.subscriptionStatusRef()) ? -1 : subscribed.size();
+            if(subscribedIndexes[i] >= 0) {
+                subscribed.add(request);
+            }
+        }
+
+        List<TweakRow> added = new ArrayList<>(txIds.size());
+        for(Sha256Hash txId : txIds) {
+            TweakRow row = rows.get(txId);
+            if(row != null) {
+                added.add(row);
+            }
+        }
+
+        List<List<TxEntry>> subscribedHistories = scan(added, subscribed);
+        List<List<TxEntry>> histories = new ArrayList<>();
+        for(int subscribedIndex : subscribedIndexes) {
+            histories.add(subscribedIndex < 0 ? new ArrayList<>() : subscribedHistories.get(subscribedIndex));
+        }
+
+        return histories;
+    }
+
+    //Mempool rows have no recorded spends, so every output is treated as unspent
+    private List<List<TxEntry>> scan(List<TweakRow> snapshot, List<ScanRequest> requests) {
+        List<List<TxEntry>> histories = new ArrayList<>();
+        for(int i = 0; i < requests.size(); i++) {
+            histories.add(new ArrayList<>());
+        }
+
+        if(snapshot.isEmpty() || requests.isEmpty()) {
+            return histories;
+        }
+
+        try {
+            if(scanEngine != null) {
+                List<ColumnarScanEngine.ScanKey> keys = new ArrayList<>();
+                for(int i = 0; i < requests.size(); i++) {
+                    ScanRequest request = requests.get(i);
+                    keys.add(Index.getScanKey(request.scanAddress(), null, null, request.filter(), histories.get(i)::add));
+                }
+                scanEngine.scan(snapshot, new long[snapshot.size()], keys);
+            } else {
+                scanDuckDb(snapshot, requests, histories);
+            }
+        } catch(Exception e) {
+            throw new IllegalStateException("Error scanning " + snapshot.size() + " mempool transactions", e);
+        }
+
+        return histories;
+    }
+
+    private static void scanDuckDb(List<TweakRow> snapshot, List<ScanRequest> requests, List<List<TxEntry>> histories) throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("allow_unsigned_extensions", "true");
+        try(Connection connection = DriverManager.getConnection(DbManager.DB_PREFIX, properties); Statement statement = connection.createStatement()) {
+            statement.execute("LOAD '" + Storage.getSecp256k1ExtensionFile().getAbsolutePath().replace("'", "''") + "'");
+            Index.createTables(statement);
+            Index.appendRows(connection, snapshot);
+            try(DuckDBPreparedStatement historyStatement = Index.prepareSharedHistoryStatement(connection, Index.TWEAK_TABLE, requests); ResultSet resultSet = historyStatement.executeQuery()) {
+                while(resultSet.next()) {
+                    histories.get(resultSet.getInt(1)).add(new TxEntry(resultSet.getInt(3), 0, Utils.bytesToHex(resultSet.getBytes(2))));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,107 @@
+package com.sparrowwallet.frigate.index;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+//Computes output keys by calling libsecp256k1 directly, avoiding the per row overhead of the DuckDB extension functions
+//Each range of rows is computed in stages over contiguous native buffers, with a single copy to and from the heap per stage
+class NativeScanKernel implements ScanKernel {
+    private static final int SERIALIZED_SIZE = (int)Secp256k1Library.COMPRESSED_PUBKEY_SIZE;
+    private static final VarHandle PREFIX = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+
+    private final Secp256k1Library library;
+    private final Arena arena;
+    private final MemorySegment scanPrivateKey;
+    private final MemorySegment spendPublicKey;
+    private final MessageDigest sharedSecretDigest;
+
+    public NativeScanKernel(Secp256k1Library library, byte[] scanPrivateKey, byte[] spendPublicKey) {
+        this.library = library;
+        this.arena = Arena.ofShared();
+        this.scanPrivateKey = arena.allocate(32);
+        MemorySegment.copy(scanPrivateKey, 0, this.scanPrivateKey, ValueLayout.JAVA_BYTE, 0, 32);
+        this.spendPublicKey = arena.allocate(Secp256k1Library.PUBKEY_SIZE);
+        MemorySegment spendPublicKeyBytes = arena.allocate(spendPublicKey.length);
+        MemorySegment.copy(spendPublicKey, 0, spendPublicKeyBytes, ValueLayout.JAVA_BYTE, 0, spendPublicKey.length);
+        if(!library.parse(this.spendPublicKey, spendPublicKeyBytes, spendPublicKey.length)) {
+            arena.close();
+            throw new IllegalArgumentException("Invalid spend public key");
+        }
+        this.sharedSecretDigest = ScanKernel.getSharedSecretDigest();
+    }
+
+    @Override
+    public void computeOutputPrefixes(MemorySegment tweakKeys, int[] rows, int from, int to, long[] prefixes) {
+        int count = to - from;
+        boolean[] valid = new boolean[count];
+        byte[] serializedBytes = new byte[count * SERIALIZED_SIZE];
+        byte[] tweakBytes = new byte[count * 32];
+
+        try(Arena scratch = Arena.ofConfined()) {
+            MemorySegment points = scratch.allocate(count * Secp256k1Library.PUBKEY_SIZE);
+            MemorySegment serialized = scratch.allocate(serializedBytes.length);
+            MemorySegment tweaks = scratch.allocate(tweakBytes.length);
+            MemorySegment serializedLength = scratch.allocate(ValueLayout.JAVA_LONG);
+
+            //Multiplies each tweak key by the scan private key to give the shared secrets
+            for(int i = 0; i < count; i++) {
+                MemorySegment point = points.asSlice(i * Secp256k1Library.PUBKEY_SIZE, Secp256k1Library.PUBKEY_SIZE);
+                valid[i] = library.parse(point, tweakKeys.asSlice(rows[from + i] * TWEAK_KEY_SIZE, TWEAK_KEY_SIZE), TWEAK_KEY_SIZE) && library.tweakMul(point, scanPrivateKey)
+                        && library.serializeCompressed(serialized.asSlice((long)i * SERIALIZED_SIZE, SERIALIZED_SIZE), serializedLength, point);
+            }
+
+            //Hashes the shared secrets from the tag state computed once for the kernel
+            MemorySegment.copy(serialized, ValueLayout.JAVA_BYTE, 0, serializedBytes, 0, serializedBytes.length);
+            for(int i = 0; i < count; i++) {
+                if(valid[i]) {
+                    hashSharedSecret(serializedBytes, i * SERIALIZED_SIZE, tweakBytes, i * 32);
+                }
+            }
+            MemorySegment.copy(tweakBytes, 0, tweaks, ValueLayout.JAVA_BYTE, 0, tweakBytes.length);
+
+            //Adds each tweak times the generator to a copy of the spend public key in place of the shared secret
+            for(int i = 0; i < count; i++) {
+                if(valid[i]) {
+                    MemorySegment point = points.asSlice(i * Secp256k1Library.PUBKEY_SIZE, Secp256k1Library.PUBKEY_SIZE);
+                    point.copyFrom(spendPublicKey);
+                    valid[i] = library.tweakAdd(point, tweaks.asSlice(i * 32L, 32)) && library.serializeCompressed(serialized.asSlice((long)i * SERIALIZED_SIZE, SERIALIZED_SIZE), serializedLength, point);
+                }
+            }
+
+            //Reads the prefix of each output key straight from the serialized x coordinates
+            MemorySegment.copy(serialized, ValueLayout.JAVA_BYTE, 0, serializedBytes, 0, serializedBytes.length);
+            for(int i = 0; i < count; i++) {
+                prefixes[rows[from + i]] = valid[i] ? (long)PREFIX.get(serializedBytes, i * SERIALIZED_SIZE + 1) : 0L;
+            }
+
+            points.fill((byte)0);
+            tweaks.fill((byte)0);
+        } finally {
+            Arrays.fill(tweakBytes, (byte)0);
+        }
+    }
+
+    private void hashSharedSecret(byte[] serializedBytes, int offset, byte[] tweakBytes, int tweakOffset) {
+        try {
+            MessageDigest digest = (MessageDigest)sharedSecretDigest.clone();
+            digest.update(serializedBytes, offset, SERIALIZED_SIZE);
+            digest.update(new byte[4]);
+            digest.digest(tweakBytes, tweakOffset, 32);
+        } catch(CloneNotSupportedException | DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    @Override
+    public void close() {
+        scanPrivateKey.fill((byte)0);
+        arena.close();
+    }
+}
@@ -0,0 +1,70 @@
+package com.sparrowwallet.frigate.index;
+
+import java.util.List;
+
+//Row group statistics of the tweak table, where the height zone maps of each row group are given in storage order
+//Zone maps are not narrowed when rows are deleted, so a row group keeps the height range it was written with until it is rewritten
+record RowGroupStats(long rows, long storedRows, List<HeightRange> heightRanges) {
+    public int getRowGroups() {
+        return heightRanges.size();
+    }
+
+    public long getDeletedRows() {
+        return storedRows - rows;
+    }
+
+    //Row groups whose height range starts below the end of an earlier row group, which height predicates cannot prune independently
+    public int getOverlappingRowGroups() {
+        int overlapping = 0;
+        int maxHeight = Integer.MIN_VALUE;
+        for(HeightRange heightRange : heightRanges) {
+            if(heightRange.min() < maxHeight) {
+                overlapping++;
+            }
+            maxHeight = Math.max(maxHeight, heightRange.max());
+        }
+
+        return overlapping;
+    }
+
+    //Returns the height from which rows must be rewritten in order for the row groups to be clustered by height, or null if they already are
+    //The rewritten rows must be exactly those in a suffix of row groups, so that the emptied row groups are dropped along with their zone maps
+    public Integer getRewriteHeight() {
+        int firstOverlapping = -1;
+        int maxHeight = Integer.MIN_VALUE;
+        int[] maxBefore = new int[heightRanges.size()];
+        for(int i = 0; i < heightRanges.size(); i++) {
+            maxBefore[i] = maxHeight;
+            if(heightRanges.get(i).min() < maxHeight && firstOverlapping < 0) {
+                firstOverlapping = i;
+            }
+            maxHeight = Math.max(maxHeight, heightRanges.get(i).max());
+        }
+
+        if(firstOverlapping < 0) {
+            return null;
+        }
+
+        int[] minFrom = new int[heightRanges.size()];
+        int minHeight = Integer.MAX_VALUE;
+        for(int i = heightRanges.size() - 1; i >= 0; i--) {
+            minHeight = Math.min(minHeight, heightRanges.get(i).min());
+            minFrom[i] = minHeight;
+        }
+
+        for(int i = firstOverlapping; i > 0; i--) {
+            if(maxBefore[i] < minFrom[i]) {
+                return minFrom[i];
+            }
+        }
+
+        return minFrom[0];
+    }
+
+    @Override
+    public String toString() {
+        return getRowGroups() + " row groups, " + rows + " rows, " + getDeletedRows() + " deleted rows, " + getOverlappingRowGroups() + " overlapping row groups";
+    }
+
+    public record HeightRange(int min, int max) {}
+}
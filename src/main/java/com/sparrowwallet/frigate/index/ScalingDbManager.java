@@ -33,9 +33,25 @@ public class ScalingDbManager extends AbstractDbManager {
             throw new SQLException("Connection manager is shutting down");
         }
 
-        int ind = index.getAndIncrement() % dataSources.size();
-        HikariDataSource ds = dataSources.get(ind);
-        return operation.execute(ds.getConnection());
+        int ind = Math.floorMod(index.getAndIncrement(), dataSources.size());
+        return executeRead(ind, operation);
+    }
+
+    @Override
+    public <T> T executeRead(int replica, ReadOperation<T> operation) throws SQLException {
+        if(shutdown) {
+            throw new SQLException("Connection manager is shutting down");
+        }
+
+        HikariDataSource ds = dataSources.get(Math.floorMod(replica, dataSources.size()));
+        try(Connection connection = ds.getConnection()) {
+            return operation.execute(connection);
+        }
+    }
+
+    @Override
+    public int getReadReplicas() {
+        return dataSources.size();
     }
 
     @Override
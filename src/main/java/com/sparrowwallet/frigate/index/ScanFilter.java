@@ -0,0 +1,48 @@
+package com.sparrowwallet.frigate.index;
+
+import java.util.Collection;
+
+//Restricts a scan to rows with at least one output at or above the dust limit, and when unspent only, that has not yet been spent
+public record ScanFilter(long dustLimit, boolean unspentOnly) {
+    public static final ScanFilter NONE = new ScanFilter(0L, false);
+
+    //Spent flags are held in a bitmask by output position, and outputs beyond it are always treated as unspent
+    static final int MAX_SPENT_POSITIONS = 63;
+
+    public static ScanFilter from(Long dustLimit, Boolean unspentOnly) {
+        return new ScanFilter(dustLimit == null ? 0L : Math.max(dustLimit, 0L), unspentOnly != null && unspentOnly);
+    }
+
+    public boolean isEmpty() {
+        return dustLimit <= 0L && !unspentOnly;
+    }
+
+    public boolean matches(long[] values, int from, int to, long spentMask) {
+        for(int i = from; i < to; i++) {
+            if(values[i] >= dustLimit && (!unspentOnly || i - from >= MAX_SPENT_POSITIONS || (spentMask >>> (i - from) & 1L) == 0L)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    //Returns the least restrictive filter, so that a shared pass reads every row any of the filters would match
+    public static ScanFilter union(Collection<ScanFilter> filters) {
+        long dustLimit = filters.stream().mapToLong(ScanFilter::dustLimit).min().orElse(0L);
+        boolean unspentOnly = !filters.isEmpty() && filters.stream().allMatch(ScanFilter::unspentOnly);
+        return new ScanFilter(dustLimit, unspentOnly);
+    }
+
+    //Returns a SQL condition on the tweak table columns, with the dust limit and unspent only values given as SQL expressions
+    //Rows indexed before output values were stored have no values and always match
+    static String getCondition(String tableAlias, String dustLimit, String unspentOnly) {
+        String prefix = tableAlias == null ? "" : tableAlias + ".";
+        return "(" + prefix + "output_values IS NULL OR list_bool_or(list_transform(" + prefix + "output_values, (v, i) -> v >= " + dustLimit +
+                " AND (NOT " + unspentOnly + " OR i > " + MAX_SPENT_POSITIONS + " OR (" + prefix + "spent_mask >> least(i - 1, " + MAX_SPENT_POSITIONS + ")) & 1 = 0))))";
+    }
+
+    String getCondition(String tableAlias) {
+        return getCondition(tableAlias, Long.toString(dustLimit), Boolean.toString(unspentOnly));
+    }
+}
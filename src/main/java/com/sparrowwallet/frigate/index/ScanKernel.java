@@ -0,0 +1,38 @@
+package com.sparrowwallet.frigate.index;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+//Computes the silent payment output key for k = 0 from each tweak key in a batch, for a single scan key
+interface ScanKernel extends AutoCloseable {
+    long TWEAK_KEY_SIZE = 33;
+    byte[] SHARED_SECRET_TAG_HASH = getSha256().digest("BIP0352/SharedSecret".getBytes(StandardCharsets.UTF_8));
+
+    //Sets prefixes[row] to the hash prefix of the output key for each row listed in rows[from, to), or to 0 where the tweak key is invalid
+    void computeOutputPrefixes(MemorySegment tweakKeys, int[] rows, int from, int to, long[] prefixes);
+
+    @Override
+    void close();
+
+    interface Factory {
+        ScanKernel create(byte[] scanPrivateKey, byte[] spendPublicKey);
+    }
+
+    static MessageDigest getSha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    //Returns a digest holding the BIP352 shared secret tag, to be cloned before hashing each shared secret
+    static MessageDigest getSharedSecretDigest() {
+        MessageDigest digest = getSha256();
+        digest.update(SHARED_SECRET_TAG_HASH);
+        digest.update(SHARED_SECRET_TAG_HASH);
+        return digest;
+    }
+}
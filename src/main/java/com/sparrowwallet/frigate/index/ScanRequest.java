@@ -0,0 +1,21 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.silentpayments.SilentPaymentScanAddress;
+import com.sparrowwallet.frigate.SubscriptionStatus;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+
+import java.lang.ref.WeakReference;
+
+public record ScanRequest(SilentPaymentScanAddress scanAddress, SilentPaymentsSubscription subscription, Integer startHeight, Integer endHeight, ScanFilter filter, WeakReference<SubscriptionStatus> subscriptionStatusRef, boolean postIfEmpty) {
+    public int getFromHeight() {
+        return startHeight == null ? 0 : startHeight;
+    }
+
+    public int getToHeight() {
+        return endHeight == null ? Integer.MAX_VALUE : endHeight;
+    }
+
+    public boolean overlaps(int fromHeight, int toHeight) {
+        return getFromHeight() <= toHeight && getToHeight() >= fromHeight;
+    }
+}
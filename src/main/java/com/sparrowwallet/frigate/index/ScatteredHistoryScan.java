@@ -0,0 +1,66 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.SubscriptionStatus;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+//Merges the results of height range chunks scanned concurrently, pushing them in height order as each prefix of chunks completes
+//Progress is reported as the fraction of chunks completed, and the results of the final chunks are returned rather than pushed
+class ScatteredHistoryScan {
+    private final SilentPaymentsSubscription subscription;
+    private final WeakReference<SubscriptionStatus> subscriptionStatusRef;
+    private final int pageSize;
+
+    private final List<List<TxEntry>> chunkResults;
+    private final List<TxEntry> remaining = new ArrayList<>();
+    private int nextChunk;
+    private int completedChunks;
+
+    public ScatteredHistoryScan(SilentPaymentsSubscription subscription, WeakReference<SubscriptionStatus> subscriptionStatusRef, int chunks, int pageSize) {
+        this.subscription = subscription;
+        this.subscriptionStatusRef = subscriptionStatusRef;
+        this.pageSize = pageSize;
+        this.chunkResults = new ArrayList<>(Collections.nCopies(chunks, null));
+    }
+
+    public synchronized void complete(int chunk, List<TxEntry> entries) {
+        List<TxEntry> sorted = new ArrayList<>(entries);
+        Collections.sort(sorted);
+        chunkResults.set(chunk, sorted);
+        completedChunks++;
+
+        List<TxEntry> ordered = new ArrayList<>();
+        while(nextChunk < chunkResults.size() && chunkResults.get(nextChunk) != null) {
+            ordered.addAll(chunkResults.get(nextChunk));
+            chunkResults.set(nextChunk, Collections.emptyList());
+            nextChunk++;
+        }
+
+        if(nextChunk == chunkResults.size()) {
+            remaining.addAll(ordered);
+            return;
+        }
+
+        double progress = completedChunks / (double)chunkResults.size();
+        if(ordered.isEmpty()) {
+            post(progress, new ArrayList<>());
+        }
+        for(int from = 0; from < ordered.size(); from += pageSize) {
+            post(progress, new ArrayList<>(ordered.subList(from, Math.min(from + pageSize, ordered.size()))));
+        }
+    }
+
+    public synchronized List<TxEntry> getRemaining() {
+        return new ArrayList<>(remaining);
+    }
+
+    private void post(double progress, List<TxEntry> page) {
+        Frigate.getEventBus().post(new SilentPaymentsNotification(subscription, progress, page, subscriptionStatusRef.get()));
+    }
+}
@@ -0,0 +1,100 @@
+package com.sparrowwallet.frigate.index;
+
+import java.lang.foreign.*;
+import java.lang.invoke.MethodHandle;
+import java.util.List;
+
+//Binds the functions of libsecp256k1 needed for scanning through the Foreign Function & Memory API
+class Secp256k1Library {
+    public static final long PUBKEY_SIZE = 64;
+    public static final long COMPRESSED_PUBKEY_SIZE = 33;
+
+    private static final int SECP256K1_CONTEXT_NONE = 1;
+    private static final int SECP256K1_EC_COMPRESSED = (1 << 1) | (1 << 8);
+    private static final List<String> LIBRARY_NAMES = List.of(System.mapLibraryName("secp256k1"), "libsecp256k1.so.2", "libsecp256k1.so.1", "libsecp256k1.so.0", "libsecp256k1.2.dylib");
+
+    private static Secp256k1Library INSTANCE;
+
+    private final MemorySegment context;
+    private final MethodHandle pubkeyParse;
+    private final MethodHandle pubkeySerialize;
+    private final MethodHandle pubkeyTweakMul;
+    private final MethodHandle pubkeyTweakAdd;
+
+    private Secp256k1Library(SymbolLookup lookup) {
+        Linker linker = Linker.nativeLinker();
+        MethodHandle contextCreate = linker.downcallHandle(find(lookup, "secp256k1_context_create"), FunctionDescriptor.of(ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+        this.pubkeyParse = linker.downcallHandle(find(lookup, "secp256k1_ec_pubkey_parse"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_LONG));
+        this.pubkeySerialize = linker.downcallHandle(find(lookup, "secp256k1_ec_pubkey_serialize"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.JAVA_INT));
+        this.pubkeyTweakMul = linker.downcallHandle(find(lookup, "secp256k1_ec_pubkey_tweak_mul"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+        this.pubkeyTweakAdd = linker.downcallHandle(find(lookup, "secp256k1_ec_pubkey_tweak_add"),
+                FunctionDescriptor.of(ValueLayout.JAVA_INT, ValueLayout.ADDRESS, ValueLayout.ADDRESS, ValueLayout.ADDRESS));
+
+        try {
+            this.context = (MemorySegment)contextCreate.invokeExact(SECP256K1_CONTEXT_NONE);
+        } catch(Throwable e) {
+            throw new IllegalStateException("Could not create secp256k1 context", e);
+        }
+    }
+
+    //Loads libsecp256k1 from the system library path, throwing IllegalStateException if it cannot be found
+    public static synchronized Secp256k1Library get() {
+        if(INSTANCE == null) {
+            IllegalArgumentException lastException = null;
+            for(String libraryName : LIBRARY_NAMES) {
+                try {
+                    INSTANCE = new Secp256k1Library(SymbolLookup.libraryLookup(libraryName, Arena.global()));
+                    break;
+                } catch(IllegalArgumentException e) {
+                    lastException = e;
+                }
+            }
+
+            if(INSTANCE == null) {
+                throw new IllegalStateException("Could not load libsecp256k1", lastException);
+            }
+        }
+
+        return INSTANCE;
+    }
+
+    private static MemorySegment find(SymbolLookup lookup, String name) {
+        return lookup.find(name).orElseThrow(() -> new IllegalStateException("Could not find " + name + " in libsecp256k1"));
+    }
+
+    public boolean parse(MemorySegment pubkey, MemorySegment input, long inputLength) {
+        try {
+            return (int)pubkeyParse.invokeExact(context, pubkey, input, inputLength) == 1;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean serializeCompressed(MemorySegment output, MemorySegment outputLength, MemorySegment pubkey) {
+        try {
+            outputLength.set(ValueLayout.JAVA_LONG, 0, COMPRESSED_PUBKEY_SIZE);
+            return (int)pubkeySerialize.invokeExact(context, output, outputLength, pubkey, SECP256K1_EC_COMPRESSED) == 1;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean tweakMul(MemorySegment pubkey, MemorySegment tweak) {
+        try {
+            return (int)pubkeyTweakMul.invokeExact(context, pubkey, tweak) == 1;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public boolean tweakAdd(MemorySegment pubkey, MemorySegment tweak) {
+        try {
+            return (int)pubkeyTweakAdd.invokeExact(context, pubkey, tweak) == 1;
+        } catch(Throwable e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
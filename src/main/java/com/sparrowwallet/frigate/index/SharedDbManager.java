@@ -0,0 +1,187 @@
+package com.sparrowwallet.frigate.index;
+
+import com.zaxxer.hikari.HikariDataSource;
+import org.duckdb.DuckDBConnection;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.sql.DataSource;
+import java.io.PrintWriter;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Keeps a single database instance open, shared between a dedicated write connection and pooled read connections
+//Readers see a consistent snapshot through DuckDB's MVCC, so scans continue while blocks are written
+public class SharedDbManager extends AbstractDbManager {
+    private static final Logger log = LoggerFactory.getLogger(SharedDbManager.class);
+
+    private final String connectionUrl;
+    private final ReentrantLock writeLock = new ReentrantLock(true);
+
+    private DuckDBConnection writeConnection;
+    private HikariDataSource readDataSource;
+    private volatile boolean shutdown = false;
+
+    public SharedDbManager(String connectionUrl) {
+        this.connectionUrl = connectionUrl;
+    }
+
+    @Override
+    public <T> T executeRead(ReadOperation<T> operation) throws SQLException {
+        if(shutdown) {
+            throw new SQLException("Connection manager is shutting down");
+        }
+
+        try(Connection conn = getReadDataSource().getConnection()) {
+            return operation.execute(conn);
+        }
+    }
+
+    @Override
+    public <T> T executeWrite(WriteOperation<T> operation) throws SQLException, InterruptedException {
+        if(shutdown) {
+            throw new SQLException("Connection manager is shutting down");
+        }
+
+        writeLock.lockInterruptibly();
+        try {
+            return operation.execute(getWriteConnection());
+        } finally {
+            writeLock.unlock();
+        }
+    }
+
+    private synchronized DuckDBConnection getWriteConnection() throws SQLException {
+        if(writeConnection == null) {
+            log.debug("Opening shared database instance");
+            Properties properties = new Properties();
+            properties.setProperty("allow_unsigned_extensions", "true");
+            properties.setProperty("jdbc_stream_results", "true");
+            properties.setProperty("scheduler_process_partial", "true");
+            writeConnection = DriverManager.getConnection(connectionUrl, properties).unwrap(DuckDBConnection.class);
+        }
+
+        return writeConnection;
+    }
+
+    private synchronized HikariDataSource getReadDataSource() throws SQLException {
+        if(readDataSource == null) {
+            readDataSource = createReadDataSource(new DuplicateDataSource(getWriteConnection()), 10);
+        }
+
+        return readDataSource;
+    }
+
+    @Override
+    public void close() {
+        close(30, TimeUnit.SECONDS);
+    }
+
+    public void close(long timeout, TimeUnit timeUnit) {
+        log.debug("Starting graceful shutdown...");
+        shutdown = true;
+
+        synchronized(this) {
+            if(readDataSource != null) {
+                readDataSource.close();
+                readDataSource = null;
+                log.debug("Closed read connection pool");
+            }
+        }
+
+        boolean locked = false;
+        try {
+            locked = writeLock.tryLock(timeout, timeUnit);
+            if(!locked) {
+                log.error("Timeout exceeded, forcing shutdown with active write operation");
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        try {
+            synchronized(this) {
+                if(writeConnection != null && !writeConnection.isClosed()) {
+                    writeConnection.close();
+                }
+                writeConnection = null;
+            }
+        } catch(SQLException e) {
+            log.error("Error closing write connection", e);
+        } finally {
+            if(locked) {
+                writeLock.unlock();
+            }
+        }
+
+        log.debug("Shutdown complete");
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    public int getActiveReadConnections() {
+        return readDataSource != null ? readDataSource.getHikariPoolMXBean().getActiveConnections() : 0;
+    }
+
+    //Creates read connections on the same database instance as the write connection
+    private static class DuplicateDataSource implements DataSource {
+        private final DuckDBConnection connection;
+
+        public DuplicateDataSource(DuckDBConnection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public Connection getConnection() throws SQLException {
+            return connection.duplicate();
+        }
+
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return connection.duplicate();
+        }
+
+        @Override
+        public PrintWriter getLogWriter() {
+            return null;
+        }
+
+        @Override
+        public void setLogWriter(PrintWriter out) {
+            //not supported
+        }
+
+        @Override
+        public void setLoginTimeout(int seconds) {
+            //not supported
+        }
+
+        @Override
+        public int getLoginTimeout() {
+            return 0;
+        }
+
+        @Override
+        public java.util.logging.Logger getParentLogger() throws SQLFeatureNotSupportedException {
+            throw new SQLFeatureNotSupportedException();
+        }
+
+        @Override
+        public <T> T unwrap(Class<T> iface) throws SQLException {
+            throw new SQLException("Not a wrapper");
+        }
+
+        @Override
+        public boolean isWrapperFor(Class<?> iface) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.protocol.TransactionOutput;
+import com.sparrowwallet.drongo.wallet.BlockTransaction;
+
+import java.util.Arrays;
+import java.util.List;
+
+//A row of the tweak table held in primitive form, ready to be appended in bulk
+//The output values are aligned with the outputs, and the vout mask has a bit set for the vout of each output below 63
+record TweakRow(byte[] txid, int height, byte[] tweakKey, long[] outputs, long[] outputValues, long outputVoutMask) {
+    public static TweakRow fromTransaction(BlockTransaction blkTx, byte[] tweakKey) {
+        List<TransactionOutput> txOutputs = blkTx.getTransaction().getOutputs();
+        long[] outputs = new long[txOutputs.size()];
+        long[] outputValues = new long[txOutputs.size()];
+        long outputVoutMask = 0L;
+        int count = 0;
+        for(int vout = 0; vout < txOutputs.size(); vout++) {
+            TransactionOutput output = txOutputs.get(vout);
+            byte[] scriptBytes = output.getScriptBytes();
+            //Matches OP_1 followed by a 32 byte push directly, avoiding parsing the script
+            if(scriptBytes.length == 34 && scriptBytes[0] == 0x51 && scriptBytes[1] == 0x20) {
+                outputValues[count] = output.getValue();
+                outputs[count++] = Index.getHashPrefix(scriptBytes, 2);
+                if(vout < ScanFilter.MAX_SPENT_POSITIONS) {
+                    outputVoutMask |= 1L << vout;
+                }
+            }
+        }
+
+        return new TweakRow(blkTx.getTransaction().getTxId().getBytes(), blkTx.getHeight(), tweakKey, count == outputs.length ? outputs : Arrays.copyOf(outputs, count),
+                count == outputValues.length ? outputValues : Arrays.copyOf(outputValues, count), outputVoutMask);
+    }
+}
@@ -0,0 +1,247 @@
+package com.sparrowwallet.frigate.index;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+//Tweak rows of sealed height ranges, each held in an immutable Parquet file and listed in the segment table, with the tweak table as the mutable hot segment near the tip
+//Spends of sealed rows are kept in a separate table by outpoint, and combined with the rows as they are read
+class TweakSegments {
+    private static final Logger log = LoggerFactory.getLogger(TweakSegments.class);
+    static final String SEGMENT_TABLE = "tweak_segment";
+    static final String SEALED_SPENT_OUTPUT_TABLE = "sealed_spent_output";
+    private static final String SEGMENT_FILE_PREFIX = "tweak-";
+    private static final String SEGMENT_FILE_SUFFIX = ".parquet";
+    //Blocks within this depth of the tip stay in the hot segment, so that reorgs only need to touch it
+    static final int SEAL_DEPTH = 144;
+    //Unlisted files are kept for at least this long, for read replicas whose segment table lags the primary
+    static final long UNLISTED_FILE_GRACE_MILLIS = TimeUnit.MINUTES.toMillis(30);
+
+    private final File segmentsDir;
+    private final long unlistedFileGraceMillis;
+    private final AtomicLong snapshotSequence = new AtomicLong();
+    private final ConcurrentSkipListSet<Long> openSnapshots = new ConcurrentSkipListSet<>();
+    private final Map<String, UnlistedFile> unlistedFiles = new HashMap<>();
+
+    TweakSegments(File segmentsDir) {
+        this(segmentsDir, UNLISTED_FILE_GRACE_MILLIS);
+    }
+
+    TweakSegments(File segmentsDir, long unlistedFileGraceMillis) {
+        this.segmentsDir = segmentsDir;
+        this.unlistedFileGraceMillis = unlistedFileGraceMillis;
+    }
+
+    //Registers a read that may list segments and read their files, returning the id to close it with
+    long openSnapshot() {
+        long snapshot = snapshotSequence.incrementAndGet();
+        openSnapshots.add(snapshot);
+        return snapshot;
+    }
+
+    void closeSnapshot(long snapshot) {
+        openSnapshots.remove(snapshot);
+    }
+
+    static void createTables(Statement statement) throws SQLException {
+        statement.execute("CREATE TABLE IF NOT EXISTS " + SEGMENT_TABLE + " (start_height INTEGER NOT NULL, end_height INTEGER NOT NULL, file_name VARCHAR NOT NULL, row_count BIGINT NOT NULL)");
+        statement.execute("CREATE TABLE IF NOT EXISTS " + SEALED_SPENT_OUTPUT_TABLE + " (height INTEGER NOT NULL, txid BLOB NOT NULL, vout INTEGER NOT NULL, spent_height INTEGER NOT NULL)");
+    }
+
+    static List<Segment> getSegments(Connection connection, int fromHeight, int toHeight) throws SQLException {
+        List<Segment> segments = new ArrayList<>();
+        try(PreparedStatement statement = connection.prepareStatement("SELECT start_height, end_height, file_name, row_count FROM " + SEGMENT_TABLE + " WHERE end_height >= ? AND start_height <= ? ORDER BY start_height")) {
+            statement.setInt(1, fromHeight);
+            statement.setInt(2, toHeight);
+            try(ResultSet resultSet = statement.executeQuery()) {
+                while(resultSet.next()) {
+                    segments.add(new Segment(resultSet.getInt(1), resultSet.getInt(2), resultSet.getString(3), resultSet.getLong(4)));
+                }
+            }
+        }
+
+        return segments;
+    }
+
+    static int getSealedHeight(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT COALESCE(MAX(end_height), -1) FROM " + SEGMENT_TABLE)) {
+            return resultSet.next() ? resultSet.getInt(1) : -1;
+        }
+    }
+
+    //Returns a relation with the txid, height, tweak_key, outputs, output_values and spent_mask columns of the hot segment and the given sealed segments in a height range
+    //The spent flags of sealed rows are only looked up when they are needed, and are otherwise read as unspent
+    String getSource(List<Segment> segments, int fromHeight, int toHeight, boolean spent) {
+        String heightRange = "height >= " + fromHeight + " AND height <= " + toHeight;
+        StringBuilder source = new StringBuilder("(SELECT txid, height, tweak_key, outputs, output_values, spent_mask FROM " + Index.TWEAK_TABLE + " WHERE " + heightRange);
+        if(!segments.isEmpty()) {
+            //Files are named relative to the segments directory, which read connections are given as their file search path, so that replicas can reach them at their own path
+            String files = segments.stream().map(segment -> "'" + segment.fileName().replace("'", "''") + "'").collect(Collectors.joining(", "));
+            source.append(" UNION ALL SELECT s.txid, s.height, s.tweak_key, s.outputs, s.output_values, ");
+            if(spent) {
+                //The spent vouts of each row are converted to positions in its list of outputs, as in the hot segment
+                source.append("COALESCE(list_sum(list_transform(list_filter(range(").append(ScanFilter.MAX_SPENT_POSITIONS).append("), v -> ((p.vout_mask & s.output_vout_mask) >> v) & 1 = 1), ")
+                        .append("v -> 1::BIGINT << bit_count(s.output_vout_mask & ((1::BIGINT << v) - 1))))::BIGINT, 0) AS spent_mask FROM read_parquet([").append(files).append("]) s LEFT JOIN ")
+                        .append("(SELECT height, txid, bit_or(1::BIGINT << vout) AS vout_mask FROM ").append(SEALED_SPENT_OUTPUT_TABLE).append(" WHERE vout < ").append(ScanFilter.MAX_SPENT_POSITIONS)
+                        .append(" AND ").append(heightRange).append(" GROUP BY height, txid) p ON s.height = p.height AND s.txid = p.txid WHERE s.height >= ").append(fromHeight).append(" AND s.height <= ").append(toHeight);
+            } else {
+                source.append("0::BIGINT AS spent_mask FROM read_parquet([").append(files).append("]) s WHERE s.height >= ").append(fromHeight).append(" AND s.height <= ").append(toHeight);
+            }
+        }
+
+        return source.append(")").toString();
+    }
+
+    //Seals the first whole height range of segmentBlocks blocks in the hot segment that is deeper than the seal depth, returning null if there is none
+    //Each call is a single transaction, so callers seal a backlog of segments one write at a time rather than holding the writer for all of them
+    //Pending spends are applied first, and the spent flags of the sealed rows are moved to the sealed spent output table by vout
+    Segment sealNext(Connection connection, int segmentBlocks) throws SQLException {
+        int[] heightRange = getHotHeightRange(connection);
+        if(heightRange == null) {
+            return null;
+        }
+
+        int startHeight = Math.max(heightRange[0], getSealedHeight(connection) + 1);
+        int endHeight = Math.floorDiv(startHeight, segmentBlocks) * segmentBlocks + segmentBlocks - 1;
+        if(endHeight > heightRange[1] - SEAL_DEPTH) {
+            return null;
+        }
+
+        return seal(connection, startHeight, endHeight);
+    }
+
+    private Segment seal(Connection connection, int startHeight, int endHeight) throws SQLException {
+        if(!segmentsDir.exists() && !segmentsDir.mkdirs()) {
+            throw new SQLException("Could not create segments directory " + segmentsDir.getAbsolutePath());
+        }
+
+        //A range sealed again after an unseal is written to a new file, as snapshots may still be reading the old one
+        Segment segment = new Segment(startHeight, endHeight, SEGMENT_FILE_PREFIX + startHeight + "-" + endHeight + "-" + System.currentTimeMillis() + SEGMENT_FILE_SUFFIX, 0);
+        String heightRange = "height >= " + startHeight + " AND height <= " + endHeight;
+        connection.setAutoCommit(false);
+        try(Statement statement = connection.createStatement()) {
+            Index.applySpentOutputs(connection);
+            statement.execute("COPY (SELECT txid, height, tweak_key, outputs, output_values, output_vout_mask FROM " + Index.TWEAK_TABLE + " WHERE " + heightRange + " ORDER BY height) TO '" +
+                    getFile(segment).getAbsolutePath().replace("'", "''") + "' (FORMAT parquet, COMPRESSION zstd)");
+            statement.execute("INSERT INTO " + SEALED_SPENT_OUTPUT_TABLE + " SELECT height, txid, unnest(list_filter(range(" + ScanFilter.MAX_SPENT_POSITIONS + "), v -> (output_vout_mask >> v) & 1 = 1 AND " +
+                    "(spent_mask >> bit_count(output_vout_mask & ((1::BIGINT << v) - 1))) & 1 = 1)), spent_height FROM " + Index.TWEAK_TABLE + " WHERE " + heightRange + " AND spent_mask <> 0 AND output_vout_mask IS NOT NULL");
+            long rows = statement.executeUpdate("DELETE FROM " + Index.TWEAK_TABLE + " WHERE " + heightRange);
+            segment = new Segment(startHeight, endHeight, segment.fileName(), rows);
+            try(PreparedStatement insert = connection.prepareStatement("INSERT INTO " + SEGMENT_TABLE + " VALUES (?, ?, ?, ?)")) {
+                insert.setInt(1, segment.startHeight());
+                insert.setInt(2, segment.endHeight());
+                insert.setString(3, segment.fileName());
+                insert.setLong(4, segment.rows());
+                insert.execute();
+            }
+            connection.commit();
+        } catch(SQLException e) {
+            connection.rollback();
+            throw e;
+        } finally {
+            connection.setAutoCommit(true);
+        }
+
+        return segment;
+    }
+
+    //Returns the rows of the sealed segments ending at or above the given height to the hot segment, before a reorg removes blocks from it
+    //The files are left in place for scans that may still be reading them, and are deleted with the other unlisted files once those scans have finished
+    int unseal(Connection connection, int height) throws SQLException {
+        List<Segment> segments = getSegments(connection, height, Integer.MAX_VALUE);
+        if(segments.isEmpty()) {
+            return 0;
+        }
+
+        int startHeight = segments.getFirst().startHeight();
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO " + Index.TWEAK_TABLE + " (txid, height, tweak_key, outputs, output_values, output_vout_mask, spent_mask, spent_height) SELECT s.txid, s.height, s.tweak_key, s.outputs, s.output_values, s.output_vout_mask, " +
+                    "COALESCE(list_sum(list_transform(list_filter(range(" + ScanFilter.MAX_SPENT_POSITIONS + "), v -> ((p.vout_mask & s.output_vout_mask) >> v) & 1 = 1), v -> 1::BIGINT << bit_count(s.output_vout_mask & ((1::BIGINT << v) - 1))))::BIGINT, 0) AS spent_mask, " +
+                    "p.spent_height FROM read_parquet([" + segments.stream().map(segment -> "'" + getFile(segment).getAbsolutePath().replace("'", "''") + "'").collect(Collectors.joining(", ")) + "]) s LEFT JOIN " +
+                    "(SELECT height, txid, bit_or(1::BIGINT << vout) AS vout_mask, max(spent_height) AS spent_height FROM " + SEALED_SPENT_OUTPUT_TABLE + " WHERE vout < " + ScanFilter.MAX_SPENT_POSITIONS +
+                    " AND height >= " + startHeight + " GROUP BY height, txid) p ON s.height = p.height AND s.txid = p.txid ORDER BY s.height");
+            statement.execute("DELETE FROM " + SEALED_SPENT_OUTPUT_TABLE + " WHERE height >= " + startHeight);
+            statement.execute("DELETE FROM " + SEGMENT_TABLE + " WHERE start_height >= " + startHeight);
+        }
+
+        return segments.size();
+    }
+
+    //Moves recorded spends of sealed rows out of the spent output table, as the sealed rows cannot be updated
+    static void moveSealedSpentOutputs(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement()) {
+            statement.execute("INSERT INTO " + SEALED_SPENT_OUTPUT_TABLE + " SELECT height, txid, vout, spent_height FROM " + Index.SPENT_OUTPUT_TABLE +
+                    " WHERE height <= (SELECT COALESCE(MAX(end_height), -1) FROM " + SEGMENT_TABLE + ")");
+        }
+    }
+
+    static void removeSpentOutputs(Connection connection, int spentHeight) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("DELETE FROM " + SEALED_SPENT_OUTPUT_TABLE + " WHERE spent_height >= ?")) {
+            statement.setInt(1, spentHeight);
+            statement.execute();
+        }
+    }
+
+    //Deletes segment files no longer listed in the segment table, which are left behind by unsealed segments or interrupted seals
+    //A file is only deleted once the grace period has passed since it was first found unlisted, and every snapshot opened before then has closed
+    void deleteUnlistedFiles(Connection connection) throws SQLException {
+        File[] files = segmentsDir.listFiles((dir, name) -> name.startsWith(SEGMENT_FILE_PREFIX) && name.endsWith(SEGMENT_FILE_SUFFIX));
+        if(files == null || files.length == 0) {
+            unlistedFiles.clear();
+            return;
+        }
+
+        Set<String> listed = new HashSet<>();
+        for(Segment segment : getSegments(connection, Integer.MIN_VALUE, Integer.MAX_VALUE)) {
+            listed.add(segment.fileName());
+        }
+
+        long now = System.currentTimeMillis();
+        Long oldestSnapshot = openSnapshots.isEmpty() ? null : openSnapshots.first();
+        Set<String> unlisted = new HashSet<>();
+        for(File file : files) {
+            if(listed.contains(file.getName())) {
+                continue;
+            }
+
+            unlisted.add(file.getName());
+            UnlistedFile unlistedFile = unlistedFiles.computeIfAbsent(file.getName(), name -> new UnlistedFile(snapshotSequence.get(), now));
+            if(now - unlistedFile.unlistedMillis() < unlistedFileGraceMillis || (oldestSnapshot != null && oldestSnapshot <= unlistedFile.lastSnapshot())) {
+                continue;
+            }
+
+            if(file.delete()) {
+                unlisted.remove(file.getName());
+            } else {
+                log.warn("Could not delete unlisted segment file " + file.getAbsolutePath());
+            }
+        }
+
+        unlistedFiles.keySet().retainAll(unlisted);
+    }
+
+    private static int[] getHotHeightRange(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT MIN(height), MAX(height) FROM " + Index.TWEAK_TABLE)) {
+            if(!resultSet.next() || resultSet.getObject(1) == null) {
+                return null;
+            }
+            return new int[] { resultSet.getInt(1), resultSet.getInt(2) };
+        }
+    }
+
+    private File getFile(Segment segment) {
+        return new File(segmentsDir, segment.fileName());
+    }
+
+    record Segment(int startHeight, int endHeight, String fileName, long rows) {}
+
+    //A file found unlisted, with the last snapshot opened by then, which may have listed it
+    private record UnlistedFile(long lastSnapshot, long unlistedMillis) {}
+}
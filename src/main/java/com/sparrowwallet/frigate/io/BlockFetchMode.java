@@ -0,0 +1,5 @@
+package com.sparrowwallet.frigate.io;
+
+public enum BlockFetchMode {
+    RAW, PREVOUTS, REST;
+}
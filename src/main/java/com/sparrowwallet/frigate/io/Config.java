@@ -16,13 +16,27 @@ public class Config {
     private Server coreServer;
     private CoreAuthType coreAuthType;
     private File coreDataDir;
+    private File coreBlocksDir;
     private String coreAuth;
     private Boolean startIndexing;
     private Integer indexStartHeight;
-    private Integer scriptPubKeyCacheSize;
+    private Long scriptPubKeyCacheSize;
+    private Long scriptPubKeyCacheBytes;
+    private Integer blockFetchThreads;
+    private Integer blockProcessThreads;
+    private Integer blockQueueDepth;
+    private Integer rpcBatchSize;
+    private Integer indexCommitRows;
+    private Integer indexCommitMillis;
+    private BlockFetchMode blockFetchMode;
     private Integer dbThreads;
+    private DbAccessMode dbAccessMode;
+    private ScanEngine scanEngine;
     private String dbUrl;
     private List<String> readDbUrls;
+    private Integer segmentBlocks;
+    private File segmentsDir;
+    private String zmqEndpoint;
 
     private static Config INSTANCE;
 
@@ -95,6 +109,15 @@ public class Config {
         flush();
     }
 
+    public File getCoreBlocksDir() {
+        return coreBlocksDir;
+    }
+
+    public void setCoreBlocksDir(File coreBlocksDir) {
+        this.coreBlocksDir = coreBlocksDir;
+        flush();
+    }
+
     public String getCoreAuth() {
         return coreAuth;
     }
@@ -122,15 +145,89 @@ public class Config {
         flush();
     }
 
-    public Integer getScriptPubKeyCacheSize() {
+    public Long getScriptPubKeyCacheSize() {
         return scriptPubKeyCacheSize;
     }
 
-    public void setScriptPubKeyCacheSize(Integer scriptPubKeyCacheSize) {
+    public void setScriptPubKeyCacheSize(Long scriptPubKeyCacheSize) {
         this.scriptPubKeyCacheSize = scriptPubKeyCacheSize;
         flush();
     }
 
+    public Long getScriptPubKeyCacheBytes() {
+        return scriptPubKeyCacheBytes;
+    }
+
+    //Replaces any cache size configured as a number of entries by earlier versions
+    public void setScriptPubKeyCacheBytes(Long scriptPubKeyCacheBytes) {
+        this.scriptPubKeyCacheBytes = scriptPubKeyCacheBytes;
+        this.scriptPubKeyCacheSize = null;
+        flush();
+    }
+
+    public Integer getBlockFetchThreads() {
+        return blockFetchThreads;
+    }
+
+    public void setBlockFetchThreads(Integer blockFetchThreads) {
+        this.blockFetchThreads = blockFetchThreads;
+        flush();
+    }
+
+    public Integer getBlockProcessThreads() {
+        return blockProcessThreads;
+    }
+
+    public void setBlockProcessThreads(Integer blockProcessThreads) {
+        this.blockProcessThreads = blockProcessThreads;
+        flush();
+    }
+
+    public Integer getBlockQueueDepth() {
+        return blockQueueDepth;
+    }
+
+    public void setBlockQueueDepth(Integer blockQueueDepth) {
+        this.blockQueueDepth = blockQueueDepth;
+        flush();
+    }
+
+    public Integer getRpcBatchSize() {
+        return rpcBatchSize;
+    }
+
+    public void setRpcBatchSize(Integer rpcBatchSize) {
+        this.rpcBatchSize = rpcBatchSize;
+        flush();
+    }
+
+    public Integer getIndexCommitRows() {
+        return indexCommitRows;
+    }
+
+    public void setIndexCommitRows(Integer indexCommitRows) {
+        this.indexCommitRows = indexCommitRows;
+        flush();
+    }
+
+    public Integer getIndexCommitMillis() {
+        return indexCommitMillis;
+    }
+
+    public void setIndexCommitMillis(Integer indexCommitMillis) {
+        this.indexCommitMillis = indexCommitMillis;
+        flush();
+    }
+
+    public BlockFetchMode getBlockFetchMode() {
+        return blockFetchMode;
+    }
+
+    public void setBlockFetchMode(BlockFetchMode blockFetchMode) {
+        this.blockFetchMode = blockFetchMode;
+        flush();
+    }
+
     public Integer getDbThreads() {
         return dbThreads;
     }
@@ -140,6 +237,24 @@ public class Config {
         flush();
     }
 
+    public DbAccessMode getDbAccessMode() {
+        return dbAccessMode;
+    }
+
+    public void setDbAccessMode(DbAccessMode dbAccessMode) {
+        this.dbAccessMode = dbAccessMode;
+        flush();
+    }
+
+    public ScanEngine getScanEngine() {
+        return scanEngine;
+    }
+
+    public void setScanEngine(ScanEngine scanEngine) {
+        this.scanEngine = scanEngine;
+        flush();
+    }
+
     public String getDbUrl() {
         return dbUrl;
     }
@@ -158,6 +273,33 @@ public class Config {
         flush();
     }
 
+    public Integer getSegmentBlocks() {
+        return segmentBlocks;
+    }
+
+    public void setSegmentBlocks(Integer segmentBlocks) {
+        this.segmentBlocks = segmentBlocks;
+        flush();
+    }
+
+    public File getSegmentsDir() {
+        return segmentsDir;
+    }
+
+    public void setSegmentsDir(File segmentsDir) {
+        this.segmentsDir = segmentsDir;
+        flush();
+    }
+
+    public String getZmqEndpoint() {
+        return zmqEndpoint;
+    }
+
+    public void setZmqEndpoint(String zmqEndpoint) {
+        this.zmqEndpoint = zmqEndpoint;
+        flush();
+    }
+
     private synchronized void flush() {
         Gson gson = getGson();
         try {
@@ -62,6 +62,11 @@ public class Storage {
         return dbDir;
     }
 
+    public static File getSegmentsDir() {
+        File segmentsDir = Config.get().getSegmentsDir();
+        return segmentsDir == null ? new File(getFrigateDbDir(), "segments") : segmentsDir;
+    }
+
     public static File getFrigateDir() {
         File frigateDir;
         Network network = Network.get();
@@ -3,6 +3,7 @@ module com.sparrowwallet.frigate {
     requires org.duckdb.duckdb_jdbc;
     requires com.zaxxer.hikari;
     requires com.fasterxml.jackson.annotation;
+    requires com.fasterxml.jackson.databind;
     requires simple.json.rpc.core;
     requires simple.json.rpc.client;
     requires simple.json.rpc.server;
@@ -11,6 +12,7 @@ module com.sparrowwallet.frigate {
     requires org.jcommander;
     requires org.slf4j;
     requires java.sql;
+    requires java.net.http;
     exports com.sparrowwallet.frigate;
     exports com.sparrowwallet.frigate.io;
     exports com.sparrowwallet.frigate.bitcoind;
@@ -0,0 +1,117 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.frigate.io.Server;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class BitcoindBatchClientTest {
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testExecute() throws IOException {
+        List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+        try(RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(requestBody -> {
+            JsonNode request = readTree(requestBody);
+            batchSizes.add(request.size());
+
+            //Replies are returned in reverse order, with an error for the call with id 1, no reply for id 4 and a null result for id 5
+            ArrayNode response = objectMapper.createArrayNode();
+            for(int i = request.size() - 1; i >= 0; i--) {
+                int id = request.get(i).get("id").asInt();
+                ObjectNode reply = objectMapper.createObjectNode();
+                if(id == 4) {
+                    continue;
+                } else if(id == 1) {
+                    reply.putNull("result");
+                    reply.putObject("error").put("code", -5).put("message", "No such mempool or blockchain transaction");
+                } else if(id == 5) {
+                    reply.putNull("result");
+                    reply.putNull("error");
+                } else {
+                    reply.put("result", request.get(i).get("params").get(0).asText() + ":" + request.get(i).get("method").asText());
+                    reply.putNull("error");
+                }
+                reply.put("id", id);
+                response.add(reply);
+            }
+
+            //Replies with ids outside the batch are ignored rather than assigned to another call
+            response.addObject().put("result", "unexpected").putNull("error").put("id", request.get(0).get("id").asInt() + request.size());
+            response.addObject().put("result", "unexpected").putNull("error").put("id", "x");
+            response.addObject().put("result", "unexpected").putNull("error").putNull("id");
+            return writeBytes(response);
+        })) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+            BitcoindBatchClient batchClient = new BitcoindBatchClient(bitcoindTransport, 3);
+
+            List<List<Object>> paramsList = new ArrayList<>();
+            for(int i = 0; i < 7; i++) {
+                paramsList.add(List.of("param" + i, false));
+            }
+
+            List<JsonNode> results = batchClient.execute("getrawtransaction", paramsList);
+            Assertions.assertEquals(List.of(3, 3, 1), batchSizes);
+            Assertions.assertEquals(7, results.size());
+            for(int i = 0; i < 7; i++) {
+                if(i == 1 || i == 4 || i == 5) {
+                    Assertions.assertNull(results.get(i));
+                } else {
+                    Assertions.assertEquals("param" + i + ":getrawtransaction", results.get(i).asText());
+                }
+            }
+
+            //Transactions that could not be fetched are left out of the returned map, which keeps the order requested
+            List<Sha256Hash> txids = new ArrayList<>();
+            for(int i = 0; i < 4; i++) {
+                byte[] txid = new byte[32];
+                txid[0] = (byte)i;
+                txids.add(Sha256Hash.wrap(txid));
+            }
+            Map<Sha256Hash, String> rawTransactions = batchClient.getRawTransactions(txids);
+            Assertions.assertEquals(List.of(txids.get(0), txids.get(2), txids.get(3)), new ArrayList<>(rawTransactions.keySet()));
+            Assertions.assertEquals(txids.get(3).toString() + ":getrawtransaction", rawTransactions.get(txids.get(3)));
+
+            Assertions.assertTrue(batchClient.execute("getrawtransaction", List.of()).isEmpty());
+            Assertions.assertEquals(List.of(3, 3, 1, 3, 1), batchSizes);
+        }
+    }
+
+    @Test
+    public void testExecuteError() throws IOException {
+        //A batch rejected as a whole is answered with a single error object rather than an array
+        try(RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(requestBody ->
+                "{\"result\":null,\"error\":{\"code\":-32700,\"message\":\"Parse error\"},\"id\":null}".getBytes(StandardCharsets.UTF_8))) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+            BitcoindBatchClient batchClient = new BitcoindBatchClient(bitcoindTransport, 3);
+            IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> batchClient.execute("getrawtransaction", List.of(List.of("param0", false))));
+            Assertions.assertTrue(exception.getMessage().contains("Parse error"));
+        }
+    }
+
+    private JsonNode readTree(byte[] bytes) {
+        try {
+            return objectMapper.readTree(bytes);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private byte[] writeBytes(JsonNode node) {
+        try {
+            return objectMapper.writeValueAsBytes(node);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
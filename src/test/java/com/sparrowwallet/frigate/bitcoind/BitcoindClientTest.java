@@ -0,0 +1,452 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.drongo.protocol.Transaction;
+import com.sparrowwallet.drongo.protocol.TransactionInput;
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.index.Index;
+import com.sparrowwallet.frigate.index.IndexedBlock;
+import com.sparrowwallet.frigate.index.MempoolIndex;
+import com.sparrowwallet.frigate.io.Config;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.IntStream;
+
+import static com.sparrowwallet.frigate.bitcoind.ZmqSubscriberTest.*;
+
+public class BitcoindClientTest {
+    //The coinbase of the genesis block, standing in for a transaction published by rawtx for a connected block
+    private static final String COINBASE_TX = "01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000";
+    private static final Sha256Hash TXID_170 = Sha256Hash.wrap(TX_170_TXID);
+
+    @TempDir
+    static File tempDir;
+    private static String previousHome;
+
+    @BeforeAll
+    public static void setUp() {
+        previousHome = System.getProperty(Frigate.APP_HOME_PROPERTY);
+        System.setProperty(Frigate.APP_HOME_PROPERTY, tempDir.getAbsolutePath());
+        Config.get().setScriptPubKeyCacheBytes(1024L * 1024);
+        Config.get().setBlockQueueDepth(4);
+    }
+
+    @AfterAll
+    public static void tearDown() {
+        if(previousHome == null) {
+            System.clearProperty(Frigate.APP_HOME_PROPERTY);
+        } else {
+            System.setProperty(Frigate.APP_HOME_PROPERTY, previousHome);
+        }
+    }
+
+    @Test
+    public void testApplyNotifications() {
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(mempoolIndex);
+        try {
+            client.mempools.add(() -> new RawMempool(List.of(), 0));
+            client.pollMempool();
+            Assertions.assertEquals(1, client.mempoolCalls);
+
+            //The rawtx notification is kept for the addition that follows it, so the transaction is not fetched
+            ZmqSubscriber.Listener listener = client.new ZmqListener();
+            listener.message("rawtx", HexFormat.of().parseHex(TX_170));
+            listener.message("sequence", getSequenceBody(TXID_170, 'A', 1));
+            Assertions.assertEquals(1, client.scheduled.size());
+            client.updateMempoolIndexFromZmq();
+            Assertions.assertTrue(client.fetched.isEmpty());
+
+            //The full mempool is not compared while notifications continue without a gap
+            client.pollMempool();
+            Assertions.assertEquals(1, client.mempoolCalls);
+
+            listener.message("sequence", getSequenceBody(TXID_170, 'R', 2));
+            client.updateMempoolIndexFromZmq();
+            Assertions.assertEquals(List.of(Set.of(TXID_170)), mempoolIndex.removed);
+
+            //A rawtx notification that is not followed by its own addition is dropped, and the added transaction fetched instead
+            listener.message("rawtx", HexFormat.of().parseHex(COINBASE_TX));
+            listener.message("sequence", getSequenceBody(TXID_170, 'A', 3));
+            client.updateMempoolIndexFromZmq();
+            Assertions.assertEquals(List.of(TXID_170), client.fetched);
+            Assertions.assertEquals(1, client.mempoolCalls);
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+        }
+    }
+
+    @Test
+    public void testGap() {
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(mempoolIndex);
+        try {
+            client.mempools.add(() -> new RawMempool(List.of(), 0));
+            client.pollMempool();
+            Assertions.assertEquals(1, client.mempoolCalls);
+
+            //Changes notified after a gap are not applied, as earlier changes may have been missed
+            ZmqSubscriber.Listener listener = client.new ZmqListener();
+            listener.gap();
+            Assertions.assertEquals(1, client.scheduled.size());
+            listener.message("rawtx", HexFormat.of().parseHex(TX_170));
+            listener.message("sequence", getSequenceBody(TXID_170, 'A', 1));
+            client.updateMempoolIndexFromZmq();
+            Assertions.assertTrue(client.fetched.isEmpty());
+
+            //The gap is kept until the full mempool has been compared successfully
+            client.mempools.add(() -> {
+                throw new IllegalStateException("Bitcoin Core is not available");
+            });
+            Assertions.assertThrows(IllegalStateException.class, client::pollMempool);
+            Assertions.assertEquals(2, client.mempoolCalls);
+
+            client.mempools.add(() -> new RawMempool(List.of(TX_170_TXID), 1));
+            client.pollMempool();
+            Assertions.assertEquals(3, client.mempoolCalls);
+            Assertions.assertEquals(List.of(TXID_170), client.fetched);
+
+            client.pollMempool();
+            Assertions.assertEquals(3, client.mempoolCalls);
+
+            //A gap reported while the mempool is compared, here by a connected block, is kept for the next poll
+            client.mempools.add(() -> {
+                listener.message("sequence", getSequenceBody(Sha256Hash.wrap(BLOCK_170_HASH), 'C', -1));
+                return new RawMempool(List.of(TX_170_TXID), 1);
+            });
+            listener.gap();
+            client.pollMempool();
+            Assertions.assertEquals(4, client.mempoolCalls);
+
+            client.mempools.add(() -> new RawMempool(List.of(), 2));
+            client.pollMempool();
+            Assertions.assertEquals(5, client.mempoolCalls);
+            Assertions.assertEquals(List.of(Set.of(TXID_170)), mempoolIndex.removed);
+
+            client.pollMempool();
+            Assertions.assertEquals(5, client.mempoolCalls);
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+        }
+    }
+
+    @Test
+    public void testUpdateBlocksIndexInOrder() {
+        TestIndex blocksIndex = new TestIndex(100);
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(blocksIndex, mempoolIndex);
+        try {
+            //Every fourth block is fetched after the blocks that follow it, which must still be indexed in height order
+            List<Integer> fetched = Collections.synchronizedList(new ArrayList<>());
+            Executor delayedExecutor = CompletableFuture.delayedExecutor(50, TimeUnit.MILLISECONDS);
+            client.updateBlocksIndex(140, height -> CompletableFuture.supplyAsync(() -> {
+                fetched.add(height);
+                return getFetchedBlock(height);
+            }, height % 4 == 0 ? delayedExecutor : Runnable::run), false);
+
+            Assertions.assertNotEquals(fetched.stream().sorted().toList(), fetched);
+            Assertions.assertEquals(IntStream.rangeClosed(100, 140).boxed().toList(), blocksIndex.getIndexedHeights());
+            Assertions.assertEquals(140, blocksIndex.getLastBlockIndexed());
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+            blocksIndex.close();
+        }
+    }
+
+    @Test
+    public void testUpdateBlocksIndexFailure() {
+        TestIndex blocksIndex = new TestIndex(100);
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(blocksIndex, mempoolIndex);
+        try {
+            //Blocks after the failed block are left unfetched, so that the fetches queued behind it can be checked for cancellation
+            Map<Integer, CompletableFuture<FetchedBlock>> fetches = new ConcurrentHashMap<>();
+            IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> client.updateBlocksIndex(140, height -> {
+                CompletableFuture<FetchedBlock> fetch = new CompletableFuture<>();
+                if(height < 110) {
+                    fetch.complete(getFetchedBlock(height));
+                } else if(height == 110) {
+                    fetch.completeExceptionally(new IllegalStateException("Error fetching block " + height));
+                }
+                fetches.put(height, fetch);
+                return fetch;
+            }, false));
+            Assertions.assertEquals("Error fetching block 110", exception.getMessage());
+
+            //Fetching stops at the queue depth past the failed block, with every fetch still pending cancelled and no block indexed past the failure
+            Assertions.assertEquals(110 + Config.get().getBlockQueueDepth() - 1, Collections.max(fetches.keySet()));
+            Assertions.assertTrue(fetches.entrySet().stream().filter(entry -> entry.getKey() > 110).allMatch(entry -> entry.getValue().isCancelled()));
+            Assertions.assertTrue(blocksIndex.getIndexedHeights().stream().allMatch(height -> height < 110));
+            Assertions.assertTrue(blocksIndex.getLastBlockIndexed() < 110);
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+            blocksIndex.close();
+        }
+    }
+
+    @Test
+    public void testCanSpendEligibleOutput() {
+        byte[] signature = getPush(71, 0x30);
+        byte[] compressedKey = getPush(33, 0x02);
+        byte[] witnessScript = getPush(71, 0x52);
+
+        //Taproot key path and script path spends, with and without an annex, and P2WPKH or P2SH-P2WPKH spends
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], getPush(64, 0x01))));
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], getPush(65, 0x01), getPush(10, 0x50))));
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], witnessScript, getPush(65, 0xc1))));
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], signature, compressedKey)));
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(getScriptSig(getPush(22, 0x00)), signature, compressedKey)));
+
+        //P2WSH spends
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], new byte[0], signature, signature, witnessScript)));
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0], signature, witnessScript)));
+
+        //P2PKH spends with a compressed key, or a scriptSig that is not push only, while uncompressed keys, P2PK and P2SH spends are ruled out
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(getScriptSig(signature, compressedKey))));
+        Assertions.assertTrue(BitcoindClient.canSpendEligibleOutput(getInput(concat(getScriptSig(compressedKey, signature), new byte[] { 0x7c }))));
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(getInput(getScriptSig(signature, getPush(65, 0x04)))));
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(new Transaction(HexFormat.of().parseHex(TX_170)).getInputs().getFirst()));
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(getInput(concat(new byte[] { 0x00 }, getScriptSig(signature, signature, witnessScript)))));
+        Assertions.assertFalse(BitcoindClient.canSpendEligibleOutput(getInput(new byte[0])));
+    }
+
+    //A version 2 transaction with a single input with the given scriptSig and witness, paying to a single empty output
+    private static TransactionInput getInput(byte[] scriptSig, byte[]... witness) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(new byte[] { 0x02, 0x00, 0x00, 0x00 });
+        if(witness.length > 0) {
+            bytes.writeBytes(new byte[] { 0x00, 0x01 });
+        }
+        bytes.write(1);
+        bytes.writeBytes(getPush(32, 0x11));
+        bytes.writeBytes(new byte[4]);
+        bytes.write(scriptSig.length);
+        bytes.writeBytes(scriptSig);
+        bytes.writeBytes(new byte[] { (byte)0xff, (byte)0xff, (byte)0xff, (byte)0xff });
+        bytes.write(1);
+        bytes.writeBytes(new byte[8]);
+        bytes.write(0);
+        if(witness.length > 0) {
+            bytes.write(witness.length);
+            for(byte[] push : witness) {
+                bytes.write(push.length);
+                bytes.writeBytes(push);
+            }
+        }
+        bytes.writeBytes(new byte[4]);
+
+        return new Transaction(bytes.toByteArray()).getInputs().getFirst();
+    }
+
+    private static byte[] getScriptSig(byte[]... pushes) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for(byte[] push : pushes) {
+            bytes.write(push.length);
+            bytes.writeBytes(push);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static byte[] getPush(int length, int first) {
+        byte[] push = new byte[length];
+        Arrays.fill(push, (byte)0x5a);
+        push[0] = (byte)first;
+        return push;
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+
+    @Test
+    public void testCommitRows() {
+        Config.get().setIndexCommitRows(10);
+        Config.get().setIndexCommitMillis(Integer.MAX_VALUE);
+        TestIndex blocksIndex = new TestIndex(100);
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(blocksIndex, mempoolIndex);
+        try {
+            //Each block spends 4 taproot outputs, so that a group is committed once it holds 3 blocks, and every block is committed alone within reorg depth of the tip
+            client.updateBlocksIndex(140, height -> CompletableFuture.completedFuture(getFetchedBlock(height, 4)), false);
+
+            List<List<Integer>> expected = new ArrayList<>();
+            for(int height = 100; height < 130; height += 3) {
+                expected.add(List.of(height, height + 1, height + 2));
+            }
+            expected.add(List.of(130, 131));
+            for(int height = 132; height <= 140; height++) {
+                expected.add(List.of(height));
+            }
+            Assertions.assertEquals(expected, blocksIndex.getIndexedGroups());
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+            blocksIndex.close();
+            Config.get().setIndexCommitRows(null);
+            Config.get().setIndexCommitMillis(null);
+        }
+    }
+
+    @Test
+    public void testCommitMillis() {
+        Config.get().setIndexCommitRows(Integer.MAX_VALUE);
+        Config.get().setIndexCommitMillis(1000);
+        TestIndex blocksIndex = new TestIndex(100);
+        TestMempoolIndex mempoolIndex = new TestMempoolIndex();
+        TestClient client = new TestClient(blocksIndex, mempoolIndex);
+        try {
+            //A slow fetch of block 110 closes the group it completes, with the blocks after it committed at reorg depth of the tip
+            Executor delayedExecutor = CompletableFuture.delayedExecutor(1500, TimeUnit.MILLISECONDS);
+            client.updateBlocksIndex(140, height -> CompletableFuture.supplyAsync(() -> getFetchedBlock(height, 4), height == 110 ? delayedExecutor : Runnable::run), false);
+
+            List<List<Integer>> expected = new ArrayList<>();
+            expected.add(IntStream.rangeClosed(100, 110).boxed().toList());
+            expected.add(IntStream.rangeClosed(111, 131).boxed().toList());
+            for(int height = 132; height <= 140; height++) {
+                expected.add(List.of(height));
+            }
+            Assertions.assertEquals(expected, blocksIndex.getIndexedGroups());
+        } finally {
+            client.stop();
+            mempoolIndex.close();
+            blocksIndex.close();
+            Config.get().setIndexCommitRows(null);
+            Config.get().setIndexCommitMillis(null);
+        }
+    }
+
+    private static FetchedBlock getFetchedBlock(int height) {
+        return getFetchedBlock(height, 0);
+    }
+
+    //A block with no transactions, given the heights of the taproot outputs it spends as they would be from getblock with prevouts
+    private static FetchedBlock getFetchedBlock(int height, int spentOutputs) {
+        byte[] blockHash = new byte[32];
+        ByteBuffer.wrap(blockHash).putInt(height);
+        Map<HashIndex, Integer> spentOutputHeights = new HashMap<>();
+        for(int i = 0; i < spentOutputs; i++) {
+            spentOutputHeights.put(new HashIndex(Sha256Hash.wrap(blockHash), i), height - 1);
+        }
+        return new FetchedBlock(height, HexFormat.of().formatHex(blockHash), new Date(), List.of(), Map.of(), spentOutputHeights);
+    }
+
+    private static byte[] getSequenceBody(Sha256Hash hash, char label, long sequence) {
+        ByteBuffer body = ByteBuffer.allocate(sequence < 0 ? 33 : 41).order(ByteOrder.LITTLE_ENDIAN);
+        body.put(hash.getBytes());
+        body.put((byte)label);
+        if(sequence >= 0) {
+            body.putLong(sequence);
+        }
+        return body.array();
+    }
+
+    //Answers getrawmempool in turn from the queued mempools, with notifications connected and scheduled tasks left for the test to run
+    private static class TestClient extends BitcoindClient {
+        private final Deque<Supplier<RawMempool>> mempools = new ArrayDeque<>();
+        private final List<TimerTask> scheduled = new ArrayList<>();
+        private final List<Sha256Hash> fetched = new ArrayList<>();
+        private int mempoolCalls;
+
+        public TestClient(MempoolIndex mempoolIndex) {
+            this(null, mempoolIndex);
+        }
+
+        public TestClient(Index blocksIndex, MempoolIndex mempoolIndex) {
+            super(blocksIndex, mempoolIndex);
+        }
+
+        @Override
+        public BitcoindClientService getBitcoindService() {
+            return (BitcoindClientService)Proxy.newProxyInstance(BitcoindClientService.class.getClassLoader(), new Class<?>[] { BitcoindClientService.class }, (proxy, method, args) -> {
+                if(method.getName().equals("getRawMempool") && args != null && args.length == 2) {
+                    mempoolCalls++;
+                    return mempools.remove().get();
+                }
+                throw new UnsupportedOperationException(method.getName());
+            });
+        }
+
+        @Override
+        public NetworkInfo getNetworkInfo() {
+            return new NetworkInfo(290000, "/Satoshi:29.0.0/", true);
+        }
+
+        @Override
+        boolean isZmqConnected() {
+            return true;
+        }
+
+        @Override
+        boolean schedule(TimerTask task, long delay) {
+            scheduled.add(task);
+            return true;
+        }
+
+        @Override
+        Map<Sha256Hash, String> getRawTransactions(Collection<Sha256Hash> txids) {
+            fetched.addAll(txids);
+            Map<Sha256Hash, String> transactions = new HashMap<>();
+            if(txids.contains(TXID_170)) {
+                transactions.put(TXID_170, TX_170);
+            }
+            return transactions;
+        }
+    }
+
+    //Records the heights of the blocks committed to the index, in the groups they were committed in
+    private static class TestIndex extends Index {
+        private final List<List<Integer>> indexedGroups = new ArrayList<>();
+
+        public TestIndex(int startHeight) {
+            super(startHeight);
+        }
+
+        @Override
+        public void addToIndex(List<IndexedBlock> blocks, boolean updatePrevouts) {
+            super.addToIndex(blocks, updatePrevouts);
+            if(!blocks.isEmpty()) {
+                indexedGroups.add(blocks.stream().map(IndexedBlock::height).toList());
+            }
+        }
+
+        public List<List<Integer>> getIndexedGroups() {
+            return indexedGroups;
+        }
+
+        public List<Integer> getIndexedHeights() {
+            return indexedGroups.stream().flatMap(List::stream).toList();
+        }
+    }
+
+    private static class TestMempoolIndex extends MempoolIndex {
+        private final List<Set<Sha256Hash>> removed = new ArrayList<>();
+
+        @Override
+        public void removeFromIndex(Set<Sha256Hash> txIds) {
+            removed.add(new HashSet<>(txIds));
+            super.removeFromIndex(txIds);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.frigate.io.Server;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+
+public class BitcoindTransportTest {
+    private static final String BLOCK_HASH = "000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f";
+
+    @Test
+    public void testKeepAlive() throws IOException {
+        byte[] blockBytes = RestBlockFetcherTest.createBlock(100);
+        try(RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(Map.of(BLOCK_HASH, blockBytes))) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+            String request = "{\"jsonrpc\":\"2.0\",\"id\":1,\"method\":\"getblock\",\"params\":[\"" + BLOCK_HASH + "\",0]}";
+
+            //Sequential requests of every kind share a single connection, with streamed bodies returning it once closed
+            for(int i = 0; i < 3; i++) {
+                Assertions.assertTrue(bitcoindTransport.pass(request).contains("\"id\":1"));
+                try(InputStream inputStream = bitcoindTransport.passStream(request.getBytes(StandardCharsets.UTF_8))) {
+                    Assertions.assertTrue(new String(inputStream.readAllBytes(), StandardCharsets.UTF_8).contains("\"id\":1"));
+                }
+                try(BitcoindTransport.RestResponse response = bitcoindTransport.getRest("/rest/block/" + BLOCK_HASH + ".bin")) {
+                    Assertions.assertEquals(blockBytes.length, response.contentLength());
+                    Assertions.assertArrayEquals(blockBytes, response.body().readAllBytes());
+                }
+            }
+            Assertions.assertEquals(1, stubBitcoind.getConnections());
+
+            //Streamed requests are counted as in flight until their bodies are closed
+            InputStream inputStream = bitcoindTransport.passStream(request.getBytes(StandardCharsets.UTF_8));
+            Assertions.assertEquals(1, bitcoindTransport.getMetrics().inFlight());
+            inputStream.readAllBytes();
+            inputStream.close();
+            inputStream.close();
+
+            BitcoindTransport.RpcMetrics metrics = bitcoindTransport.getMetrics();
+            Assertions.assertEquals(10, metrics.requests());
+            Assertions.assertEquals(0, metrics.failures());
+            Assertions.assertEquals(0, metrics.inFlight());
+            Assertions.assertEquals(1, metrics.maxInFlight());
+        }
+    }
+
+    @Test
+    public void testFailure() throws IOException {
+        RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(Map.of());
+        BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+        stubBitcoind.close();
+
+        //A request that cannot connect is counted as failed and no longer in flight
+        Assertions.assertThrows(IOException.class, () -> bitcoindTransport.passStream("{}".getBytes(StandardCharsets.UTF_8)));
+        BitcoindTransport.RpcMetrics metrics = bitcoindTransport.getMetrics();
+        Assertions.assertEquals(1, metrics.requests());
+        Assertions.assertEquals(1, metrics.failures());
+        Assertions.assertEquals(0, metrics.inFlight());
+    }
+}
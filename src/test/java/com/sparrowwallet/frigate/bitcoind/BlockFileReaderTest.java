@@ -0,0 +1,272 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+public class BlockFileReaderTest {
+    private static final int MAINNET_MAGIC = 0xd9b4bef9;
+    private static final int LOW_WORK_BITS = 0x207fffff;
+    private static final int HIGH_WORK_BITS = 0x1d00ffff;
+
+    @TempDir
+    private File tempDir;
+
+    @Test
+    public void testGetWork() {
+        byte[] header = new byte[80];
+        ByteBuffer.wrap(header, 72, 4).order(ByteOrder.LITTLE_ENDIAN).putInt(HIGH_WORK_BITS);
+        //The work of the mainnet genesis block
+        Assertions.assertEquals(new BigInteger("100010001", 16), BlockFileReader.getWork(header));
+    }
+
+    @Test
+    public void testReadBlockFiles() throws IOException {
+        testReadBlockFiles(new File(tempDir, "plain"), null);
+    }
+
+    @Test
+    public void testReadObfuscatedBlockFiles() throws IOException {
+        testReadBlockFiles(new File(tempDir, "xor"), HexFormat.of().parseHex("1f2e3d4c5b6a7988"));
+    }
+
+    private void testReadBlockFiles(File blocksDir, byte[] xorKey) throws IOException {
+        Assertions.assertTrue(blocksDir.mkdirs());
+        byte[] p2pkhHash = new byte[20];
+        Arrays.fill(p2pkhHash, (byte)0x22);
+        byte[] fakeTxid = new byte[32];
+        Arrays.fill(fakeTxid, (byte)0x33);
+
+        byte[] genesisCoinbase = coinbase(0);
+        byte[] genesis = block(new byte[32], LOW_WORK_BITS, genesisCoinbase);
+
+        //A stale fork with less work that continues to a greater height than the chain with the most work
+        //One of its blocks has undo data of the same shape as the first block of the chain, which must not be matched to it
+        byte[] staleSpend = transaction(List.of(new Input(sha256Twice(genesisCoinbase), 0)), p2tr(0x44));
+        byte[] stale1 = block(sha256Twice(header(genesis)), LOW_WORK_BITS, coinbase(101));
+        byte[] stale2 = block(sha256Twice(header(stale1)), LOW_WORK_BITS, coinbase(102), staleSpend);
+        byte[] stale3 = block(sha256Twice(header(stale2)), LOW_WORK_BITS, coinbase(103));
+
+        byte[] coinbase1 = coinbase(1);
+        byte[] spend1 = transaction(List.of(new Input(sha256Twice(genesisCoinbase), 0)), p2tr(0x55));
+        byte[] block1 = block(sha256Twice(header(genesis)), HIGH_WORK_BITS, coinbase1, spend1);
+        byte[] spend2 = transaction(List.of(new Input(sha256Twice(coinbase1), 0), new Input(fakeTxid, 3)), p2tr(0x66));
+        byte[] block2 = block(sha256Twice(header(block1)), HIGH_WORK_BITS, coinbase(2), spend2);
+
+        //Coins are written as height and coinbase flag, a version for heights above zero, the amount and the compressed script
+        byte[] genesisCoin = coin(0, true, 40, p2tr(0x11));
+        byte[] staleUndo = undo(header(stale1), List.of(List.of(coin(0, true, 40, p2tr(0x77)))));
+        byte[] undo1 = undo(header(genesis), List.of(List.of(genesisCoin)));
+        byte[] undo2 = undo(header(block1), List.of(List.of(coin(1, true, 40, p2tr(0x11)), coin(5, false, 0, p2pkhHash))));
+
+        writeFile(new File(blocksDir, "blk00000.dat"), xorKey, genesis, stale1, stale2, block1, stale3);
+        writeFile(new File(blocksDir, "rev00000.dat"), xorKey, staleUndo, undo1);
+        writeFile(new File(blocksDir, "blk00001.dat"), xorKey, block2);
+        writeFile(new File(blocksDir, "rev00001.dat"), xorKey, undo2);
+        if(xorKey != null) {
+            Files.write(new File(blocksDir, "xor.dat").toPath(), xorKey);
+        }
+
+        try(BlockFileReader blockFileReader = new BlockFileReader(blocksDir)) {
+            Assertions.assertEquals(2, blockFileReader.open());
+
+            FetchedBlock fetchedGenesis = blockFileReader.getBlock(0);
+            Assertions.assertEquals(getBlockHash(genesis), fetchedGenesis.blockHash());
+            Assertions.assertTrue(fetchedGenesis.spentScriptPubKeys().isEmpty());
+
+            FetchedBlock fetchedBlock1 = blockFileReader.getBlock(1);
+            Assertions.assertEquals(getBlockHash(block1), fetchedBlock1.blockHash());
+            Assertions.assertEquals(2, fetchedBlock1.transactions().size());
+            Assertions.assertEquals(1600000001000L, fetchedBlock1.blockTime().getTime());
+            HashIndex genesisOutput = new HashIndex(getTxId(genesisCoinbase), 0);
+            Assertions.assertArrayEquals(p2tr(0x11), fetchedBlock1.spentScriptPubKeys().get(genesisOutput).getProgram());
+            Assertions.assertEquals(Map.of(genesisOutput, 0), fetchedBlock1.spentOutputHeights());
+
+            FetchedBlock fetchedBlock2 = blockFileReader.getBlock(2);
+            Assertions.assertEquals(getBlockHash(block2), fetchedBlock2.blockHash());
+            HashIndex coinbaseOutput = new HashIndex(getTxId(coinbase1), 0);
+            HashIndex p2pkhOutput = new HashIndex(Sha256Hash.wrapReversed(fakeTxid), 3);
+            Assertions.assertEquals(2, fetchedBlock2.spentScriptPubKeys().size());
+            Assertions.assertArrayEquals(p2tr(0x11), fetchedBlock2.spentScriptPubKeys().get(coinbaseOutput).getProgram());
+            byte[] p2pkh = HexFormat.of().parseHex("76a914" + HexFormat.of().formatHex(p2pkhHash) + "88ac");
+            Assertions.assertArrayEquals(p2pkh, fetchedBlock2.spentScriptPubKeys().get(p2pkhOutput).getProgram());
+            //Only the heights of spent taproot outputs are recorded
+            Assertions.assertEquals(Map.of(coinbaseOutput, 1), fetchedBlock2.spentOutputHeights());
+
+            Assertions.assertTrue(blockFileReader.getMappedFileCount() > 0);
+            blockFileReader.close();
+            Assertions.assertEquals(0, blockFileReader.getMappedFileCount());
+        }
+    }
+
+    private static void writeFile(File file, byte[] xorKey, byte[]... records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] record : records) {
+            out.writeBytes(record);
+        }
+
+        byte[] bytes = out.toByteArray();
+        if(xorKey != null) {
+            for(int i = 0; i < bytes.length; i++) {
+                bytes[i] ^= xorKey[i % xorKey.length];
+            }
+        }
+        Files.write(file.toPath(), bytes);
+    }
+
+    private static byte[] block(byte[] prevHash, int bits, byte[]... transactions) {
+        ByteBuffer header = ByteBuffer.allocate(80).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(4);
+        header.put(prevHash);
+        header.put(sha256Twice(transactions[0]));
+        header.putInt(1600000001);
+        header.putInt(bits);
+        header.putInt(0);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(header.array());
+        out.write(transactions.length);
+        for(byte[] transaction : transactions) {
+            out.writeBytes(transaction);
+        }
+
+        return record(out.toByteArray());
+    }
+
+    private static byte[] header(byte[] blockRecord) {
+        return Arrays.copyOfRange(blockRecord, 8, 88);
+    }
+
+    private static String getBlockHash(byte[] blockRecord) {
+        return Sha256Hash.wrapReversed(sha256Twice(header(blockRecord))).toString();
+    }
+
+    //Undo records are followed by a checksum committing to the hash of the previous block
+    private static byte[] undo(byte[] prevHeader, List<List<byte[]>> transactionCoins) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(transactionCoins.size());
+        for(List<byte[]> coins : transactionCoins) {
+            out.write(coins.size());
+            for(byte[] coin : coins) {
+                out.writeBytes(coin);
+            }
+        }
+
+        byte[] undoBytes = out.toByteArray();
+        ByteArrayOutputStream checksummed = new ByteArrayOutputStream();
+        checksummed.writeBytes(sha256Twice(prevHeader));
+        checksummed.writeBytes(undoBytes);
+
+        ByteArrayOutputStream undoRecord = new ByteArrayOutputStream();
+        undoRecord.writeBytes(record(undoBytes));
+        undoRecord.writeBytes(sha256Twice(checksummed.toByteArray()));
+        return undoRecord.toByteArray();
+    }
+
+    private static byte[] coin(int height, boolean coinbase, int scriptSize, byte[] script) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeVarInt(out, height * 2L + (coinbase ? 1 : 0));
+        if(height > 0) {
+            writeVarInt(out, 0);
+        }
+        writeVarInt(out, 50);
+        writeVarInt(out, scriptSize);
+        out.writeBytes(script);
+        return out.toByteArray();
+    }
+
+    private static byte[] record(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + data.length).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAINNET_MAGIC);
+        buffer.putInt(data.length);
+        buffer.put(data);
+        return buffer.array();
+    }
+
+    private static byte[] coinbase(int tag) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(HexFormat.of().parseHex("0200000001"));
+        out.writeBytes(new byte[32]);
+        out.writeBytes(HexFormat.of().parseHex("ffffffff0201"));
+        out.write(tag);
+        out.writeBytes(HexFormat.of().parseHex("ffffffff01"));
+        writeOutput(out, p2tr(0x11));
+        out.writeBytes(new byte[4]);
+        return out.toByteArray();
+    }
+
+    private static byte[] transaction(List<Input> inputs, byte[] scriptPubKey) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(HexFormat.of().parseHex("02000000"));
+        out.write(inputs.size());
+        for(Input input : inputs) {
+            out.writeBytes(input.txid());
+            out.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(input.index()).array());
+            out.writeBytes(HexFormat.of().parseHex("00ffffffff"));
+        }
+        out.write(1);
+        writeOutput(out, scriptPubKey);
+        out.writeBytes(new byte[4]);
+        return out.toByteArray();
+    }
+
+    private static void writeOutput(ByteArrayOutputStream out, byte[] scriptPubKey) {
+        out.writeBytes(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(5000000000L).array());
+        out.write(scriptPubKey.length);
+        out.writeBytes(scriptPubKey);
+    }
+
+    private static byte[] p2tr(int fill) {
+        byte[] script = new byte[34];
+        script[0] = 0x51;
+        script[1] = 0x20;
+        Arrays.fill(script, 2, 34, (byte)fill);
+        return script;
+    }
+
+    private static Sha256Hash getTxId(byte[] transaction) {
+        return Sha256Hash.wrapReversed(sha256Twice(transaction));
+    }
+
+    //Bitcoin Core's variable length integer, with each continuation byte offset by one
+    private static void writeVarInt(ByteArrayOutputStream out, long n) {
+        byte[] tmp = new byte[10];
+        int len = 0;
+        while(true) {
+            tmp[len] = (byte)((n & 0x7f) | (len > 0 ? 0x80 : 0));
+            if(n <= 0x7f) {
+                break;
+            }
+            n = (n >> 7) - 1;
+            len++;
+        }
+
+        for(int i = len; i >= 0; i--) {
+            out.write(tmp[i]);
+        }
+    }
+
+    private static byte[] sha256Twice(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            return digest.digest(digest.digest(data));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private record Input(byte[] txid, int index) {}
+}
@@ -0,0 +1,93 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.frigate.io.Server;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static com.sparrowwallet.frigate.bitcoind.ZmqSubscriberTest.*;
+
+public class PrevoutBlockFetcherTest {
+    private static final String COINBASE_170 = "01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff0704ffff001d0102ffffffff0100f2052a01000000434104d46c4968bde02899d2aa0963367c7a6ce34eec332b32e42e5f3407e052d64ac625da6f0718e7b302140434bd725706957c092db53805b821a85b23a7ac61725bac00000000";
+    private static final String SPENT_TXID = "0437cd7f8525ceed2324359c2d0ba26006d92d856a9c20fa0241106ee5a597c9";
+    private static final String P2PK_SCRIPT = "410411db93e1dcdb8a016b49840f8c53bc1eb68a382e97b1482ecad7b148a6909a5cb2e0eaddfb84ccf9744464f82e160bfa9b8b64f9d4c03f999b8643f656b412a3ac";
+    private static final String P2TR_SCRIPT = "5120" + "11".repeat(32);
+    private static final String P2WPKH_SCRIPT = "0014" + "22".repeat(20);
+
+    private final ObjectMapper objectMapper = new ObjectMapper();
+
+    @Test
+    public void testGetBlock() throws IOException {
+        //A verbosity 3 block in the order Bitcoin Core writes it, with fields and nested objects that are skipped before and after those that are read
+        //The second transaction is given extra inputs spending taproot and P2WPKH outputs, as only the inputs listed in the JSON are read
+        String block = "{\"hash\":\"" + BLOCK_170_HASH + "\",\"confirmations\":1,\"height\":170,\"version\":1,\"time\":1231731025,\"nTx\":2,"
+                + "\"previousblockhash\":\"000000002a22cfee1f2c846adbd12b3e183d4f97683f85dad08a79780a84bd55\",\"tx\":["
+                + "{\"txid\":\"b1fea52486ce0c62bb442b530a3f0132b826c74e473d1f2c220bfa78111c5082\",\"vin\":[{\"coinbase\":\"04ffff001d0102\",\"sequence\":4294967295}],"
+                + "\"vout\":[{\"value\":50.0,\"n\":0,\"scriptPubKey\":{\"hex\":\"" + P2PK_SCRIPT + "\",\"type\":\"pubkey\"}}],\"hex\":\"" + COINBASE_170 + "\"},"
+                + "{\"txid\":\"" + TX_170_TXID + "\",\"hex\":\"" + TX_170 + "\",\"vin\":["
+                + getInput(SPENT_TXID, 0, "{\"generated\":true,\"height\":9,\"value\":50.0,\"scriptPubKey\":{\"asm\":\"\",\"hex\":\"" + P2PK_SCRIPT + "\",\"type\":\"pubkey\"}}") + ","
+                + getInput("33".repeat(32), 1, "{\"generated\":false,\"height\":150,\"value\":0.1,\"scriptPubKey\":{\"hex\":\"" + P2TR_SCRIPT + "\",\"address\":\"bc1p\",\"type\":\"witness_v1_taproot\"}}") + ","
+                + getInput("44".repeat(32), 2, "{\"scriptPubKey\":{\"hex\":\"" + P2WPKH_SCRIPT + "\",\"type\":\"witness_v0_keyhash\"},\"height\":160,\"value\":0.2}")
+                + "],\"fee\":0}],\"mediantime\":1231716245}";
+
+        List<JsonNode> requests = new CopyOnWriteArrayList<>();
+        try(RestBlockFetcherTest.StubBitcoind stubBitcoind = new RestBlockFetcherTest.StubBitcoind(requestBody -> {
+            JsonNode request = readTree(requestBody);
+            requests.add(request);
+            String response = request.get("params").get(0).asText().equals(BLOCK_170_HASH) ?
+                    "{\"error\":null,\"result\":" + block + ",\"id\":" + request.get("id") + "}" :
+                    "{\"result\":null,\"error\":{\"code\":-5,\"message\":\"Block not found\"},\"id\":" + request.get("id") + "}";
+            return response.getBytes(StandardCharsets.UTF_8);
+        })) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+            PrevoutBlockFetcher prevoutBlockFetcher = new PrevoutBlockFetcher(bitcoindTransport);
+
+            FetchedBlock fetchedBlock = prevoutBlockFetcher.getBlock(170, BLOCK_170_HASH);
+            Assertions.assertEquals(3, requests.getFirst().get("params").get(1).asInt());
+            Assertions.assertEquals(170, fetchedBlock.height());
+            Assertions.assertEquals(BLOCK_170_HASH, fetchedBlock.blockHash());
+            Assertions.assertEquals(1231731025000L, fetchedBlock.blockTime().getTime());
+            Assertions.assertEquals(2, fetchedBlock.transactions().size());
+            Assertions.assertTrue(fetchedBlock.transactions().getFirst().isCoinBase());
+            Assertions.assertEquals(TX_170_TXID, fetchedBlock.transactions().get(1).getTxId().toString());
+
+            //Every spent output is resolved, with ineligible scripts kept empty and heights kept only for taproot outputs
+            HashIndex p2pkOutput = new HashIndex(Sha256Hash.wrap(SPENT_TXID), 0);
+            HashIndex taprootOutput = new HashIndex(Sha256Hash.wrap("33".repeat(32)), 1);
+            HashIndex p2wpkhOutput = new HashIndex(Sha256Hash.wrap("44".repeat(32)), 2);
+            Assertions.assertTrue(fetchedBlock.hasSpentScriptPubKeys());
+            Assertions.assertEquals(3, fetchedBlock.spentScriptPubKeys().size());
+            Assertions.assertEquals(0, fetchedBlock.spentScriptPubKeys().get(p2pkOutput).getProgram().length);
+            Assertions.assertEquals(P2TR_SCRIPT, HexFormat.of().formatHex(fetchedBlock.spentScriptPubKeys().get(taprootOutput).getProgram()));
+            Assertions.assertEquals(P2WPKH_SCRIPT, HexFormat.of().formatHex(fetchedBlock.spentScriptPubKeys().get(p2wpkhOutput).getProgram()));
+            Assertions.assertEquals(Map.of(taprootOutput, 150), fetchedBlock.spentOutputHeights());
+
+            IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class, () -> prevoutBlockFetcher.getBlock(171, "00".repeat(32)));
+            Assertions.assertTrue(exception.getMessage().endsWith("Block not found"));
+            Assertions.assertNotEquals(requests.get(0).get("id"), requests.get(1).get("id"));
+        }
+    }
+
+    private static String getInput(String txid, int vout, String prevout) {
+        return "{\"txid\":\"" + txid + "\",\"vout\":" + vout + ",\"scriptSig\":{\"asm\":\"\",\"hex\":\"\"},\"txinwitness\":[\"00\",\"01\"],\"prevout\":" + prevout + ",\"sequence\":4294967295}";
+    }
+
+    private JsonNode readTree(byte[] bytes) {
+        try {
+            return objectMapper.readTree(bytes);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sparrowwallet.drongo.protocol.Block;
+import com.sparrowwallet.frigate.io.Server;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.UnaryOperator;
+
+public class RestBlockFetcherTest {
+    private static final String GENESIS_HEADER = "0100000000000000000000000000000000000000000000000000000000000000000000003ba3edfd7a7b12b27ac72c3e67768f617fc81bc3888a51323a9fb8aa4b1e5e4a29ab5f49ffff001d1dac2b7c";
+    private static final String GENESIS_COINBASE = "01000000010000000000000000000000000000000000000000000000000000000000000000ffffffff4d04ffff001d0104455468652054696d65732030332f4a616e2f32303039204368616e63656c6c6f72206f6e206272696e6b206f66207365636f6e64206261696c6f757420666f722062616e6b73ffffffff0100f2052a01000000434104678afdb0fe5548271967f1a67130b7105cd6a828e03909a67962e0ea1f61deb649f6bc3f4cef38c4f35504e51ec112de5c384df7ba0b8d578a4c702b6bf11d5fac00000000";
+    private static final String BLOCK_HASH = "000000000019d6689c085ae165831e934ff763ae46a2a6c172b3f1b60a8ce26f";
+    private static final int BLOCK_TRANSACTIONS = 8000;
+
+    private StubBitcoind stubBitcoind;
+    private byte[] blockBytes;
+
+    @BeforeEach
+    public void setUp() throws IOException {
+        blockBytes = createBlock(BLOCK_TRANSACTIONS);
+        stubBitcoind = new StubBitcoind(Map.of(BLOCK_HASH, blockBytes));
+    }
+
+    @AfterEach
+    public void tearDown() throws IOException {
+        stubBitcoind.close();
+    }
+
+    @Test
+    public void testRestBlock() {
+        BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+        RestBlockFetcher restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+        Assertions.assertTrue(restBlockFetcher.isAvailable());
+
+        byte[] restBytes = restBlockFetcher.getBlock(BLOCK_HASH);
+        Assertions.assertArrayEquals(blockBytes, restBytes);
+        Assertions.assertEquals(BLOCK_TRANSACTIONS, new Block(restBytes).getTransactions().size());
+
+        Assertions.assertThrows(IllegalStateException.class, () -> restBlockFetcher.getBlock("00".repeat(32)));
+    }
+
+    @Test
+    public void testRestBlockLargerThanBuffer() throws IOException {
+        //Blocks of any size with a content length are read into the reusable buffer, which grows to fit the largest
+        byte[] largeBlockBytes = createBlock(12000);
+        try(StubBitcoind largeBitcoind = new StubBitcoind(Map.of(BLOCK_HASH, largeBlockBytes, "11".repeat(32), blockBytes))) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + largeBitcoind.getPort()), "user:password");
+            RestBlockFetcher restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+
+            Assertions.assertArrayEquals(blockBytes, restBlockFetcher.getBlock("11".repeat(32)));
+            Assertions.assertArrayEquals(largeBlockBytes, restBlockFetcher.getBlock(BLOCK_HASH));
+            Assertions.assertArrayEquals(blockBytes, restBlockFetcher.getBlock("11".repeat(32)));
+        }
+    }
+
+    @Test
+    public void testRestBlockWithoutContentLength() throws IOException {
+        //Larger than the initial buffer, so that the reusable buffer must grow while reading
+        byte[] largeBlockBytes = createBlock(12000);
+        try(StubBitcoind chunkedBitcoind = new StubBitcoind(Map.of(BLOCK_HASH, largeBlockBytes, "11".repeat(32), blockBytes), true)) {
+            BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + chunkedBitcoind.getPort()), "user:password");
+            RestBlockFetcher restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+
+            Assertions.assertArrayEquals(largeBlockBytes, restBlockFetcher.getBlock(BLOCK_HASH));
+            //A smaller block read into the grown buffer is returned without any bytes left from the previous block
+            Assertions.assertArrayEquals(blockBytes, restBlockFetcher.getBlock("11".repeat(32)));
+            Assertions.assertArrayEquals(largeBlockBytes, restBlockFetcher.getBlock(BLOCK_HASH));
+        }
+    }
+
+    @Test
+    public void testRestBlockTruncated() {
+        stubBitcoind.setTruncated(true);
+        BitcoindTransport bitcoindTransport = new BitcoindTransport(new Server("http://127.0.0.1:" + stubBitcoind.getPort()), "user:password");
+        RestBlockFetcher restBlockFetcher = new RestBlockFetcher(bitcoindTransport);
+        Assertions.assertThrows(IllegalStateException.class, () -> restBlockFetcher.getBlock(BLOCK_HASH));
+    }
+
+    static byte[] createBlock(int transactions) {
+        HexFormat hexFormat = HexFormat.of();
+        byte[] header = hexFormat.parseHex(GENESIS_HEADER);
+        byte[] coinbase = hexFormat.parseHex(GENESIS_COINBASE);
+
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(header.length + 5 + coinbase.length * transactions);
+        baos.writeBytes(header);
+        baos.write(0xfe);
+        baos.write(transactions);
+        baos.write(transactions >>> 8);
+        baos.write(transactions >>> 16);
+        baos.write(transactions >>> 24);
+        for(int i = 0; i < transactions; i++) {
+            baos.writeBytes(coinbase);
+        }
+
+        return baos.toByteArray();
+    }
+
+    //Serves blocks over both JSON-RPC getblock and the binary REST endpoint, using persistent HTTP/1.1 connections like Bitcoin Core
+    //Binary blocks can instead be sent chunked with no content length, or cut short of their content length
+    //JSON-RPC requests can instead be answered by a given handler, which receives the request body and returns the response body
+    static class StubBitcoind implements Closeable {
+        private final ServerSocket serverSocket;
+        private final Map<String, byte[]> blocks;
+        private final boolean chunked;
+        private final UnaryOperator<byte[]> rpcHandler;
+        private volatile boolean truncated;
+        private final AtomicInteger connections = new AtomicInteger();
+        private final ObjectMapper objectMapper = new ObjectMapper();
+
+        public StubBitcoind(Map<String, byte[]> blocks) throws IOException {
+            this(blocks, false);
+        }
+
+        public StubBitcoind(Map<String, byte[]> blocks, boolean chunked) throws IOException {
+            this(blocks, chunked, null);
+        }
+
+        public StubBitcoind(UnaryOperator<byte[]> rpcHandler) throws IOException {
+            this(Map.of(), false, rpcHandler);
+        }
+
+        private StubBitcoind(Map<String, byte[]> blocks, boolean chunked, UnaryOperator<byte[]> rpcHandler) throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            this.blocks = blocks;
+            this.chunked = chunked;
+            this.rpcHandler = rpcHandler;
+
+            Thread acceptThread = new Thread(() -> {
+                while(!serverSocket.isClosed()) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        connections.incrementAndGet();
+                        Thread connectionThread = new Thread(() -> handle(socket), "StubBitcoindConnection");
+                        connectionThread.setDaemon(true);
+                        connectionThread.start();
+                    } catch(IOException e) {
+                        //server closed
+                    }
+                }
+            }, "StubBitcoind");
+            acceptThread.setDaemon(true);
+            acceptThread.start();
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public int getConnections() {
+            return connections.get();
+        }
+
+        public void setTruncated(boolean truncated) {
+            this.truncated = truncated;
+        }
+
+        private void handle(Socket socket) {
+            try(socket; InputStream inputStream = new BufferedInputStream(socket.getInputStream()); OutputStream outputStream = new BufferedOutputStream(socket.getOutputStream())) {
+                String requestLine;
+                while((requestLine = readLine(inputStream)) != null && !requestLine.isEmpty()) {
+                    int contentLength = 0;
+                    String headerLine;
+                    while((headerLine = readLine(inputStream)) != null && !headerLine.isEmpty()) {
+                        if(headerLine.toLowerCase().startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(headerLine.substring(headerLine.indexOf(':') + 1).trim());
+                        }
+                    }
+                    byte[] requestBody = inputStream.readNBytes(contentLength);
+
+                    String[] parts = requestLine.split(" ");
+                    if(parts[0].equals("POST")) {
+                        writeResponse(outputStream, 200, "application/json", rpcHandler == null ? getRpcResponse(requestBody) : rpcHandler.apply(requestBody));
+                    } else if(parts[1].equals("/rest/chaininfo.json")) {
+                        writeResponse(outputStream, 200, "application/json", "{}".getBytes(StandardCharsets.UTF_8));
+                    } else if(parts[1].startsWith("/rest/block/") && parts[1].endsWith(".bin") && blocks.containsKey(parts[1].substring(12, parts[1].length() - 4))) {
+                        byte[] block = blocks.get(parts[1].substring(12, parts[1].length() - 4));
+                        if(truncated) {
+                            String headers = "HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nContent-Length: " + block.length + "\r\n\r\n";
+                            outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+                            outputStream.write(block, 0, block.length / 2);
+                            outputStream.flush();
+                            return;
+                        } else if(chunked) {
+                            writeChunkedResponse(outputStream, block);
+                        } else {
+                            writeResponse(outputStream, 200, "application/octet-stream", block);
+                        }
+                    } else {
+                        writeResponse(outputStream, 404, "text/plain", "Not found".getBytes(StandardCharsets.UTF_8));
+                    }
+                }
+            } catch(IOException e) {
+                //connection closed
+            }
+        }
+
+        private byte[] getRpcResponse(byte[] requestBody) throws IOException {
+            JsonNode request = objectMapper.readTree(requestBody);
+            byte[] block = blocks.get(request.get("params").get(0).asText());
+            String result = block == null ? "null" : "\"" + HexFormat.of().formatHex(block) + "\"";
+            String error = block == null ? "{\"code\":-5,\"message\":\"Block not found\"}" : "null";
+            return ("{\"result\":" + result + ",\"error\":" + error + ",\"id\":" + request.get("id") + "}\n").getBytes(StandardCharsets.UTF_8);
+        }
+
+        private static void writeResponse(OutputStream outputStream, int status, String contentType, byte[] body) throws IOException {
+            String headers = "HTTP/1.1 " + status + (status == 200 ? " OK" : " Not Found") + "\r\nContent-Type: " + contentType + "\r\nContent-Length: " + body.length + "\r\n\r\n";
+            outputStream.write(headers.getBytes(StandardCharsets.US_ASCII));
+            outputStream.write(body);
+            outputStream.flush();
+        }
+
+        private static void writeChunkedResponse(OutputStream outputStream, byte[] body) throws IOException {
+            outputStream.write("HTTP/1.1 200 OK\r\nContent-Type: application/octet-stream\r\nTransfer-Encoding: chunked\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            for(int offset = 0; offset < body.length; offset += 65536) {
+                int length = Math.min(65536, body.length - offset);
+                outputStream.write((Integer.toHexString(length) + "\r\n").getBytes(StandardCharsets.US_ASCII));
+                outputStream.write(body, offset, length);
+                outputStream.write("\r\n".getBytes(StandardCharsets.US_ASCII));
+            }
+            outputStream.write("0\r\n\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+        }
+
+        private static String readLine(InputStream inputStream) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int b;
+            while((b = inputStream.read()) >= 0 && b != '\n') {
+                if(b != '\r') {
+                    line.append((char)b);
+                }
+            }
+
+            return b < 0 && line.isEmpty() ? null : line.toString();
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
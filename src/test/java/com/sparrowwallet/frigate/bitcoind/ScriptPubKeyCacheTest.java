@@ -0,0 +1,102 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.HexFormat;
+import java.util.Random;
+
+public class ScriptPubKeyCacheTest {
+    private static final String P2PKH = "76a914bfe4a8e7a4b5a1f0d4d1a4a2bfe1a5c6d7e8f90188ac";
+    private static final String P2SH = "a914748284390f9e263a4b766a75d0633c50426eb87587";
+    private static final String P2WPKH = "0014841b80d2cc75f5345c482af96294d04fdd66b2b7";
+    private static final String P2TR = "5120a37c3903c8d0db6512e2b40b0dffa05e5a3ab73603ce8c9c4b7771e5412328f9";
+    private static final String P2PK = "2102d6a3c2d0cf7904ab6af54d7c959435a452b24a63194e1c4e7c337d3ebbb30170ac";
+
+    @Test
+    public void testScriptTypes() {
+        try(ScriptPubKeyCache cache = new ScriptPubKeyCache(1024 * 1024)) {
+            HexFormat hexFormat = HexFormat.of();
+            String[] scripts = new String[] { P2PKH, P2SH, P2WPKH, P2TR };
+            for(int i = 0; i < scripts.length; i++) {
+                cache.put(getTxid(i), i, hexFormat.parseHex(scripts[i]));
+            }
+
+            for(int i = 0; i < scripts.length; i++) {
+                Assertions.assertArrayEquals(hexFormat.parseHex(scripts[i]), cache.get(getTxid(i), i));
+            }
+
+            Assertions.assertArrayEquals(new byte[0], cache.put(getTxid(10), 0, hexFormat.parseHex(P2PK)));
+            Assertions.assertArrayEquals(new byte[0], cache.get(getTxid(10), 0));
+            Assertions.assertNull(cache.get(getTxid(10), 1));
+            Assertions.assertNull(cache.get(getTxid(11), 0));
+        }
+    }
+
+    @Test
+    public void testEviction() {
+        try(ScriptPubKeyCache cache = new ScriptPubKeyCache(64L * 1024)) {
+            byte[] script = HexFormat.of().parseHex(P2TR);
+            long capacity = cache.getCapacity();
+            for(int i = 0; i < capacity * 4; i++) {
+                cache.put(getTxid(i), 0, script);
+            }
+
+            ScriptPubKeyCache.CacheStats stats = cache.getStats();
+            Assertions.assertEquals(capacity * 4, stats.inserts());
+            Assertions.assertTrue(stats.evictions() >= capacity * 3);
+
+            int found = 0;
+            for(int i = 0; i < capacity * 4; i++) {
+                if(cache.get(getTxid(i), 0) != null) {
+                    found++;
+                }
+            }
+            Assertions.assertTrue(found > 0 && found <= capacity);
+            Assertions.assertEquals(found, cache.getStats().hits());
+        }
+    }
+
+    @Test
+    public void testReferencedEntriesRetained() {
+        try(ScriptPubKeyCache cache = new ScriptPubKeyCache(ScriptPubKeyCache.ENTRY_SIZE * 8)) {
+            byte[] script = HexFormat.of().parseHex(P2WPKH);
+            for(int i = 0; i < 8; i++) {
+                cache.put(getTxid(i), 0, script);
+            }
+
+            //A single set, so the clock hand must pass over the referenced entry
+            Assertions.assertNotNull(cache.get(getTxid(0), 0));
+            cache.put(getTxid(100), 0, script);
+            Assertions.assertNotNull(cache.get(getTxid(0), 0));
+            Assertions.assertEquals(1, cache.getStats().evictions());
+        }
+    }
+
+    @Test
+    public void testClosed() {
+        ScriptPubKeyCache cache = new ScriptPubKeyCache(1024 * 1024);
+        byte[] script = HexFormat.of().parseHex(P2TR);
+        cache.put(getTxid(0), 0, script);
+        cache.close();
+
+        //Lookups after closing find nothing rather than reading freed memory
+        Assertions.assertNull(cache.get(getTxid(0), 0));
+        Assertions.assertArrayEquals(script, cache.put(getTxid(1), 0, script));
+        Assertions.assertArrayEquals(new byte[0], cache.put(getTxid(2), 0, HexFormat.of().parseHex(P2PK)));
+    }
+
+    @Test
+    public void testLegacyCacheSize() {
+        Assertions.assertEquals(BitcoindClient.DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE, BitcoindClient.getScriptPubKeyCacheBytes(null));
+        Assertions.assertEquals(BitcoindClient.DEFAULT_SCRIPT_PUB_KEY_CACHE_SIZE, BitcoindClient.getScriptPubKeyCacheBytes(10000000L));
+        Assertions.assertEquals(2000000L * ScriptPubKeyCache.ENTRY_SIZE, BitcoindClient.getScriptPubKeyCacheBytes(2000000L));
+    }
+
+    private static Sha256Hash getTxid(int seed) {
+        byte[] txid = new byte[32];
+        new Random(seed).nextBytes(txid);
+        return Sha256Hash.wrap(txid);
+    }
+}
@@ -0,0 +1,49 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+public class TxidSetTest {
+    @Test
+    public void testAgainstHashSet() {
+        Random random = new Random(0);
+        TxidSet txidSet = new TxidSet();
+        Set<Sha256Hash> expected = new HashSet<>();
+        List<Sha256Hash> txids = new ArrayList<>();
+        for(int i = 0; i < 20000; i++) {
+            byte[] bytes = new byte[32];
+            random.nextBytes(bytes);
+            //Shares the first word between pairs of txids so that they collide
+            if(i % 2 == 1) {
+                System.arraycopy(txids.getLast().getBytes(), 0, bytes, 0, 8);
+            }
+            txids.add(Sha256Hash.wrap(bytes));
+        }
+
+        //Interleaves adds and removes so that entries are shifted back across many probe sequences
+        for(int i = 0; i < 100000; i++) {
+            Sha256Hash txid = txids.get(random.nextInt(txids.size()));
+            if(random.nextInt(3) == 0) {
+                Assertions.assertEquals(expected.remove(txid), txidSet.remove(txid));
+            } else if(random.nextBoolean()) {
+                Assertions.assertEquals(expected.add(txid), txidSet.add(txid));
+            } else {
+                Assertions.assertEquals(expected.add(txid), txidSet.add(txid.toString()));
+            }
+        }
+
+        Assertions.assertEquals(expected.size(), txidSet.size());
+        for(Sha256Hash txid : txids) {
+            Assertions.assertEquals(expected.contains(txid), txidSet.contains(txid));
+            Assertions.assertEquals(expected.contains(txid), txidSet.contains(txid.toString()));
+        }
+
+        Assertions.assertEquals(expected, new HashSet<>(txidSet.getMissing(new TxidSet())));
+        TxidSet other = new TxidSet();
+        expected.stream().limit(100).forEach(other::add);
+        Assertions.assertEquals(expected.size() - 100, txidSet.getMissing(other).size());
+    }
+}
@@ -0,0 +1,124 @@
+package com.sparrowwallet.frigate.bitcoind;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ZmqSubscriberTest {
+    //Transaction f4184fc596403b9d638783cf57adfe4c75c605f6356fbc91338530e9831e9e16, confirmed in block 170
+    static final String TX_170 = "0100000001c997a5e56e104102fa209c6a852dd90660a20b2d9c352423edce25857fcd3704000000004847304402204e45e16932b8af514961a1d3a1a25fdf3f4f7732e9d624c6c61548ab5fb8cd410220181522ec8eca07de4860a4acdd12909d831cc56cbbac4622082221a8768d1d0901ffffffff0200ca9a3b00000000434104ae1a62fe09c5f51b13905f07f06b99a2f7159b2225f374cd378d71302fa28414e7aab37397f554a7df5f142c21c1b7303b8a0626f1baded5c72a704f7e6cd84cac00286bee0000000043410411db93e1dcdb8a016b49840f8c53bc1eb68a382e97b1482ecad7b148a6909a5cb2e0eaddfb84ccf9744464f82e160bfa9b8b64f9d4c03f999b8643f656b412a3ac00000000";
+    static final String TX_170_TXID = "f4184fc596403b9d638783cf57adfe4c75c605f6356fbc91338530e9831e9e16";
+    static final String BLOCK_170_HASH = "00000000d1145790a8694403d4063f323d499e655c83426834d4ce2f8dd4a2ee";
+
+    //The bytes sent by a Bitcoin Core PUB socket (libzmq 4.3, ZMTP 3.1), with the signature and the rest of the greeting sent separately
+    private static final String PUB_SIGNATURE = "ff00000000000000017f";
+    private static final String PUB_GREETING = "03014e554c4c" + "00".repeat(16) + "00" + "00".repeat(31);
+    private static final String PUB_READY = "04190552454144590b536f636b65742d5479706500000003505542";
+    private static final List<String> PUB_MESSAGES = List.of(
+            //rawtx 0 for the transaction accepted to the mempool, as a long frame
+            "01057261777478" + "030000000000000113" + TX_170 + "000400000000",
+            //sequence 0 adding the transaction at mempool sequence 1
+            "010873657175656e6365" + "0129" + TX_170_TXID + "41" + "0100000000000000" + "000400000000",
+            //rawtx 2 for the transaction in the connected block, with rawtx 1 for the coinbase dropped at the high water mark
+            "01057261777478" + "030000000000000113" + TX_170 + "000402000000",
+            //sequence 1 connecting the block
+            "010873657175656e6365" + "0121" + BLOCK_170_HASH + "43" + "000401000000");
+
+    //The bytes a libzmq PUB socket expects from a SUB socket subscribed to rawtx and sequence
+    private static final String SUB_GREETING = "ff00000000000000007f" + "03004e554c4c" + "00".repeat(16) + "00".repeat(32);
+    private static final String SUB_READY = "04190552454144590b536f636b65742d5479706500000003535542";
+    private static final String SUB_SUBSCRIPTIONS = "0006017261777478" + "00090173657175656e6365";
+
+    @Test
+    public void testSubscribe() throws Exception {
+        try(TestPublisher publisher = new TestPublisher()) {
+            List<String> received = new CopyOnWriteArrayList<>();
+            AtomicInteger gaps = new AtomicInteger();
+            AtomicInteger gapsAtLastMessage = new AtomicInteger();
+            CountDownLatch latch = new CountDownLatch(4);
+            ZmqSubscriber subscriber = new ZmqSubscriber("tcp://127.0.0.1:" + publisher.getPort(), List.of("rawtx", "sequence"), new ZmqSubscriber.Listener() {
+                @Override
+                public void message(String topic, byte[] body) {
+                    received.add(topic + ":" + HexFormat.of().formatHex(body, 0, Math.min(body.length, 33)));
+                    gapsAtLastMessage.set(gaps.get());
+                    latch.countDown();
+                    //A failure handling one notification leaves the connection open for the next
+                    if(received.size() == 1) {
+                        throw new IllegalStateException("Test failure");
+                    }
+                }
+
+                @Override
+                public void gap() {
+                    gaps.incrementAndGet();
+                }
+            });
+
+            subscriber.start();
+            Assertions.assertTrue(latch.await(10, TimeUnit.SECONDS));
+            Assertions.assertTrue(subscriber.isConnected());
+            Assertions.assertEquals(SUB_GREETING + SUB_READY + SUB_SUBSCRIPTIONS, publisher.getReceived());
+            Assertions.assertEquals(List.of("rawtx:" + TX_170.substring(0, 66), "sequence:" + TX_170_TXID + "41", "rawtx:" + TX_170.substring(0, 66), "sequence:" + BLOCK_170_HASH + "43"), received);
+            //One gap on connecting, one for the failed notification and one for the dropped rawtx
+            Assertions.assertEquals(3, gapsAtLastMessage.get());
+            subscriber.close();
+        }
+    }
+
+    //Accepts a single subscriber and replays the recorded bytes once it has subscribed, keeping the bytes it received
+    private static class TestPublisher implements Closeable {
+        private final ServerSocket serverSocket;
+        private volatile String received;
+
+        public TestPublisher() throws IOException {
+            this.serverSocket = new ServerSocket(0);
+            Thread thread = new Thread(() -> {
+                try(Socket socket = serverSocket.accept()) {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    OutputStream out = socket.getOutputStream();
+                    out.write(HexFormat.of().parseHex(PUB_SIGNATURE));
+                    out.write(HexFormat.of().parseHex(PUB_GREETING));
+                    out.write(HexFormat.of().parseHex(PUB_READY));
+
+                    byte[] subscriberBytes = new byte[(SUB_GREETING.length() + SUB_READY.length() + SUB_SUBSCRIPTIONS.length()) / 2];
+                    in.readFully(subscriberBytes);
+                    received = HexFormat.of().formatHex(subscriberBytes);
+
+                    for(String message : PUB_MESSAGES) {
+                        out.write(HexFormat.of().parseHex(message));
+                    }
+                    out.flush();
+
+                    //Keeps the connection open until the subscriber closes it
+                    while(in.read() >= 0) {
+                    }
+                } catch(IOException e) {
+                    //closed
+                }
+            }, "TestPublisher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        public int getPort() {
+            return serverSocket.getLocalPort();
+        }
+
+        public String getReceived() {
+            return received;
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+}
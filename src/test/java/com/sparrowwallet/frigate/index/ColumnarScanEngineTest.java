@@ -0,0 +1,307 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.sql.*;
+import java.util.*;
+
+public class ColumnarScanEngineTest {
+    private static final int ROWS = ColumnarScanEngine.BATCH_SIZE * 2 + 1000;
+    private static final int ROWS_PER_BLOCK = 1000;
+    static final String BIP352_SCAN_PRIVATE_KEY = "0f694e068028a717f8af6b9411f9a133dd3565258714cc226594b34db90c1f2c";
+    static final String BIP352_SPEND_PUBLIC_KEY = "025cc9856d6f8375350e123978daac200c260cb5b5ae83106cab90484dcd8fcf36";
+    static final String BIP352_TWEAK_KEY = "024ac253c216532e961988e2a8ce266a447c894c781e52ef6cee902361db960004";
+    static final String BIP352_OUTPUT = "3e9fce73d4e77a4809908e3c3a2e54ee147b9312dc5044a193d1fc85de46e3c1";
+    private static final String SELECT_TWEAKS = "SELECT txid, height, tweak_key, outputs, output_values, spent_mask FROM tweak";
+
+    @Test
+    public void testScanMatchesAcrossBatches() throws SQLException {
+        Random random = new Random(0);
+        List<TweakRow> rows = new ArrayList<>();
+        List<String> expectedFirst = new ArrayList<>();
+        List<String> expectedSecond = new ArrayList<>();
+        for(int i = 0; i < ROWS; i++) {
+            byte[] txid = new byte[32];
+            random.nextBytes(txid);
+            byte[] tweakKey = new byte[33];
+            random.nextBytes(tweakKey);
+            int height = i / ROWS_PER_BLOCK;
+
+            List<Long> outputs = new ArrayList<>(List.of(random.nextLong()));
+            if(i % 7 == 0) {
+                outputs.add(getPrefix(tweakKey, (byte)1));
+                expectedFirst.add(height + ":" + Utils.bytesToHex(txid));
+            }
+            if(i % 11 == 0) {
+                outputs.add(getPrefix(tweakKey, (byte)2));
+                if(height >= 5) {
+                    expectedSecond.add(height + ":" + Utils.bytesToHex(txid));
+                }
+            }
+            rows.add(new TweakRow(txid, height, tweakKey, outputs.stream().mapToLong(Long::longValue).toArray(), new long[outputs.size()], (1L << outputs.size()) - 1));
+        }
+
+        ColumnarScanEngine engine = new ColumnarScanEngine(XorScanKernel::new, 4);
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:")) {
+            try(Statement statement = connection.createStatement()) {
+                Index.createTables(statement);
+            }
+            Index.appendRows(connection, rows);
+
+            List<String> first = new ArrayList<>();
+            List<String> second = new ArrayList<>();
+            try(PreparedStatement statement = connection.prepareStatement(SELECT_TWEAKS + " ORDER BY height"); ResultSet resultSet = statement.executeQuery()) {
+                engine.scan(resultSet, List.of(
+                        new ColumnarScanEngine.ScanKey(new byte[] { 1 }, new byte[0], 0, Integer.MAX_VALUE, ScanFilter.NONE, entry -> first.add(entry.getHeight() + ":" + entry.tx_hash)),
+                        new ColumnarScanEngine.ScanKey(new byte[] { 2 }, new byte[0], 5, Integer.MAX_VALUE, ScanFilter.NONE, entry -> second.add(entry.getHeight() + ":" + entry.tx_hash))));
+            }
+
+            Assertions.assertEquals(new HashSet<>(expectedFirst), new HashSet<>(first));
+            Assertions.assertEquals(expectedFirst.size(), first.size());
+            Assertions.assertEquals(new HashSet<>(expectedSecond), new HashSet<>(second));
+            Assertions.assertEquals(expectedSecond.size(), second.size());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testScanFilter() throws SQLException {
+        byte[] tweakKey = new byte[33];
+        tweakKey[32] = 1;
+        long prefix = getPrefix(tweakKey, (byte)1);
+
+        //Rows with vouts 0 and 2 holding taproot outputs, with values 500 and 20000 in that order
+        List<TweakRow> rows = new ArrayList<>();
+        for(int i = 0; i < 4; i++) {
+            rows.add(new TweakRow(new byte[] { (byte)i }, i, tweakKey, new long[] { 0L, prefix }, new long[] { 500L, 20000L }, 0b101L));
+        }
+
+        ColumnarScanEngine engine = new ColumnarScanEngine(XorScanKernel::new, 1);
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:")) {
+            try(Statement statement = connection.createStatement()) {
+                Index.createTables(statement);
+                Index.appendRows(connection, rows);
+                //A row indexed before output values were stored
+                statement.execute("UPDATE tweak SET output_values = NULL WHERE height = 3");
+                //Spends the second output of row 1, then both outputs of row 2, with a vout that holds no taproot output ignored
+                statement.execute("INSERT INTO spent_output VALUES (1, '\\x01'::BLOB, 2, 10), (2, '\\x02'::BLOB, 0, 10), (2, '\\x02'::BLOB, 1, 11), (2, '\\x02'::BLOB, 2, 11)");
+                Index.applySpentOutputs(connection);
+
+                try(ResultSet resultSet = statement.executeQuery("SELECT spent_mask, spent_height FROM tweak ORDER BY height")) {
+                    long[] expectedMasks = { 0L, 0b10L, 0b11L, 0L };
+                    for(long expectedMask : expectedMasks) {
+                        Assertions.assertTrue(resultSet.next());
+                        Assertions.assertEquals(expectedMask, resultSet.getLong(1));
+                    }
+                }
+            }
+
+            Assertions.assertEquals(List.of(0, 1, 2, 3), scan(engine, connection, ScanFilter.NONE));
+            Assertions.assertEquals(List.of(0, 1, 2, 3), scan(engine, connection, new ScanFilter(10000L, false)));
+            Assertions.assertEquals(List.of(0, 1, 3), scan(engine, connection, new ScanFilter(0L, true)));
+            Assertions.assertEquals(List.of(0, 3), scan(engine, connection, new ScanFilter(10000L, true)));
+            Assertions.assertEquals(List.of(3), scan(engine, connection, new ScanFilter(50000L, false)));
+
+            //The filter is also applied by the engine for each key, as the rows of a shared scan are read with the least restrictive filter
+            List<Integer> heights = new ArrayList<>();
+            try(PreparedStatement statement = connection.prepareStatement(SELECT_TWEAKS + " ORDER BY height"); ResultSet resultSet = statement.executeQuery()) {
+                engine.scan(resultSet, List.of(new ColumnarScanEngine.ScanKey(new byte[] { 1 }, new byte[0], 0, Integer.MAX_VALUE, new ScanFilter(10000L, true), entry -> heights.add(entry.getHeight()))));
+            }
+            Assertions.assertEquals(List.of(0, 3), heights);
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testScanRowsInMemory() {
+        Random random = new Random(0);
+        List<TweakRow> rows = new ArrayList<>();
+        long[] spentMasks = new long[ROWS];
+        int expected = 0;
+        int expectedUnspent = 0;
+        for(int i = 0; i < ROWS; i++) {
+            byte[] txid = new byte[32];
+            random.nextBytes(txid);
+            byte[] tweakKey = new byte[33];
+            random.nextBytes(tweakKey);
+            long[] outputs = new long[] { random.nextLong(), i % 7 == 0 ? getPrefix(tweakKey, (byte)1) : random.nextLong() };
+            rows.add(new TweakRow(txid, i / ROWS_PER_BLOCK, tweakKey, outputs, new long[2], 0b11L));
+            //Every other matched row has both outputs spent
+            spentMasks[i] = i % 14 == 0 ? 0b11L : 0L;
+            expected += i % 7 == 0 ? 1 : 0;
+            expectedUnspent += i % 7 == 0 && i % 14 != 0 ? 1 : 0;
+        }
+
+        //More keys than are computed together in a single group
+        ColumnarScanEngine engine = new ColumnarScanEngine(XorScanKernel::new, 4);
+        try {
+            List<List<TxEntry>> histories = new ArrayList<>();
+            List<ColumnarScanEngine.ScanKey> keys = new ArrayList<>();
+            for(int k = 0; k < 600; k++) {
+                List<TxEntry> history = new ArrayList<>();
+                histories.add(history);
+                keys.add(new ColumnarScanEngine.ScanKey(new byte[] { (byte)(k % 2 + 1) }, new byte[0], 0, Integer.MAX_VALUE, new ScanFilter(0L, k % 4 == 0), history::add));
+            }
+            engine.scan(rows, spentMasks, keys);
+
+            for(int k = 0; k < keys.size(); k++) {
+                Assertions.assertEquals(k % 2 == 1 ? 0 : (k % 4 == 0 ? expectedUnspent : expected), histories.get(k).size());
+            }
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testFilterMatchesCondition() throws SQLException {
+        //Values either side of each dust limit, with more outputs than there are spent flags in some rows
+        Random random = new Random(0);
+        long[] valueChoices = { 0L, 545L, 546L, 1000L, 10000L };
+        List<TweakRow> rows = new ArrayList<>();
+        for(int i = 0; i < 2000; i++) {
+            byte[] tweakKey = new byte[33];
+            random.nextBytes(tweakKey);
+            int outputCount = 3 + (i % 50 == 0 ? 64 : random.nextInt(4));
+            long[] outputs = new long[outputCount];
+            long[] values = new long[outputCount];
+            for(int j = 0; j < outputCount; j++) {
+                //Every row pays every key, so the keys only differ in their filters
+                outputs[j] = j < 3 ? getPrefix(tweakKey, (byte)(j + 1)) : random.nextLong();
+                values[j] = valueChoices[random.nextInt(valueChoices.length)];
+            }
+            rows.add(new TweakRow(new byte[] { (byte)(i >> 8), (byte)i }, i, tweakKey, outputs, values, (1L << outputCount) - 1));
+        }
+
+        List<ScanFilter> filters = List.of(new ScanFilter(546L, false), new ScanFilter(0L, true), new ScanFilter(1000L, true));
+        ColumnarScanEngine engine = new ColumnarScanEngine(XorScanKernel::new, 4);
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:")) {
+            try(Statement statement = connection.createStatement()) {
+                Index.createTables(statement);
+                Index.appendRows(connection, rows);
+                statement.execute("UPDATE tweak SET spent_mask = CASE height % 3 WHEN 0 THEN 0 WHEN 1 THEN (hash(height) & ((1::BIGINT << 62) - 1)) ELSE -1 END");
+                //Rows indexed before output values were stored
+                statement.execute("UPDATE tweak SET output_values = NULL WHERE height % 17 = 0");
+            }
+
+            Map<Integer, Long> spentMasks = new HashMap<>();
+            Set<Integer> unvalued = new HashSet<>();
+            try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT height, spent_mask, output_values IS NULL FROM tweak")) {
+                while(resultSet.next()) {
+                    spentMasks.put(resultSet.getInt(1), resultSet.getLong(2));
+                    if(resultSet.getBoolean(3)) {
+                        unvalued.add(resultSet.getInt(1));
+                    }
+                }
+            }
+
+            List<List<Integer>> conditionMatches = new ArrayList<>();
+            for(ScanFilter filter : filters) {
+                List<Integer> expected = new ArrayList<>();
+                for(TweakRow row : rows) {
+                    if(unvalued.contains(row.height()) || filter.matches(row.outputValues(), 0, row.outputValues().length, spentMasks.get(row.height()))) {
+                        expected.add(row.height());
+                    }
+                }
+
+                List<Integer> heights = new ArrayList<>();
+                try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT height FROM tweak WHERE " + filter.getCondition(null) + " ORDER BY height")) {
+                    while(resultSet.next()) {
+                        heights.add(resultSet.getInt(1));
+                    }
+                }
+                Assertions.assertEquals(expected, heights);
+                Assertions.assertTrue(heights.size() > 100 && heights.size() < rows.size());
+                conditionMatches.add(heights);
+            }
+
+            //A shared scan reads rows with the union of the filters, and each key must then match exactly the rows its own condition selects
+            List<List<Integer>> keyMatches = List.of(new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+            List<ColumnarScanEngine.ScanKey> keys = new ArrayList<>();
+            for(int k = 0; k < filters.size(); k++) {
+                List<Integer> matches = keyMatches.get(k);
+                keys.add(new ColumnarScanEngine.ScanKey(new byte[] { (byte)(k + 1) }, new byte[0], 0, Integer.MAX_VALUE, filters.get(k), entry -> matches.add(entry.getHeight())));
+            }
+            String sql = SELECT_TWEAKS + " WHERE " + ScanFilter.union(filters).getCondition(null) + " ORDER BY height";
+            try(PreparedStatement statement = connection.prepareStatement(sql); ResultSet resultSet = statement.executeQuery()) {
+                engine.scan(resultSet, keys);
+            }
+            Assertions.assertEquals(conditionMatches, keyMatches);
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static List<Integer> scan(ColumnarScanEngine engine, Connection connection, ScanFilter filter) throws SQLException {
+        List<Integer> heights = new ArrayList<>();
+        String sql = SELECT_TWEAKS + (filter.isEmpty() ? "" : " WHERE " + filter.getCondition(null)) + " ORDER BY height";
+        try(PreparedStatement statement = connection.prepareStatement(sql); ResultSet resultSet = statement.executeQuery()) {
+            engine.scan(resultSet, List.of(new ColumnarScanEngine.ScanKey(new byte[] { 1 }, new byte[0], 0, Integer.MAX_VALUE, ScanFilter.NONE, entry -> heights.add(entry.getHeight()))));
+        }
+
+        return heights;
+    }
+
+    @Test
+    public void testNativeKernelTestVector() {
+        Secp256k1Library library;
+        try {
+            library = Secp256k1Library.get();
+        } catch(IllegalStateException e) {
+            Assumptions.abort("libsecp256k1 is not available");
+            return;
+        }
+
+        //The tweak key, keys and output of the first BIP352 send and receive test vector, with a tweak key not on the curve in between
+        byte[] tweakKey = Utils.hexToBytes(BIP352_TWEAK_KEY);
+        byte[] invalidTweakKey = new byte[33];
+        invalidTweakKey[0] = 0x02;
+        invalidTweakKey[32] = 5;
+        Arena arena = Arena.ofAuto();
+        MemorySegment tweakKeys = arena.allocate(33 * 3);
+        MemorySegment.copy(tweakKey, 0, tweakKeys, ValueLayout.JAVA_BYTE, 0, 33);
+        MemorySegment.copy(invalidTweakKey, 0, tweakKeys, ValueLayout.JAVA_BYTE, 33, 33);
+        MemorySegment.copy(tweakKey, 0, tweakKeys, ValueLayout.JAVA_BYTE, 66, 33);
+        long[] prefixes = new long[] { -1L, -1L, -1L };
+
+        try(NativeScanKernel kernel = new NativeScanKernel(library, Utils.hexToBytes(BIP352_SCAN_PRIVATE_KEY), Utils.hexToBytes(BIP352_SPEND_PUBLIC_KEY))) {
+            kernel.computeOutputPrefixes(tweakKeys, new int[] { 2, 1, 0 }, 0, 3, prefixes);
+        }
+
+        long expected = Index.getHashPrefix(Utils.hexToBytes(BIP352_OUTPUT), 0);
+        Assertions.assertArrayEquals(new long[] { expected, 0L, expected }, prefixes);
+    }
+
+    static long getPrefix(byte[] tweakKey, byte scanKey) {
+        return Index.getHashPrefix(tweakKey, 1) ^ scanKey;
+    }
+
+    //Stands in for the EC computation so the batching and matching can be tested without libsecp256k1
+    static class XorScanKernel implements ScanKernel {
+        private final byte scanKey;
+
+        public XorScanKernel(byte[] scanPrivateKey, byte[] spendPublicKey) {
+            this.scanKey = scanPrivateKey[0];
+        }
+
+        @Override
+        public void computeOutputPrefixes(MemorySegment tweakKeys, int[] rows, int from, int to, long[] prefixes) {
+            byte[] tweakKey = new byte[33];
+            for(int i = from; i < to; i++) {
+                MemorySegment.copy(tweakKeys, ValueLayout.JAVA_BYTE, rows[i] * TWEAK_KEY_SIZE, tweakKey, 0, 33);
+                prefixes[rows[i]] = getPrefix(tweakKey, scanKey);
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.sparrowwallet.frigate.index;
+
+import com.google.common.eventbus.Subscribe;
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.duckdb.DuckDBPreparedStatement;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class HistoryScanTest {
+    private static final int PAGE_SIZE = 100;
+
+    private final List<SilentPaymentsNotification> notifications = new CopyOnWriteArrayList<>();
+    private Connection connection;
+    private DuckDBPreparedStatement statement;
+
+    @BeforeEach
+    public void setUp() throws SQLException {
+        Frigate.getEventBus().register(this);
+        connection = DriverManager.getConnection("jdbc:duckdb:");
+        statement = connection.prepareStatement("SELECT 1").unwrap(DuckDBPreparedStatement.class);
+    }
+
+    @AfterEach
+    public void tearDown() throws SQLException {
+        Frigate.getEventBus().unregister(this);
+        statement.close();
+        connection.close();
+    }
+
+    @Subscribe
+    public void silentPaymentsNotification(SilentPaymentsNotification notification) {
+        notifications.add(notification);
+    }
+
+    @Test
+    public void testFullPagesPushed() {
+        HistoryScan historyScan = createHistoryScan();
+        historyScan.start();
+        for(int i = 0; i < PAGE_SIZE * 2 + 50; i++) {
+            historyScan.add(new TxEntry(i, 0, String.format("%064x", i)));
+        }
+
+        //Full pages are pushed as they fill without waiting for the scheduler
+        Assertions.assertEquals(2, notifications.size());
+        Assertions.assertEquals(PAGE_SIZE, notifications.get(0).history().size());
+        Assertions.assertEquals(PAGE_SIZE, notifications.get(1).history().size());
+        Assertions.assertEquals(50, historyScan.finish().size());
+    }
+
+    @Test
+    public void testPartialPageFlushed() throws InterruptedException {
+        HistoryScan historyScan = createHistoryScan();
+        historyScan.start();
+        for(int i = 0; i < 3; i++) {
+            historyScan.add(new TxEntry(i, 0, String.format("%064x", i)));
+        }
+
+        long start = System.currentTimeMillis();
+        while(notifications.isEmpty() && System.currentTimeMillis() - start < 900) {
+            Thread.sleep(10);
+        }
+
+        Assertions.assertEquals(1, notifications.size());
+        Assertions.assertEquals(3, notifications.getFirst().history().size());
+        Assertions.assertTrue(historyScan.finish().isEmpty());
+    }
+
+    @Test
+    public void testNoFlushAfterFinish() throws InterruptedException {
+        HistoryScan historyScan = createHistoryScan();
+        historyScan.start();
+        historyScan.add(new TxEntry(1, 0, String.format("%064x", 1)));
+        Assertions.assertEquals(1, historyScan.finish().size());
+
+        Thread.sleep(300);
+        Assertions.assertTrue(notifications.isEmpty());
+    }
+
+    @Test
+    public void testPagesPostedInOrder() throws InterruptedException {
+        HistoryScan historyScan = createHistoryScan();
+        historyScan.start();
+        List<TxEntry> entries = new ArrayList<>();
+        for(int i = 0; i < 1000; i++) {
+            TxEntry entry = new TxEntry(i, 0, String.format("%064x", i));
+            entries.add(entry);
+            historyScan.add(entry);
+            //Pauses past the flush deadline, so that partial pages are posted from the scheduler thread between full pages posted from this thread
+            if(i % 150 == 149) {
+                Thread.sleep(120);
+            }
+        }
+
+        List<TxEntry> posted = new ArrayList<>();
+        for(SilentPaymentsNotification notification : notifications) {
+            posted.addAll(notification.history());
+        }
+        Assertions.assertTrue(notifications.stream().anyMatch(notification -> notification.history().size() < PAGE_SIZE));
+        posted.addAll(historyScan.finish());
+        Assertions.assertEquals(entries, posted);
+    }
+
+    private HistoryScan createHistoryScan() {
+        return new HistoryScan(statement, new SilentPaymentsSubscription("sp1", 0), new WeakReference<>(null), () -> false, PAGE_SIZE);
+    }
+}
@@ -0,0 +1,112 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.sql.*;
+import java.util.*;
+
+public class IndexAppenderTest {
+    @Test
+    public void testAppendRows() throws SQLException {
+        List<List<TweakRow>> blocks = createBlocks(5, 200);
+
+        try(Connection connection = createConnection()) {
+            for(List<TweakRow> block : blocks) {
+                Assertions.assertEquals(block.getFirst().height(), Index.appendRows(connection, block));
+            }
+            Assertions.assertEquals(-1, Index.appendRows(connection, Collections.emptyList()));
+
+            List<String> expected = new ArrayList<>();
+            for(List<TweakRow> block : blocks) {
+                for(TweakRow row : block) {
+                    expected.add(getContents(row));
+                }
+            }
+            Assertions.assertEquals(expected, getContents(connection));
+        }
+    }
+
+    @Test
+    public void testAppendRowsInHeightOrder() throws SQLException {
+        List<List<TweakRow>> blocks = createBlocks(3, 50);
+        List<TweakRow> rows = new ArrayList<>();
+        for(List<TweakRow> block : blocks.reversed()) {
+            rows.addAll(block);
+        }
+
+        try(Connection connection = createConnection()) {
+            //Rows from several blocks appended together are returned with the highest height, and stored clustered by height
+            Assertions.assertEquals(3, Index.appendRows(connection, rows));
+            List<String> expected = new ArrayList<>();
+            for(List<TweakRow> block : blocks) {
+                for(TweakRow row : block) {
+                    expected.add(getContents(row));
+                }
+            }
+            Assertions.assertEquals(expected, getContents(connection));
+        }
+    }
+
+    static List<List<TweakRow>> createBlocks(int blockCount, int transactionsPerBlock) {
+        Random random = new Random(0);
+        List<List<TweakRow>> blocks = new ArrayList<>();
+        for(int height = 1; height <= blockCount; height++) {
+            List<TweakRow> block = new ArrayList<>();
+            for(int i = 0; i < transactionsPerBlock; i++) {
+                byte[] txid = new byte[32];
+                random.nextBytes(txid);
+                byte[] tweakKey = new byte[33];
+                random.nextBytes(tweakKey);
+                long[] outputs = new long[random.nextInt(4)];
+                long[] outputValues = new long[outputs.length];
+                for(int j = 0; j < outputs.length; j++) {
+                    outputs[j] = random.nextLong();
+                    outputValues[j] = random.nextInt(100000);
+                }
+                block.add(new TweakRow(txid, height, tweakKey, outputs, outputValues, (1L << outputs.length) - 1));
+            }
+            blocks.add(block);
+        }
+
+        return blocks;
+    }
+
+    static Connection createConnection() throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:duckdb:");
+        try(Statement statement = connection.createStatement()) {
+            Index.createTables(statement);
+        }
+
+        return connection;
+    }
+
+    private static String getContents(TweakRow row) {
+        HexFormat hexFormat = HexFormat.of().withUpperCase();
+        List<String> outputs = new ArrayList<>();
+        for(int i = 0; i < row.outputs().length; i++) {
+            outputs.add(row.outputs()[i] + ":" + row.outputValues()[i]);
+        }
+        Collections.sort(outputs);
+        return hexFormat.formatHex(row.txid()) + " " + row.height() + " " + hexFormat.formatHex(row.tweakKey()) + " " + outputs + " " + row.outputVoutMask() + " 0 null";
+    }
+
+    //Each output is paired with its value, so that values misaligned with their outputs are detected
+    private static List<String> getContents(Connection connection) throws SQLException {
+        List<String> contents = new ArrayList<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery("SELECT hex(txid), height, hex(tweak_key), list_sort(list_transform(range(1, len(outputs) + 1), i -> outputs[i]::VARCHAR || ':' || output_values[i]::VARCHAR)), " +
+                    "output_vout_mask, spent_mask, spent_height FROM tweak ORDER BY rowid")) {
+            while(resultSet.next()) {
+                List<String> outputs = new ArrayList<>();
+                for(Object output : (Object[])resultSet.getArray(4).getArray()) {
+                    outputs.add((String)output);
+                }
+                Collections.sort(outputs);
+                contents.add(resultSet.getString(1) + " " + resultSet.getInt(2) + " " + resultSet.getString(3) + " " + outputs + " " + resultSet.getLong(5) + " " + resultSet.getLong(6) + " " + resultSet.getObject(7));
+            }
+        }
+
+        return contents;
+    }
+}
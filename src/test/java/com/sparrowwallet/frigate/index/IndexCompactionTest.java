@@ -0,0 +1,71 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class IndexCompactionTest {
+    @Test
+    public void testRewriteHeight() {
+        Assertions.assertNull(getStats(0, 99, 100, 199, 200, 250).getRewriteHeight());
+        Assertions.assertNull(getStats(0, 99, 99, 199).getRewriteHeight());
+        //A late block lands after later ones, so the row groups from the first that overlaps it onwards are rewritten
+        Assertions.assertEquals(100, getStats(0, 99, 100, 199, 200, 299, 150, 160).getRewriteHeight());
+        Assertions.assertEquals(200, getStats(0, 99, 100, 199, 200, 299, 250, 260).getRewriteHeight());
+        //A row group emptied by a reorg keeps its zone map, so it must be rewritten along with the rows appended after it
+        Assertions.assertEquals(100, getStats(0, 99, 100, 199, 150, 180).getRewriteHeight());
+        Assertions.assertEquals(0, getStats(50, 99, 0, 40).getRewriteHeight());
+    }
+
+    @Test
+    public void testCompactDatabaseFile(@TempDir File tempDir) throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:" + new File(tempDir, "compaction.duckdb").getAbsolutePath()); Statement statement = connection.createStatement()) {
+            Index.createTables(statement);
+            insertRows(statement, 0, 400000);
+            //A reorg replaces the last blocks, and a late block is appended after them
+            statement.execute("DELETE FROM tweak WHERE height >= 350");
+            insertRows(statement, 350000, 400000);
+            insertRows(statement, 120000, 125000);
+            statement.execute("CHECKPOINT");
+
+            RowGroupStats stats = Index.getRowGroupStats(connection);
+            Assertions.assertTrue(stats.getOverlappingRowGroups() > 0);
+            long heights = getHeightSum(statement);
+
+            Assertions.assertTrue(Index.compact(connection, stats));
+            RowGroupStats compactedStats = Index.getRowGroupStats(connection);
+            Assertions.assertEquals(0, compactedStats.getOverlappingRowGroups());
+            Assertions.assertNull(compactedStats.getRewriteHeight());
+            Assertions.assertEquals(stats.rows(), compactedStats.rows());
+            Assertions.assertEquals(heights, getHeightSum(statement));
+
+            //Nothing is rewritten once the row groups are clustered
+            Assertions.assertFalse(Index.compact(connection, compactedStats));
+        }
+    }
+
+    private static RowGroupStats getStats(int... heights) {
+        List<RowGroupStats.HeightRange> heightRanges = new ArrayList<>();
+        for(int i = 0; i < heights.length; i += 2) {
+            heightRanges.add(new RowGroupStats.HeightRange(heights[i], heights[i + 1]));
+        }
+        return new RowGroupStats(0, 0, heightRanges);
+    }
+
+    private static void insertRows(Statement statement, int from, int to) throws SQLException {
+        statement.execute("INSERT INTO tweak (txid, height, tweak_key, outputs, output_values, output_vout_mask, spent_mask) SELECT sha256(i::VARCHAR)::BLOB, (i // 1000)::INTEGER, " +
+                "'\\x02'::BLOB, [i], [1000], 1, 0 FROM range(" + from + ", " + to + ") r(i)");
+    }
+
+    private static long getHeightSum(Statement statement) throws SQLException {
+        try(ResultSet resultSet = statement.executeQuery("SELECT SUM(height) FROM tweak")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
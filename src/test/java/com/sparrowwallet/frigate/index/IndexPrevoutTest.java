@@ -0,0 +1,142 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.protocol.HashIndex;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.*;
+import java.util.*;
+
+public class IndexPrevoutTest {
+    private static final byte[] TAPROOT_SCRIPT = getScript(0x51, 0x20, 34);
+    private static final byte[] P2WPKH_SCRIPT = getScript(0x00, 0x14, 22);
+
+    @Test
+    public void testInsertSpendAndReorg(@TempDir File tempDir) throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:" + new File(tempDir, "prevout.duckdb").getAbsolutePath()); Statement statement = connection.createStatement()) {
+            Index.createPrevoutTable(statement);
+
+            HashIndex taprootOutput = getOutpoint(1, 0);
+            HashIndex p2wpkhOutput = getOutpoint(1, 1);
+            Map<HashIndex, byte[]> created = new LinkedHashMap<>();
+            created.put(taprootOutput, TAPROOT_SCRIPT);
+            created.put(p2wpkhOutput, P2WPKH_SCRIPT);
+            List<Index.SpentOutput> spentTaprootOutputs = new ArrayList<>();
+            Assertions.assertEquals(2, Index.updatePrevouts(connection, 100, created, Collections.emptyList(), spentTaprootOutputs));
+            Assertions.assertTrue(spentTaprootOutputs.isEmpty());
+
+            Map<HashIndex, byte[]> prevouts = Index.getPrevouts(connection, List.of(taprootOutput, p2wpkhOutput, getOutpoint(2, 0)));
+            Assertions.assertEquals(2, prevouts.size());
+            Assertions.assertArrayEquals(TAPROOT_SCRIPT, prevouts.get(taprootOutput));
+            Assertions.assertArrayEquals(P2WPKH_SCRIPT, prevouts.get(p2wpkhOutput));
+
+            //A taproot output created and spent in the same block is reported with that height and never stored
+            HashIndex sameBlockOutput = getOutpoint(3, 0);
+            HashIndex laterOutput = getOutpoint(3, 1);
+            created = new LinkedHashMap<>();
+            created.put(sameBlockOutput, TAPROOT_SCRIPT);
+            created.put(laterOutput, TAPROOT_SCRIPT);
+            //An output created before the table was filled is not known, and is left to be looked up over RPC
+            List<HashIndex> spent = List.of(taprootOutput, p2wpkhOutput, sameBlockOutput, getOutpoint(4, 0));
+            Assertions.assertEquals(1, Index.updatePrevouts(connection, 101, created, spent, spentTaprootOutputs));
+
+            Set<Index.SpentOutput> expected = Set.of(new Index.SpentOutput(taprootOutput, 100, 101), new Index.SpentOutput(sameBlockOutput, 101, 101));
+            Assertions.assertEquals(expected, new HashSet<>(spentTaprootOutputs));
+            prevouts = Index.getPrevouts(connection, List.of(taprootOutput, p2wpkhOutput, sameBlockOutput, laterOutput));
+            Assertions.assertEquals(Set.of(laterOutput), prevouts.keySet());
+
+            //A reorg removes the outputs created by the disconnected blocks, but does not restore those they spent
+            Index.removePrevouts(connection, 101);
+            Assertions.assertTrue(Index.getPrevouts(connection, List.of(taprootOutput, p2wpkhOutput, laterOutput)).isEmpty());
+
+            HashIndex replacementOutput = getOutpoint(5, 0);
+            Assertions.assertEquals(1, Index.updatePrevouts(connection, 101, Map.of(replacementOutput, P2WPKH_SCRIPT), Collections.emptyList(), spentTaprootOutputs));
+            Assertions.assertEquals(Set.of(replacementOutput), Index.getPrevouts(connection, List.of(replacementOutput, laterOutput)).keySet());
+        }
+    }
+
+    @Test
+    public void testScriptTypes() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:"); Statement statement = connection.createStatement()) {
+            //A table holding full scripts for every output is replaced
+            statement.execute("CREATE TABLE prevout (outpoint BIGINT PRIMARY KEY, txid_check INTEGER NOT NULL, height INTEGER NOT NULL, script_pub_key BLOB NOT NULL)");
+            statement.execute("INSERT INTO prevout VALUES (1, 1, 1, ''::BLOB)");
+            Index.createPrevoutTable(statement);
+
+            byte[] p2pkhScript = getScript(0x76, 0xa9, 25);
+            p2pkhScript[2] = 0x14;
+            p2pkhScript[23] = (byte)0x88;
+            p2pkhScript[24] = (byte)0xac;
+            byte[] p2shScript = getScript(0xa9, 0x14, 23);
+            p2shScript[22] = (byte)0x87;
+            byte[] p2wshScript = getScript(0x00, 0x20, 34);
+
+            //Eligible scripts are rebuilt from their type and key, while other outputs are not stored
+            Map<HashIndex, byte[]> created = new LinkedHashMap<>();
+            created.put(getOutpoint(1, 0), p2pkhScript);
+            created.put(getOutpoint(1, 1), p2shScript);
+            created.put(getOutpoint(1, 2), P2WPKH_SCRIPT);
+            created.put(getOutpoint(1, 3), TAPROOT_SCRIPT);
+            created.put(getOutpoint(1, 4), p2wshScript);
+            created.put(getOutpoint(1, 5), new byte[0]);
+            Assertions.assertEquals(4, Index.updatePrevouts(connection, 100, created, Collections.emptyList(), new ArrayList<>()));
+
+            Map<HashIndex, byte[]> prevouts = Index.getPrevouts(connection, created.keySet());
+            Assertions.assertEquals(4, prevouts.size());
+            for(int i = 0; i < 4; i++) {
+                Assertions.assertArrayEquals(created.get(getOutpoint(1, i)), prevouts.get(getOutpoint(1, i)));
+            }
+
+            try(ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM prevout")) {
+                Assertions.assertTrue(resultSet.next());
+                Assertions.assertEquals(4, resultSet.getInt(1));
+            }
+        }
+    }
+
+    @Test
+    public void testOutpointKeyCollision() throws SQLException {
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:"); Statement statement = connection.createStatement()) {
+            Index.createPrevoutTable(statement);
+
+            //Txids sharing the key prefix but differing in the check bytes must not return each other's outputs
+            byte[] txid = new byte[32];
+            txid[0] = 1;
+            HashIndex storedOutput = new HashIndex(Sha256Hash.wrap(txid.clone()), 0);
+            txid[8] = 1;
+            HashIndex otherOutput = new HashIndex(Sha256Hash.wrap(txid), 0);
+            Index.updatePrevouts(connection, 100, Map.of(storedOutput, TAPROOT_SCRIPT), Collections.emptyList(), new ArrayList<>());
+
+            Assertions.assertTrue(Index.getPrevouts(connection, List.of(otherOutput)).isEmpty());
+            List<Index.SpentOutput> spentTaprootOutputs = new ArrayList<>();
+            Index.updatePrevouts(connection, 101, Collections.emptyMap(), List.of(otherOutput), spentTaprootOutputs);
+            Assertions.assertTrue(spentTaprootOutputs.isEmpty());
+
+            //The colliding spend leaves the stored output in place, to be removed only by its own spend
+            Map<HashIndex, byte[]> prevouts = Index.getPrevouts(connection, List.of(storedOutput));
+            Assertions.assertArrayEquals(TAPROOT_SCRIPT, prevouts.get(storedOutput));
+            Index.updatePrevouts(connection, 102, Collections.emptyMap(), List.of(otherOutput, storedOutput), spentTaprootOutputs);
+            Assertions.assertEquals(List.of(new Index.SpentOutput(storedOutput, 100, 102)), spentTaprootOutputs);
+            Assertions.assertTrue(Index.getPrevouts(connection, List.of(storedOutput)).isEmpty());
+        }
+    }
+
+    private static HashIndex getOutpoint(int tx, int index) {
+        byte[] txid = new byte[32];
+        txid[0] = (byte)tx;
+        txid[31] = (byte)tx;
+        txid[10] = (byte)tx;
+        return new HashIndex(Sha256Hash.wrap(txid), index);
+    }
+
+    private static byte[] getScript(int opcode, int push, int length) {
+        byte[] script = new byte[length];
+        script[0] = (byte)opcode;
+        script[1] = (byte)push;
+        Arrays.fill(script, 2, length, (byte)0x5a);
+        return script;
+    }
+}
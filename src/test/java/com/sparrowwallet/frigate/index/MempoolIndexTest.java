@@ -0,0 +1,187 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import com.sparrowwallet.drongo.crypto.ECKey;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.drongo.protocol.Transaction;
+import com.sparrowwallet.drongo.silentpayments.SilentPaymentScanAddress;
+import com.sparrowwallet.drongo.wallet.BlockTransaction;
+import com.sparrowwallet.frigate.SubscriptionStatus;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.*;
+import java.util.stream.Collectors;
+
+public class MempoolIndexTest {
+    @Test
+    public void testAddRemoveAndGetHistory() {
+        SilentPaymentScanAddress first = getAddress(1);
+        SilentPaymentScanAddress second = getAddress(2);
+        SubscriptionStatus status = new TestSubscriptionStatus(Set.of(first.toString(), second.toString()));
+
+        MempoolIndex mempoolIndex = new MempoolIndex(new ColumnarScanEngine(ColumnarScanEngineTest.XorScanKernel::new, 1));
+        try {
+            Map<BlockTransaction, byte[]> transactions = new LinkedHashMap<>();
+            BlockTransaction firstTx = addTransaction(transactions, 1, (byte)1, 20000L);
+            BlockTransaction secondTx = addTransaction(transactions, 2, (byte)2, 500L);
+            BlockTransaction bothTx = addTransaction(transactions, 3, (byte)1, 1000L);
+            addTransaction(transactions, 4, (byte)3, 1000L);
+            mempoolIndex.addToIndex(transactions);
+            Assertions.assertEquals(4, mempoolIndex.size());
+
+            Assertions.assertEquals(getTxids(firstTx, bothTx), getTxids(mempoolIndex.getHistory(first, ScanFilter.NONE, new WeakReference<>(status))));
+            Assertions.assertEquals(getTxids(secondTx), getTxids(mempoolIndex.getHistory(second, ScanFilter.NONE, new WeakReference<>(status))));
+            Assertions.assertEquals(getTxids(firstTx), getTxids(mempoolIndex.getHistory(first, new ScanFilter(10000L, false), new WeakReference<>(status))));
+            //Mempool transactions are reported at height 0
+            Assertions.assertTrue(mempoolIndex.getHistory(first, ScanFilter.NONE, new WeakReference<>(status)).stream().allMatch(entry -> entry.getHeight() == 0));
+
+            //Addresses that are no longer subscribed are not scanned
+            Assertions.assertTrue(mempoolIndex.getHistory(first, ScanFilter.NONE, new WeakReference<>(new TestSubscriptionStatus(Set.of()))).isEmpty());
+
+            mempoolIndex.removeFromIndex(Set.of(firstTx.getTransaction().getTxId()));
+            Assertions.assertEquals(3, mempoolIndex.size());
+            Assertions.assertEquals(getTxids(bothTx), getTxids(mempoolIndex.getHistory(first, ScanFilter.NONE, new WeakReference<>(status))));
+        } finally {
+            mempoolIndex.close();
+        }
+
+        Assertions.assertEquals(0, mempoolIndex.size());
+        Assertions.assertTrue(mempoolIndex.getHistory(first, ScanFilter.NONE, new WeakReference<>(status)).isEmpty());
+    }
+
+    @Test
+    public void testGetAddedHistory() {
+        SilentPaymentScanAddress first = getAddress(1);
+        SilentPaymentScanAddress second = getAddress(2);
+        SubscriptionStatus status = new TestSubscriptionStatus(Set.of(first.toString(), second.toString()));
+
+        MempoolIndex mempoolIndex = new MempoolIndex(new ColumnarScanEngine(ColumnarScanEngineTest.XorScanKernel::new, 1));
+        try {
+            Map<BlockTransaction, byte[]> existing = new LinkedHashMap<>();
+            addTransaction(existing, 1, (byte)1, 1000L);
+            mempoolIndex.addToIndex(existing);
+
+            Map<BlockTransaction, byte[]> added = new LinkedHashMap<>();
+            BlockTransaction firstTx = addTransaction(added, 2, (byte)1, 1000L);
+            BlockTransaction secondTx = addTransaction(added, 3, (byte)2, 1000L);
+            BlockTransaction removedTx = addTransaction(added, 4, (byte)2, 1000L);
+            mempoolIndex.addToIndex(added);
+            mempoolIndex.removeFromIndex(Set.of(removedTx.getTransaction().getTxId()));
+
+            //Only the added transactions still in the mempool are scanned, with results in request order and none for unsubscribed addresses
+            Set<Sha256Hash> addedTxids = added.keySet().stream().map(blkTx -> blkTx.getTransaction().getTxId()).collect(Collectors.toSet());
+            List<ScanRequest> requests = List.of(getRequest(second, status), getRequest(getAddress(3), new TestSubscriptionStatus(Set.of())), getRequest(first, status));
+            List<List<TxEntry>> histories = mempoolIndex.getHistory(requests, addedTxids);
+            Assertions.assertEquals(3, histories.size());
+            Assertions.assertEquals(getTxids(secondTx), getTxids(histories.get(0)));
+            Assertions.assertTrue(histories.get(1).isEmpty());
+            Assertions.assertEquals(getTxids(firstTx), getTxids(histories.get(2)));
+
+            Assertions.assertTrue(mempoolIndex.getHistory(requests, Set.of()).stream().allMatch(List::isEmpty));
+        } finally {
+            mempoolIndex.close();
+        }
+    }
+
+    private static BlockTransaction addTransaction(Map<BlockTransaction, byte[]> transactions, int seed, byte scanKey, long value) {
+        byte[] tweakKey = new byte[33];
+        tweakKey[0] = 0x02;
+        Arrays.fill(tweakKey, 1, tweakKey.length, (byte)(seed * 16));
+        tweakKey[32] = (byte)seed;
+
+        //A version 2 transaction spending a single input, with a non-taproot output followed by a taproot output paying the given scan key
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.writeBytes(getLittleEndian(2, 4));
+        bytes.write(1);
+        byte[] prevTxid = new byte[32];
+        Arrays.fill(prevTxid, (byte)seed);
+        bytes.writeBytes(prevTxid);
+        bytes.writeBytes(getLittleEndian(0, 4));
+        bytes.write(0);
+        bytes.writeBytes(getLittleEndian(0xffffffffL, 4));
+        bytes.write(2);
+        bytes.writeBytes(getLittleEndian(value, 8));
+        bytes.writeBytes(new byte[] { 0x16, 0x00, 0x14 });
+        bytes.writeBytes(new byte[20]);
+        bytes.writeBytes(getLittleEndian(value, 8));
+        byte[] script = new byte[34];
+        script[0] = 0x51;
+        script[1] = 0x20;
+        ByteBuffer.wrap(script, 2, 8).putLong(ColumnarScanEngineTest.getPrefix(tweakKey, scanKey));
+        bytes.write(script.length);
+        bytes.writeBytes(script);
+        bytes.writeBytes(getLittleEndian(0, 4));
+
+        Transaction transaction = new Transaction(bytes.toByteArray());
+        BlockTransaction blkTx = new BlockTransaction(transaction.getTxId(), 0, null, null, transaction);
+        transactions.put(blkTx, tweakKey);
+        return blkTx;
+    }
+
+    private static byte[] getLittleEndian(long value, int length) {
+        return Arrays.copyOf(ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN).putLong(value).array(), length);
+    }
+
+    private static Set<String> getTxids(BlockTransaction... blkTxes) {
+        Set<String> txids = new HashSet<>();
+        for(BlockTransaction blkTx : blkTxes) {
+            txids.add(Utils.bytesToHex(blkTx.getTransaction().getTxId().getBytes()));
+        }
+        return txids;
+    }
+
+    private static Set<String> getTxids(List<TxEntry> entries) {
+        Set<String> txids = new HashSet<>();
+        for(TxEntry entry : entries) {
+            txids.add(entry.tx_hash);
+        }
+        Assertions.assertEquals(entries.size(), txids.size());
+        return txids;
+    }
+
+    private static ScanRequest getRequest(SilentPaymentScanAddress address, SubscriptionStatus status) {
+        return new ScanRequest(address, new SilentPaymentsSubscription(address.toString(), 0), null, null, ScanFilter.NONE, new WeakReference<>(status), false);
+    }
+
+    private static SilentPaymentScanAddress getAddress(int seed) {
+        byte[] scanKey = new byte[32];
+        Arrays.fill(scanKey, (byte)seed);
+        byte[] spendKey = new byte[33];
+        spendKey[0] = 0x02;
+        Arrays.fill(spendKey, 1, spendKey.length, (byte)(seed + 10));
+        return SilentPaymentScanAddress.from(ECKey.fromPrivate(scanKey), ECKey.fromPublicOnly(spendKey));
+    }
+
+    private record TestSubscriptionStatus(Set<String> subscribedAddresses) implements SubscriptionStatus {
+        @Override
+        public boolean isConnected() {
+            return true;
+        }
+
+        @Override
+        public boolean isHeadersSubscribed() {
+            return false;
+        }
+
+        @Override
+        public boolean isScriptHashSubscribed(String scriptHash) {
+            return false;
+        }
+
+        @Override
+        public boolean isSilentPaymentsAddressSubscribed(String silentPaymentsAddress) {
+            return subscribedAddresses.contains(silentPaymentsAddress);
+        }
+
+        @Override
+        public Set<Sha256Hash> getSilentPaymentsMempoolTxids(String silentPaymentsAddress) {
+            return Set.of();
+        }
+    }
+}
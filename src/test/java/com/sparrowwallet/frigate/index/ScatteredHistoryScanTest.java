@@ -0,0 +1,61 @@
+package com.sparrowwallet.frigate.index;
+
+import com.google.common.eventbus.Subscribe;
+import com.sparrowwallet.frigate.Frigate;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsNotification;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class ScatteredHistoryScanTest {
+    private final List<SilentPaymentsNotification> notifications = new CopyOnWriteArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        Frigate.getEventBus().register(this);
+    }
+
+    @AfterEach
+    public void tearDown() {
+        Frigate.getEventBus().unregister(this);
+    }
+
+    @Subscribe
+    public void silentPaymentsNotification(SilentPaymentsNotification notification) {
+        notifications.add(notification);
+    }
+
+    @Test
+    public void testChunksMergedInHeightOrder() {
+        ScatteredHistoryScan scatteredScan = new ScatteredHistoryScan(new SilentPaymentsSubscription("sp1", 0), new WeakReference<>(null), 4, 2);
+
+        //Later chunks complete first, so nothing can be pushed until the first chunk is done
+        scatteredScan.complete(2, List.of(getEntry(25), getEntry(21)));
+        Assertions.assertEquals(1, notifications.size());
+        Assertions.assertTrue(notifications.getFirst().history().isEmpty());
+        Assertions.assertEquals(0.25d, notifications.getFirst().progress());
+
+        scatteredScan.complete(0, List.of(getEntry(3)));
+        scatteredScan.complete(1, List.of());
+        scatteredScan.complete(3, List.of(getEntry(31)));
+
+        List<Integer> pushed = new ArrayList<>();
+        for(SilentPaymentsNotification notification : notifications) {
+            notification.history().forEach(entry -> pushed.add(entry.getHeight()));
+        }
+        Assertions.assertEquals(List.of(3, 21, 25), pushed);
+        Assertions.assertEquals(0.75d, notifications.getLast().progress());
+        Assertions.assertEquals(List.of(getEntry(31)), scatteredScan.getRemaining());
+    }
+
+    private static TxEntry getEntry(int height) {
+        return new TxEntry(height, 0, String.format("%064x", height));
+    }
+}
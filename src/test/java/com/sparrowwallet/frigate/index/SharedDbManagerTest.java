@@ -0,0 +1,101 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.*;
+
+public class SharedDbManagerTest {
+    private static final String READ_INIT_SQL = "SET enable_progress_bar = 'true'; SET enable_progress_bar_print = 'false';";
+
+    @TempDir
+    File tempDir;
+
+    @Test
+    public void testWriteDuringRead() throws Exception {
+        SharedDbManager dbManager = createDbManager(DbManager.DB_PREFIX + new File(tempDir, "shared.duckdb").getAbsolutePath());
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            insertRows(dbManager, 0, 1000);
+
+            CountDownLatch readStarted = new CountDownLatch(1);
+            CountDownLatch writeDone = new CountDownLatch(1);
+            Future<long[]> read = executor.submit(() -> dbManager.executeRead(connection -> {
+                connection.setAutoCommit(false);
+                try {
+                    long before = countRows(connection);
+                    readStarted.countDown();
+                    Assertions.assertTrue(writeDone.await(10, TimeUnit.SECONDS));
+                    return new long[] {before, countRows(connection)};
+                } catch(InterruptedException e) {
+                    throw new SQLException(e);
+                } finally {
+                    connection.rollback();
+                    connection.setAutoCommit(true);
+                }
+            }));
+
+            //The write commits while the read is still open, and the read keeps the snapshot it started with
+            Assertions.assertTrue(readStarted.await(10, TimeUnit.SECONDS));
+            insertRows(dbManager, 1, 500);
+            writeDone.countDown();
+            Assertions.assertArrayEquals(new long[] {1000, 1000}, read.get(10, TimeUnit.SECONDS));
+            Assertions.assertEquals(1500, (long)dbManager.executeRead(SharedDbManagerTest::countRows));
+            Assertions.assertEquals(0, dbManager.getActiveReadConnections());
+        } finally {
+            executor.shutdownNow();
+            dbManager.close();
+        }
+
+        Assertions.assertTrue(dbManager.isShutdown());
+        Assertions.assertThrows(SQLException.class, () -> dbManager.executeRead(SharedDbManagerTest::countRows));
+        Assertions.assertThrows(SQLException.class, () -> insertRows(dbManager, 2, 1));
+    }
+
+    @Test
+    public void testReopen() throws Exception {
+        String connectionUrl = DbManager.DB_PREFIX + new File(tempDir, "reopen.duckdb").getAbsolutePath();
+        SharedDbManager dbManager = createDbManager(connectionUrl);
+        insertRows(dbManager, 0, 100);
+        dbManager.close();
+
+        //Closing releases the database file, so it can be opened again by another instance
+        SharedDbManager reopenedManager = createDbManager(connectionUrl);
+        try {
+            Assertions.assertEquals(100, (long)reopenedManager.executeRead(SharedDbManagerTest::countRows));
+        } finally {
+            reopenedManager.close();
+        }
+    }
+
+    private static SharedDbManager createDbManager(String connectionUrl) {
+        return new SharedDbManager(connectionUrl) {
+            @Override
+            protected String buildReadConnectionInitSql() {
+                return READ_INIT_SQL;
+            }
+        };
+    }
+
+    private static void insertRows(DbManager dbManager, int height, int rows) throws Exception {
+        dbManager.executeWrite(connection -> {
+            try(Statement statement = connection.createStatement()) {
+                statement.execute("CREATE TABLE IF NOT EXISTS tweak (txid BLOB NOT NULL, height INTEGER NOT NULL, tweak_key BLOB NOT NULL, outputs BIGINT[])");
+                return statement.execute("INSERT INTO tweak SELECT sha256(range::VARCHAR)::BLOB, " + height + ", sha256(range::VARCHAR)::BLOB, [(hash(range) >> 1)::BIGINT] FROM range(" + rows + ")");
+            }
+        });
+    }
+
+    private static long countRows(Connection connection) throws SQLException {
+        try(Statement statement = connection.createStatement(); ResultSet resultSet = statement.executeQuery("SELECT count(*) FROM tweak")) {
+            resultSet.next();
+            return resultSet.getLong(1);
+        }
+    }
+}
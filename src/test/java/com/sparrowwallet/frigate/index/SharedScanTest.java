@@ -0,0 +1,146 @@
+package com.sparrowwallet.frigate.index;
+
+import com.sparrowwallet.drongo.Utils;
+import com.sparrowwallet.drongo.crypto.ECKey;
+import com.sparrowwallet.drongo.protocol.Sha256Hash;
+import com.sparrowwallet.drongo.silentpayments.SilentPaymentScanAddress;
+import com.sparrowwallet.frigate.electrum.SilentPaymentsSubscription;
+import org.duckdb.DuckDBPreparedStatement;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.lang.ref.WeakReference;
+import java.sql.*;
+import java.util.*;
+
+public class SharedScanTest {
+    @Test
+    public void testTakeOverlappingScans() {
+        ScanRequest first = getRequest(null, 100, 200, ScanFilter.NONE);
+        ScanRequest disjoint = getRequest(null, 500, 600, ScanFilter.NONE);
+        ScanRequest overlapping = getRequest(null, 150, 300, ScanFilter.NONE);
+        //Only overlaps once the range has been widened by the previous request
+        ScanRequest chained = getRequest(null, 250, 400, ScanFilter.NONE);
+        ScanRequest unbounded = getRequest(null, null, null, ScanFilter.NONE);
+        Deque<ScanRequest> pending = new ArrayDeque<>(List.of(first, disjoint, chained, overlapping));
+
+        Assertions.assertEquals(List.of(first, overlapping, chained), IndexQuerier.takeOverlappingScans(pending, 64));
+        Assertions.assertEquals(List.of(disjoint), new ArrayList<>(pending));
+        Assertions.assertEquals(List.of(disjoint), IndexQuerier.takeOverlappingScans(pending, 64));
+        Assertions.assertTrue(IndexQuerier.takeOverlappingScans(pending, 64).isEmpty());
+
+        //The group is limited in size, leaving the remaining overlapping requests queued in order
+        pending = new ArrayDeque<>(List.of(unbounded, first, disjoint, overlapping));
+        Assertions.assertEquals(List.of(unbounded, first), IndexQuerier.takeOverlappingScans(pending, 2));
+        Assertions.assertEquals(List.of(disjoint, overlapping), new ArrayList<>(pending));
+    }
+
+    @Test
+    public void testGroupConsecutiveMempoolScans() {
+        Set<Sha256Hash> firstAddition = new HashSet<>(Set.of(Sha256Hash.ZERO_HASH));
+        //Equal to the first addition but queued separately, so scanned separately
+        Set<Sha256Hash> secondAddition = new HashSet<>(Set.of(Sha256Hash.ZERO_HASH));
+        IndexQuerier.MempoolScanRequest first = new IndexQuerier.MempoolScanRequest(getRequest(null, null, null, ScanFilter.NONE), firstAddition);
+        IndexQuerier.MempoolScanRequest second = new IndexQuerier.MempoolScanRequest(getRequest(null, null, null, ScanFilter.NONE), firstAddition);
+        IndexQuerier.MempoolScanRequest third = new IndexQuerier.MempoolScanRequest(getRequest(null, null, null, ScanFilter.NONE), secondAddition);
+        IndexQuerier.MempoolScanRequest fourth = new IndexQuerier.MempoolScanRequest(getRequest(null, null, null, ScanFilter.NONE), firstAddition);
+
+        Assertions.assertEquals(List.of(List.of(first, second), List.of(third), List.of(fourth)), IndexQuerier.groupConsecutiveScans(List.of(first, second, third, fourth)));
+        Assertions.assertTrue(IndexQuerier.groupConsecutiveScans(List.of()).isEmpty());
+    }
+
+    @Test
+    public void testSharedHistoryStatement() throws SQLException {
+        SilentPaymentScanAddress firstAddress = getAddress(1);
+        SilentPaymentScanAddress secondAddress = getAddress(2);
+        ScanFilter secondFilter = new ScanFilter(1000L, true);
+        List<ScanRequest> requests = List.of(getRequest(firstAddress, null, null, ScanFilter.NONE), getRequest(secondAddress, 10, 19, secondFilter));
+
+        Random random = new Random(0);
+        List<TweakRow> rows = new ArrayList<>();
+        for(int i = 0; i < 120; i++) {
+            byte[] txid = new byte[32];
+            random.nextBytes(txid);
+            byte[] tweakKey = new byte[33];
+            random.nextBytes(tweakKey);
+            rows.add(new TweakRow(txid, i / 4, tweakKey, new long[] {random.nextLong()}, new long[] {0L}, 1L));
+        }
+
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:"); Statement statement = connection.createStatement()) {
+            Index.createTables(statement);
+            createScanMacros(statement);
+            Index.appendRows(connection, rows);
+
+            //Outputs paying each address are added after the existing output, so that the second address's filter depends on their values and spent flags
+            List<List<String>> expected = List.of(new ArrayList<>(), new ArrayList<>());
+            for(int i = 0; i < rows.size(); i++) {
+                TweakRow row = rows.get(i);
+                List<Long> values = new ArrayList<>(List.of(0L));
+                long spentMask = 0L;
+                if(i % 3 == 0) {
+                    addOutput(connection, row, firstAddress, 0L, 0L);
+                    values.add(0L);
+                    expected.getFirst().add(row.height() + ":" + Utils.bytesToHex(row.txid()));
+                }
+                if(i % 2 == 0) {
+                    long value = i % 4 == 0 ? 5000L : 10L;
+                    spentMask = i % 8 == 0 ? 1L << values.size() : 0L;
+                    addOutput(connection, row, secondAddress, value, spentMask);
+                    values.add(value);
+                    if(row.height() >= 10 && row.height() <= 19 && secondFilter.matches(values.stream().mapToLong(Long::longValue).toArray(), 0, values.size(), spentMask)) {
+                        expected.getLast().add(row.height() + ":" + Utils.bytesToHex(row.txid()));
+                    }
+                }
+            }
+            Assertions.assertFalse(expected.getLast().isEmpty());
+
+            List<List<String>> matches = List.of(new ArrayList<>(), new ArrayList<>());
+            try(DuckDBPreparedStatement historyStatement = Index.prepareSharedHistoryStatement(connection, Index.TWEAK_TABLE, requests); ResultSet resultSet = historyStatement.executeQuery()) {
+                while(resultSet.next()) {
+                    matches.get(resultSet.getInt(1)).add(resultSet.getInt(3) + ":" + Utils.bytesToHex(resultSet.getBytes(2)));
+                }
+            }
+
+            for(int i = 0; i < requests.size(); i++) {
+                Collections.sort(expected.get(i));
+                Collections.sort(matches.get(i));
+                Assertions.assertEquals(expected.get(i), matches.get(i));
+            }
+        }
+    }
+
+    //Stands in for the secp256k1 extension with functions that combine their inputs, so that the output for each key can be computed with the same chain of calls
+    private static void createScanMacros(Statement statement) throws SQLException {
+        statement.execute("CREATE MACRO secp256k1_ec_pubkey_tweak_mul(pubkey, scalar) AS pubkey || scalar");
+        statement.execute("CREATE MACRO int_to_big_endian(value) AS ''::BLOB");
+        statement.execute("CREATE MACRO secp256k1_tagged_sha256(tag, data) AS data");
+        statement.execute("CREATE MACRO secp256k1_ec_pubkey_create(seckey) AS seckey");
+        statement.execute("CREATE MACRO secp256k1_ec_pubkey_combine(pubkeys) AS pubkeys[1] || pubkeys[2]");
+        statement.execute("CREATE MACRO hash_prefix_to_int(data, byte_offset) AS (hash(data) >> 1)::BIGINT");
+    }
+
+    private static void addOutput(Connection connection, TweakRow row, SilentPaymentScanAddress address, long value, long spentMask) throws SQLException {
+        try(PreparedStatement statement = connection.prepareStatement("UPDATE tweak SET outputs = list_append(outputs, hash_prefix_to_int(secp256k1_ec_pubkey_combine([?::BLOB, tweak_key || ?::BLOB]), 1)), " +
+                "output_values = list_append(output_values, ?), spent_mask = spent_mask | ? WHERE txid = ?")) {
+            statement.setBytes(1, address.getSpendKey().getPubKey());
+            statement.setBytes(2, address.getScanKey().getPrivKeyBytes());
+            statement.setLong(3, value);
+            statement.setLong(4, spentMask);
+            statement.setBytes(5, row.txid());
+            Assertions.assertEquals(1, statement.executeUpdate());
+        }
+    }
+
+    private static SilentPaymentScanAddress getAddress(int seed) {
+        byte[] scanKey = new byte[32];
+        Arrays.fill(scanKey, (byte)seed);
+        byte[] spendKey = new byte[33];
+        spendKey[0] = 0x02;
+        Arrays.fill(spendKey, 1, spendKey.length, (byte)(seed + 10));
+        return SilentPaymentScanAddress.from(ECKey.fromPrivate(scanKey), ECKey.fromPublicOnly(spendKey));
+    }
+
+    private static ScanRequest getRequest(SilentPaymentScanAddress address, Integer startHeight, Integer endHeight, ScanFilter filter) {
+        return new ScanRequest(address, new SilentPaymentsSubscription("sp1", startHeight == null ? 0 : startHeight), startHeight, endHeight, filter, new WeakReference<>(null), false);
+    }
+}
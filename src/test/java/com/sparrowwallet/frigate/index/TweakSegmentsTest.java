@@ -0,0 +1,99 @@
+package com.sparrowwallet.frigate.index;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.sql.*;
+import java.util.ArrayList;
+import java.util.List;
+
+public class TweakSegmentsTest {
+    @Test
+    public void testSealAndUnseal(@TempDir File tempDir) throws SQLException {
+        TweakSegments tweakSegments = new TweakSegments(new File(tempDir, "segments"), 0);
+        try(Connection connection = DriverManager.getConnection("jdbc:duckdb:" + new File(tempDir, "segments.duckdb").getAbsolutePath()); Statement statement = connection.createStatement()) {
+            Index.createTables(statement);
+            //Each row lists the outputs at vouts 0 and 2, and every third row has the output at vout 2 spent
+            statement.execute("INSERT INTO " + Index.TWEAK_TABLE + " (txid, height, tweak_key, outputs, output_values, output_vout_mask, spent_mask) SELECT sha256(i::VARCHAR)::BLOB, (i // 10)::INTEGER, " +
+                    "'\\x02'::BLOB, [i, i + 1], [1000, 2000], 5, 0 FROM range(0, 30000) r(i)");
+            statement.execute("INSERT INTO " + Index.SPENT_OUTPUT_TABLE + " SELECT (i // 10)::INTEGER, sha256(i::VARCHAR)::BLOB, 2, 2990 FROM range(0, 30000, 3) r(i)");
+            Index.applySpentOutputs(connection);
+            List<String> rows = getRows(connection, Index.TWEAK_TABLE);
+
+            //Segment files are read by name from the file search path, as on a read connection
+            statement.execute("SET file_search_path = '" + new File(tempDir, "segments").getAbsolutePath() + "'");
+
+            //Each call seals a single segment
+            List<TweakSegments.Segment> sealed = new ArrayList<>();
+            sealed.add(tweakSegments.sealNext(connection, 1000));
+            Assertions.assertEquals(999, TweakSegments.getSealedHeight(connection));
+            sealed.add(tweakSegments.sealNext(connection, 1000));
+            Assertions.assertNull(tweakSegments.sealNext(connection, 1000));
+            Assertions.assertEquals(1999, TweakSegments.getSealedHeight(connection));
+            Assertions.assertEquals(20000, sealed.stream().mapToLong(TweakSegments.Segment::rows).sum());
+            Assertions.assertEquals(rows, getRows(connection, getSource(tweakSegments, connection, true)));
+
+            //Unspent flags are not read unless requested
+            try(ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + getSource(tweakSegments, connection, false) + " WHERE spent_mask <> 0")) {
+                resultSet.next();
+                Assertions.assertEquals(3333, resultSet.getLong(1));
+            }
+
+            //A later spend of a sealed row is moved out of the spent output table and combined with the row when read
+            statement.execute("INSERT INTO " + Index.SPENT_OUTPUT_TABLE + " VALUES (0, sha256('1')::BLOB, 0, 3000)");
+            Index.applySpentOutputs(connection);
+            try(ResultSet resultSet = statement.executeQuery("SELECT spent_mask FROM " + getSource(tweakSegments, connection, true) + " WHERE txid = sha256('1')::BLOB")) {
+                resultSet.next();
+                Assertions.assertEquals(1, resultSet.getLong(1));
+            }
+            TweakSegments.removeSpentOutputs(connection, 3000);
+            Assertions.assertEquals(rows, getRows(connection, getSource(tweakSegments, connection, true)));
+
+            //A reorg deeper than the seal depth returns the later segments to the hot segment
+            long snapshot = tweakSegments.openSnapshot();
+            Assertions.assertEquals(1, tweakSegments.unseal(connection, 1500));
+            Assertions.assertEquals(999, TweakSegments.getSealedHeight(connection));
+            Assertions.assertEquals(rows, getRows(connection, getSource(tweakSegments, connection, true)));
+            try(ResultSet resultSet = statement.executeQuery("SELECT COUNT(*) FROM " + Index.TWEAK_TABLE + " WHERE spent_mask = 2 AND spent_height = 2990")) {
+                resultSet.next();
+                Assertions.assertEquals(6666, resultSet.getLong(1));
+            }
+
+            //The unsealed file is kept while a snapshot opened before the unseal is open, but not for snapshots opened after
+            tweakSegments.deleteUnlistedFiles(connection);
+            Assertions.assertEquals(2, new File(tempDir, "segments").list().length);
+            tweakSegments.closeSnapshot(tweakSegments.openSnapshot());
+            tweakSegments.closeSnapshot(snapshot);
+            long laterSnapshot = tweakSegments.openSnapshot();
+            tweakSegments.deleteUnlistedFiles(connection);
+            Assertions.assertEquals(1, new File(tempDir, "segments").list().length);
+            tweakSegments.closeSnapshot(laterSnapshot);
+
+            //Without snapshots, unlisted files are still kept for the grace period
+            TweakSegments graceSegments = new TweakSegments(new File(tempDir, "segments"));
+            Assertions.assertEquals(1, tweakSegments.unseal(connection, 0));
+            graceSegments.deleteUnlistedFiles(connection);
+            Assertions.assertEquals(1, new File(tempDir, "segments").list().length);
+            tweakSegments.deleteUnlistedFiles(connection);
+            Assertions.assertEquals(0, new File(tempDir, "segments").list().length);
+        }
+    }
+
+    private static String getSource(TweakSegments tweakSegments, Connection connection, boolean spent) throws SQLException {
+        return tweakSegments.getSource(TweakSegments.getSegments(connection, 0, Integer.MAX_VALUE), 0, Integer.MAX_VALUE, spent);
+    }
+
+    private static List<String> getRows(Connection connection, String source) throws SQLException {
+        List<String> rows = new ArrayList<>();
+        try(Statement statement = connection.createStatement();
+            ResultSet resultSet = statement.executeQuery("SELECT hex(txid), height, outputs::VARCHAR, output_values::VARCHAR, spent_mask FROM " + source + " ORDER BY height, txid")) {
+            while(resultSet.next()) {
+                rows.add(resultSet.getString(1) + " " + resultSet.getInt(2) + " " + resultSet.getString(3) + " " + resultSet.getString(4) + " " + resultSet.getLong(5));
+            }
+        }
+
+        return rows;
+    }
+}